@@ -467,6 +467,31 @@
       return createTaggedImage(pixels, md);
    }
 
+   /*
+    * Same as getLastTaggedImage, but copies the pixels into the given array
+    * if it has the right type and length, so that callers can reuse their
+    * pixel buffers. A new array is allocated otherwise.
+    */
+   public TaggedImage getLastTaggedImage(int cameraChannelIndex, Object pixels) throws java.lang.Exception {
+      Metadata md = new Metadata();
+      if (pixels == null || !copyLastImageMD(cameraChannelIndex, 0, md, pixels)) {
+         pixels = getLastImageMD(cameraChannelIndex, 0, md);
+      }
+      return createTaggedImage(pixels, md, cameraChannelIndex);
+   }
+
+   /*
+    * Same as getNBeforeLastTaggedImage, but copies the pixels into the given
+    * array if it has the right type and length
+    */
+   public TaggedImage getNBeforeLastTaggedImage(long n, Object pixels) throws java.lang.Exception {
+      Metadata md = new Metadata();
+      if (pixels == null || !copyNBeforeLastImageMD(n, md, pixels)) {
+         pixels = getNBeforeLastImageMD(n, md);
+      }
+      return createTaggedImage(pixels, md);
+   }
+
    public TaggedImage popNextTaggedImage(int cameraChannelIndex) throws java.lang.Exception {
       Metadata md = new Metadata();
       Object pixels = popNextImageMD(cameraChannelIndex, 0, md);
@@ -626,6 +651,56 @@
 #include "MMCore/MMEventCallback.h"
 %}
 
+%{
+// Copies the pixels of an image from the circular buffer into an existing
+// Java array, for callers that reuse their pixel buffers. Returns false,
+// without copying, unless the array has the type and length that the void*
+// typemap above would have allocated.
+static bool CopyImageToJavaArray(JNIEnv* jenv, CMMCore* core, void* pixels, jobject array)
+{
+   if (pixels == 0 || array == 0)
+      return false;
+
+   long lSize = core->getImageWidth() * core->getImageHeight();
+   unsigned bytesPerPixel = core->getBytesPerPixel();
+   if (bytesPerPixel == 4 || bytesPerPixel == 8)
+      lSize *= 4;
+   else if (bytesPerPixel != 1 && bytesPerPixel != 2)
+      return false;
+   bool shorts = bytesPerPixel == 2 || bytesPerPixel == 8;
+
+   jclass arrayClass = jenv->FindClass(shorts ? "[S" : "[B");
+   if (arrayClass == 0)
+      return false;
+   bool matches = jenv->IsInstanceOf(array, arrayClass)
+         && jenv->GetArrayLength((jarray) array) == lSize;
+   jenv->DeleteLocalRef(arrayClass);
+   if (!matches)
+      return false;
+
+   if (shorts)
+      jenv->SetShortArrayRegion((jshortArray) array, 0, lSize, (jshort*) pixels);
+   else
+      jenv->SetByteArrayRegion((jbyteArray) array, 0, lSize, (jbyte*) pixels);
+   return true;
+}
+%}
+
+// Hands the JNI environment to the methods below without a Java argument
+%typemap(in, numinputs=0) JNIEnv* jenv "$1 = jenv;"
+
+%extend CMMCore {
+   bool copyLastImageMD(unsigned channel, unsigned slice, Metadata& md, jobject pixels, JNIEnv* jenv) throw (CMMError)
+   {
+      return CopyImageToJavaArray(jenv, $self, $self->getLastImageMD(channel, slice, md), pixels);
+   }
+
+   bool copyNBeforeLastImageMD(unsigned long n, Metadata& md, jobject pixels, JNIEnv* jenv) throw (CMMError)
+   {
+      return CopyImageToJavaArray(jenv, $self, $self->getNBeforeLastImageMD(n, md), pixels);
+   }
+}
+
 
 // instantiate STL mappings
 
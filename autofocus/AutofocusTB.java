@@ -19,6 +19,7 @@ import org.micromanager.api.ScriptInterface;
 import org.micromanager.acquisition.AcquisitionData;
 import org.micromanager.utils.AutofocusManager;
 import org.micromanager.utils.AutofocusBase;
+import org.micromanager.utils.FocusMetrics;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.PropertyItem;
 
@@ -409,61 +410,14 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
       int height = (int) (CROP_SIZE * core_.getImageHeight());
       int sx = (int) (core_.getImageWidth() - width) / 2;
       int sy = (int) (core_.getImageHeight() - height) / 2;
-      //int ow = (int) (((1 - CROP_SIZE) / 2) * core_.getImageWidth());
-      //int oh = (int) (((1 - CROP_SIZE) / 2) * core_.getImageHeight());
-
-      // double[][] medPix = new double[width][height];
-      double sharpNess = 0;
-      //double[] windo = new double[9];
-
-      /*
-       *  Apply 3x3 median filter to reduce noise
-       */
-      /*
-       *  for (int i=0; i<width; i++){
-       *  for (int j=0; j<height; j++){
-       *  windo[0] = (double)impro.getPixel(ow+i-1,oh+j-1);
-       *  windo[1] = (double)impro.getPixel(ow+i,oh+j-1);
-       *  windo[2] = (double)impro.getPixel(ow+i+1,oh+j-1);
-       *  windo[3] = (double)impro.getPixel(ow+i-1,oh+j);
-       *  windo[4] = (double)impro.getPixel(ow+i,oh+j);
-       *  windo[5] = (double)impro.getPixel(ow+i+1,oh+j);
-       *  windo[6] = (double)impro.getPixel(ow+i-1,oh+j+1);
-       *  windo[7] = (double)impro.getPixel(ow+i,oh+j+1);
-       *  windo[8] = (double)impro.getPixel(ow+i+1,oh+j+1);
-       *  medPix[i][j] = findMed(windo);
-       *  }
-       *  }
-       */
-      //tPrev = System.currentTimeMillis();
-
-      impro.setRoi(new Rectangle(sx, sy, width, height));
-      impro.crop();
-      impro.medianFilter();
-      impro.findEdges();
-
-      //int[] ken = {2, 1, 0, 1, 0, -1, 0, -1, -2};
-      //impro.convolve3x3(ken);
-
-      for (int i = 0; i < width; i++) {
-         for (int j = 0; j < height; j++) {
-            sharpNess += impro.getPixelValue(i, j);
-         }
-      }
-
-      // tcur = System.currentTimeMillis()-tPrev;
 
       /*
-       *  Edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum all pixel values. Ideally, the sum is large if most edges are sharp
-       */
-      /*
-       *  for (int k=1; k<width-1; k++){
-       *  for (int l=1; l<height-1; l++){
-       *  sharpNess = sharpNess + Math.pow((-2*medPix[k-1][l-1]- medPix[k][l-1]-medPix[k-1][l]+medPix[k+1][l]+medPix[k][l+1]+2*medPix[k+1][l+1]),2);
-       *  }
-       *  }
+       *  Apply 3x3 median filter to reduce noise, then sum the Sobel edge
+       *  magnitude over the center crop. Ideally, the sum is large if most
+       *  edges are sharp
        */
-      return sharpNess;
+      return FocusMetrics.medianEdges(impro.getPixels(), impro.getWidth(),
+              impro.getHeight(), new Rectangle(sx, sy, width, height));
    }
 
 
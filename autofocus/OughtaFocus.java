@@ -26,15 +26,23 @@
 
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 
 import java.awt.Rectangle;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import javax.swing.SwingUtilities;
 
 import mmcorej.CMMCore;
 import mmcorej.Configuration;
+import mmcorej.DoubleVector;
 import mmcorej.TaggedImage;
 
 import org.apache.commons.math.FunctionEvaluationException;
@@ -44,6 +52,7 @@ import org.apache.commons.math.optimization.univariate.BrentOptimizer;
 import org.json.JSONException;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.utils.AutofocusBase;
+import org.micromanager.utils.FocusMetrics;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
@@ -64,8 +73,13 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private static final String EXPOSURE = "Exposure";
    private static final String SHOW_IMAGES = "ShowImages";
    private static final String SCORING_METHOD = "Maximize";
+   private static final String SEARCH_ALGORITHM = "SearchAlgorithm";
    private static final String showValues[] = {"Yes", "No"};
    private final static String scoringMethods[] = {"Edges", "StdDev", "Mean", "NormalizedVariance", "SharpEdges", "Redondo", "Volath", "Volath5"};
+   private final static String searchAlgorithms[] = {"Brent", "Pipelined"};
+   // positions scanned per pass of the pipelined search
+   private static final int PIPELINE_STEPS = 7;
+   private static final int MAX_PIPELINE_PASSES = 10;
    private double searchRange = 10;
    private double tolerance = 1;
    private double cropFactor = 1;
@@ -73,6 +87,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double exposure = 100;
    private String show = "No";
    private String scoringMethod = "Edges";
+   private String searchAlgorithm = "Brent";
    private int imageCount_;
    private long startTimeMs_;
    private double startZUm_;
@@ -87,6 +102,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       createProperty(EXPOSURE, NumberUtils.doubleToDisplayString(exposure));
       createProperty(SHOW_IMAGES, show, showValues);
       createProperty(SCORING_METHOD, scoringMethod, scoringMethods);
+      createProperty(SEARCH_ALGORITHM, searchAlgorithm, searchAlgorithms);
       imageCount_ = 0;
    }
 
@@ -100,6 +116,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          exposure = NumberUtils.displayStringToDouble(getPropertyValue(EXPOSURE));
          show = getPropertyValue(SHOW_IMAGES);
          scoringMethod = getPropertyValue(SCORING_METHOD);
+         searchAlgorithm = getPropertyValue(SEARCH_ALGORITHM);
 
       } catch (MMException ex) {
          ReportingUtils.logError(ex);
@@ -160,6 +177,9 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    }
 
    private double runAutofocusAlgorithm() throws Exception {
+      if (searchAlgorithm.contentEquals("Pipelined")) {
+         return runPipelinedSearch();
+      }
       UnivariateRealFunction scoreFun = new UnivariateRealFunction() {
 
          public double value(double d) throws FunctionEvaluationException {
@@ -186,6 +206,198 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       return zResult;
    }
 
+   /**
+    * Scans the search range at a fixed set of positions, then scans again
+    * around the best one with a smaller step, until the step is within the
+    * tolerance.  Since the positions of a pass are known before it starts,
+    * the stage can move to the next position while the previous image is
+    * read out and scored, or the whole pass can run as a hardware Z sequence.
+    */
+   private double runPipelinedSearch() throws Exception {
+      CMMCore core = app_.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      imageCount_ = 0;
+      startZUm_ = core.getPosition(focusDevice);
+      double lo = startZUm_ - searchRange / 2;
+      double hi = startZUm_ + searchRange / 2;
+      double zResult = startZUm_;
+      ExecutorService scorer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "OughtaFocus scoring");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      try {
+         for (int pass = 0; pass < MAX_PIPELINE_PASSES; pass++) {
+            double[] zs = new double[PIPELINE_STEPS];
+            double step = (hi - lo) / (PIPELINE_STEPS - 1);
+            for (int i = 0; i < PIPELINE_STEPS; i++) {
+               zs[i] = lo + i * step;
+            }
+            double[] scores = scanSequenceable(core, focusDevice, zs.length)
+                    ? scanZSequence(scorer, zs) : scanZPipelined(scorer, zs);
+
+            int best = 0;
+            for (int i = 1; i < scores.length; i++) {
+               if (scores[i] > scores[best]) {
+                  best = i;
+               }
+            }
+            zResult = zs[best];
+            // interpolate between the scanned positions
+            if (best > 0 && best < scores.length - 1) {
+               double denom = scores[best - 1] - 2 * scores[best] + scores[best + 1];
+               if (denom < 0) {
+                  zResult += step * 0.5 * (scores[best - 1] - scores[best + 1]) / denom;
+               }
+            }
+            ReportingUtils.logMessage("OughtaFocus pass " + pass
+                    + ": step=" + TextUtils.FMT2.format(step)
+                    + ", z=" + TextUtils.FMT2.format(zResult)
+                    + ", t=" + (System.currentTimeMillis() - startTimeMs_));
+            if (step <= tolerance) {
+               break;
+            }
+            lo = zResult - step;
+            hi = zResult + step;
+         }
+      } finally {
+         scorer.shutdownNow();
+      }
+      ReportingUtils.logMessage("OughtaFocus Images: " + imageCount_
+              + ", z=" + TextUtils.FMT2.format(zResult)
+              + ", dz=" + TextUtils.FMT2.format(zResult - startZUm_)
+              + ", t=" + (System.currentTimeMillis() - startTimeMs_));
+      return zResult;
+   }
+
+   private boolean scanSequenceable(CMMCore core, String focusDevice, int length) {
+      try {
+         return !liveModeOn_ && core.isStageSequenceable(focusDevice)
+                 && core.getStageSequenceMaxLength(focusDevice) >= length;
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         return false;
+      }
+   }
+
+   /**
+    * Takes an image at each position, moving the stage to the next position
+    * as soon as the exposure has finished, while the image is read out and
+    * scored on the scorer thread.
+    */
+   private double[] scanZPipelined(ExecutorService scorer, double[] zs) throws Exception {
+      CMMCore core = app_.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      List<Future<Double>> scores = new ArrayList<Future<Double>>(zs.length);
+      setZPosition(zs[0]);
+      for (int i = 0; i < zs.length; i++) {
+         long start = System.currentTimeMillis();
+         TaggedImage img;
+         if (liveModeOn_) {
+            img = core.getLastTaggedImage();
+            if (i + 1 < zs.length) {
+               core.setPosition(focusDevice, zs[i + 1]);
+            }
+         } else {
+            core.waitForDevice(core.getCameraDevice());
+            core.snapImage();
+            if (i + 1 < zs.length) {
+               core.setPosition(focusDevice, zs[i + 1]);
+            }
+            img = core.getTaggedImage();
+         }
+         long tI = System.currentTimeMillis() - start;
+         scores.add(scorer.submit(scoreTask(img, zs[i], tI)));
+         if (i + 1 < zs.length) {
+            core.waitForDevice(focusDevice);
+         }
+      }
+      return getScores(scores);
+   }
+
+   /**
+    * Takes an image at each position as a hardware triggered Z sequence,
+    * scoring the images on the scorer thread as they arrive.
+    */
+   private double[] scanZSequence(ExecutorService scorer, double[] zs) throws Exception {
+      CMMCore core = app_.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      List<Future<Double>> scores = new ArrayList<Future<Double>>(zs.length);
+      DoubleVector sequence = new DoubleVector();
+      for (double z : zs) {
+         sequence.add(z);
+      }
+      core.loadStageSequence(focusDevice, sequence);
+      setZPosition(zs[0]);
+      core.startStageSequence(focusDevice);
+      try {
+         long start = System.currentTimeMillis();
+         core.startSequenceAcquisition(zs.length, 0, true);
+         while (scores.size() < zs.length) {
+            if (core.getRemainingImageCount() > 0) {
+               TaggedImage img = core.popNextTaggedImage();
+               long tI = System.currentTimeMillis() - start;
+               scores.add(scorer.submit(scoreTask(img, zs[scores.size()], tI)));
+               start = System.currentTimeMillis();
+            } else if (!core.isSequenceRunning()) {
+               throw new MMException("Z sequence stopped after " + scores.size()
+                       + " of " + zs.length + " images");
+            } else {
+               Thread.sleep(1);
+            }
+         }
+      } finally {
+         if (core.isSequenceRunning()) {
+            core.stopSequenceAcquisition();
+         }
+         core.stopStageSequence(focusDevice);
+      }
+      return getScores(scores);
+   }
+
+   private Callable<Double> scoreTask(final TaggedImage img, final double z, final long tI) {
+      final int imageNr = imageCount_++;
+      return new Callable<Double>() {
+         public Double call() throws Exception {
+            long start = System.currentTimeMillis();
+            if (show.contentEquals("Yes")) {
+               SwingUtilities.invokeLater(new Runnable() {
+
+                  public void run() {
+                     app_.displayImage(img);
+                  }
+               });
+            }
+            ImageProcessor proc = makeMonochromeProcessor(app_.getMMCore(), getMonochromePixels(img));
+            double score = computeScore(proc);
+            ReportingUtils.logMessage("OughtaFocus: image=" + imageNr
+                    + ", t=" + (System.currentTimeMillis() - startTimeMs_)
+                    + ", z=" + TextUtils.FMT2.format(z)
+                    + ", score=" + TextUtils.FMT2.format(score)
+                    + ", Ti=" + tI + ", Tc=" + (System.currentTimeMillis() - start));
+            return score;
+         }
+      };
+   }
+
+   private static double[] getScores(List<Future<Double>> futures) throws Exception {
+      double[] scores = new double[futures.size()];
+      try {
+         for (int i = 0; i < scores.length; i++) {
+            scores[i] = futures.get(i).get();
+         }
+      } catch (ExecutionException ex) {
+         Throwable cause = ex.getCause();
+         if (cause instanceof Exception) {
+            throw (Exception) cause;
+         }
+         throw ex;
+      }
+      return scores;
+   }
+
    private void setZPosition(double z) throws Exception {
       CMMCore core = app_.getMMCore();
       String focusDevice = core.getFocusDevice();
@@ -207,20 +419,21 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    }
 
    public static Object getMonochromePixels(TaggedImage image) throws JSONException, MMScriptException {
+      // average the B, G and R components of each pixel, skipping A
       if (MDUtils.isRGB32(image)) {
-         final byte[][] planes = ImageUtils.getColorPlanesFromRGB32((byte[]) image.pix);
-         final int numPixels = planes[0].length;
+         final byte[] pix = (byte[]) image.pix;
+         final int numPixels = pix.length / 4;
          byte[] monochrome = new byte[numPixels];
-         for (int j=0;j<numPixels;++j) {
-            monochrome[j] = (byte) ((planes[0][j] + planes[1][j] + planes[2][j]) / 3);
+         for (int j = 0, k = 0; j < numPixels; ++j, k += 4) {
+            monochrome[j] = (byte) (((pix[k] & 0xff) + (pix[k + 1] & 0xff) + (pix[k + 2] & 0xff)) / 3);
          }
          return monochrome;
       } else if (MDUtils.isRGB64(image)) {
-         final short[][] planes = ImageUtils.getColorPlanesFromRGB64((short[]) image.pix);
-         final int numPixels = planes[0].length;
+         final short[] pix = (short[]) image.pix;
+         final int numPixels = pix.length / 4;
          short[] monochrome = new short[numPixels];
-         for (int j=0;j<numPixels;++j) {
-            monochrome[j] = (short) ((planes[0][j] + planes[1][j] + planes[2][j]) / 3);
+         for (int j = 0, k = 0; j < numPixels; ++j, k += 4) {
+            monochrome[j] = (short) (((pix[k] & 0xffff) + (pix[k + 1] & 0xffff) + (pix[k + 2] & 0xffff)) / 3);
          }
          return monochrome;
       } else {
@@ -306,139 +519,26 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       throw new UnsupportedOperationException("Not supported yet.");
    }
 
-   private double computeEdges(ImageProcessor proc) {
-      // mean intensity for the original image
-      double meanIntensity = proc.getStatistics().mean;
-      ImageProcessor proc1 = proc.duplicate();
-      // mean intensity of the edge map
-      proc1.findEdges();
-      double meanEdge = proc.getStatistics().mean;
-
-      return meanEdge / meanIntensity;
-   }
-
-   private double computeSharpEdges(ImageProcessor proc) {
-      // mean intensity for the original image
-      double meanIntensity = proc.getStatistics().mean;
-      ImageProcessor proc1 = proc.duplicate();
-      // mean intensity of the edge map
-      proc1.sharpen();
-      proc1.findEdges();
-      double meanEdge = proc.getStatistics().mean;
-
-      return meanEdge / meanIntensity;
-   }
-
-   private double computeMean(ImageProcessor proc) {
-      return proc.getStatistics().mean;
-   }
-
-   private double computeNormalizedStdDev(ImageProcessor proc) {
-      ImageStatistics stats = proc.getStatistics();
-      return stats.stdDev / stats.mean;
-   }
-
-   private double computeNormalizedVariance(ImageProcessor proc) {
-      ImageStatistics stats = proc.getStatistics();
-      return (stats.stdDev * stats.stdDev) / stats.mean;
-   }
-
-   
-   // this is NOT a traditional Laplace filter; the "center" weight is
-   // actually the bottom-center cell of the 3x3 matrix.  AFAICT it's a
-   // typo in the source paper, but works better than the traditional
-   // Laplace filter.
-   //
-   // Redondo R, Bueno G, Valdiviezo J et al.  "Autofocus evaluation for
-   // brightfield microscopy pathology", J Biomed Opt 17(3) 036008 (2012)
-   //
-   // from
-   //
-   // Russel M, Douglas T.  "Evaluation of autofocus algorithms for
-   // tuberculosis microscopy". Proc 29th International Conference of the
-   // IEEE EMBS, Lyon, 3489-3492 (22-26 Aug 2007)
-   private double computeRedondo(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
-
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 1; j < h - 1; ++j) {
-            double p = proc.getPixel(i - 1, j)
-                    + proc.getPixel(i + 1, j)
-                    + proc.getPixel(i, j - 1)
-                    + proc.getPixel(i, j + 1)
-                    - 4 * (proc.getPixel(i - 1, j));
-            sum += (p * p);
-         }
-      }
-
-      return sum;
-   }
-
-   // Volath's 1D autocorrelation
-   // Volath  D., "The influence of the scene parameters and of noise on
-   // the behavior of automatic focusing algorithms,"
-   // J. Microsc. 151, (2), 133 –146 (1988).
-   private double computeVolath(ImageProcessor proc) {
-      int h = proc.getHeight();
+   private double computeScore(ImageProcessor proc) {
+      Object pixels = proc.getPixels();
       int w = proc.getWidth();
-      double sum1 = 0.0;
-      double sum2 = 0.0;
-
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum1 += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
-         }
-      }
-
-      for (int i = 0; i < w - 2; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum2 += proc.getPixel(i, j) * proc.getPixel(i + 2, j);
-         }
-      }
-
-      return (sum1 - sum2);
-   }
-
-   // Volath 5 - smooths out high-frequency (suppresses noise)
-   // Volath  D., "The influence of the scene parameters and of noise on
-   // the behavior of automatic focusing algorithms,"
-   // J. Microsc. 151, (2), 133 –146 (1988).
-   private double computeVolath5(ImageProcessor proc) {
       int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
-
-      for (int i = 0; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
-         }
-      }
-
-      ImageStatistics stats = proc.getStatistics();
-
-      sum -= ((w - 1) * h * stats.mean * stats.mean);
-      return sum;
-   }
-
-   private double computeScore(ImageProcessor proc) {
       if (scoringMethod.contentEquals("Mean")) {
-         return computeMean(proc);
+         return FocusMetrics.mean(pixels, w, h, null);
       } else if (scoringMethod.contentEquals("StdDev")) {
-         return computeNormalizedStdDev(proc);
+         return FocusMetrics.normalizedStdDev(pixels, w, h, null);
       } else if (scoringMethod.contentEquals("NormalizedVariance")) {
-         return computeNormalizedVariance(proc);
+         return FocusMetrics.normalizedVariance(pixels, w, h, null);
       } else if (scoringMethod.contentEquals("Edges")) {
-         return computeEdges(proc);
+         return FocusMetrics.edges(pixels, w, h, null);
       } else if (scoringMethod.contentEquals("SharpEdges")) {
-         return computeSharpEdges(proc);
+         return FocusMetrics.sharpEdges(pixels, w, h, null);
       } else if (scoringMethod.contentEquals("Redondo")) {
-         return computeRedondo(proc);
+         return FocusMetrics.redondo(pixels, w, h, null);
       } else if (scoringMethod.contentEquals("Volath")) {
-         return computeVolath(proc);
+         return FocusMetrics.volath(pixels, w, h, null);
       } else if (scoringMethod.contentEquals("Volath5")) {
-         return computeVolath5(proc);
+         return FocusMetrics.volath5(pixels, w, h, null);
       } else {
          return 0;
       }
@@ -125,6 +125,7 @@ public class AcqControlDlg extends JFrame implements PropertyChangeListener, Acq
    private JLabel displayMode_;
    private JCheckBox stackKeepShutterOpenCheckBox_;
    private JCheckBox chanKeepShutterOpenCheckBox_;
+   private JCheckBox optimizePositionOrderCheckBox_;
    private AcqOrderMode[] acqOrderModes_;
    private AdvancedOptionsDialog advancedOptionsWindow_;
    // persistent properties (app settings)
@@ -146,6 +147,7 @@ public class AcqControlDlg extends JFrame implements PropertyChangeListener, Acq
    private static final String ACQ_NUM_CHANNELS = "acqNumchannels";
    private static final String ACQ_CHANNELS_KEEP_SHUTTER_OPEN = "acqChannelsKeepShutterOpen";
    private static final String ACQ_STACK_KEEP_SHUTTER_OPEN = "acqStackKeepShutterOpen";
+   private static final String ACQ_OPTIMIZE_POSITION_ORDER = "acqOptimizePositionOrder";
    private static final String CHANNEL_NAME_PREFIX = "acqChannelName";
    private static final String CHANNEL_USE_PREFIX = "acqChannelUse";
    private static final String CHANNEL_EXPOSURE_PREFIX = "acqChannelExp";
@@ -998,6 +1000,20 @@ public class AcqControlDlg extends JFrame implements PropertyChangeListener, Acq
       listButton_.setBounds(42, 25, 136, 26);
       positionsPanel_.add(listButton_);
 
+      optimizePositionOrderCheckBox_ = new JCheckBox();
+      optimizePositionOrderCheckBox_.setText("Optimize stage path");
+      optimizePositionOrderCheckBox_.setToolTipText("Reorder the positions to reduce the stage travel time");
+      optimizePositionOrderCheckBox_.setFont(new Font("Arial", Font.PLAIN, 10));
+      optimizePositionOrderCheckBox_.addActionListener(new ActionListener() {
+
+         public void actionPerformed(final ActionEvent e) {
+            applySettings();
+         }
+      });
+      optimizePositionOrderCheckBox_.setSelected(false);
+      optimizePositionOrderCheckBox_.setBounds(42, 58, 160, 22);
+      positionsPanel_.add(optimizePositionOrderCheckBox_);
+
       // Slices panel
 
       slicesPanel_.addActionListener(new ActionListener() {
@@ -1755,6 +1771,7 @@ public class AcqControlDlg extends JFrame implements PropertyChangeListener, Acq
       afPanel_.setSelected(acqEng_.isAutoFocusEnabled());
       acqEng_.keepShutterOpenForChannels(acqPrefs_.getBoolean(ACQ_CHANNELS_KEEP_SHUTTER_OPEN, false));
       acqEng_.keepShutterOpenForStack(acqPrefs_.getBoolean(ACQ_STACK_KEEP_SHUTTER_OPEN, false));
+      acqEng_.enableOptimizePositionOrder(acqPrefs_.getBoolean(ACQ_OPTIMIZE_POSITION_ORDER, false));
 
 
       ArrayList<Double> customIntervals = new ArrayList<Double>();
@@ -1838,6 +1855,7 @@ public class AcqControlDlg extends JFrame implements PropertyChangeListener, Acq
       acqPrefs_.putInt(ACQ_AF_SKIP_INTERVAL, acqEng_.getAfSkipInterval());
       acqPrefs_.putBoolean(ACQ_CHANNELS_KEEP_SHUTTER_OPEN, acqEng_.isShutterOpenForChannels());
       acqPrefs_.putBoolean(ACQ_STACK_KEEP_SHUTTER_OPEN, acqEng_.isShutterOpenForStack());
+      acqPrefs_.putBoolean(ACQ_OPTIMIZE_POSITION_ORDER, acqEng_.isOptimizePositionOrderEnabled());
 
       acqPrefs_.put(ACQ_CHANNEL_GROUP, acqEng_.getChannelGroup());
       ArrayList<ChannelSpec> channels = acqEng_.getChannels();
@@ -2261,6 +2279,7 @@ public class AcqControlDlg extends JFrame implements PropertyChangeListener, Acq
 
       zValCombo_.setSelectedIndex(zVals_);
       stackKeepShutterOpenCheckBox_.setSelected(acqEng_.isShutterOpenForStack());
+      optimizePositionOrderCheckBox_.setSelected(acqEng_.isOptimizePositionOrderEnabled());
       chanKeepShutterOpenCheckBox_.setSelected(acqEng_.isShutterOpenForChannels());
 
       channelTable_.setAutoResizeMode(JTable.AUTO_RESIZE_ALL_COLUMNS);
@@ -2354,6 +2373,7 @@ public class AcqControlDlg extends JFrame implements PropertyChangeListener, Acq
          acqEng_.setAfSkipInterval(NumberUtils.displayStringToInt(afSkipInterval_.getValue().toString()));
          acqEng_.keepShutterOpenForChannels(chanKeepShutterOpenCheckBox_.isSelected());
          acqEng_.keepShutterOpenForStack(stackKeepShutterOpenCheckBox_.isSelected());
+         acqEng_.enableOptimizePositionOrder(optimizePositionOrderCheckBox_.isSelected());
 
       } catch (ParseException p) {
          ReportingUtils.showError(p);
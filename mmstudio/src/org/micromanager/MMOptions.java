@@ -43,6 +43,15 @@ public class MMOptions {
    private static final String MPTIFF_SEPARATE_FILES_FOR_POSITIONS = "SplitXYPostionsInFilesMPTiff";
    private static final String SYNCEXPOSUREMAINANDMDA = "SyncExposureBetweenMainAndMDAWindows";
    private static final String FAST_STORAGE = "FastStorage";
+   private static final String FAST_STORAGE_QUEUE_SIZE = "FastStorageQueueSize";
+   private static final String FAST_STORAGE_QUEUE_FULL_POLICY = "FastStorageQueueFullPolicy";
+   private static final String FAST_STORAGE_THREAD_PER_DISK = "FastStorageThreadPerDisk";
+   private static final String MPTIFF_MEMORY_MAPPED = "MemoryMapMultipageTiffFiles";
+   private static final String RAM_BUFFER_BUDGET_MB = "RamBufferBudgetMB";
+   private static final String RAM_BUFFER_OVERFLOW_POLICY = "RamBufferOverflowPolicy";
+   private static final String PROCESSOR_QUEUE_CAPACITY = "ProcessorQueueCapacity";
+   private static final String REUSE_PIXEL_BUFFERS = "ReusePixelBuffers";
+   private static final String COALESCE_CACHE_LISTENERS = "CoalesceImageCacheListeners";
    
    public boolean debugLogEnabled_ = false;
    public boolean doNotAskForConfigFile_ = false;
@@ -57,6 +66,15 @@ public class MMOptions {
    public boolean syncExposureMainAndMDA_ = false;
    public boolean hideMDADisplay_ = false;
    boolean fastStorage_ = false;
+   public int fastStorageQueueSize_ = 20;
+   public String fastStorageQueueFullPolicy_ = "BLOCK";
+   public boolean fastStorageThreadPerDisk_ = false;
+   public boolean mpTiffMemoryMapped_ = false;
+   public int ramBufferBudgetMB_ = 0;
+   public String ramBufferOverflowPolicy_ = "SPILL";
+   public int processorQueueCapacity_ = 1;
+   public boolean reusePixelBuffers_ = false;
+   public boolean coalesceCacheListeners_ = true;
    
    public void saveSettings() {
       Preferences root = Preferences.userNodeForPackage( this.getClass());
@@ -74,6 +92,15 @@ public class MMOptions {
       prefs.putBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
       prefs.putBoolean (SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       prefs.putBoolean(FAST_STORAGE, fastStorage_);
+      prefs.putInt(FAST_STORAGE_QUEUE_SIZE, fastStorageQueueSize_);
+      prefs.put(FAST_STORAGE_QUEUE_FULL_POLICY, fastStorageQueueFullPolicy_);
+      prefs.putBoolean(FAST_STORAGE_THREAD_PER_DISK, fastStorageThreadPerDisk_);
+      prefs.putBoolean(MPTIFF_MEMORY_MAPPED, mpTiffMemoryMapped_);
+      prefs.putInt(RAM_BUFFER_BUDGET_MB, ramBufferBudgetMB_);
+      prefs.put(RAM_BUFFER_OVERFLOW_POLICY, ramBufferOverflowPolicy_);
+      prefs.putInt(PROCESSOR_QUEUE_CAPACITY, processorQueueCapacity_);
+      prefs.putBoolean(REUSE_PIXEL_BUFFERS, reusePixelBuffers_);
+      prefs.putBoolean(COALESCE_CACHE_LISTENERS, coalesceCacheListeners_);
    }
    
    public void loadSettings() {
@@ -93,5 +120,14 @@ public class MMOptions {
       mpTiffSeparateFilesForPositions_ = prefs.getBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
       syncExposureMainAndMDA_ = prefs.getBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       fastStorage_ = prefs.getBoolean(FAST_STORAGE, fastStorage_);
+      fastStorageQueueSize_ = prefs.getInt(FAST_STORAGE_QUEUE_SIZE, fastStorageQueueSize_);
+      fastStorageQueueFullPolicy_ = prefs.get(FAST_STORAGE_QUEUE_FULL_POLICY, fastStorageQueueFullPolicy_);
+      fastStorageThreadPerDisk_ = prefs.getBoolean(FAST_STORAGE_THREAD_PER_DISK, fastStorageThreadPerDisk_);
+      mpTiffMemoryMapped_ = prefs.getBoolean(MPTIFF_MEMORY_MAPPED, mpTiffMemoryMapped_);
+      ramBufferBudgetMB_ = prefs.getInt(RAM_BUFFER_BUDGET_MB, ramBufferBudgetMB_);
+      ramBufferOverflowPolicy_ = prefs.get(RAM_BUFFER_OVERFLOW_POLICY, ramBufferOverflowPolicy_);
+      processorQueueCapacity_ = prefs.getInt(PROCESSOR_QUEUE_CAPACITY, processorQueueCapacity_);
+      reusePixelBuffers_ = prefs.getBoolean(REUSE_PIXEL_BUFFERS, reusePixelBuffers_);
+      coalesceCacheListeners_ = prefs.getBoolean(COALESCE_CACHE_LISTENERS, coalesceCacheListeners_);
    }
 }
@@ -98,6 +98,7 @@ import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.TextUtils;
 import org.micromanager.utils.TooltipTextMaker;
 import org.micromanager.utils.WaitDialog;
@@ -128,8 +129,11 @@ import org.json.JSONException;
 import org.micromanager.acquisition.AcquisitionWrapperEngine;
 import org.micromanager.acquisition.LiveModeTimer;
 import org.micromanager.acquisition.MMAcquisition;
+import org.micromanager.acquisition.MMImageCache;
 import org.micromanager.api.ImageCache;
 import org.micromanager.acquisition.MetadataPanel;
+import org.micromanager.acquisition.MultipageTiffWriterPool;
+import org.micromanager.acquisition.PipelineMetrics;
 import org.micromanager.acquisition.ProcessorStack;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
@@ -856,6 +860,10 @@ public class MMStudioMainFrame extends JFrame implements
       }
 
       UIMonitor.enable(options_.debugLogEnabled_);
+      applyFastStorageOptions();
+      ProcessorStack.setDefaultQueueCapacity(options_.processorQueueCapacity_);
+      PixelBufferPool.setEnabled(options_.reusePixelBuffers_);
+      MMImageCache.setCoalescingDispatch(options_.coalesceCacheListeners_);
       
       guiColors_ = new GUIColors();
 
@@ -2354,6 +2362,32 @@ public class MMStudioMainFrame extends JFrame implements
       return options_.fastStorage_;
    }
 
+   public boolean getMemoryMappedMPTiffOption() {
+      return options_.mpTiffMemoryMapped_;
+   }
+
+   /**
+    * Memory budget for acquisitions stored in RAM, in MB. 0 means no limit.
+    */
+   public int getRamBufferBudgetMB() {
+      return options_.ramBufferBudgetMB_;
+   }
+
+   public String getRamBufferOverflowPolicy() {
+      return options_.ramBufferOverflowPolicy_;
+   }
+
+   private void applyFastStorageOptions() {
+      MultipageTiffWriterPool.setQueueCapacity(options_.fastStorageQueueSize_);
+      MultipageTiffWriterPool.setThreadPerDisk(options_.fastStorageThreadPerDisk_);
+      try {
+         MultipageTiffWriterPool.setQueueFullPolicy(
+                 MultipageTiffWriterPool.QueueFullPolicy.valueOf(options_.fastStorageQueueFullPolicy_));
+      } catch (IllegalArgumentException ex) {
+         ReportingUtils.logError("Unknown fast storage queue policy: " + options_.fastStorageQueueFullPolicy_);
+      }
+   }
+
    private void updateTitle() {
       this.setTitle(MICRO_MANAGER_TITLE + " " + MMVersion.VERSION_STRING + " - " + sysConfigFile_);
    }
@@ -4622,13 +4656,13 @@ public class MMStudioMainFrame extends JFrame implements
    public String installAutofocusPlugin(Class<?> autofocus) {
       String msg = autofocus.getSimpleName() + " module loaded.";
       if (afMgr_ != null) {
+         afMgr_.setAFPluginClassName(autofocus.getName());
          try {
             afMgr_.refresh();
          } catch (MMException e) {
             msg = e.getMessage();
             ReportingUtils.logError(e);
          }
-         afMgr_.setAFPluginClassName(autofocus.getSimpleName());
       } else {
          msg = "Internal error: AF manager not instantiated.";
       }
@@ -4639,6 +4673,22 @@ public class MMStudioMainFrame extends JFrame implements
       return core_;
    }
 
+   public String getPipelineMetrics() {
+      return PipelineMetrics.getReport();
+   }
+
+   public void startPipelineMetricsRecording(String path, int intervalMs) throws MMScriptException {
+      try {
+         PipelineMetrics.startRecording(path, intervalMs);
+      } catch (IOException ex) {
+         throw new MMScriptException("Couldn't open " + path + ": " + ex.getMessage());
+      }
+   }
+
+   public void stopPipelineMetricsRecording() {
+      PipelineMetrics.stopRecording();
+   }
+
    public IAcquisitionEngine2010 getAcquisitionEngine2010() {
       try {
          acquisitionEngine2010LoadingThread.join();
@@ -92,7 +92,7 @@ public class OptionsDlg extends MMDialog {
       setTitle("Micro-Manager Options");
       springLayout = new SpringLayout();
       getContentPane().setLayout(springLayout);
-      setBounds(100, 100, 380, 430);
+      setBounds(100, 100, 380, 455);
       guiColors_ = new GUIColors();
       Dimension buttonSize = new Dimension(120, 20);
 
@@ -450,6 +450,18 @@ public class OptionsDlg extends MMDialog {
       springLayout.putConstraint(SpringLayout.WEST, fastStorage, 20, SpringLayout.WEST, getContentPane());
       springLayout.putConstraint(SpringLayout.NORTH, fastStorage, 5, SpringLayout.SOUTH, hideMDAdisplay);
       fastStorage.setSelected(opts_.fastStorage_);
+      
+      final JCheckBox memoryMapped = new JCheckBox();
+      memoryMapped.addActionListener(new ActionListener() {
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffMemoryMapped_ = memoryMapped.isSelected();
+         }
+      });
+      memoryMapped.setText("Memory map saved image stack files when browsing");
+      getContentPane().add(memoryMapped);
+      springLayout.putConstraint(SpringLayout.WEST, memoryMapped, 20, SpringLayout.WEST, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, memoryMapped, 5, SpringLayout.SOUTH, fastStorage);
+      memoryMapped.setSelected(opts_.mpTiffMemoryMapped_);
    }
 
    private void changeBackground() {
@@ -59,6 +59,7 @@ import mmcorej.StrVector;
 
 import org.micromanager.navigation.MultiStagePosition;
 import org.micromanager.navigation.PositionList;
+import org.micromanager.navigation.PositionListOptimizer;
 import org.micromanager.navigation.StagePosition;
 import org.micromanager.utils.GUIColors;
 import org.micromanager.utils.MMDialog;
@@ -542,6 +543,22 @@ public class PositionListDlg extends MMDialog implements MouseListener, ChangeLi
       springLayout.putConstraint(SpringLayout.EAST, removeAllButton, 0, SpringLayout.EAST, markButton);
       springLayout.putConstraint(SpringLayout.WEST, removeAllButton, 0, SpringLayout.WEST, markButton);
 
+      final JButton optimizeButton = new JButton();
+      optimizeButton.setFont(new Font("Arial", Font.PLAIN, 10));
+      optimizeButton.addActionListener(new ActionListener() {
+         public void actionPerformed(ActionEvent arg0) {
+            optimizePositionOrder();
+         }
+      });
+      optimizeButton.setIcon(SwingResourceManager.getIcon(PositionListDlg.class, "icons/arrow_refresh.png"));
+      optimizeButton.setText("Optimize");
+      optimizeButton.setToolTipText("Reorders the positions to reduce the time spent moving the stages");
+      getContentPane().add(optimizeButton);
+      springLayout.putConstraint(SpringLayout.NORTH, optimizeButton, northConstraint, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.SOUTH, optimizeButton, northConstraint+=buttonHeight, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.EAST, optimizeButton, 0, SpringLayout.EAST, markButton);
+      springLayout.putConstraint(SpringLayout.WEST, optimizeButton, 0, SpringLayout.WEST, markButton);
+
   
 
       final JButton closeButton = new JButton();
@@ -722,7 +739,29 @@ public void addPosition(MultiStagePosition msp, String label) {
       gui_.getAcqDlg().updateGUIContents();
    }
 
-   
+   /**
+    * Plans a faster order for the positions and applies it once the user
+    * has seen the estimated time saved
+    */
+   protected void optimizePositionOrder() {
+      PosTableModel ptm = (PosTableModel)posTable_.getModel();
+      PositionList pl = ptm.getPositionList();
+      if (pl.getNumberOfPositions() < 3)
+         return;
+      PositionListOptimizer.Route route = new PositionListOptimizer().optimize(pl);
+      if (route.getSavedTimeMs() <= 0.0) {
+         JOptionPane.showMessageDialog(this, "The positions are already in the fastest order found.");
+         return;
+      }
+      int ret = JOptionPane.showConfirmDialog(this, route.toString() + ".\nReorder the positions?",
+            "Optimize position order", JOptionPane.YES_NO_OPTION);
+      if (ret == JOptionPane.YES_OPTION) {
+         pl.setPositions(route.getPositions());
+         ptm.fireTableDataChanged();
+         ReportingUtils.logMessage("Position list reordered. " + route.toString());
+      }
+   }
+
    protected void incrementOrderOfSelectedPosition(int direction) {
       PosTableModel ptm = (PosTableModel) posTable_.getModel();
       int currentRow = posTable_.getSelectedRow() - 1;
@@ -25,6 +25,7 @@ import org.micromanager.api.IAcquisitionEngine2010;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.internalinterfaces.AcqSettingsListener;
 import org.micromanager.navigation.PositionList;
+import org.micromanager.navigation.PositionListOptimizer;
 import org.micromanager.utils.AcqOrderMode;
 import org.micromanager.utils.AutofocusManager;
 import org.micromanager.utils.ChannelSpec;
@@ -50,6 +51,7 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
    private boolean useFrames_;
    private boolean useChannels_;
    private boolean useMultiPosition_;
+   private boolean optimizePositionOrder_;
    private boolean keepShutterOpenForStack_;
    private boolean keepShutterOpenForChannels_;
    private ArrayList<ChannelSpec> channels_ = new ArrayList<ChannelSpec>();
@@ -127,6 +129,9 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
          }
       }
       try {
+         if (acquisitionSettings.usePositionList && acquisitionSettings.optimizePositionOrder) {
+            optimizePositionOrder(gui_.getPositionList());
+         }
          DefaultTaggedImagePipeline taggedImagePipeline = new DefaultTaggedImagePipeline(
                  getAcquisitionEngine2010(),
                  acquisitionSettings,
@@ -333,9 +338,22 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       }
       acquisitionSettings.comment = comment_;
       acquisitionSettings.usePositionList = this.useMultiPosition_;
+      acquisitionSettings.optimizePositionOrder = this.optimizePositionOrder_;
       return acquisitionSettings;
    }
 
+   /**
+    * Reorders the positions to reduce the stage travel time, and logs the
+    * estimated time saved.
+    */
+   private void optimizePositionOrder(PositionList posList) {
+      PositionListOptimizer.Route route = new PositionListOptimizer().optimize(posList);
+      if (route.getSavedTimeMs() > 0.0) {
+         posList.setPositions(route.getPositions());
+      }
+      ReportingUtils.logMessage("Position order: " + route.toString());
+   }
+
 //////////////////// Actions ///////////////////////////////////////////
    public void stop(boolean interrupted) {
       try {
@@ -582,6 +600,14 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       return useMultiPosition_;
    }
 
+   public void enableOptimizePositionOrder(boolean selected) {
+      optimizePositionOrder_ = selected;
+   }
+
+   public boolean isOptimizePositionOrderEnabled() {
+      return optimizePositionOrder_;
+   }
+
    public ArrayList<ChannelSpec> getChannels() {
       return channels_;
    }
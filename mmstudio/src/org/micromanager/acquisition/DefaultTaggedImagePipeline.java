@@ -38,6 +38,8 @@ public class DefaultTaggedImagePipeline {
            ScriptInterface gui,
            boolean diskCached) throws ClassNotFoundException, InstantiationException, IllegalAccessException, MMScriptException {
 
+      PipelineMetrics.reset();
+
       // Start up the acquisition engine
       BlockingQueue<TaggedImage> engineOutputQueue = acqEngine.run(sequenceSettings, true, gui.getPositionList(), gui.getAutofocusManager().getDevice());
       summaryMetadata_ = acqEngine.getSummaryMetadata();
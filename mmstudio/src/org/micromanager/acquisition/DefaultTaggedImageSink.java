@@ -31,6 +31,8 @@ public class DefaultTaggedImageSink  {
          public void run() {
             long t1 = System.currentTimeMillis();
             int imageCount = 0;
+            PipelineMetrics.Stage metrics = PipelineMetrics.getStage("Image sink");
+            metrics.setQueue(imageProducingQueue_);
             try {
                while (true) {
                   TaggedImage image = imageProducingQueue_.poll(1, TimeUnit.SECONDS);
@@ -39,7 +41,9 @@ public class DefaultTaggedImageSink  {
                         break;
                      }
                      ++imageCount;
+                     long start = System.nanoTime();
                      imageCache_.putImage(image);
+                     metrics.record(1, System.nanoTime() - start);
                   }
                }
             } catch (Exception ex2) {
@@ -21,27 +21,58 @@
 //
 package org.micromanager.acquisition;
 
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
 import org.micromanager.MMStudioMainFrame;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ReportingUtils;
 
 /**
  * This class extends the java swing timer.  It periodically retrieves images
  * from the core and displays them in the live window
  * 
+ * Images retrieved from the core go through the image processors and then
+ * into a mailbox that holds only the newest image of each camera channel.
+ * A display thread takes images from the mailbox at the refresh rate of the
+ * screen, so images the screen could not show are skipped rather than
+ * queued. Histograms and the line profile are updated less often, every
+ * analysis interval.
+ * 
  * @author Henry Pinkard
  */
 public class LiveModeTimer {
 
    //private static final String CCHANNELINDEX = "CameraChannelIndex";
    private static final String ACQ_NAME = MMStudioMainFrame.SIMPLE_ACQ;
+   private static final int DEFAULT_ANALYSIS_INTERVAL_MS = 200;
+   private static final int DEFAULT_REFRESH_RATE = 60;
+   // images waiting for the image processors, newer ones are skipped
+   private static final int PROCESSOR_QUEUE_CAPACITY = 2;
+   // how long the image processors get to pass on the end of the stream
+   // after stop(), before the thread waiting for them is interrupted
+   private static final long STOP_TIMEOUT_MS = 1000;
    private VirtualAcquisitionDisplay win_;
    private CMMCore core_;
    private MMStudioMainFrame gui_;
@@ -52,29 +83,55 @@ public class LiveModeTimer {
    private long lastImageNumber_;
    private long oldImageNumber_;
    private long fpsInterval_ = 5000;
+   private long processedCounter_;
+   private long oldProcessedCounter_;
+   private volatile int analysisIntervalMs_ = DEFAULT_ANALYSIS_INTERVAL_MS;
    private final NumberFormat format_;
    private boolean running_ = false;
    private Timer timer_;
    private TimerTask task_;
-   private MMStudioMainFrame.DisplayImageRoutine displayImageRoutine_;
    private LinkedBlockingQueue imageQueue_;
+   // newest processed image of each camera channel, not yet displayed
+   private final Map<Integer, TaggedImage> mailbox_ = new LinkedHashMap<Integer, TaggedImage>();
+   // set by stop(); each run of live mode has its own, so display threads
+   // of an earlier run that are still finishing leave the new run alone
+   private AtomicBoolean displayStopped_;
+   private Thread processedImagesThread_;
+   private boolean reuseBuffers_;
+   private Object lastPixels_;
+   // Pixel arrays handed to the display, oldest first, with a flag that is
+   // set when a draw finds the array unused. Arrays are recycled when a
+   // second draw finds them unused, so that threads still reading the
+   // previous frame have a frame's time to finish.
+   private final LinkedList<ShownPixels> shownPixels_ = new LinkedList<ShownPixels>();
    
+   private static class ShownPixels {
+      final Object pixels_;
+      final int channel_;
+      boolean unused_ = false;
+
+      ShownPixels(Object pixels, int channel) {
+         pixels_ = pixels;
+         channel_ = channel;
+      }
+   }
+
    public LiveModeTimer() {
       gui_ = MMStudioMainFrame.getInstance();
       core_ = gui_.getCore();
       format_ = NumberFormat.getInstance();
       format_.setMaximumFractionDigits(0x1);
-      displayImageRoutine_ = new MMStudioMainFrame.DisplayImageRoutine() {
-         public void show(final TaggedImage ti) {
-            try {
-               gui_.normalizeTags(ti);
-               gui_.addImage(ACQ_NAME, ti, true, true);
-               gui_.updateLineProfile();
-            } catch (Exception e) {
-               ReportingUtils.logError(e);
-            }
-         }
-      };
+   }
+
+   /**
+    * Sets how often histograms and the line profile are updated in live mode
+    */
+   public void setAnalysisInterval(int intervalMs) {
+      analysisIntervalMs_ = Math.max(0, intervalMs);
+   }
+
+   public int getAnalysisIntervalMs() {
+      return analysisIntervalMs_;
    }
 
    /**
@@ -142,18 +199,201 @@ public class LiveModeTimer {
          win_ = MMStudioMainFrame.getSimpleDisplay();
          
          fpsCounter_ = 0;
+         processedCounter_ = 0;
+         oldProcessedCounter_ = 0;
          fpsTimer_ = System.currentTimeMillis();
          imageNumber_ = timg.tags.getLong("ImageNumber");
          lastImageNumber_ = imageNumber_ - 1;
          oldImageNumber_ = imageNumber_;
 
-         imageQueue_ = new LinkedBlockingQueue();
+         reuseBuffers_ = PixelBufferPool.isEnabled();
+         lastPixels_ = timg.pix;
+         imageQueue_ = new LinkedBlockingQueue(PROCESSOR_QUEUE_CAPACITY);
+         synchronized (mailbox_) {
+            mailbox_.clear();
+         }
          timer_.schedule(task_, 0, delay);
          win_.liveModeEnabled(true);
          
          win_.getImagePlus().getWindow().toFront();
          running_ = true;
-         gui_.runDisplayThread(imageQueue_, displayImageRoutine_);
+         startDisplayThreads(ProcessorStack.run(imageQueue_,
+                 gui_.getAcquisitionEngine().getImageProcessors()));
+   }
+
+   /**
+    * Starts one thread that moves processed images into the mailbox and one
+    * that displays the images in the mailbox at the screen refresh rate
+    */
+   private void startDisplayThreads(final BlockingQueue processedImageQueue) {
+      final AtomicBoolean stopped = new AtomicBoolean(false);
+      final AtomicBoolean processingDone = new AtomicBoolean(false);
+      displayStopped_ = stopped;
+      processedImagesThread_ = new Thread("Live mode processed images") {
+         @Override
+         public void run() {
+            try {
+               TaggedImage image;
+               do {
+                  image = (TaggedImage) processedImageQueue.take();
+                  if (image != TaggedImageQueue.POISON) {
+                     postToMailbox(image, stopped);
+                  }
+               } while (image != TaggedImageQueue.POISON);
+            } catch (InterruptedException ex) {
+               //the processors did not pass on the end of the stream in time
+            }
+            processingDone.set(true);
+         }
+      };
+      processedImagesThread_.start();
+
+      final long frameIntervalNs = 1000000000L / getDisplayRefreshRate();
+      Thread displayThread = new Thread("Live mode display") {
+         @Override
+         public void run() {
+            long nextFrame = System.nanoTime();
+            long lastAnalysis = 0;
+            while (!stopped.get()) {
+               nextFrame += frameIntervalNs;
+               long wait = nextFrame - System.nanoTime();
+               if (wait > 0) {
+                  try {
+                     Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                  } catch (InterruptedException ex) {
+                     return;
+                  }
+               } else {
+                  //fell behind, don't try to catch up
+                  nextFrame = System.nanoTime();
+               }
+               boolean done = processingDone.get();
+               List<TaggedImage> images = takeFromMailbox(stopped);
+               for (TaggedImage image : images) {
+                  if (stopped.get()) {
+                     return;
+                  }
+                  showImage(image);
+               }
+               long now = System.currentTimeMillis();
+               if (!images.isEmpty() && now - lastAnalysis >= analysisIntervalMs_) {
+                  lastAnalysis = now;
+                  gui_.updateLineProfile();
+               }
+               if (done && images.isEmpty()) {
+                  return;
+               }
+            }
+         }
+      };
+      displayThread.start();
+   }
+
+   /**
+    * Tells the display threads of the current run to stop, without waiting
+    * for them: stop() is called on the EDT, and the display thread may be
+    * waiting for the EDT to create the window. The display thread returns
+    * by itself once it sees the flag. The thread taking images from the
+    * processors is interrupted from a background thread if the processors
+    * don't pass on the end of the stream in time.
+    */
+   private void stopDisplayThreads() {
+      if (displayStopped_ == null) {
+         return;
+      }
+      synchronized (mailbox_) {
+         displayStopped_.set(true);
+      }
+      displayStopped_ = null;
+      final Thread processedImagesThread = processedImagesThread_;
+      processedImagesThread_ = null;
+      Thread watchdog = new Thread("Live mode stop") {
+         @Override
+         public void run() {
+            try {
+               processedImagesThread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException ex) {
+               //interrupt it right away
+            }
+            processedImagesThread.interrupt();
+         }
+      };
+      watchdog.setDaemon(true);
+      watchdog.start();
+   }
+
+   private static int getDisplayRefreshRate() {
+      try {
+         DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                 .getDefaultScreenDevice().getDisplayMode();
+         if (mode.getRefreshRate() != DisplayMode.REFRESH_RATE_UNKNOWN) {
+            return mode.getRefreshRate();
+         }
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+      }
+      return DEFAULT_REFRESH_RATE;
+   }
+
+   /**
+    * Replaces the image waiting in the mailbox for the same camera channel,
+    * which is skipped
+    */
+   private void postToMailbox(TaggedImage image, AtomicBoolean stopped) {
+      int channel = 0;
+      try {
+         channel = MDUtils.getChannelIndex(image.tags);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+      }
+      TaggedImage skipped;
+      synchronized (mailbox_) {
+         if (stopped.get()) {
+            //left over from a stopped run, the mailbox may be in use again
+            skipped = image;
+         } else {
+            processedCounter_++;
+            skipped = mailbox_.put(channel, image);
+         }
+      }
+      if (skipped != null && reuseBuffers_) {
+         //never reached the display, so nothing else holds the pixels
+         PixelBufferPool.recycle(skipped.pix);
+      }
+   }
+
+   private List<TaggedImage> takeFromMailbox(AtomicBoolean stopped) {
+      synchronized (mailbox_) {
+         if (stopped.get()) {
+            //the mailbox may already belong to a new run
+            return new ArrayList<TaggedImage>();
+         }
+         List<TaggedImage> images = new ArrayList<TaggedImage>(mailbox_.values());
+         mailbox_.clear();
+         return images;
+      }
+   }
+
+   private void showImage(TaggedImage ti) {
+      try {
+         gui_.normalizeTags(ti);
+         gui_.addImage(ACQ_NAME, ti, true, true);
+         if (reuseBuffers_) {
+            addShownPixels(ti);
+         }
+      } catch (Exception e) {
+         ReportingUtils.logError(e);
+      }
+   }
+
+   /**
+    * Hands an image retrieved from the core to the image processors, or
+    * skips it if they haven't taken the previous ones yet
+    */
+   private void offerImage(TaggedImage ti) {
+      if (!imageQueue_.offer(ti) && reuseBuffers_) {
+         PixelBufferPool.recycle(ti.pix);
+      }
    }
 
    
@@ -162,15 +402,25 @@ public class LiveModeTimer {
    }
    
    private void stop(boolean firstAttempt) {
-        try {
-           if (imageQueue_ != null)
-               imageQueue_.put(TaggedImageQueue.POISON);
-        } catch (InterruptedException ex) {
-           ReportingUtils.logError(ex);
-        }
       if (timer_ != null) {
          timer_.cancel();
       }
+      if (imageQueue_ != null) {
+         //the processors may have stopped taking images, so never block
+         //here: make room for the end marker by skipping waiting images
+         while (!imageQueue_.offer(TaggedImageQueue.POISON)) {
+            TaggedImage skipped = (TaggedImage) imageQueue_.poll();
+            if (skipped != null && reuseBuffers_) {
+               PixelBufferPool.recycle(skipped.pix);
+            }
+         }
+      }
+      stopDisplayThreads();
+      //the last frames stay in the live window, so they are never recycled
+      synchronized (shownPixels_) {
+         shownPixels_.clear();
+      }
+      PixelBufferPool.clear();
       
       try {
          if (core_.isSequenceRunning())
@@ -209,9 +459,84 @@ public class LiveModeTimer {
    }
            
 
+   /**
+    * Called on the EDT after a display has drawn an image
+    */
+   public void imageDrawn(VirtualAcquisitionDisplay display) {
+      updateFPS();
+      if (reuseBuffers_ && display == win_) {
+         recycleShownPixels();
+      }
+   }
+
+   /**
+    * Remembers the pixels of a frame that was handed to the live window, so
+    * they can be recycled once the window no longer uses them
+    */
+   private void addShownPixels(TaggedImage ti) {
+      int channel = 0;
+      try {
+         channel = MDUtils.getChannelIndex(ti.tags);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+      }
+      synchronized (shownPixels_) {
+         shownPixels_.add(new ShownPixels(ti.pix, channel));
+      }
+   }
+
+   /**
+    * Recycles the pixels of frames that have been replaced in the live
+    * window and are no longer drawn. The newest frame of each channel is
+    * still in the image cache and the window's processors hold the frames
+    * being drawn, everything else can go back to the pool.
+    */
+   private void recycleShownPixels() {
+      ImagePlus imp = win_.getImagePlus();
+      if (imp == null) {
+         return;
+      }
+      Map<Object, Object> inUse = new IdentityHashMap<Object, Object>();
+      addProcessorPixels(inUse, imp.getProcessor());
+      if (imp instanceof CompositeImage) {
+         CompositeImage ci = (CompositeImage) imp;
+         for (int c = 1; c <= ci.getNChannels(); c++) {
+            addProcessorPixels(inUse, ci.getProcessor(c));
+         }
+      }
+      synchronized (shownPixels_) {
+         Map<Integer, ShownPixels> newest = new HashMap<Integer, ShownPixels>();
+         for (ShownPixels shown : shownPixels_) {
+            newest.put(shown.channel_, shown);
+         }
+         for (ShownPixels shown : newest.values()) {
+            inUse.put(shown.pixels_, shown);
+         }
+         Iterator<ShownPixels> it = shownPixels_.iterator();
+         while (it.hasNext()) {
+            ShownPixels shown = it.next();
+            if (inUse.containsKey(shown.pixels_)) {
+               shown.unused_ = false;
+            } else if (shown.unused_) {
+               it.remove();
+               PixelBufferPool.recycle(shown.pixels_);
+            } else {
+               shown.unused_ = true;
+            }
+         }
+      }
+   }
+
+   private static void addProcessorPixels(Map<Object, Object> inUse, ImageProcessor proc) {
+      if (proc != null && proc.getPixels() != null) {
+         inUse.put(proc.getPixels(), proc);
+      }
+   }
+
    /**
     * Updates the fps timer (how fast does the camera pump images into the 
-    * circular buffer) and display fps (how fast do we display the images)
+    * circular buffer), processed fps (how fast do images come out of the
+    * image processors) and display fps (how fast do we display the images)
     * It is called from tasks that are doing the actual image drawing
     * 
     */
@@ -226,11 +551,18 @@ public class LiveModeTimer {
             double d = diff/ 1000.0;
             double fps = fpsCounter_ / d;
             double dfps = (imageNumber_ - oldImageNumber_) / d;
-            win_.displayStatusLine("fps: " + format_.format(dfps) +
+            long processed;
+            synchronized (mailbox_) {
+               processed = processedCounter_;
+            }
+            double pfps = (processed - oldProcessedCounter_) / d;
+            win_.displayStatusLine("camera fps: " + format_.format(dfps) +
+                    ", processed fps: " + format_.format(pfps) +
                     ", display fps: " + format_.format(fps));
             fpsCounter_ = 0;
             fpsTimer_ = now;
             oldImageNumber_ = imageNumber_;
+            oldProcessedCounter_ = processed;
          }
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
@@ -256,10 +588,29 @@ public class LiveModeTimer {
                try {
 
                   
-                  TaggedImage ti = core_.getLastTaggedImage();
+                  TaggedImage ti;
+                  if (reuseBuffers_) {
+                     Object buffer = PixelBufferPool.takeLike(lastPixels_);
+                     ti = core_.getLastTaggedImage(0, buffer);
+                     if (ti.pix != buffer) {
+                        //image size changed, the core allocated a new array
+                        PixelBufferPool.recycle(buffer);
+                     }
+                     lastPixels_ = ti.pix;
+                  } else {
+                     ti = core_.getLastTaggedImage();
+                  }
                   // if we have already shown this image, do not do it again.
-                  setImageNumber(ti.tags.getLong("ImageNumber"));
-                  imageQueue_.put(ti);
+                  long imageNumber = ti.tags.getLong("ImageNumber");
+                  if (imageNumber == lastImageNumber_) {
+                     if (reuseBuffers_) {
+                        PixelBufferPool.recycle(ti.pix);
+                     }
+                     return;
+                  }
+                  lastImageNumber_ = imageNumber;
+                  setImageNumber(imageNumber);
+                  offerImage(ti);
                } catch (Exception ex) {
                   ReportingUtils.logMessage("Stopping live mode because of error...");
                   gui_.enableLiveMode(false);
@@ -285,7 +636,18 @@ public class LiveModeTimer {
                   String camera = core_.getCameraDevice();
                   Set<String> cameraChannelsAcquired = new HashSet<String>();
                   for (int i = 0; i < 2 * multiChannelCameraNrCh_; ++i) {
-                     TaggedImage ti = core_.getNBeforeLastTaggedImage(i);
+                     TaggedImage ti;
+                     if (reuseBuffers_) {
+                        Object buffer = PixelBufferPool.takeLike(lastPixels_);
+                        ti = core_.getNBeforeLastTaggedImage(i, buffer);
+                        if (ti.pix != buffer) {
+                           PixelBufferPool.recycle(buffer);
+                        }
+                        lastPixels_ = ti.pix;
+                     } else {
+                        ti = core_.getNBeforeLastTaggedImage(i);
+                     }
+                     boolean queued = false;
                      if (i == 0) {
                         setImageNumber(ti.tags.getLong("ImageNumber"));
                      }
@@ -295,12 +657,17 @@ public class LiveModeTimer {
                         if (!cameraChannelsAcquired.contains(channelName)) {
                            ti.tags.put("Channel", channelName);
                            ti.tags.put("ChannelIndex", ti.tags.getInt(camera + "-CameraChannelIndex"));
-                           imageQueue_.put(ti);
+                           offerImage(ti);
+                           queued = true;
                            cameraChannelsAcquired.add(channelName);
                         }
-                        if (cameraChannelsAcquired.size() == multiChannelCameraNrCh_) {
-                           break;
-                        }
+                     }
+                     if (!queued && reuseBuffers_) {
+                        //channel already taken from a newer image, skip this one
+                        PixelBufferPool.recycle(ti.pix);
+                     }
+                     if (cameraChannelsAcquired.size() == multiChannelCameraNrCh_) {
+                        break;
                      }
                   }
                } catch (Exception exc) {
@@ -126,8 +126,7 @@ public class MMAcquisition {
                imageCache_ = null;
             }
          } else {
-            imageFileManager = MMStudioMainFrame.getInstance().getFastStorageOption() ? 
-                    new TaggedImageStorageRamFast(null) : new TaggedImageStorageRam(null);
+            imageFileManager = newRamStorage();
             imageCache_ = new MMImageCache(imageFileManager);
          }
   
@@ -241,6 +240,26 @@ public class MMAcquisition {
       rootDirectory_ = dir;
    }
 
+   /**
+    * Storage for acquisitions that aren't saved to disk: a RAM buffer if a
+    * memory budget is set, otherwise unbounded RAM storage
+    */
+   private static TaggedImageStorage newRamStorage() {
+      MMStudioMainFrame gui = MMStudioMainFrame.getInstance();
+      if (gui.getRamBufferBudgetMB() > 0) {
+         TaggedImageStorageRingBuffer.OverflowPolicy policy;
+         try {
+            policy = TaggedImageStorageRingBuffer.OverflowPolicy.valueOf(gui.getRamBufferOverflowPolicy());
+         } catch (IllegalArgumentException ex) {
+            ReportingUtils.logError("Unknown RAM buffer overflow policy: " + gui.getRamBufferOverflowPolicy());
+            policy = TaggedImageStorageRingBuffer.OverflowPolicy.SPILL;
+         }
+         return new TaggedImageStorageRingBuffer(null, ((long) gui.getRamBufferBudgetMB()) << 20, policy);
+      }
+      return gui.getFastStorageOption() ? 
+              new TaggedImageStorageRamFast(null) : new TaggedImageStorageRam(null);
+   }
+
    //used to initialize snap and live, which only store a single image at a time
    public void initializeSimpleAcq() throws MMScriptException {
       if (initialized_) {
@@ -11,14 +11,19 @@ import org.micromanager.api.ImageCacheListener;
 import java.util.ArrayList;
 import java.util.Collections;
 import org.micromanager.api.TaggedImageStorage;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
+import org.micromanager.MMStudioMainFrame;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -35,39 +40,189 @@ import org.micromanager.utils.ReportingUtils;
 public class MMImageCache implements ImageCache {
 
    public static String menuName_ = null;
+   private static boolean coalescingDispatch_ = true;
+   private static int listenerCapacity_ = 1;
    public final List<ImageCacheListener> imageStorageListeners_ = Collections.synchronizedList(new ArrayList<ImageCacheListener>());
+   // guarded by imageStorageListeners_
+   private final Map<ImageCacheListener, ListenerMailbox> mailboxes_ = new HashMap<ImageCacheListener, ListenerMailbox>();
    private TaggedImageStorage imageStorage_;
    private Set<String> changingKeys_;
    private JSONObject firstTags_;
    private int lastFrame_ = -1;
    private JSONObject lastTags_;
+   // guarded by this
+   private boolean storageFailed_ = false;
    private final ExecutorService listenerExecutor_;
+   private final PipelineMetrics.Stage storageMetrics_ = PipelineMetrics.getStage("Image storage");
+   private final PipelineMetrics.Stage listenerMetrics_ = PipelineMetrics.getStage("Image cache listeners");
+
+   /*
+    * Sets whether listeners added with addImageCacheListener(l) may skip
+    * images when they fall behind, for caches created after this call.
+    * If false, every listener receives every image.
+    */
+   public static synchronized void setCoalescingDispatch(boolean coalescing) {
+      coalescingDispatch_ = coalescing;
+   }
+
+   public static synchronized boolean getCoalescingDispatch() {
+      return coalescingDispatch_;
+   }
+
+   /*
+    * Sets how many images may wait for a coalescing listener. When a new
+    * image arrives while that many are waiting, the waiting images are
+    * skipped and the listener only receives the newest one.
+    */
+   public static synchronized void setListenerCapacity(int capacity) {
+      listenerCapacity_ = Math.max(1, capacity);
+   }
+
+   public static synchronized int getListenerCapacity() {
+      return listenerCapacity_;
+   }
 
    public void addImageCacheListener(ImageCacheListener l) {
+      addImageCacheListener(l, !getCoalescingDispatch());
+   }
+
+   public void addImageCacheListener(ImageCacheListener l, boolean lossless) {
       synchronized (imageStorageListeners_) {
          imageStorageListeners_.add(l);
+         mailboxes_.put(l, new ListenerMailbox(l, lossless, getListenerCapacity()));
       }
    }
 
    public ImageCacheListener[] getImageCacheListeners() {
       synchronized (imageStorageListeners_) {
-         return (ImageCacheListener[]) imageStorageListeners_.toArray();
+         return imageStorageListeners_.toArray(new ImageCacheListener[imageStorageListeners_.size()]);
       }
    }
 
    public void removeImageCacheListener(ImageCacheListener l) {
       synchronized (imageStorageListeners_) {
          imageStorageListeners_.remove(l);
+         ListenerMailbox mailbox = mailboxes_.remove(l);
+         if (mailbox != null) {
+            mailbox.clear();
+         }
+      }
+   }
+
+   public int getListenerBacklog(ImageCacheListener l) {
+      ListenerMailbox mailbox = getMailbox(l);
+      return mailbox == null ? 0 : mailbox.getBacklog();
+   }
+
+   public long getListenerDropCount(ImageCacheListener l) {
+      ListenerMailbox mailbox = getMailbox(l);
+      return mailbox == null ? 0 : mailbox.getDropCount();
+   }
+
+   private ListenerMailbox getMailbox(ImageCacheListener l) {
+      synchronized (imageStorageListeners_) {
+         return mailboxes_.get(l);
       }
    }
 
    public MMImageCache(TaggedImageStorage imageStorage) {
       imageStorage_ = imageStorage;
       changingKeys_ = new HashSet<String>();
-      listenerExecutor_ = Executors.newFixedThreadPool(1);
+      listenerExecutor_ = Executors.newCachedThreadPool();
 
    }
 
+   /**
+    * Images waiting to be passed to one listener. Each listener is called
+    * from one thread at a time, in the order images were received, so a
+    * slow listener doesn't hold up the others. Unless the mailbox is
+    * lossless, it holds at most capacity images and skips the older ones
+    * when it is full.
+    */
+   private class ListenerMailbox implements Runnable {
+      private final ImageCacheListener listener_;
+      private final boolean lossless_;
+      private final int capacity_;
+      private final LinkedList<TaggedImage> pending_ = new LinkedList<TaggedImage>();
+      private boolean scheduled_ = false;
+      private long dropped_ = 0;
+
+      ListenerMailbox(ImageCacheListener listener, boolean lossless, int capacity) {
+         listener_ = listener;
+         lossless_ = lossless;
+         capacity_ = capacity;
+      }
+
+      void post(TaggedImage image) {
+         int skipped = 0;
+         boolean schedule;
+         synchronized (this) {
+            if (!lossless_ && pending_.size() >= capacity_) {
+               skipped = pending_.size();
+               dropped_ += skipped;
+               pending_.clear();
+            }
+            pending_.add(image);
+            schedule = !scheduled_;
+            scheduled_ = true;
+         }
+         listenerMetrics_.addPending(1 - skipped);
+         for (int i = 0; i < skipped; i++) {
+            listenerMetrics_.recordDrop();
+         }
+         if (schedule) {
+            try {
+               listenerExecutor_.execute(this);
+            } catch (RejectedExecutionException ex) {
+               //finished() has shut the executor down, so the listener
+               //won't be called any more
+               synchronized (this) {
+                  scheduled_ = false;
+               }
+               clear();
+            }
+         }
+      }
+
+      public void run() {
+         while (true) {
+            TaggedImage image;
+            synchronized (this) {
+               image = pending_.poll();
+               if (image == null) {
+                  scheduled_ = false;
+                  return;
+               }
+            }
+            listenerMetrics_.addPending(-1);
+            long start = System.nanoTime();
+            try {
+               listener_.imageReceived(image);
+            } catch (RuntimeException ex) {
+               ReportingUtils.logError(ex);
+            }
+            listenerMetrics_.record(1, System.nanoTime() - start);
+         }
+      }
+
+      synchronized int getBacklog() {
+         return pending_.size();
+      }
+
+      synchronized long getDropCount() {
+         return dropped_;
+      }
+
+      void clear() {
+         int skipped;
+         synchronized (this) {
+            skipped = pending_.size();
+            pending_.clear();
+         }
+         listenerMetrics_.addPending(-skipped);
+      }
+   }
+
    private void preloadImages() {
       new Thread() {
          @Override
@@ -122,6 +277,10 @@ public class MMImageCache implements ImageCache {
       imageStorage_.close();
       synchronized (imageStorageListeners_) {
          imageStorageListeners_.clear();
+         for (ListenerMailbox mailbox : mailboxes_.values()) {
+            mailbox.clear();
+         }
+         mailboxes_.clear();
       }
    }
 
@@ -149,7 +308,17 @@ public class MMImageCache implements ImageCache {
                final int i1 = i;
                int pos[] = MDUtils.getIndices(keys.get(i));
                try {
-                  newImageFileManager.putImage(getImage(pos[0], pos[1], pos[2], pos[3]));
+                  TaggedImage image = null;
+                  if (imageStorage_ instanceof TaggedImageStorageMultipageTiff
+                          && newImageFileManager instanceof TaggedImageStorageMultipageTiff) {
+                     //copy the pixels from the mapped file without reading them
+                     image = ((TaggedImageStorageMultipageTiff) imageStorage_).getMappedImage(
+                             pos[0], pos[1], pos[2], pos[3]);
+                  }
+                  if (image == null) {
+                     image = getImage(pos[0], pos[1], pos[2], pos[3]);
+                  }
+                  newImageFileManager.putImage(image);
                } catch (MMException ex) {
                   ReportingUtils.logError(ex);
                }
@@ -169,9 +338,10 @@ public class MMImageCache implements ImageCache {
 
    public void putImage(final TaggedImage taggedImg) {
       try {
-         
          checkForChangingTags(taggedImg);
+         long start = System.nanoTime();
          imageStorage_.putImage(taggedImg);
+         storageMetrics_.record(1, System.nanoTime() - start);
          
            synchronized (this) {
             lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImg.tags));
@@ -190,21 +360,40 @@ public class MMImageCache implements ImageCache {
             }
          }
 
+         List<ListenerMailbox> mailboxes;
          synchronized (imageStorageListeners_) {
-            for (final ImageCacheListener l : imageStorageListeners_) {
-               listenerExecutor_.submit(
-                       new Runnable() {
-                          public void run() {
-                             l.imageReceived(taggedImg);
-                          }
-                       });
-            }
+            mailboxes = new ArrayList<ListenerMailbox>(mailboxes_.values());
+         }
+         for (ListenerMailbox mailbox : mailboxes) {
+            mailbox.post(taggedImg);
          }
+      } catch (MMException ex) {
+         storageFailed(ex);
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
    }
 
+   /*
+    * The storage refused an image, so the data set is incomplete from here
+    * on: stop the acquisition and tell the user once, instead of logging
+    * every image that is lost after it.
+    */
+   private void storageFailed(MMException ex) {
+      synchronized (this) {
+         if (storageFailed_) {
+            ReportingUtils.logError(ex);
+            return;
+         }
+         storageFailed_ = true;
+      }
+      MMStudioMainFrame gui = MMStudioMainFrame.getInstance();
+      if (gui != null) {
+         gui.stopAllActivity();
+      }
+      ReportingUtils.showError(ex, "Acquisition stopped, images could not be stored");
+   }
+
    public JSONObject getLastImageTags() {
       synchronized (this) {
          return lastTags_;
@@ -0,0 +1,51 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MappedTaggedImage.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.nio.ByteBuffer;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+
+/**
+ * Image read from a memory mapped multipage TIFF file without copying its
+ * pixels. pix is null; the pixels are a read-only view of the file, laid
+ * out as in the file (3 samples per RGB pixel) and in
+ * MultipageTiffWriter.BYTE_ORDER, so that a MultipageTiffWriter can write
+ * them to another file as they are. Only TaggedImageStorageMultipageTiff
+ * accepts these images.
+ */
+class MappedTaggedImage extends TaggedImage {
+
+   private final ByteBuffer pixelBuffer_;
+
+   MappedTaggedImage(ByteBuffer pixelBuffer, JSONObject tags) {
+      super(null, tags);
+      pixelBuffer_ = pixelBuffer;
+   }
+
+   /**
+    * A new view of the pixels, positioned at the start
+    */
+   ByteBuffer getPixelBuffer() {
+      ByteBuffer view = pixelBuffer_.duplicate().order(pixelBuffer_.order());
+      view.rewind();
+      return view;
+   }
+}
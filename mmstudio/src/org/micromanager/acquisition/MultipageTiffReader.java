@@ -28,10 +28,10 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JOptionPane;
@@ -41,6 +41,9 @@ import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
+import org.micromanager.utils.LazyJSONObject;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.ProgressBar;
@@ -50,6 +53,11 @@ import org.micromanager.utils.ReportingUtils;
 public class MultipageTiffReader {
       
    private static final long BIGGEST_INT_BIT = (long) Math.pow(2, 31);
+   //Finished files are mapped in windows starting every MAPPED_WINDOW_STEP bytes.
+   //Each window overlaps the next one by MAPPED_WINDOW_OVERLAP so that any region
+   //smaller than the overlap fits entirely inside a single window
+   private static final long MAPPED_WINDOW_STEP = 1L << 30;
+   private static final long MAPPED_WINDOW_OVERLAP = 1L << 28;
 
    
    public static final char BITS_PER_SAMPLE = MultipageTiffWriter.BITS_PER_SAMPLE;
@@ -72,7 +80,9 @@ public class MultipageTiffReader {
    private boolean writingFinished_;
    public static boolean fixIndexMapWithoutPrompt_ = false;
    
-   private HashMap<String,Long> indexMap_;
+   private ImageKeyMap<Long> indexMap_;
+   private boolean memoryMapped_ = false;
+   private MappedByteBuffer[] mappedWindows_;
    
    /**
     * This constructor is used for a file that is currently being written
@@ -85,7 +95,7 @@ public class MultipageTiffReader {
       writingFinished_ = false;
    }
    
-   public void setIndexMap(HashMap<String,Long> indexMap) {
+   public void setIndexMap(ImageKeyMap<Long> indexMap) {
       indexMap_ = indexMap;
    }
    
@@ -182,6 +192,72 @@ public class MultipageTiffReader {
    public void finishedWriting() {
       writingFinished_ = true;
    }
+   
+   /**
+    * In memory mapped mode, a finished file is read through read-only
+    * mappings: pixels are copied straight out of the mapping and image
+    * metadata is only parsed when a tag is accessed. Files that are still
+    * being written are always read through the file channel.
+    */
+   public synchronized void setMemoryMapped(boolean mapped) {
+      memoryMapped_ = mapped;
+      if (!mapped) {
+         mappedWindows_ = null;
+      }
+   }
+   
+   public boolean isMemoryMapped() {
+      return memoryMapped_;
+   }
+   
+   /**
+    * Returns a read-only view on the pixels of an image in a memory mapped 
+    * file, in the file's byte order and without copying them, or null if 
+    * the image is not available this way. For RGB images the view holds 
+    * 3 samples per pixel.
+    */
+   public ByteBuffer readPixelBuffer(long key) {
+      Long byteOffset = indexMap_.get(key);
+      if (byteOffset == null) {
+         return null;
+      }
+      try {
+         IFDData data = readIFD(byteOffset);
+         return getMappedView(data.pixelOffset, data.bytesPerImage);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+   
+   /**
+    * Returns a view of the given region of the file, or null if it can't
+    * be memory mapped
+    */
+   private synchronized ByteBuffer getMappedView(long position, long length) throws IOException {
+      if (!memoryMapped_ || !writingFinished_ || fileChannel_ == null 
+              || length > MAPPED_WINDOW_OVERLAP) {
+         return null;
+      }
+      long fileSize = fileChannel_.size();
+      if (position + length > fileSize) {
+         return null;
+      }
+      if (mappedWindows_ == null) {
+         mappedWindows_ = new MappedByteBuffer[(int) (fileSize / MAPPED_WINDOW_STEP) + 1];
+      }
+      int index = (int) (position / MAPPED_WINDOW_STEP);
+      long windowStart = index * MAPPED_WINDOW_STEP;
+      if (mappedWindows_[index] == null) {
+         long windowSize = Math.min(MAPPED_WINDOW_STEP + MAPPED_WINDOW_OVERLAP, fileSize - windowStart);
+         mappedWindows_[index] = fileChannel_.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+      }
+      ByteBuffer view = mappedWindows_[index].duplicate();
+      view.position((int) (position - windowStart));
+      view.limit((int) (position - windowStart + length));
+      // asReadOnlyBuffer() resets the byte order, so set it last
+      return view.slice().asReadOnlyBuffer().order(byteOrder_);
+   }
 
    private void getRGBAndByteDepth(JSONObject md) {
       try {
@@ -206,11 +282,10 @@ public class MultipageTiffReader {
       return displayAndComments_;
    }
    
-   public TaggedImage readImage(String label) {
-      if (indexMap_.containsKey(label)) {
+   public TaggedImage readImage(long key) {
+      Long byteOffset = indexMap_.get(key);
+      if (byteOffset != null) {
          try {
-            long byteOffset = indexMap_.get(label);
-            
             IFDData data = readIFD(byteOffset);
             return readTaggedImage(data);
          } catch (IOException ex) {
@@ -224,10 +299,31 @@ public class MultipageTiffReader {
       }
    }  
    
-   public Set<String> getIndexKeys() {
+   /**
+    * Reads the metadata of an image without reading its pixels
+    */
+   public JSONObject readImageTags(long key) {
+      Long byteOffset = indexMap_.get(key);
+      if (byteOffset == null) {
+         return null;
+      }
+      try {
+         IFDData data = readIFD(byteOffset);
+         ByteBuffer mappedMD = getMappedView(data.mdOffset, data.mdLength);
+         if (mappedMD != null) {
+            return new LazyJSONObject(mappedMD);
+         }
+         return new JSONObject(getString(readIntoBuffer(data.mdOffset, (int) data.mdLength)));
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+   
+   public long[] getIndexKeys() {
       if (indexMap_ == null)
          return null;
-      return indexMap_.keySet();
+      return indexMap_.keys();
    }
 
    private JSONObject readSummaryMD() {
@@ -341,7 +437,7 @@ public class MultipageTiffReader {
          throw new MMException("Error reading index map header");
       }
       int numMappings = header.getInt(4);
-      indexMap_ = new HashMap<String, Long>();
+      indexMap_ = new ImageKeyMap<Long>();
       ByteBuffer mapBuffer = readIntoBuffer(offset+8, 20*numMappings);     
       for (int i = 0; i < numMappings; i++) {
          int channel = mapBuffer.getInt(i*20);
@@ -349,15 +445,24 @@ public class MultipageTiffReader {
          int frame = mapBuffer.getInt(i*20+8);
          int position = mapBuffer.getInt(i*20+12);
          long imageOffset = unsignInt(mapBuffer.getInt(i*20+16));
-         indexMap_.put(MDUtils.generateLabel(channel, slice, frame, position), imageOffset);
+         if (!ImageKey.isValid(channel, slice, frame, position)) {
+            throw new MMException("Error reading index map entry " + i);
+         }
+         indexMap_.put(ImageKey.pack(channel, slice, frame, position), imageOffset);
       }
    }
 
    private IFDData readIFD(long byteOffset) throws IOException {
-      ByteBuffer buff = readIntoBuffer(byteOffset,2);
+      ByteBuffer buff = getMappedView(byteOffset, 2);
+      if (buff == null) {
+         buff = readIntoBuffer(byteOffset,2);
+      }
       int numEntries = buff.getChar(0);
      
-      ByteBuffer entries = readIntoBuffer(byteOffset + 2, numEntries*12 + 4).order(byteOrder_);
+      ByteBuffer entries = getMappedView(byteOffset + 2, numEntries*12 + 4);
+      if (entries == null) {
+         entries = readIntoBuffer(byteOffset + 2, numEntries*12 + 4).order(byteOrder_);
+      }
       IFDData data = new IFDData();
       for (int i = 0; i < numEntries; i++) {
          IFDEntry entry = readDirectoryEntry(i*12, entries);
@@ -385,6 +490,11 @@ public class MultipageTiffReader {
    }
    
    private TaggedImage readTaggedImage(IFDData data) throws IOException {
+      ByteBuffer mappedPixels = getMappedView(data.pixelOffset, data.bytesPerImage);
+      ByteBuffer mappedMD = getMappedView(data.mdOffset, data.mdLength);
+      if (mappedPixels != null && mappedMD != null) {
+         return readMappedTaggedImage(mappedPixels, mappedMD);
+      }
       ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
       ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
       fileChannel_.read(pixelBuffer, data.pixelOffset);
@@ -439,6 +549,41 @@ public class MultipageTiffReader {
       }
    }
 
+   private TaggedImage readMappedTaggedImage(ByteBuffer pixelBuffer, ByteBuffer mdBuffer) {
+      JSONObject md = new LazyJSONObject(mdBuffer);
+      if (byteDepth_ == 0) {
+         getRGBAndByteDepth(md);
+      }
+      if (rgb_) {
+         //Pad each pixel with a fourth sample, as done for non mapped reads
+         int numPixels = pixelBuffer.capacity() / (3 * byteDepth_);
+         if (byteDepth_ == 1) {
+            byte[] pixels = new byte[4 * numPixels];
+            for (int p = 0; p < numPixels; p++) {
+               pixelBuffer.get(pixels, 4 * p, 3);
+            }
+            return new TaggedImage(pixels, md);
+         } else {
+            short[] pixels = new short[4 * numPixels];
+            ShortBuffer shorts = pixelBuffer.asShortBuffer();
+            for (int p = 0; p < numPixels; p++) {
+               shorts.get(pixels, 4 * p, 3);
+            }
+            return new TaggedImage(pixels, md);
+         }
+      } else {
+         if (byteDepth_ == 1) {
+            byte[] pixels = new byte[pixelBuffer.capacity()];
+            pixelBuffer.get(pixels);
+            return new TaggedImage(pixels, md);
+         } else {
+            short[] pixels = new short[pixelBuffer.capacity() / 2];
+            pixelBuffer.asShortBuffer().get(pixels);
+            return new TaggedImage(pixels, md);
+         }
+      }
+   }
+
    private IFDEntry readDirectoryEntry(int offset, ByteBuffer buffer) throws IOException {
       char tag =  buffer.getChar(offset); 
       char type = buffer.getChar(offset + 2);
@@ -487,6 +632,9 @@ public class MultipageTiffReader {
    }
    
    public void close() throws IOException {
+      synchronized (this) {
+         mappedWindows_ = null;
+      }
       if (fileChannel_ != null) {
          fileChannel_.close();
          fileChannel_ = null;
@@ -519,7 +667,7 @@ public class MultipageTiffReader {
       }
       fixIndexMapWithoutPrompt_ = true;
       long filePosition = firstIFD;
-      indexMap_ = new HashMap<String, Long>();
+      indexMap_ = new ImageKeyMap<Long>();
       long progBarMax = (fileChannel_.size() / 2L);
       final ProgressBar progressBar = new ProgressBar("Fixing " + fileName, 0, 
               progBarMax >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) progBarMax);
@@ -540,12 +688,13 @@ public class MultipageTiffReader {
                nextIFDOffsetLocation = data.nextIFDOffsetLocation;
                continue;
             }
-            String label = null;
-            label = MDUtils.getLabel(ti.tags);
-            if (label == null ) {
+            long key;
+            try {
+               key = ImageKey.fromTags(ti.tags);
+            } catch (JSONException ex) {
                break;
-            }          
-            indexMap_.put(label, filePosition);
+            }
+            indexMap_.put(key, filePosition);
             
             final int progress = (int) (filePosition/2L);
             SwingUtilities.invokeLater(new Runnable() {
@@ -606,14 +755,12 @@ public class MultipageTiffReader {
       buffer.putInt(0, MultipageTiffWriter.INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
       int position = 2;
-      for (String label : indexMap_.keySet()) {
-         String[] indecies = label.split("_");
-         for (String index : indecies) {
-            buffer.putInt(4 * position, Integer.parseInt(index));
-            position++;
-         }
-         buffer.putInt(4 * position, indexMap_.get(label).intValue());
-         position++;
+      for (long key : indexMap_.keys()) {
+         buffer.putInt(4 * position++, ImageKey.getChannel(key));
+         buffer.putInt(4 * position++, ImageKey.getSlice(key));
+         buffer.putInt(4 * position++, ImageKey.getFrame(key));
+         buffer.putInt(4 * position++, ImageKey.getPosition(key));
+         buffer.putInt(4 * position++, indexMap_.get(key).intValue());
       }
       fileChannel_.write(buffer, filePosition);
 
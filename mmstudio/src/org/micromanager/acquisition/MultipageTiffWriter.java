@@ -34,18 +34,18 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudioMainFrame;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.LazyJSONObject;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -87,8 +87,6 @@ public class MultipageTiffWriter {
    
    public static final int SUMMARY_MD_HEADER = 2355492;
    
-   private static ThreadPoolExecutor writingExecutor_ = null;
-      
    public static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
    
    final private boolean omeTiff_;
@@ -99,7 +97,7 @@ public class MultipageTiffWriter {
    private long filePosition_ = 0;
    private int bufferPosition_;
    private int numChannels_ = 1, numFrames_ = 1, numSlices_ = 1;
-   private HashMap<String, Long> indexMap_;
+   private ImageKeyMap<Long> indexMap_;
    private long nextIFDOffsetLocation_ = -1;
    private boolean rgb_ = false;
    private int byteDepth_, imageWidth_, imageHeight_, bytesPerImagePixels_;
@@ -115,13 +113,14 @@ public class MultipageTiffWriter {
    private MultipageTiffReader reader_;
    private long blankPixelsOffset_ = -1;
    private String summaryMDString_;
-   private boolean fastStorageMode_;
+   //Writing thread shared with the rest of the FileSet, null if writing synchronously
+   private MultipageTiffWriterPool.Lane writingLane_;
    private int imageCount_ = 0;
    
    public MultipageTiffWriter(String directory, String filename, 
            JSONObject summaryMD, TaggedImageStorageMultipageTiff mpTiffStorage,
-           boolean fastStorageMode) {
-      fastStorageMode_ = fastStorageMode;
+           MultipageTiffWriterPool.Lane writingLane) {
+      writingLane_ = writingLane;
       masterMPTiffStorage_ = mpTiffStorage;
       omeTiff_ = mpTiffStorage.omeTiff_;        
       reader_ = new MultipageTiffReader(summaryMD);
@@ -155,12 +154,7 @@ public class MultipageTiffWriter {
                 ReportingUtils.showError("Insufficent space on disk: no room to write data");
          }
          fileChannel_ = raFile_.getChannel();
-         if (writingExecutor_ == null) {
-            writingExecutor_ = fastStorageMode_
-                    ? new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS, new LinkedBlockingQueue())
-                    : null;
-         }
-         indexMap_ = new HashMap<String, Long>();
+         indexMap_ = new ImageKeyMap<Long>();
          reader_.setFileChannel(fileChannel_);
          reader_.setIndexMap(indexMap_);
          buffers_ = new LinkedList<ByteBuffer>();
@@ -194,8 +188,16 @@ public class MultipageTiffWriter {
    }
    
    private void executeWritingTask(Runnable writingTask) {
-      if (fastStorageMode_) {
-         writingExecutor_.execute(writingTask);
+      if (writingLane_ != null) {
+         writingLane_.execute(writingTask);
+      } else {
+         writingTask.run();
+      }
+   }
+   
+   private void executeImageWritingTask(Runnable writingTask) {
+      if (writingLane_ != null) {
+         writingLane_.executeImageWrite(writingTask);
       } else {
          writingTask.run();
       }
@@ -208,7 +210,7 @@ public class MultipageTiffWriter {
              try {
                 buffer.rewind();
                 fileChannel_.write(buffer, position);
-                if (buffer.limit() == currentImageByteBufferCapacity_) {
+                if (buffer.limit() == currentImageByteBufferCapacity_ && !buffer.isReadOnly()) {
                     currentImageByteBuffers_.offer(buffer);
                 }
               } catch (IOException e) {
@@ -219,13 +221,17 @@ public class MultipageTiffWriter {
    }
    
    private void fileChannelWrite(final ByteBuffer[] buffers) {
-      executeWritingTask(
-        new Runnable() {
+      executeWritingTask(createWritingTask(buffers));
+   }
+   
+   private Runnable createWritingTask(final ByteBuffer[] buffers) {
+      return new Runnable() {
            public void run() {
              try {
                 fileChannel_.write(buffers);
                 for (ByteBuffer buffer:buffers) {
-                    if (buffer.limit() == currentImageByteBufferCapacity_) {
+                    //views of mapped files are read-only and can't be reused
+                    if (buffer.limit() == currentImageByteBufferCapacity_ && !buffer.isReadOnly()) {
                         currentImageByteBuffers_.offer(buffer);
                     }
                 }
@@ -233,7 +239,7 @@ public class MultipageTiffWriter {
                 ReportingUtils.logError(e);
               }
            }
-        });
+        };
    }
    
    public MultipageTiffReader getReader() {
@@ -244,7 +250,7 @@ public class MultipageTiffWriter {
       return fileChannel_;
    }
    
-   public HashMap<String, Long> getIndexMap() {
+   public ImageKeyMap<Long> getIndexMap() {
       return indexMap_;
    }
    
@@ -332,7 +338,7 @@ public class MultipageTiffWriter {
    }
    
    public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
-      int mdLength = img.tags.toString().length();
+      int mdLength = LazyJSONObject.getUTF8(img.tags).length;
       int indexMapSize = indexMap_.size()*20 + 8;
       int IFDSize = ENTRIES_PER_IFD*12 + 4 + 16;
       //5 MB extra padding
@@ -353,53 +359,54 @@ public class MultipageTiffWriter {
       return raFile_ == null;
    }
    
-   public void writeBlankImage(String label) throws IOException {
+   public void writeBlankImage() throws IOException {
       writeBlankIFD();
-      writeBuffers();
+      fileChannelWrite(removeBuffers());
    }
         
-   public void writeImage(TaggedImage img) throws IOException {
-      imageCount_++;
-      if (writingExecutor_ != null) {
-         int queueSize = writingExecutor_.getQueue().size();
-         int attemptCount = 0;
-         while (queueSize > 20) {
-            if (attemptCount == 0) {
-               ReportingUtils.logMessage("Warning: writing queue behind by " + queueSize + " images.");
-            }
-            ++attemptCount;
-            try {
-               Thread.sleep(5);
-            } catch (InterruptedException ex) {
-               ReportingUtils.logError(ex);
-            }
-         }
+   /**
+    * Writes the image, or drops it if the writing queue is full and the
+    * pool's policy says so.
+    * @return false if the image was dropped
+    */
+   public boolean writeImage(TaggedImage img) throws IOException {
+      long key;
+      try {
+         key = ImageKey.fromTags(img.tags);
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex, "Image has no channel, slice, frame or position index");
+         return false;
+      }
+      if (writingLane_ != null && !writingLane_.admitImage()) {
+         return false;
       }
+      imageCount_++;
       long offset = filePosition_;
       writeIFD(img);
-      indexMap_.put(MDUtils.getLabel(img.tags), offset);
-      writeBuffers();
+      indexMap_.put(key, offset);
+      executeImageWritingTask(createWritingTask(removeBuffers()));
+      return true;
    }
    
-   private void writeBuffers() throws IOException {
+   private ByteBuffer[] removeBuffers() {
       ByteBuffer[] buffs = new ByteBuffer[buffers_.size()];
       for (int i = 0; i < buffs.length; i++) {
          buffs[i] = buffers_.removeFirst();
       }
-      fileChannelWrite(buffs);
+      return buffs;
    }
 
    private void writeIFD(TaggedImage img) throws IOException {
       char numEntries = (char) ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
-      if (img.tags.has("Summary")) {
-         img.tags.remove("Summary");
-      }
-      String mdString = img.tags.toString() + " ";
+      //the caller has already removed the summary from the tags
+      byte[] mdBytes = LazyJSONObject.getUTF8(img.tags);
+      //the metadata is followed by a space
+      int mdLength = mdBytes.length + 1;
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdString.length() + bytesPerImagePixels_;
+     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdLength + bytesPerImagePixels_;
      int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
      
      ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
@@ -443,8 +450,8 @@ public class MultipageTiffWriter {
          ijMetadataTagPosition_ = filePosition_ + bufferPosition_;
          writeIFDEntry(ifdBuffer,charView,IJ_METADATA,(char)1,0,0);
       }
-      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdString.length(),tagDataOffset);
-      tagDataOffset += mdString.length();
+      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdLength,tagDataOffset);
+      tagDataOffset += mdLength;
       //NextIFDOffset
       ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
       bufferPosition_ += 4;
@@ -457,7 +464,8 @@ public class MultipageTiffWriter {
       buffers_.add(ifdBuffer);
       buffers_.add(getPixelBuffer(img));
       buffers_.add(getResolutionValuesBuffer());   
-      buffers_.add(ByteBuffer.wrap(getBytesFromString(mdString)));
+      buffers_.add(ByteBuffer.wrap(mdBytes));
+      buffers_.add(ByteBuffer.wrap(new byte[] {' '}));
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
@@ -490,6 +498,14 @@ public class MultipageTiffWriter {
    }
 
    private ByteBuffer getPixelBuffer(TaggedImage img) throws IOException {
+      if (img instanceof MappedTaggedImage) {
+         //already laid out as in the file, write the mapped pixels as they are
+         ByteBuffer pixels = ((MappedTaggedImage) img).getPixelBuffer();
+         if (pixels.remaining() != bytesPerImagePixels_) {
+            throw new IOException("Image size doesn't match the data set");
+         }
+         return pixels;
+      }
       if (rgb_) {
          if (byteDepth_ == 1) {
             byte[] originalPix = (byte[]) img.pix;
@@ -804,14 +820,12 @@ public class MultipageTiffWriter {
       buffer.putInt(0, INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
       int position = 2;
-      for (String label : indexMap_.keySet()) {
-         String[] indecies = label.split("_");
-         for (String index : indecies) {
-            buffer.putInt(4 * position, Integer.parseInt(index));
-            position++;
-         }
-         buffer.putInt(4 * position, indexMap_.get(label).intValue());
-         position++;
+      for (long key : indexMap_.keys()) {
+         buffer.putInt(4 * position++, ImageKey.getChannel(key));
+         buffer.putInt(4 * position++, ImageKey.getSlice(key));
+         buffer.putInt(4 * position++, ImageKey.getFrame(key));
+         buffer.putInt(4 * position++, ImageKey.getPosition(key));
+         buffer.putInt(4 * position++, indexMap_.get(key).intValue());
       }
       fileChannelWrite(buffer, filePosition_);
 
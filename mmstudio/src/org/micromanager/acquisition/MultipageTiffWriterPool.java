@@ -0,0 +1,273 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffWriterPool.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.MMStudioMainFrame;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Writing threads used by MultipageTiffWriter in fast storage mode.
+ * Each FileSet (or each disk, if threadPerDisk is set) gets its own
+ * single-thread lane with a bounded queue. When a lane's queue is full,
+ * new images are handled according to the QueueFullPolicy.
+ */
+public class MultipageTiffWriterPool {
+
+   public enum QueueFullPolicy {
+      BLOCK, DROP, ABORT
+   }
+
+   public static final int DEFAULT_QUEUE_CAPACITY = 20;
+
+   private static int queueCapacity_ = DEFAULT_QUEUE_CAPACITY;
+   private static QueueFullPolicy queueFullPolicy_ = QueueFullPolicy.BLOCK;
+   private static boolean threadPerDisk_ = false;
+   private static final HashMap<Object, Lane> lanes_ = new HashMap<Object, Lane>();
+   private static final PipelineMetrics.Stage metrics_ = PipelineMetrics.getStage("File writing");
+
+   /**
+    * Maximum number of pending writes per lane. Applies to lanes created
+    * after this call.
+    */
+   public static synchronized void setQueueCapacity(int capacity) {
+      queueCapacity_ = Math.max(1, capacity);
+   }
+
+   public static synchronized int getQueueCapacity() {
+      return queueCapacity_;
+   }
+
+   /**
+    * What to do with a new image when its lane is full: wait for room,
+    * drop the image, or drop it and stop the acquisition.
+    * Applies to lanes created after this call.
+    */
+   public static synchronized void setQueueFullPolicy(QueueFullPolicy policy) {
+      queueFullPolicy_ = policy;
+   }
+
+   public static synchronized QueueFullPolicy getQueueFullPolicy() {
+      return queueFullPolicy_;
+   }
+
+   /**
+    * If true, all FileSets writing to the same disk share one thread,
+    * otherwise every FileSet gets its own.
+    */
+   public static synchronized void setThreadPerDisk(boolean perDisk) {
+      threadPerDisk_ = perDisk;
+   }
+
+   public static synchronized boolean getThreadPerDisk() {
+      return threadPerDisk_;
+   }
+
+   /**
+    * Number of writes waiting in all lanes
+    */
+   public static synchronized int getQueueDepth() {
+      int depth = 0;
+      for (Lane lane : lanes_.values()) {
+         depth += lane.getQueueDepth();
+      }
+      return depth;
+   }
+
+   /**
+    * Average time taken by the writing thread to write one image, in ms,
+    * over all open lanes
+    */
+   public static synchronized double getAverageWriteTimeMs() {
+      long nanos = 0;
+      long count = 0;
+      for (Lane lane : lanes_.values()) {
+         nanos += lane.totalWriteNanos_;
+         count += lane.imagesWritten_;
+      }
+      return count == 0 ? 0 : nanos / (1000000.0 * count);
+   }
+
+   /**
+    * Number of images dropped by open lanes because their queue was full
+    */
+   public static synchronized long getDroppedImageCount() {
+      long dropped = 0;
+      for (Lane lane : lanes_.values()) {
+         dropped += lane.droppedImages_;
+      }
+      return dropped;
+   }
+
+   static synchronized Lane acquireLane(Object fileSet, String directory) {
+      Object key = threadPerDisk_ ? getDiskRoot(directory) : fileSet;
+      Lane lane = lanes_.get(key);
+      if (lane == null) {
+         lane = new Lane(key, queueCapacity_, queueFullPolicy_);
+         lanes_.put(key, lane);
+      }
+      lane.users_++;
+      return lane;
+   }
+
+   /**
+    * Called once a FileSet has queued its last write. The lane's thread
+    * finishes the pending writes and exits once no FileSet uses it.
+    */
+   static synchronized void releaseLane(Lane lane) {
+      lane.users_--;
+      if (lane.users_ <= 0) {
+         lanes_.remove(lane.key_);
+         lane.executor_.shutdown();
+      }
+   }
+
+   private static String getDiskRoot(String directory) {
+      File f = new File(directory).getAbsoluteFile();
+      while (f.getParentFile() != null) {
+         f = f.getParentFile();
+      }
+      return f.getPath();
+   }
+
+   /**
+    * A single writing thread and its bounded queue
+    */
+   static class Lane {
+      private final Object key_;
+      private final QueueFullPolicy policy_;
+      private final ThreadPoolExecutor executor_;
+      private int users_ = 0;
+      private volatile long imagesWritten_ = 0;
+      private volatile long totalWriteNanos_ = 0;
+      private volatile long droppedImages_ = 0;
+      private boolean stalled_ = false;
+      private boolean abortRequested_ = false;
+
+      private Lane(Object key, int capacity, QueueFullPolicy policy) {
+         key_ = key;
+         policy_ = policy;
+         final String threadName = "MultipageTiff writer " + lanes_.size();
+         executor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+                 new LinkedBlockingQueue<Runnable>(capacity),
+                 new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                       return new Thread(r, threadName);
+                    }
+                 },
+                 new RejectedExecutionHandler() {
+                    //Full queue: wait for room rather than spinning. The
+                    //write must not be lost, or the IFD chain would no
+                    //longer match the index map, so an interrupt only
+                    //takes effect once the task is queued.
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                       if (executor.isShutdown()) {
+                          throw new RejectedExecutionException("Writing thread has been shut down");
+                       }
+                       boolean interrupted = false;
+                       while (true) {
+                          try {
+                             executor.getQueue().put(r);
+                             break;
+                          } catch (InterruptedException ex) {
+                             interrupted = true;
+                          }
+                       }
+                       if (interrupted) {
+                          Thread.currentThread().interrupt();
+                       }
+                    }
+                 });
+      }
+
+      int getQueueDepth() {
+         return executor_.getQueue().size();
+      }
+
+      /**
+       * Queue a write that must happen regardless of the policy, e.g. headers
+       * and index maps. Blocks while the queue is full.
+       */
+      void execute(Runnable task) {
+         executor_.execute(task);
+      }
+
+      /**
+       * Decides whether the next image may be written. Must be called before
+       * anything for that image is queued, so that a dropped image leaves no
+       * partial IFD in the file.
+       */
+      synchronized boolean admitImage() {
+         if (executor_.getQueue().remainingCapacity() > 0) {
+            if (stalled_) {
+               ReportingUtils.logMessage("Writing queue caught up");
+               stalled_ = false;
+            }
+            metrics_.addPending(1);
+            return true;
+         }
+         if (!stalled_) {
+            ReportingUtils.logMessage("Warning: writing queue behind by "
+                    + getQueueDepth() + " images (" + policy_ + ")");
+            stalled_ = true;
+         }
+         if (policy_ == QueueFullPolicy.BLOCK) {
+            metrics_.addPending(1);
+            return true;
+         }
+         droppedImages_++;
+         metrics_.recordDrop();
+         if (policy_ == QueueFullPolicy.ABORT && !abortRequested_) {
+            abortRequested_ = true;
+            ReportingUtils.logError("Writing queue full: stopping acquisition");
+            new Thread(new Runnable() {
+               public void run() {
+                  MMStudioMainFrame.getInstance().getAcquisitionEngine().stop(true);
+               }
+            }).start();
+         }
+         return false;
+      }
+
+      /**
+       * Queue the write of one image and record how long it takes
+       */
+      void executeImageWrite(final Runnable task) {
+         executor_.execute(new Runnable() {
+            public void run() {
+               long start = System.nanoTime();
+               task.run();
+               long nanos = System.nanoTime() - start;
+               totalWriteNanos_ += nanos;
+               imagesWritten_++;
+               metrics_.record(1, nanos);
+               metrics_.addPending(-1);
+            }
+         });
+      }
+   }
+}
@@ -0,0 +1,268 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PipelineMetrics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Counters for each stage that images pass through on their way from the
+ * acquisition engine to storage and display: queue depth, images handled,
+ * time spent handling them and images dropped. Stages are created on first
+ * use and identified by name, which should not depend on the instance (a
+ * thread name, for instance), since stages are kept in a static map.
+ * Stages of pipeline elements that come and go are taken with useStage and
+ * removed again by releaseStage. The counters can be recorded to a CSV file
+ * at a fixed interval.
+ */
+public class PipelineMetrics {
+
+   private static final LinkedHashMap<String, Stage> stages_ = new LinkedHashMap<String, Stage>();
+   private static Timer recordingTimer_;
+   private static PrintWriter recordingWriter_;
+
+   /**
+    * Returns the stage with this name, creating it if needed
+    */
+   public static Stage getStage(String name) {
+      synchronized (stages_) {
+         Stage stage = stages_.get(name);
+         if (stage == null) {
+            stage = new Stage(name);
+            stages_.put(name, stage);
+         }
+         return stage;
+      }
+   }
+
+   /**
+    * Returns the stage with this name, creating it if needed, for a user
+    * that calls releaseStage when it is done with it
+    */
+   public static Stage useStage(String name) {
+      synchronized (stages_) {
+         Stage stage = getStage(name);
+         stage.users_++;
+         return stage;
+      }
+   }
+
+   /**
+    * Removes a stage taken with useStage once all its users have released it
+    */
+   public static void releaseStage(Stage stage) {
+      synchronized (stages_) {
+         stage.users_--;
+         if (stage.users_ <= 0 && stages_.get(stage.getName()) == stage) {
+            stages_.remove(stage.getName());
+         }
+      }
+   }
+
+   public static List<Stage> getStages() {
+      synchronized (stages_) {
+         return new ArrayList<Stage>(stages_.values());
+      }
+   }
+
+   /**
+    * Sets all counters to zero, e.g. at the start of an acquisition
+    */
+   public static void reset() {
+      for (Stage stage : getStages()) {
+         stage.reset();
+      }
+   }
+
+   /**
+    * One line per stage with its current queue depth, image count,
+    * throughput, mean time per image and drop count
+    */
+   public static String getReport() {
+      StringBuilder report = new StringBuilder();
+      for (Stage stage : getStages()) {
+         report.append(String.format("%s: queue %d, %d images, %.1f images/s, %.3f ms/image, %d dropped\n",
+                 stage.getName(), stage.getQueueDepth(), stage.getImageCount(),
+                 stage.getThroughput(), stage.getMeanTimeMs(), stage.getDropCount()));
+      }
+      return report.toString();
+   }
+
+   /**
+    * Starts appending the counters of all stages to a CSV file every
+    * intervalMs milliseconds, until stopRecording is called. Rates and
+    * times in each row are for the preceding interval.
+    */
+   public static synchronized void startRecording(String path, final int intervalMs) throws IOException {
+      stopRecording();
+      recordingWriter_ = new PrintWriter(new FileWriter(path));
+      recordingWriter_.println("time_ms,stage,queue_depth,images,images_per_s,mean_time_ms,dropped");
+      final long start = System.currentTimeMillis();
+      recordingTimer_ = new Timer("Pipeline metrics recording", true);
+      recordingTimer_.scheduleAtFixedRate(new TimerTask() {
+         private final LinkedHashMap<Stage, long[]> previous_ = new LinkedHashMap<Stage, long[]>();
+
+         @Override
+         public void run() {
+            writeRecord(System.currentTimeMillis() - start, intervalMs, previous_);
+         }
+      }, intervalMs, intervalMs);
+      ReportingUtils.logMessage("Recording pipeline metrics to " + path);
+   }
+
+   private static synchronized void writeRecord(long time, int intervalMs,
+           LinkedHashMap<Stage, long[]> previous) {
+      if (recordingWriter_ == null) {
+         return;
+      }
+      for (Stage stage : getStages()) {
+         long images = stage.getImageCount();
+         long nanos = stage.getTotalNanos();
+         long[] last = previous.get(stage);
+         long newImages = images - (last == null ? 0 : last[0]);
+         long newNanos = nanos - (last == null ? 0 : last[1]);
+         if (newImages < 0) {
+            //stage was reset
+            newImages = images;
+            newNanos = nanos;
+         }
+         previous.put(stage, new long[] {images, nanos});
+         recordingWriter_.println(time + "," + stage.getName().replace(',', ' ') + ","
+                 + stage.getQueueDepth() + "," + images + ","
+                 + (1000.0 * newImages / intervalMs) + ","
+                 + (newImages == 0 ? 0 : newNanos / (1000000.0 * newImages)) + ","
+                 + stage.getDropCount());
+      }
+      recordingWriter_.flush();
+   }
+
+   public static synchronized void stopRecording() {
+      if (recordingTimer_ != null) {
+         recordingTimer_.cancel();
+         recordingTimer_ = null;
+      }
+      if (recordingWriter_ != null) {
+         recordingWriter_.close();
+         recordingWriter_ = null;
+      }
+   }
+
+   public static synchronized boolean isRecording() {
+      return recordingWriter_ != null;
+   }
+
+   /**
+    * Counters for one stage. Queue depth is read from the stage's input
+    * queue if one has been set, otherwise it is the number of images added
+    * with addPending and not yet removed.
+    */
+   public static class Stage {
+      private final String name_;
+      private volatile Collection<?> queue_;
+      private final AtomicLong pending_ = new AtomicLong();
+      private final AtomicLong images_ = new AtomicLong();
+      private final AtomicLong nanos_ = new AtomicLong();
+      private final AtomicLong dropped_ = new AtomicLong();
+      private volatile long firstImageTime_ = 0;
+      private volatile long lastImageTime_ = 0;
+      //number of useStage calls not yet released, guarded by stages_
+      private int users_ = 0;
+
+      private Stage(String name) {
+         name_ = name;
+      }
+
+      public String getName() {
+         return name_;
+      }
+
+      public void setQueue(Collection<?> queue) {
+         queue_ = queue;
+      }
+
+      public void addPending(int count) {
+         pending_.addAndGet(count);
+      }
+
+      /**
+       * Records that images were handled, taking nanos in total
+       */
+      public void record(int images, long nanos) {
+         long now = System.nanoTime();
+         if (images_.getAndAdd(images) == 0) {
+            firstImageTime_ = now - nanos;
+         }
+         lastImageTime_ = now;
+         nanos_.addAndGet(nanos);
+      }
+
+      public void recordDrop() {
+         dropped_.incrementAndGet();
+      }
+
+      public int getQueueDepth() {
+         Collection<?> queue = queue_;
+         return queue != null ? queue.size() : (int) pending_.get();
+      }
+
+      public long getImageCount() {
+         return images_.get();
+      }
+
+      public long getTotalNanos() {
+         return nanos_.get();
+      }
+
+      public long getDropCount() {
+         return dropped_.get();
+      }
+
+      public double getMeanTimeMs() {
+         long images = images_.get();
+         return images == 0 ? 0 : nanos_.get() / (1000000.0 * images);
+      }
+
+      /**
+       * Images per second between the first and the latest image
+       */
+      public double getThroughput() {
+         long images = images_.get();
+         long span = lastImageTime_ - firstImageTime_;
+         return images == 0 || span <= 0 ? 0 : 1e9 * images / span;
+      }
+
+      private void reset() {
+         images_.set(0);
+         nanos_.set(0);
+         dropped_.set(0);
+         firstImageTime_ = 0;
+         lastImageTime_ = 0;
+      }
+   }
+}
@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import org.micromanager.api.DataProcessor;
+import org.micromanager.api.ParallelTaggedImageProcessor;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -17,27 +18,60 @@ import org.micromanager.utils.ReportingUtils;
  */
 public class ProcessorStack<E> {
 
+   private static int defaultQueueCapacity_ = 1;
+
    private final List<DataProcessor<E>> processors_;
    private final BlockingQueue<E> input_;
    private final BlockingQueue<E> output_;
+
    public ProcessorStack(BlockingQueue<E> input,
            List<DataProcessor<E>> processors) {
+      this(input, processors, getDefaultQueueCapacity());
+   }
+
+   /*
+    * queueCapacity: number of objects each queue between two processors
+    * can hold. The queue in front of a ParallelTaggedImageProcessor is made
+    * large enough to keep all its workers busy.
+    */
+   public ProcessorStack(BlockingQueue<E> input,
+           List<DataProcessor<E>> processors, int queueCapacity) {
       processors_ = processors;
       input_ = input;
 
       BlockingQueue<E> left = input_;
       BlockingQueue<E> right = left;
       if (processors_ != null) {
-         for (DataProcessor<E> processor:processors_) {
-            right = new LinkedBlockingQueue<E>(1);
+         for (int i = 0; i < processors_.size(); i++) {
+            DataProcessor<E> processor = processors_.get(i);
+            int capacity = Math.max(1, queueCapacity);
+            if (i + 1 < processors_.size()
+                    && processors_.get(i + 1) instanceof ParallelTaggedImageProcessor) {
+               capacity = Math.max(capacity,
+                       ((ParallelTaggedImageProcessor) processors_.get(i + 1)).getPreferredInputCapacity());
+            }
+            right = new LinkedBlockingQueue<E>(capacity);
             processor.setInput(left);
             processor.setOutput(right);
+            processor.getMetrics().setQueue(left);
             left = right;
          }
       }
       output_ = right;
    }
 
+   /*
+    * Sets the capacity of the queues between processors, for stacks
+    * created after this call
+    */
+   public static synchronized void setDefaultQueueCapacity(int capacity) {
+      defaultQueueCapacity_ = Math.max(1, capacity);
+   }
+
+   public static synchronized int getDefaultQueueCapacity() {
+      return defaultQueueCapacity_;
+   }
+
    public BlockingQueue<E> begin() {
       start();
       return output_;
@@ -33,4 +33,5 @@ public class SequenceSettings {
    public String comment = "";
    public String channelGroup = "";
    public boolean usePositionList;
+   public boolean optimizePositionOrder = false;
 }
@@ -40,8 +40,8 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    private HashMap<Integer,Writer> metadataStreams_;
    private boolean newDataSet_;
    private JSONObject summaryMetadata_;
-   private TreeMap<String,String> filenameTable_;
-   private HashMap<String, JSONObject> metadataTable_ = null;
+   private ImageKeyMap<String> filenameTable_;
+   private ImageKeyMap<JSONObject> metadataTable_ = null;
    private JSONObject displaySettings_;
    private int lastFrame_ = -1;
    private Thread shutdownHook_;
@@ -55,9 +55,9 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
            JSONObject summaryMetadata) throws Exception {
       dir_ = dir;
       newDataSet_ = newDataSet;
-      filenameTable_ = new TreeMap<String,String>(new ImageLabelComparator());
+      filenameTable_ = new ImageKeyMap<String>();
       metadataStreams_ = new HashMap<Integer,Writer>();
-      metadataTable_ = new HashMap<String, JSONObject>();
+      metadataTable_ = new ImageKeyMap<JSONObject>();
       displaySettings_ = new JSONObject();
       positionNames_ = new HashMap<Integer,String>();
       setSummaryMetadata(summaryMetadata);
@@ -104,6 +104,8 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
          if (!newDataSet_) {
             throw new MMException("This ImageFileManager is read-only.");
          }
+         //check the indices before anything is written
+         long key = ImageKey.forStorage(taggedImg.tags);
          if (!metadataStreams_.containsKey(MDUtils.getPositionIndex(taggedImg.tags))) {
             try {
                openNewDataSet(taggedImg);
@@ -138,20 +140,19 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
          
          saveImageFile(img, md, dir_, fileName);
          writeFrameMetadata(md);
-         String label = MDUtils.getLabel(md);
-         filenameTable_.put(label, fileName);
-         //metadataTable_.put(label, md);
+         filenameTable_.put(key, fileName);
+         //metadataTable_.put(key, md);
       } catch (Exception ex) {
          ReportingUtils.showError(ex);
       }
    }
 
    public TaggedImage getImage(int channel, int slice, int frame, int position) {
-      String label = MDUtils.generateLabel(channel, slice, frame, position);
-      if (filenameTable_.get(label) == null) {
+      String fileName = filenameTable_.get(channel, slice, frame, position);
+      if (fileName == null) {
          return null;
       }
-      ImagePlus imp = new Opener().openImage(dir_ + "/" + filenameTable_.get(label));
+      ImagePlus imp = new Opener().openImage(dir_ + "/" + fileName);
       if (imp != null) {
          try {
             ImageProcessor proc = imp.getProcessor();
@@ -160,11 +161,11 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
                if (imp.getProperty("Info") != null) {
                   md = new JSONObject((String) imp.getProperty("Info"));
                } else {
-                 md = metadataTable_.get(label);
+                 md = metadataTable_.get(channel, slice, frame, position);
                }
             } catch (Exception e) {
                if (metadataTable_.size() > 0) {
-                  md = metadataTable_.get(label);
+                  md = metadataTable_.get(channel, slice, frame, position);
                   return null;
                }
             }
@@ -197,8 +198,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    }
 
    public JSONObject getImageTags(int channel, int slice, int frame, int position) {
-      String label = MDUtils.generateLabel(channel, slice, frame, position);
-      TiffDecoder td = new TiffDecoder(dir_, filenameTable_.get(label));
+      TiffDecoder td = new TiffDecoder(dir_, filenameTable_.get(channel, slice, frame, position));
       try {
          return new JSONObject(td.getTiffInfo()[0].info);
       } catch (Exception ex) {
@@ -208,7 +208,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    }
 
    public Set<String> imageKeys() {
-      return filenameTable_.keySet();
+      return filenameTable_.labels();
    }
 
    private String createFileName(JSONObject md) {
@@ -445,9 +445,9 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
                         if (position.length() > 0)
                            fileName = position + "/" + fileName;
                         
-                        filenameTable_.put(MDUtils.getLabel(md), fileName);
+                        filenameTable_.put(ImageKey.fromTags(md), fileName);
                         if (metadataVersion < 10)
-                           metadataTable_.put(MDUtils.getLabel(md), md);
+                           metadataTable_.put(ImageKey.fromTags(md), md);
                         
                      } catch (Exception ex) {
                         ReportingUtils.showError(ex);
@@ -545,9 +545,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
          try {
             boolean slicesFirst = summaryMetadata_.getBoolean("SlicesFirst");
             boolean timeFirst = summaryMetadata_.getBoolean("TimeFirst");
-            TreeMap<String, String> oldFilenameTable = filenameTable_;
-            filenameTable_ = new TreeMap<String, String>(new ImageLabelComparator(slicesFirst, timeFirst));
-            filenameTable_.putAll(oldFilenameTable);
+            filenameTable_.setOrder(slicesFirst, timeFirst);
          } catch (JSONException ex) {
             ReportingUtils.logError("Couldn't find SlicesFirst or TimeFirst in summary metadata");
          }
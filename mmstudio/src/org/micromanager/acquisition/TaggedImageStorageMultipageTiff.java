@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -59,6 +60,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    private int lastFrame_ = 0;
    private boolean fixIndexMap_ = false;
    private final boolean fastStorageMode_;
+   private boolean memoryMapped_ = false;
   
    //used for estimating total length of ome xml
    private int totalNumImagePlanes_ = 0;
@@ -66,13 +68,14 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    //map of position indices to objects associated with each
    private HashMap<Integer, FileSet> fileSets_;
    
-   //Map of image labels to file 
-   private TreeMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   //Map of image keys to file 
+   private ImageKeyMap<MultipageTiffReader> tiffReadersByKey_;
   
    public TaggedImageStorageMultipageTiff(String dir, Boolean newDataSet, JSONObject summaryMetadata) throws IOException {            
       this(dir, newDataSet, summaryMetadata, MMStudioMainFrame.getInstance().getMetadataFileWithMultipageTiff(),
               MMStudioMainFrame.getInstance().getSeparateFilesForPositionsMPTiff(),
               MMStudioMainFrame.getInstance().getFastStorageOption());
+      setMemoryMapped(MMStudioMainFrame.getInstance().getMemoryMappedMPTiffOption());
    }
    
    /*
@@ -87,7 +90,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
       newDataSet_ = newDataSet;
       directory_ = dir;
-      tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator());
+      tiffReadersByKey_ = new ImageKeyMap<MultipageTiffReader>();
       cached_ = new CachedImages();
       setSummaryMetadata(summaryMetadata);
 
@@ -133,11 +136,21 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    }
    
    boolean slicesFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getSlicesFirst();
+      return tiffReadersByKey_.getSlicesFirst();
    }
    
    boolean timeFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getTimeFirst();
+      return tiffReadersByKey_.getTimeFirst();
+   }
+   
+   /**
+    * Read finished files through memory mappings rather than file channel reads
+    */
+   public void setMemoryMapped(boolean mapped) {
+      memoryMapped_ = mapped;
+      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByKey_.values())) {
+         r.setMemoryMapped(mapped);
+      }
    }
    
    public boolean getFixIndexMap() {
@@ -162,10 +175,10 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             try {
                //this is where fixing dataset code occurs
                reader = new MultipageTiffReader(f);
-               Set<String> labels = reader.getIndexKeys();
-               for (String label : labels) {
-                  tiffReadersByLabel_.put(label, reader);
-                  int frameIndex = Integer.parseInt(label.split("_")[2]);
+               reader.setMemoryMapped(memoryMapped_);
+               for (long key : reader.getIndexKeys()) {
+                  tiffReadersByKey_.put(key, reader);
+                  int frameIndex = ImageKey.getFrame(key);
                   lastFrameOpenedDataSet_ = Math.max(frameIndex, lastFrameOpenedDataSet_);
                }
             } catch (IOException ex) {
@@ -181,7 +194,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
 
       try {
-         setSummaryMetadata(reader.getSummaryMetadata(),true);
+         setSummaryMetadata(reader.getSummaryMetadata());
          numPositions_ = MDUtils.getNumPositions(summaryMetadata_);
          displayAndComments_ = reader.getDisplayAndComments();
       } catch (JSONException ex) {
@@ -192,43 +205,73 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    }
 
+   /**
+    * Returns an image whose pixels are a view of the memory mapped file,
+    * for copying to another multipage TIFF data set without reading the
+    * pixels into an array. Returns null if the image can't be read this
+    * way, e.g. if memory mapping is off or the file is still being written.
+    */
+   MappedTaggedImage getMappedImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+      if (!ImageKey.isValid(channelIndex, sliceIndex, frameIndex, positionIndex)) {
+         return null;
+      }
+      long key = ImageKey.pack(channelIndex, sliceIndex, frameIndex, positionIndex);
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
+      if (reader == null) {
+         return null;
+      }
+      ByteBuffer pixels = reader.readPixelBuffer(key);
+      //the writer writes pixels in its own byte order
+      if (pixels == null || !pixels.order().equals(MultipageTiffWriter.BYTE_ORDER)) {
+         return null;
+      }
+      JSONObject tags = reader.readImageTags(key);
+      if (tags == null) {
+         return null;
+      }
+      return new MappedTaggedImage(pixels, tags);
+   }
+
    @Override
    public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
-      TaggedImage img = cached_.get(label);
+      if (!ImageKey.isValid(channelIndex, sliceIndex, frameIndex, positionIndex)) {
+         return null;
+      }
+      long key = ImageKey.pack(channelIndex, sliceIndex, frameIndex, positionIndex);
+      TaggedImage img = cached_.get(key);
       if (img != null) {
          return img;
       }
-      if (!tiffReadersByLabel_.containsKey(label)) {
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
+      if (reader == null) {
          return null;
       }
 
       //DEbugging code for a strange exception found in core log
       try {
-         img = tiffReadersByLabel_.get(label).readImage(label);
+         img = reader.readImage(key);
       } catch (NullPointerException e) {
-         ReportingUtils.logError("Couldn't find image that TiffReader is supposed to contain");
-         if (tiffReadersByLabel_ == null) {
-            ReportingUtils.logError("Tiffreadersbylabel is null");
-         }
-         if (tiffReadersByLabel_.get(label) == null) {
-            ReportingUtils.logError("Specific reader is null " + label);
-         }
+         ReportingUtils.logError("Couldn't find image that TiffReader is supposed to contain "
+                 + ImageKey.toLabel(key));
       }
       return img;
    }
 
    @Override
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
-      TaggedImage img = cached_.get(label);
+      if (!ImageKey.isValid(channelIndex, sliceIndex, frameIndex, positionIndex)) {
+         return null;
+      }
+      long key = ImageKey.pack(channelIndex, sliceIndex, frameIndex, positionIndex);
+      TaggedImage img = cached_.get(key);
       if (img != null) {
          return img.tags;
       }
-      if (!tiffReadersByLabel_.containsKey(label)) {
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
+      if (reader == null) {
          return null;
       }
-      return tiffReadersByLabel_.get(label).readImage(label).tags;   
+      return reader.readImageTags(key);
    }
 
    @Override
@@ -244,7 +287,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             ReportingUtils.logError(ex);
          }
       }
-      String label = MDUtils.getLabel(taggedImage.tags);
+      long key = ImageKey.forStorage(taggedImage.tags);
       if (fileSets_ == null) {
          try {
             fileSets_ = new HashMap<Integer, FileSet>();
@@ -265,11 +308,14 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
       FileSet set = fileSets_.get(fileSetIndex);
       try {
-         set.writeImage(taggedImage);
+         if (!set.writeImage(taggedImage)) {
+            //dropped because the writing queue was full
+            return;
+         }
       } catch (IOException ex) {
         ReportingUtils.showError("problem writing image to file");
       }
-      tiffReadersByLabel_.put(label, set.getCurrentReader());
+      tiffReadersByKey_.put(key, set.getCurrentReader());
          
       int frame;
       try {
@@ -278,12 +324,15 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          frame = 0;
       }
       lastFrameOpenedDataSet_ = Math.max(frame, lastFrameOpenedDataSet_);
-      cached_.add(taggedImage, label);
+      if (!(taggedImage instanceof MappedTaggedImage)) {
+         //has no pixel array, getImage reads it back from the file instead
+         cached_.add(taggedImage, key);
+      }
    }
 
    @Override
    public Set<String> imageKeys() {
-      return tiffReadersByLabel_.keySet();
+      return tiffReadersByKey_.labels();
    }
 
    /**
@@ -327,31 +376,12 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    @Override
    public void setSummaryMetadata(JSONObject md) {
-      setSummaryMetadata(md, false);
-   }
-   
-   private void setSummaryMetadata(JSONObject md, boolean showProgress) {
       summaryMetadata_ = md;
       if (summaryMetadata_ != null) {
          try {
             boolean slicesFirst = summaryMetadata_.getBoolean("SlicesFirst");
             boolean timeFirst = summaryMetadata_.getBoolean("TimeFirst");
-            TreeMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
-            tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator(slicesFirst, timeFirst));
-            if (showProgress) {
-               ProgressBar progressBar = new ProgressBar("Building image location map", 0, oldImageMap.keySet().size());
-               progressBar.setProgress(0);
-               progressBar.setVisible(true);
-               int i = 1;
-               for (String label : oldImageMap.keySet()) {
-                  tiffReadersByLabel_.put(label, oldImageMap.get(label));
-                  progressBar.setProgress(i);
-                  i++;
-               }
-               progressBar.setVisible(false);
-            } else {
-               tiffReadersByLabel_.putAll(oldImageMap);
-            }
+            tiffReadersByKey_.setOrder(slicesFirst, timeFirst);
          } catch (JSONException ex) {
             ReportingUtils.logError("Couldn't find SlicesFirst or TimeFirst in summary metadata");
          }
@@ -378,7 +408,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
           
    @Override   
    public void writeDisplaySettings() {
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByKey_.values())) {
          try {
             r.rewriteDisplaySettings(displayAndComments_.getJSONArray("Channels"));
             r.rewriteComments(displayAndComments_.getJSONObject("Comments"));
@@ -397,7 +427,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    public void close() {
       shutdownHook_.run();
       Runtime.getRuntime().removeShutdownHook(shutdownHook_);
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByKey_.values())) {
          try {
             r.close();
          } catch (IOException ex) {
@@ -454,6 +484,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       private boolean finished_ = false;
       private int ifdCount_ = 0;
       private TaggedImageStorageMultipageTiff mpTiff_;
+      private MultipageTiffWriterPool.Lane writingLane_;
       int nextExpectedChannel_ = 0, nextExpectedSlice_ = 0, nextExpectedFrame_ = 0;
 
       
@@ -464,9 +495,12 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          //get file path and name
          baseFilename_ = createBaseFilename(firstImageTags);
          currentTiffFilename_ = baseFilename_ + (omeTiff_ ? ".ome.tif" : ".tif");
+         if (fastStorageMode_) {
+            writingLane_ = MultipageTiffWriterPool.acquireLane(this, directory_);
+         }
          //make first writer
          tiffWriters_.add(new MultipageTiffWriter(directory_, currentTiffFilename_, summaryMetadata_, mpt,
-                 fastStorageMode_));
+                 writingLane_));
    
          try {
             if (separateMetadataFile_) {
@@ -496,14 +530,32 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          for (MultipageTiffWriter w : tiffWriters_) {
             w.close(omeXML_);
          }
+         if (writingLane_ != null) {
+            MultipageTiffWriterPool.releaseLane(writingLane_);
+            writingLane_ = null;
+         }
          finished_ = true;
       }
 
       public MultipageTiffReader getCurrentReader() {
-         return tiffWriters_.getLast().getReader();
+         MultipageTiffReader reader = tiffWriters_.getLast().getReader();
+         reader.setMemoryMapped(memoryMapped_);
+         return reader;
       }
       
-      public void writeImage(TaggedImage img) throws IOException {
+      /**
+       * @return false if the image was dropped by the writing pool
+       */
+      public boolean writeImage(TaggedImage img) throws IOException {
+         //Finish changing the tags before they are serialized to check the
+         //space needed, so that they only need to be serialized once
+         img.tags.remove("Summary");
+         addFileName(img);
+         //Serialize once: the space check, the IFD and the index getters
+         //all use the cached form from here on
+         if (!(img.tags instanceof LazyJSONObject)) {
+            img.tags = new LazyJSONObject(img.tags.toString());
+         }
          //check if current writer is out of space, if so, make a new one
          if (!tiffWriters_.getLast().hasSpaceToWrite(img, omeTiff_ ? estimateOMEMDSize(): 0  )) {
             //write index map here but still need to call close() at end of acq
@@ -512,18 +564,14 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             currentTiffFilename_ = baseFilename_ + "_" + tiffWriters_.size() + (omeTiff_ ? ".ome.tif" : ".tif");
             ifdCount_ = 0;
             tiffWriters_.add(new MultipageTiffWriter(directory_ ,currentTiffFilename_, summaryMetadata_, mpTiff_,
-                    fastStorageMode_));
+                    writingLane_));
+            addFileName(img);
          }      
 
-         //Add filename to image tags
-         try {
-            img.tags.put("FileName", currentTiffFilename_);
-         } catch (JSONException ex) {
-            ReportingUtils.logError("Error adding filename to metadata");
-         }
-
          //write image
-         tiffWriters_.getLast().writeImage(img);  
+         if (!tiffWriters_.getLast().writeImage(img)) {
+            return false;
+         }
 
          if (expectedImageOrder_) {
             if (splitByXYPosition_) {
@@ -557,6 +605,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             ReportingUtils.logError("Problem with image metadata");
          }
          ifdCount_++;
+         return true;
       }
 
       private int estimateOMEMDSize() {
@@ -654,33 +703,29 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          int numSlices = MDUtils.getNumSlices(summaryMetadata_);
          int numChannels = MDUtils.getNumChannels(summaryMetadata_);
          if (numFrames > frame + 1 ) {
-            TreeSet<String> writtenImages = new TreeSet<String>();
+            ImageKeyMap<Long> writtenImages = new ImageKeyMap<Long>();
             for (MultipageTiffWriter w : tiffWriters_) {
-               writtenImages.addAll(w.getIndexMap().keySet());
+               writtenImages.putAll(w.getIndexMap());
                w.setAbortedNumFrames(frame + 1);
             }
-            int positionIndex = MDUtils.getIndices(writtenImages.first())[3];
+            int positionIndex = ImageKey.getPosition(writtenImages.keys()[0]);
             if (omeTiff_) {
                omeMetadata_.setNumFrames(positionIndex, frame + 1);
             }
-            TreeSet<String> lastFrameLabels = new TreeSet<String>();
-            for (int c = 0; c < numChannels; c++) {
-               for (int z = 0; z < numSlices; z++) {
-                  lastFrameLabels.add(MDUtils.generateLabel(c, z, frame, positionIndex));
-               }
-            }
-            lastFrameLabels.removeAll(writtenImages);
             try {
-               for (String label : lastFrameLabels) {
-                  tiffWriters_.getLast().writeBlankImage(label);
-                  if (omeTiff_) {
-                     JSONObject dummyTags = new JSONObject();
-                     int channel = Integer.parseInt(label.split("_")[0]);
-                     int slice = Integer.parseInt(label.split("_")[1]);
-                     MDUtils.setChannelIndex(dummyTags, channel);
-                     MDUtils.setFrameIndex(dummyTags, frame);
-                     MDUtils.setSliceIndex(dummyTags, slice);
-                     omeMetadata_.addImageTagsToOME(dummyTags, ifdCount_, baseFilename_, currentTiffFilename_);
+               for (int c = 0; c < numChannels; c++) {
+                  for (int z = 0; z < numSlices; z++) {
+                     if (writtenImages.containsKey(ImageKey.pack(c, z, frame, positionIndex))) {
+                        continue;
+                     }
+                     tiffWriters_.getLast().writeBlankImage();
+                     if (omeTiff_) {
+                        JSONObject dummyTags = new JSONObject();
+                        MDUtils.setChannelIndex(dummyTags, c);
+                        MDUtils.setFrameIndex(dummyTags, frame);
+                        MDUtils.setSliceIndex(dummyTags, z);
+                        omeMetadata_.addImageTagsToOME(dummyTags, ifdCount_, baseFilename_, currentTiffFilename_);
+                     }
                   }
                }
             } catch (IOException ex) {
@@ -689,6 +734,14 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          }
       }
       
+      private void addFileName(TaggedImage img) {
+         try {
+            img.tags.put("FileName", currentTiffFilename_);
+         } catch (JSONException ex) {
+            ReportingUtils.logError("Error adding filename to metadata");
+         }
+      }
+
       void checkForExpectedImageOrder(JSONObject tags) {
          try {
             //Determine next expected indices
@@ -732,24 +785,24 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       private static final int NUM_TO_CACHE = 10;
       
       private LinkedList<TaggedImage> images;
-      private LinkedList<String> labels;
+      private LinkedList<Long> keys;
       
       public CachedImages() {
          images = new LinkedList<TaggedImage>();
-         labels = new LinkedList<String>();
+         keys = new LinkedList<Long>();
       }
       
-      public void add(TaggedImage img, String label) {
+      public void add(TaggedImage img, long key) {
          images.addFirst(img);
-         labels.addFirst(label);
+         keys.addFirst(key);
          while (images.size() > NUM_TO_CACHE) {
             images.removeLast();
-            labels.removeLast();
+            keys.removeLast();
          }
       }
 
-      public TaggedImage get(String label) {
-         int i = labels.indexOf(label);
+      public TaggedImage get(long key) {
+         int i = keys.indexOf(key);
          return i == -1 ? null : images.get(i);
       }
       
@@ -6,12 +6,12 @@
 package org.micromanager.acquisition;
 
 import java.util.Set;
-import java.util.TreeMap;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.api.TaggedImageStorage;
-import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.ReportingUtils;
@@ -26,21 +26,21 @@ public class TaggedImageStorageRam implements TaggedImageStorage {
    public static String menuName_ = null;
    private boolean finished_ = false;
 
-   protected TreeMap<String, TaggedImage> imageMap_;
+   protected ImageKeyMap<TaggedImage> imageMap_;
    private JSONObject summaryMetadata_;
    private JSONObject displaySettings_;
    private int lastFrame_ = -1;
    
    public TaggedImageStorageRam(JSONObject summaryMetadata) {
-      imageMap_ = new TreeMap<String,TaggedImage>(new ImageLabelComparator());
+      imageMap_ = new ImageKeyMap<TaggedImage>();
       setSummaryMetadata(summaryMetadata);
       displaySettings_ = new JSONObject();
    }
 
    public void putImage(TaggedImage taggedImage) throws MMException {
-      String label = MDUtils.getLabel(taggedImage.tags);
-      imageMap_.put(label, taggedImage);
+      long key = ImageKey.forStorage(taggedImage.tags);
       try {
+         imageMap_.put(key, taggedImage);
          lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
@@ -50,7 +50,7 @@ public class TaggedImageStorageRam implements TaggedImageStorage {
    public TaggedImage getImage(int channel, int slice, int frame, int position) {
       if (imageMap_ == null)
          return null;
-      return imageMap_.get(MDUtils.generateLabel(channel, slice, frame, position));
+      return imageMap_.get(channel, slice, frame, position);
    }
 
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
@@ -58,7 +58,7 @@ public class TaggedImageStorageRam implements TaggedImageStorage {
    }
 
    public Set<String> imageKeys() {
-      return imageMap_.keySet();
+      return imageMap_.labels();
    }
 
    public void finished() {
@@ -75,9 +75,7 @@ public class TaggedImageStorageRam implements TaggedImageStorage {
          try {
             boolean slicesFirst = summaryMetadata_.getBoolean("SlicesFirst");
             boolean timeFirst = summaryMetadata_.getBoolean("TimeFirst");
-            TreeMap<String, TaggedImage> oldImageMap = imageMap_;
-            imageMap_ = new TreeMap<String,TaggedImage>(new ImageLabelComparator(slicesFirst,timeFirst));    
-            imageMap_.putAll(oldImageMap);
+            imageMap_.setOrder(slicesFirst, timeFirst);
          } catch (JSONException ex) {
             ReportingUtils.logError("Couldn't find SlicesFirst or TimeFirst in summary metadata");
          }
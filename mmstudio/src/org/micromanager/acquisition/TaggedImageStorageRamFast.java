@@ -14,7 +14,6 @@ import java.nio.ShortBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import mmcorej.TaggedImage;
@@ -22,7 +21,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.DirectBuffers;
-import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
+import org.micromanager.utils.LazyJSONObject;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
@@ -58,25 +59,25 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    public static String menuName_ = null;
    private boolean finished_ = false;
 
-   private TreeMap<String, DirectTaggedImage> imageMap_;
-   private LRUCache<String, TaggedImage> lruCache_;
+   private ImageKeyMap<DirectTaggedImage> imageMap_;
+   private LRUCache<Long, TaggedImage> lruCache_;
    private JSONObject summaryMetadata_;
    private JSONObject displaySettings_;
    private int lastFrame_ = -1;
    
    public TaggedImageStorageRamFast(JSONObject summaryMetadata) {
-      imageMap_ = new TreeMap<String, DirectTaggedImage>(new ImageLabelComparator());
+      imageMap_ = new ImageKeyMap<DirectTaggedImage>();
       setSummaryMetadata(summaryMetadata);
       displaySettings_ = new JSONObject();
-      lruCache_ = new LRUCache<String, TaggedImage>(10);
+      lruCache_ = new LRUCache<Long, TaggedImage>(10);
    }
 
    private ByteBuffer bufferFromJSON(JSONObject json) {
-      return DirectBuffers.bufferFromString(json.toString());
+      return DirectBuffers.bufferFromBytes(LazyJSONObject.getUTF8(json));
    }
    
    private JSONObject JSONFromBuffer(ByteBuffer byteBuffer) throws JSONException {
-      return new JSONObject(DirectBuffers.stringFromBuffer(byteBuffer));
+      return new LazyJSONObject(byteBuffer);
    }
    
    private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) throws JSONException, MMScriptException{
@@ -101,10 +102,10 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    }
    
    public void putImage(final TaggedImage taggedImage) throws MMException {
-      String label = MDUtils.getLabel(taggedImage.tags);
+      long key = ImageKey.forStorage(taggedImage.tags);
       try {
-         lruCache_.put(label, taggedImage);
-         imageMap_.put(label, taggedImageToDirectTaggedImage(taggedImage));
+         lruCache_.put(key, taggedImage);
+         imageMap_.put(key, taggedImageToDirectTaggedImage(taggedImage));
         lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
@@ -115,12 +116,15 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
         if (imageMap_ == null) {
             return null;
         }
-        String label = MDUtils.generateLabel(channel, slice, frame, position);
-        TaggedImage cachedImage = lruCache_.get(label);
+        if (!ImageKey.isValid(channel, slice, frame, position)) {
+            return null;
+        }
+        long key = ImageKey.pack(channel, slice, frame, position);
+        TaggedImage cachedImage = lruCache_.get(key);
         if (cachedImage != null) {
            return cachedImage;
         } else { // cache miss
-           return directTaggedImageToTaggedImage(imageMap_.get(label));
+           return directTaggedImageToTaggedImage(imageMap_.get(key));
         }
     }
 
@@ -129,7 +133,7 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    }
 
    public Set<String> imageKeys() {
-      return imageMap_.keySet();
+      return imageMap_.labels();
    }
 
    public void finished() {
@@ -146,9 +150,7 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
          try {
             boolean slicesFirst = summaryMetadata_.getBoolean("SlicesFirst");
             boolean timeFirst = summaryMetadata_.getBoolean("TimeFirst");
-            TreeMap<String, DirectTaggedImage> oldImageMap = imageMap_;
-            imageMap_ = new TreeMap<String,DirectTaggedImage>(new ImageLabelComparator(slicesFirst,timeFirst));    
-            imageMap_.putAll(oldImageMap);
+            imageMap_.setOrder(slicesFirst, timeFirst);
          } catch (JSONException ex) {
             ReportingUtils.logError("Couldn't find SlicesFirst or TimeFirst in summary metadata");
          }
@@ -0,0 +1,401 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TaggedImageStorageRingBuffer.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.DirectBuffers;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
+import org.micromanager.utils.LazyJSONObject;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Stores images in RAM, outside the Java heap, within a fixed memory budget.
+ * Pixels are copied into fixed-size slots of direct buffers that together
+ * take at most the budget. Once all slots are used, the oldest image is
+ * either written to a multipage TIFF file in a spill directory (SPILL) or
+ * simply discarded (OVERWRITE), so that the storage works as a circular
+ * buffer.
+ */
+public class TaggedImageStorageRingBuffer implements TaggedImageStorage {
+
+   public enum OverflowPolicy {
+      SPILL, OVERWRITE
+   }
+
+   public static String menuName_ = null;
+   private static final long MAX_SLAB_BYTES = 1 << 30;
+   private static final int SPILLED = -1;
+
+   private final long budgetBytes_;
+   private final OverflowPolicy policy_;
+   private String spillDirectory_;
+   private boolean finished_ = false;
+   private JSONObject summaryMetadata_;
+   private JSONObject displaySettings_;
+   private int lastFrame_ = -1;
+
+   //Slot number of each stored image, or SPILLED
+   private ImageKeyMap<Integer> index_;
+   private ByteBuffer[] slabs_;
+   private int slotBytes_ = 0;
+   private int slotsPerSlab_;
+   private int numSlots_;
+   private long[] slotKeys_;
+   private byte[][] slotTags_;
+   private Object[] slotPixelTypes_;
+   private int[] slotLengths_;
+   private int nextSlot_ = 0;
+   private int usedSlots_ = 0;
+   private long allocatedBytes_ = 0;
+   private long tagBytes_ = 0;
+   private TaggedImageStorageMultipageTiff spillStorage_;
+
+   /**
+    * @param budgetBytes maximum number of bytes used for pixels
+    * @param policy what to do with the oldest image when the budget is used
+    */
+   public TaggedImageStorageRingBuffer(JSONObject summaryMetadata, long budgetBytes,
+           OverflowPolicy policy) {
+      budgetBytes_ = budgetBytes;
+      policy_ = policy;
+      index_ = new ImageKeyMap<Integer>();
+      setSummaryMetadata(summaryMetadata);
+      displaySettings_ = new JSONObject();
+   }
+
+   /**
+    * Directory in which the spill file is created. Defaults to a new
+    * directory in the system temporary directory.
+    */
+   public synchronized void setSpillDirectory(String dir) {
+      spillDirectory_ = dir;
+   }
+
+   public long getBudget() {
+      return budgetBytes_;
+   }
+
+   public OverflowPolicy getOverflowPolicy() {
+      return policy_;
+   }
+
+   /**
+    * Number of images that fit in the budget, or 0 before the first image
+    * has been stored
+    */
+   public synchronized int getCapacity() {
+      return numSlots_;
+   }
+
+   private static int bytesPerElement(Object pix) {
+      if (pix instanceof byte[]) {
+         return 1;
+      } else if (pix instanceof short[]) {
+         return 2;
+      } else if (pix instanceof int[]) {
+         return 4;
+      }
+      return 0;
+   }
+
+   private static int arrayLength(Object pix) {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return ((short[]) pix).length;
+      } else {
+         return ((int[]) pix).length;
+      }
+   }
+
+   /**
+    * Sizes the slots from the first image
+    */
+   private void allocateSlots(int slotBytes) throws MMException {
+      if (slotBytes <= 0 || slotBytes > MAX_SLAB_BYTES) {
+         throw new MMException("Image size not supported by RAM buffer: " + slotBytes + " bytes");
+      }
+      slotBytes_ = slotBytes;
+      numSlots_ = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes_ / slotBytes));
+      slotsPerSlab_ = (int) Math.max(1, MAX_SLAB_BYTES / slotBytes);
+      slabs_ = new ByteBuffer[(numSlots_ + slotsPerSlab_ - 1) / slotsPerSlab_];
+      slotKeys_ = new long[numSlots_];
+      slotTags_ = new byte[numSlots_][];
+      slotPixelTypes_ = new Object[numSlots_];
+      slotLengths_ = new int[numSlots_];
+   }
+
+   /**
+    * Returns a view of the slot, allocating its slab the first time it is used
+    */
+   private ByteBuffer getSlot(int slot) throws MMException {
+      int slab = slot / slotsPerSlab_;
+      if (slabs_[slab] == null) {
+         int slotsInSlab = Math.min(slotsPerSlab_, numSlots_ - slab * slotsPerSlab_);
+         try {
+            slabs_[slab] = ByteBuffer.allocateDirect(slotsInSlab * slotBytes_)
+                    .order(DirectBuffers.NATIVE_ORDER);
+         } catch (OutOfMemoryError e) {
+            throw new MMException("Not enough memory for RAM buffer of "
+                    + (budgetBytes_ >> 20) + " MB");
+         }
+         allocatedBytes_ += slabs_[slab].capacity();
+      }
+      ByteBuffer view = slabs_[slab].duplicate();
+      int start = (slot % slotsPerSlab_) * slotBytes_;
+      view.limit(start + slotBytes_);
+      view.position(start);
+      return view.slice().order(DirectBuffers.NATIVE_ORDER);
+   }
+
+   public synchronized void putImage(TaggedImage taggedImage) throws MMException {
+      long key = ImageKey.forStorage(taggedImage.tags);
+      try {
+         lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
+      } catch (JSONException ex) {
+         throw new MMException("Image has no channel, slice, frame or position index");
+      }
+      int bytesPerElement = bytesPerElement(taggedImage.pix);
+      if (bytesPerElement == 0) {
+         throw new MMException("Unsupported pixel type for RAM buffer");
+      }
+      int length = arrayLength(taggedImage.pix);
+      if (slabs_ == null) {
+         allocateSlots(length * bytesPerElement);
+      } else if (length * bytesPerElement > slotBytes_) {
+         throw new MMException("Image is larger than the first image in this RAM buffer");
+      }
+
+      int slot = nextSlot_;
+      if (usedSlots_ == numSlots_) {
+         evict(slot);
+      } else {
+         usedSlots_++;
+      }
+      nextSlot_ = (nextSlot_ + 1) % numSlots_;
+
+      ByteBuffer buffer = getSlot(slot);
+      if (bytesPerElement == 1) {
+         buffer.put((byte[]) taggedImage.pix);
+      } else if (bytesPerElement == 2) {
+         buffer.asShortBuffer().put((short[]) taggedImage.pix);
+      } else {
+         buffer.asIntBuffer().put((int[]) taggedImage.pix);
+      }
+      slotTags_[slot] = LazyJSONObject.getUTF8(taggedImage.tags);
+      tagBytes_ += slotTags_[slot].length;
+      slotPixelTypes_[slot] = taggedImage.pix.getClass();
+      slotLengths_[slot] = length;
+      slotKeys_[slot] = key;
+      index_.put(key, slot);
+   }
+
+   /**
+    * Frees the slot holding the oldest image, spilling the image to disk
+    * if the policy says so
+    */
+   private void evict(int slot) {
+      long key = slotKeys_[slot];
+      Integer current = index_.get(key);
+      //Only evict the image if it hasn't since been replaced by a newer one
+      if (current != null && current == slot) {
+         if (policy_ == OverflowPolicy.SPILL && spill(slot)) {
+            index_.put(key, SPILLED);
+         } else {
+            index_.remove(key);
+         }
+      }
+      tagBytes_ -= slotTags_[slot].length;
+      slotTags_[slot] = null;
+   }
+
+   private boolean spill(int slot) {
+      try {
+         if (spillStorage_ == null) {
+            if (summaryMetadata_ == null) {
+               ReportingUtils.logError("Can't spill images from RAM buffer without summary metadata");
+               return false;
+            }
+            String dir = spillDirectory_;
+            if (dir == null) {
+               dir = new File(System.getProperty("java.io.tmpdir"),
+                       "MMRingBufferSpill_" + System.currentTimeMillis()).getAbsolutePath();
+            }
+            spillStorage_ = new TaggedImageStorageMultipageTiff(dir, true,
+                    summaryMetadata_, false, false, false);
+            ReportingUtils.logMessage("RAM buffer full: spilling oldest images to " + dir);
+         }
+         spillStorage_.putImage(readSlot(slot));
+         return true;
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't create spill file for RAM buffer");
+      } catch (MMException ex) {
+         ReportingUtils.logError(ex, "Couldn't spill image from RAM buffer");
+      }
+      return false;
+   }
+
+   private TaggedImage readSlot(int slot) throws MMException {
+      ByteBuffer buffer = getSlot(slot);
+      int length = slotLengths_[slot];
+      Object pix;
+      if (slotPixelTypes_[slot] == byte[].class) {
+         byte[] bytes = new byte[length];
+         buffer.get(bytes);
+         pix = bytes;
+      } else if (slotPixelTypes_[slot] == short[].class) {
+         short[] shorts = new short[length];
+         buffer.asShortBuffer().get(shorts);
+         pix = shorts;
+      } else {
+         int[] ints = new int[length];
+         buffer.asIntBuffer().get(ints);
+         pix = ints;
+      }
+      return new TaggedImage(pix, readSlotTags(slot));
+   }
+
+   private JSONObject readSlotTags(int slot) {
+      return new LazyJSONObject(ByteBuffer.wrap(slotTags_[slot]));
+   }
+
+   public synchronized TaggedImage getImage(int channel, int slice, int frame, int position) {
+      if (index_ == null) {
+         return null;
+      }
+      Integer slot = index_.get(channel, slice, frame, position);
+      if (slot == null) {
+         return null;
+      } else if (slot == SPILLED) {
+         return spillStorage_.getImage(channel, slice, frame, position);
+      }
+      try {
+         return readSlot(slot);
+      } catch (MMException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+
+   public synchronized JSONObject getImageTags(int channel, int slice, int frame, int position) {
+      if (index_ == null) {
+         return null;
+      }
+      Integer slot = index_.get(channel, slice, frame, position);
+      if (slot == null) {
+         return null;
+      } else if (slot == SPILLED) {
+         return spillStorage_.getImageTags(channel, slice, frame, position);
+      }
+      return readSlotTags(slot);
+   }
+
+   public synchronized Set<String> imageKeys() {
+      return index_.labels();
+   }
+
+   public synchronized void finished() {
+      finished_ = true;
+      if (spillStorage_ != null) {
+         spillStorage_.finished();
+      }
+   }
+
+   public synchronized boolean isFinished() {
+      return finished_;
+   }
+
+   public synchronized void setSummaryMetadata(JSONObject md) {
+      summaryMetadata_ = md;
+      if (summaryMetadata_ != null) {
+         try {
+            boolean slicesFirst = summaryMetadata_.getBoolean("SlicesFirst");
+            boolean timeFirst = summaryMetadata_.getBoolean("TimeFirst");
+            index_.setOrder(slicesFirst, timeFirst);
+         } catch (JSONException ex) {
+            ReportingUtils.logError("Couldn't find SlicesFirst or TimeFirst in summary metadata");
+         }
+      }
+   }
+
+   public synchronized JSONObject getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   public synchronized void setDisplayAndComments(JSONObject settings) {
+      displaySettings_ = settings;
+   }
+
+   public synchronized JSONObject getDisplayAndComments() {
+      return displaySettings_;
+   }
+
+   public synchronized void close() {
+      if (spillStorage_ != null) {
+         spillStorage_.close();
+         spillStorage_ = null;
+      }
+      index_ = null;
+      slabs_ = null;
+      slotTags_ = null;
+      allocatedBytes_ = 0;
+      tagBytes_ = 0;
+      summaryMetadata_ = null;
+      displaySettings_ = null;
+   }
+
+   public String getDiskLocation() {
+      return null;
+   }
+
+   /**
+    * Directory of the spill file, or null if no images have been spilled
+    */
+   public synchronized String getSpillLocation() {
+      return spillStorage_ == null ? null : spillStorage_.getDiskLocation();
+   }
+
+   public synchronized int lastAcquiredFrame() {
+      return lastFrame_;
+   }
+
+   /**
+    * Returns the memory used by this storage: the direct buffers allocated
+    * so far plus the serialized image tags. Spilled images are not counted.
+    */
+   public synchronized long getDataSetSize() {
+      return allocatedBytes_ + tagBytes_;
+   }
+
+   @Override
+   public void writeDisplaySettings() {
+      //Do nothing
+   }
+}
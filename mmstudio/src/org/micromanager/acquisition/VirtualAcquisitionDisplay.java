@@ -309,7 +309,7 @@ public final class VirtualAcquisitionDisplay implements AcquisitionDisplay,
                         } catch (Exception ex) {
                         }
                         superDraw();
-                        MMStudioMainFrame.getInstance().getLiveModeTimer().updateFPS();
+                        MMStudioMainFrame.getInstance().getLiveModeTimer().imageDrawn(VirtualAcquisitionDisplay.this);
                      }
                   });
                } catch (Exception e) {
@@ -347,7 +347,7 @@ public final class VirtualAcquisitionDisplay implements AcquisitionDisplay,
             public void run() {
                imageChangedUpdate();
                superDraw();
-               MMStudioMainFrame.getInstance().getLiveModeTimer().updateFPS();
+               MMStudioMainFrame.getInstance().getLiveModeTimer().imageDrawn(VirtualAcquisitionDisplay.this);
             }
          };
          updater2.post(runnable);
@@ -434,7 +434,7 @@ public final class VirtualAcquisitionDisplay implements AcquisitionDisplay,
                imageChangedUpdate();
                getWindow().getCanvas().setImageUpdated();
                superDraw();
-               MMStudioMainFrame.getInstance().getLiveModeTimer().updateFPS();
+               MMStudioMainFrame.getInstance().getLiveModeTimer().imageDrawn(VirtualAcquisitionDisplay.this);
             }       
          };
       }
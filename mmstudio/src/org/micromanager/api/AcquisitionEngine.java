@@ -304,6 +304,19 @@ public interface AcquisitionEngine {
     */
    public boolean isMultiPositionEnabled();
 
+   /**
+    * Sets a flag that signals whether the positions will be reordered to
+    * reduce the stage travel time before acquiring
+    * @param selected - reorders the position list when true
+    */
+   public void enableOptimizePositionOrder(boolean selected);
+
+   /**
+    * Returns true when the positions will be reordered before acquiring
+    * @return whether or not the position list will be reordered
+    */
+   public boolean isOptimizePositionOrderEnabled();
+
    /**
     * Access to the channels used in this acquisition
     * @return - Channels used in this acquisition
@@ -24,6 +24,7 @@ package org.micromanager.api;
 import java.util.Collection;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import org.micromanager.acquisition.PipelineMetrics;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -40,6 +41,9 @@ public abstract class DataProcessor<E> extends Thread {
    private BlockingQueue<E> output_;
    private boolean stopRequested_ = false;
    private boolean started_ = false;
+   private PipelineMetrics.Stage metrics_;
+   private int imagesPolled_ = 0;
+   private long pollWaitNanos_ = 0;
 
    /*
     * The process method should be overridden by classes implementing
@@ -68,7 +72,41 @@ public abstract class DataProcessor<E> extends Thread {
    public void run() {
       setStarted(true);
       while (!stopRequested_) {
+         imagesPolled_ = 0;
+         pollWaitNanos_ = 0;
+         long start = System.nanoTime();
          process();
+         if (imagesPolled_ > 0) {
+            getMetrics().record(imagesPolled_, System.nanoTime() - start - pollWaitNanos_);
+         }
+      }
+      releaseMetrics();
+   }
+
+   /*
+    * Counters for this processor in the acquisition pipeline. The time
+    * recorded is the time spent in process(), not counting waiting for input.
+    */
+   public synchronized PipelineMetrics.Stage getMetrics() {
+      if (metrics_ == null) {
+         metrics_ = PipelineMetrics.useStage("Processor " + getStageName());
+      }
+      return metrics_;
+   }
+
+   /*
+    * Name of this processor in the pipeline metrics: its class, so that
+    * processors created again and again share one set of counters
+    */
+   protected String getStageName() {
+      String name = getClass().getSimpleName();
+      return name.length() > 0 ? name : getClass().getName();
+   }
+
+   private synchronized void releaseMetrics() {
+      if (metrics_ != null) {
+         PipelineMetrics.releaseStage(metrics_);
+         metrics_ = null;
       }
    }
 
@@ -121,17 +159,23 @@ public abstract class DataProcessor<E> extends Thread {
     * queue.
     */
    protected E poll() {
-      while (!stopRequested()) {
-         try {
-            E datum = (E) input_.poll(100, TimeUnit.MILLISECONDS);
-            if (datum != null) {
-               return datum;
+      long start = System.nanoTime();
+      try {
+         while (!stopRequested()) {
+            try {
+               E datum = (E) input_.poll(100, TimeUnit.MILLISECONDS);
+               if (datum != null) {
+                  imagesPolled_++;
+                  return datum;
+               }
+            } catch (InterruptedException ex) {
+               ReportingUtils.logError(ex);
             }
-         } catch (InterruptedException ex) {
-            ReportingUtils.logError(ex);
          }
+         return null;
+      } finally {
+         pollWaitNanos_ += System.nanoTime() - start;
       }
-      return null;
    }
 
    /*
@@ -139,7 +183,15 @@ public abstract class DataProcessor<E> extends Thread {
     * on the input queue to a collection.
     */
    protected void drainTo(Collection<E> data) {
-      input_.drainTo(data);
+      imagesPolled_ += input_.drainTo(data);
+   }
+
+   /*
+    * Drains at most maxElements available data objects on the input queue
+    * to a collection, without waiting for more to arrive.
+    */
+   protected void drainTo(Collection<E> data, int maxElements) {
+      imagesPolled_ += input_.drainTo(data, maxElements);
    }
 
    /*
@@ -40,6 +40,24 @@ public interface ImageCache extends TaggedImageStorage {
     */
    void addImageCacheListener(ImageCacheListener l);
 
+   /*
+    * Adds the provided cache listener. If lossless is true, the listener
+    * receives every image, however far behind it falls. Otherwise it may
+    * only receive the newest of the images that arrived while it was busy.
+    */
+   void addImageCacheListener(ImageCacheListener l, boolean lossless);
+
+   /*
+    * Returns the number of images waiting to be passed to the listener.
+    */
+   int getListenerBacklog(ImageCacheListener l);
+
+   /*
+    * Returns the number of images the listener skipped because it fell
+    * behind.
+    */
+   long getListenerDropCount(ImageCacheListener l);
+
    /*
     * Get a list of keys that are not identical for every TaggedImage.
     * The Set returns changes over time as new images are loaded
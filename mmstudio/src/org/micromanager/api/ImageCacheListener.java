@@ -34,7 +34,9 @@ public interface ImageCacheListener {
    /*
     * Implement this method to be informed when a TaggedImage or metadata
     * has been added to the image cache. May be called as many times as images
-    * are received by the cache.
+    * are received by the cache. Unless the listener was added as lossless,
+    * images that arrive while it is still busy may be skipped in favor of
+    * the newest one.
     */
    public void imageReceived(TaggedImage taggedImage);
 
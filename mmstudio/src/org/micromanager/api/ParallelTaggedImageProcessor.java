@@ -0,0 +1,213 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ParallelTaggedImageProcessor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.micromanager.acquisition.PipelineMetrics;
+import org.micromanager.acquisition.TaggedImageQueue;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * A DataProcessor that runs a stateless processing function on several
+ * worker threads at once. Images are taken from the input queue in batches
+ * and each batch is processed by one worker. Batches are passed on in the
+ * order in which they were received, so images leave this processor in the
+ * same order they arrived, whichever worker finishes first.
+ *
+ * Override processImage, which may be called from several threads at the
+ * same time and therefore must not depend on state left by other images.
+ */
+public abstract class ParallelTaggedImageProcessor extends DataProcessor<TaggedImage> {
+
+   public static final int DEFAULT_BATCH_SIZE = 4;
+
+   private final int numWorkers_;
+   private final int batchSize_;
+   private ExecutorService workers_;
+   private BlockingQueue<Future<List<TaggedImage>>> pendingBatches_;
+   private Thread emitter_;
+   private PipelineMetrics.Stage workerMetrics_;
+
+   public ParallelTaggedImageProcessor() {
+      this(Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+   }
+
+   /*
+    * numWorkers: number of threads calling processImage
+    * batchSize: maximum number of images handed to a worker at once
+    */
+   public ParallelTaggedImageProcessor(int numWorkers, int batchSize) {
+      numWorkers_ = Math.max(1, numWorkers);
+      batchSize_ = Math.max(1, batchSize);
+   }
+
+   /*
+    * Override this method to process one image. Return the processed image,
+    * or null to drop it. Will be called concurrently from several threads.
+    */
+   protected abstract TaggedImage processImage(TaggedImage taggedImage);
+
+   public int getNumWorkers() {
+      return numWorkers_;
+   }
+
+   public int getBatchSize() {
+      return batchSize_;
+   }
+
+   /*
+    * Number of images the input queue should be able to hold to keep all
+    * workers busy
+    */
+   public int getPreferredInputCapacity() {
+      return numWorkers_ * batchSize_;
+   }
+
+   /*
+    * Reads a batch of images and hands it to a worker. Blocks while all
+    * workers are busy and a batch is already waiting for each of them.
+    */
+   @Override
+   protected void process() {
+      TaggedImage first = poll();
+      if (first == null) {
+         return;
+      }
+      startWorkers();
+      final List<TaggedImage> batch = new ArrayList<TaggedImage>(batchSize_);
+      batch.add(first);
+      if (!TaggedImageQueue.isPoison(first)) {
+         drainTo(batch, batchSize_ - 1);
+      }
+      try {
+         pendingBatches_.put(workers_.submit(new Callable<List<TaggedImage>>() {
+            public List<TaggedImage> call() {
+               return processBatch(batch);
+            }
+         }));
+      } catch (RejectedExecutionException ex) {
+         ReportingUtils.logError("Images dropped by " + getName() + " after it was stopped");
+      } catch (InterruptedException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   private List<TaggedImage> processBatch(List<TaggedImage> batch) {
+      List<TaggedImage> processed = new ArrayList<TaggedImage>(batch.size());
+      for (TaggedImage image : batch) {
+         if (TaggedImageQueue.isPoison(image)) {
+            processed.add(image);
+            continue;
+         }
+         long start = System.nanoTime();
+         try {
+            TaggedImage result = processImage(image);
+            if (result != null) {
+               processed.add(result);
+            } else {
+               workerMetrics_.recordDrop();
+            }
+         } catch (RuntimeException ex) {
+            ReportingUtils.logError(ex, "Image dropped by " + getName());
+            workerMetrics_.recordDrop();
+         }
+         workerMetrics_.record(1, System.nanoTime() - start);
+      }
+      return processed;
+   }
+
+   private synchronized void startWorkers() {
+      if (workers_ != null) {
+         return;
+      }
+      final String name = getName();
+      workers_ = Executors.newFixedThreadPool(numWorkers_, new ThreadFactory() {
+         private int count_ = 0;
+
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + " worker " + count_++);
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      pendingBatches_ = new ArrayBlockingQueue<Future<List<TaggedImage>>>(2 * numWorkers_);
+      workerMetrics_ = PipelineMetrics.useStage("Processor " + getStageName() + " workers");
+      workerMetrics_.setQueue(pendingBatches_);
+      emitter_ = new Thread(name + " output") {
+         @Override
+         public void run() {
+            emitBatches();
+         }
+      };
+      emitter_.setDaemon(true);
+      emitter_.start();
+   }
+
+   /*
+    * Passes on the processed batches in the order they were read
+    */
+   private void emitBatches() {
+      while (true) {
+         Future<List<TaggedImage>> result;
+         try {
+            result = pendingBatches_.poll(100, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException ex) {
+            ReportingUtils.logError(ex);
+            continue;
+         }
+         if (result == null) {
+            if (stopRequested()) {
+               PipelineMetrics.releaseStage(workerMetrics_);
+               return;
+            }
+            continue;
+         }
+         try {
+            for (TaggedImage image : result.get()) {
+               produce(image);
+            }
+         } catch (InterruptedException ex) {
+            ReportingUtils.logError(ex);
+         } catch (ExecutionException ex) {
+            ReportingUtils.logError(ex.getCause());
+         }
+      }
+   }
+
+   @Override
+   public synchronized void requestStop() {
+      super.requestStop();
+      if (workers_ != null) {
+         workers_.shutdown();
+      }
+   }
+}
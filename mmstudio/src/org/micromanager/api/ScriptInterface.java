@@ -1086,4 +1086,22 @@ public interface ScriptInterface {
     * Returns true if user has chosen to hide MDA window when it runs.
     */
    public boolean getHideMDADisplayOption();
+
+   /*
+    * Returns one line for each stage of the acquisition image pipeline
+    * with its queue depth, image count, throughput, mean time per image
+    * and number of dropped images.
+    */
+   public String getPipelineMetrics();
+
+   /*
+    * Starts writing the acquisition pipeline metrics to a CSV file every
+    * intervalMs milliseconds, until stopPipelineMetricsRecording is called.
+    */
+   public void startPipelineMetricsRecording(String path, int intervalMs) throws MMScriptException;
+
+   /*
+    * Stops writing the acquisition pipeline metrics to file.
+    */
+   public void stopPipelineMetricsRecording();
 }
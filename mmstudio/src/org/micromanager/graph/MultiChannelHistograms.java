@@ -182,15 +182,21 @@ public final class MultiChannelHistograms extends JPanel implements Histograms {
    @Override
    public void imageChanged() {
      boolean update = true;
-        if ( display_.acquisitionIsRunning()
-                || (MMStudioMainFrame.getInstance().isLiveModeOn() && display_.isSimpleDisplay()) ) {
-            if (display_.getHistogramControlsState().slowHist) {
-                long time = System.currentTimeMillis();
-                if (time - lastUpdateTime_ < SLOW_HIST_UPDATE_INTERVAL_MS) {
-                    update = false;
-                } else {
-                    lastUpdateTime_ = time;
-                }
+        boolean live = MMStudioMainFrame.getInstance().isLiveModeOn() && display_.isSimpleDisplay();
+        long interval = 0;
+        if (display_.getHistogramControlsState().slowHist
+                && (display_.acquisitionIsRunning() || live)) {
+            interval = SLOW_HIST_UPDATE_INTERVAL_MS;
+        } else if (live) {
+            //live mode updates histograms less often than it draws
+            interval = MMStudioMainFrame.getInstance().getLiveModeTimer().getAnalysisIntervalMs();
+        }
+        if (interval > 0) {
+            long time = System.currentTimeMillis();
+            if (time - lastUpdateTime_ < interval) {
+                update = false;
+            } else {
+                lastUpdateTime_ = time;
             }
         }
  
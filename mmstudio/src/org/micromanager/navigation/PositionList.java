@@ -68,6 +68,9 @@ public class PositionList {
    public final static String AF_VALUE_FULL = "full";
    public final static String AF_VALUE_INCREMENTAL = "incremental";
    public final static String AF_VALUE_NONE = "none";
+   // positions with the same value of this property are visited one after
+   // the other when the list is reordered (see PositionListOptimizer)
+   public final static String GROUP_KEY = "GROUP";
 
    private HashSet<ChangeListener> listeners_ = new HashSet<ChangeListener>();
    
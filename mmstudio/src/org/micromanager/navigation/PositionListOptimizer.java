@@ -0,0 +1,344 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PositionListOptimizer.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// DESCRIPTION:  Orders stage positions to reduce the stage travel time
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.navigation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Plans the order in which the positions of a list are visited, so that the
+ * stages spend less time moving between them.
+ *
+ * The time of a move is estimated from a model of each axis (maximum speed
+ * and acceleration, so that short moves are dominated by the acceleration
+ * and long ones by the speed), with the X, Y and Z stages moving at the same
+ * time, plus a settling time. The route starts at the first position of the
+ * list and is built by a nearest neighbour tour improved by 2-opt moves, which
+ * reverse a part of the route wherever that makes it faster.
+ *
+ * Positions sharing a value of the PositionList.GROUP_KEY property (the well
+ * of a plate, for instance) stay together: the positions of each group are
+ * ordered first, then the groups, each group being entered at the end closest
+ * to the previous one.
+ */
+public class PositionListOptimizer {
+   // upper limit for the time spent improving a route
+   private static final long TIME_LIMIT_MS = 2000;
+
+   private final AxisModel xAxis_;
+   private final AxisModel yAxis_;
+   private final AxisModel zAxis_;
+   private final double settleTimeMs_;
+   private long deadline_;
+
+   /**
+    * Motion model of a stage axis
+    */
+   public static class AxisModel {
+      private final double speed_;
+      private final double acceleration_;
+
+      /**
+       * @param speed - maximum speed in um/s
+       * @param acceleration - acceleration in um/s^2
+       */
+      public AxisModel(double speed, double acceleration) {
+         speed_ = speed;
+         acceleration_ = acceleration;
+      }
+
+      /**
+       * Time in ms to move over the given distance, starting and ending at
+       * rest (trapezoidal, or triangular for short moves, speed profile)
+       */
+      public double getMoveTimeMs(double distanceUm) {
+         double d = Math.abs(distanceUm);
+         if (d == 0.0) {
+            return 0.0;
+         }
+         if (d < speed_ * speed_ / acceleration_) {
+            return 2000.0 * Math.sqrt(d / acceleration_);
+         }
+         return 1000.0 * (d / speed_ + speed_ / acceleration_);
+      }
+   }
+
+   /**
+    * Positions in the planned order, with the estimated stage time of the
+    * original and planned order
+    */
+   public static class Route {
+      private final MultiStagePosition[] positions_;
+      private final double originalTimeMs_;
+      private final double timeMs_;
+
+      Route(MultiStagePosition[] positions, double originalTimeMs, double timeMs) {
+         positions_ = positions;
+         originalTimeMs_ = originalTimeMs;
+         timeMs_ = timeMs;
+      }
+
+      public MultiStagePosition[] getPositions() {
+         return positions_;
+      }
+
+      public double getOriginalTimeMs() {
+         return originalTimeMs_;
+      }
+
+      public double getTimeMs() {
+         return timeMs_;
+      }
+
+      public double getSavedTimeMs() {
+         return originalTimeMs_ - timeMs_;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("Estimated stage time %.1f s instead of %.1f s (%.1f s saved per pass)",
+               timeMs_ / 1000.0, originalTimeMs_ / 1000.0, getSavedTimeMs() / 1000.0);
+      }
+   }
+
+   /**
+    * Optimizer with the motion model of a typical motorized XY stage and
+    * focus drive
+    */
+   public PositionListOptimizer() {
+      this(new AxisModel(5000.0, 50000.0), new AxisModel(5000.0, 50000.0),
+            new AxisModel(1000.0, 10000.0), 50.0);
+   }
+
+   /**
+    * @param xAxis - model of the X axis of the XY stage
+    * @param yAxis - model of the Y axis of the XY stage
+    * @param zAxis - model of the focus drive
+    * @param settleTimeMs - time for the stages to settle after a move
+    */
+   public PositionListOptimizer(AxisModel xAxis, AxisModel yAxis, AxisModel zAxis,
+         double settleTimeMs) {
+      xAxis_ = xAxis;
+      yAxis_ = yAxis;
+      zAxis_ = zAxis;
+      settleTimeMs_ = settleTimeMs;
+   }
+
+   /**
+    * Plans the order of the positions of the list, without changing it.
+    * Use PositionList.setPositions() to apply the route.
+    */
+   public Route optimize(PositionList positionList) {
+      return optimize(positionList.getPositions());
+   }
+
+   /**
+    * Plans the order of the given positions
+    */
+   public Route optimize(MultiStagePosition[] positions) {
+      deadline_ = System.currentTimeMillis() + TIME_LIMIT_MS;
+      int n = positions.length;
+      double[][] points = new double[n][];
+      for (int i = 0; i < n; i++) {
+         points[i] = getCoordinates(positions[i]);
+      }
+
+      // groups, in the order in which they first appear
+      LinkedHashMap<String, ArrayList<Integer>> groups =
+            new LinkedHashMap<String, ArrayList<Integer>>();
+      for (int i = 0; i < n; i++) {
+         String group = positions[i].getProperty(PositionList.GROUP_KEY);
+         if (group == null) {
+            // not in a group, a group of its own
+            group = "#" + i;
+         } else {
+            group = "=" + group;
+         }
+         ArrayList<Integer> members = groups.get(group);
+         if (members == null) {
+            members = new ArrayList<Integer>();
+            groups.put(group, members);
+         }
+         members.add(i);
+      }
+
+      // order the positions within each group
+      ArrayList<int[]> groupRoutes = new ArrayList<int[]>();
+      for (ArrayList<Integer> members : groups.values()) {
+         double[][] groupPoints = new double[members.size()][];
+         for (int i = 0; i < groupPoints.length; i++) {
+            groupPoints[i] = points[members.get(i)];
+         }
+         int[] order = planRoute(groupPoints);
+         int[] route = new int[order.length];
+         for (int i = 0; i < order.length; i++) {
+            route[i] = members.get(order[i]);
+         }
+         groupRoutes.add(route);
+      }
+
+      // order the groups by their centers
+      int[] groupOrder;
+      if (groupRoutes.size() == 1) {
+         groupOrder = new int[] {0};
+      } else {
+         double[][] centers = new double[groupRoutes.size()][];
+         for (int g = 0; g < centers.length; g++) {
+            centers[g] = new double[3];
+            for (int i : groupRoutes.get(g)) {
+               for (int k = 0; k < 3; k++) {
+                  centers[g][k] += points[i][k] / groupRoutes.get(g).length;
+               }
+            }
+         }
+         groupOrder = planRoute(centers);
+      }
+
+      // join the groups, entering each one at its end nearest to the
+      // last position of the previous one
+      MultiStagePosition[] result = new MultiStagePosition[n];
+      int count = 0;
+      double[] last = null;
+      for (int g : groupOrder) {
+         int[] route = groupRoutes.get(g);
+         boolean reverse = last != null
+               && getMoveTimeMs(last, points[route[route.length - 1]])
+                  < getMoveTimeMs(last, points[route[0]]);
+         for (int i = 0; i < route.length; i++) {
+            int index = reverse ? route[route.length - 1 - i] : route[i];
+            result[count++] = positions[index];
+         }
+         last = points[reverse ? route[0] : route[route.length - 1]];
+      }
+
+      double originalTimeMs = getTimeMs(positions);
+      double timeMs = getTimeMs(result);
+      if (timeMs >= originalTimeMs) {
+         // nothing to gain, keep the original order
+         return new Route(positions.clone(), originalTimeMs, originalTimeMs);
+      }
+      return new Route(result, originalTimeMs, timeMs);
+   }
+
+   /**
+    * Estimated time in ms to move the stages along the positions in the given
+    * order
+    */
+   public double getTimeMs(MultiStagePosition[] positions) {
+      double timeMs = 0.0;
+      for (int i = 1; i < positions.length; i++) {
+         timeMs += getMoveTimeMs(getCoordinates(positions[i - 1]),
+               getCoordinates(positions[i]));
+      }
+      return timeMs;
+   }
+
+   /**
+    * Estimated time in ms to move the stages from one position to another
+    */
+   public double getMoveTimeMs(MultiStagePosition from, MultiStagePosition to) {
+      return getMoveTimeMs(getCoordinates(from), getCoordinates(to));
+   }
+
+   private double getMoveTimeMs(double[] from, double[] to) {
+      double timeMs = Math.max(xAxis_.getMoveTimeMs(to[0] - from[0]),
+            Math.max(yAxis_.getMoveTimeMs(to[1] - from[1]),
+                  zAxis_.getMoveTimeMs(to[2] - from[2])));
+      return timeMs > 0.0 ? timeMs + settleTimeMs_ : 0.0;
+   }
+
+   private static double[] getCoordinates(MultiStagePosition msp) {
+      return new double[] {msp.getX(), msp.getY(), msp.getZ()};
+   }
+
+   /**
+    * Order of the points for a route starting at the first one: nearest
+    * neighbour tour, improved by 2-opt moves until none is left or the time
+    * limit is reached.
+    */
+   private int[] planRoute(double[][] points) {
+      int n = points.length;
+      int[] route = new int[n];
+      for (int i = 0; i < n; i++) {
+         route[i] = i;
+      }
+      if (n < 3) {
+         return route;
+      }
+
+      // nearest neighbour
+      for (int i = 1; i < n; i++) {
+         double[] current = points[route[i - 1]];
+         int best = i;
+         double bestTime = Double.MAX_VALUE;
+         for (int j = i; j < n; j++) {
+            double time = getMoveTimeMs(current, points[route[j]]);
+            if (time < bestTime) {
+               bestTime = time;
+               best = j;
+            }
+         }
+         int tmp = route[i];
+         route[i] = route[best];
+         route[best] = tmp;
+      }
+
+      // 2-opt: replace the moves i -> i+1 and j -> j+1 by i -> j and
+      // i+1 -> j+1, reversing the part in between. The route is open, so
+      // for the last position there is no move j -> j+1.
+      boolean improved = true;
+      while (improved && System.currentTimeMillis() < deadline_) {
+         improved = false;
+         for (int i = 0; i < n - 2; i++) {
+            double[] a = points[route[i]];
+            double[] b = points[route[i + 1]];
+            double ab = getMoveTimeMs(a, b);
+            for (int j = i + 2; j < n; j++) {
+               double[] c = points[route[j]];
+               double delta = getMoveTimeMs(a, c) - ab;
+               if (j + 1 < n) {
+                  double[] d = points[route[j + 1]];
+                  delta += getMoveTimeMs(b, d) - getMoveTimeMs(c, d);
+               }
+               if (delta < -1.0e-9) {
+                  reverse(route, i + 1, j);
+                  b = points[route[i + 1]];
+                  ab = getMoveTimeMs(a, b);
+                  improved = true;
+               }
+            }
+            if ((i & 0xff) == 0 && System.currentTimeMillis() >= deadline_) {
+               break;
+            }
+         }
+      }
+      return route;
+   }
+
+   private static void reverse(int[] route, int from, int to) {
+      while (from < to) {
+         int tmp = route[from];
+         route[from++] = route[to];
+         route[to--] = tmp;
+      }
+   }
+}
@@ -86,6 +86,21 @@ public class AutofocusManager {
    public Autofocus getDevice() {
       return currentAfDevice_;
    }
+
+   /**
+    * Returns the af device with the given name.
+    * @param name - device name
+    * @return - AutoFocus device
+    * @throws MMException if no device with this name was loaded
+    */
+   public Autofocus getDevice(String name) throws MMException {
+      for (Autofocus af : afs_) {
+         if (af.getDeviceName().equals(name)) {
+            return af;
+         }
+      }
+      throw new MMException(name + " not loaded.");
+   }
    
    /**
     * Scans the system for available af devices, both plugin and core based
@@ -0,0 +1,572 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FocusMetrics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Focus scores used by the autofocus plugins, computed directly on the pixel
+ * array of an image (byte[], short[], or int[] RGB, of which the average of
+ * the three channels is used).
+ *
+ * Every score can be restricted to a region of the image (null for the whole
+ * image). Scores using a neighbourhood of each pixel are only evaluated where
+ * the neighbourhood lies entirely within the region, so no pixels are
+ * replicated at the edges.
+ *
+ * The region is read row by row and split in horizontal bands that are
+ * scored in parallel on a shared pool of daemon threads. Partial sums are
+ * added in band order, so results do not depend on thread timing.
+ */
+public class FocusMetrics {
+   // smaller regions are scored on the calling thread
+   private static final int MIN_PARALLEL_PIXELS = 1 << 16;
+   private static final int NR_THREADS = Runtime.getRuntime().availableProcessors();
+   private static ExecutorService executor_;
+
+   /**
+    * Sums over the rows of one band of the region. A new instance is made
+    * for each band, so implementations may keep state between rows.
+    */
+   private static abstract class Kernel {
+      /**
+       * Number of rows needed above and below the row being scored
+       */
+      abstract int radius();
+
+      abstract int nrSums();
+
+      /**
+       * Adds the contribution of one row to sums. rows[radius()] is the row
+       * being scored, rows[radius() + d] the row d below it. Each holds the
+       * width pixels of the region; rows are given in top to bottom order.
+       */
+      abstract void row(int[][] rows, int width, double[] sums);
+   }
+
+   private interface KernelFactory {
+      Kernel create();
+   }
+
+   /**
+    * Mean intensity
+    */
+   public static double mean(Object pixels, int width, int height, Rectangle roi) {
+      double[] s = apply(MOMENTS, pixels, width, height, roi);
+      return s[1] / s[0];
+   }
+
+   /**
+    * Standard deviation divided by the mean intensity
+    */
+   public static double normalizedStdDev(Object pixels, int width, int height, Rectangle roi) {
+      double[] s = apply(MOMENTS, pixels, width, height, roi);
+      return Math.sqrt(variance(s)) / (s[1] / s[0]);
+   }
+
+   /**
+    * Variance divided by the mean intensity
+    */
+   public static double normalizedVariance(Object pixels, int width, int height, Rectangle roi) {
+      double[] s = apply(MOMENTS, pixels, width, height, roi);
+      return variance(s) / (s[1] / s[0]);
+   }
+
+   /**
+    * Mean of the Sobel edge magnitude, divided by the mean intensity
+    */
+   public static double edges(Object pixels, int width, int height, Rectangle roi) {
+      double[] s = apply(EDGES, pixels, width, height, roi);
+      return s[1] / s[2];
+   }
+
+   /**
+    * Same as edges, but of the image sharpened with the 3x3 kernel
+    * [-1 -1 -1; -1 12 -1; -1 -1 -1] / 4 (as by ImageProcessor.sharpen)
+    */
+   public static double sharpEdges(Object pixels, int width, int height, Rectangle roi) {
+      double[] s = apply(SHARP_EDGES, pixels, width, height, roi);
+      return s[1] / s[2];
+   }
+
+   /**
+    * Sum of the Sobel edge magnitude of the image after a 3x3 median filter
+    */
+   public static double medianEdges(Object pixels, int width, int height, Rectangle roi) {
+      return apply(MEDIAN_EDGES, pixels, width, height, roi)[0];
+   }
+
+   /**
+    * This is NOT a traditional Laplace filter; the "center" weight is
+    * actually the left cell of the 3x3 matrix.  AFAICT it's a typo in the
+    * source paper, but works better than the traditional Laplace filter.
+    *
+    * Redondo R, Bueno G, Valdiviezo J et al.  "Autofocus evaluation for
+    * brightfield microscopy pathology", J Biomed Opt 17(3) 036008 (2012)
+    *
+    * from
+    *
+    * Russel M, Douglas T.  "Evaluation of autofocus algorithms for
+    * tuberculosis microscopy". Proc 29th International Conference of the
+    * IEEE EMBS, Lyon, 3489-3492 (22-26 Aug 2007)
+    */
+   public static double redondo(Object pixels, int width, int height, Rectangle roi) {
+      return apply(REDONDO, pixels, width, height, roi)[0];
+   }
+
+   /**
+    * Volath's 1D autocorrelation
+    * Volath  D., "The influence of the scene parameters and of noise on
+    * the behavior of automatic focusing algorithms,"
+    * J. Microsc. 151, (2), 133-146 (1988).
+    */
+   public static double volath(Object pixels, int width, int height, Rectangle roi) {
+      return apply(VOLATH, pixels, width, height, roi)[0];
+   }
+
+   /**
+    * Volath 5 - smooths out high-frequency (suppresses noise)
+    */
+   public static double volath5(Object pixels, int width, int height, Rectangle roi) {
+      Rectangle r = clip(width, height, roi);
+      double[] s = apply(VOLATH5, pixels, width, height, r);
+      double mean = s[1] / s[0];
+      return s[2] - ((r.width - 1) * (double) r.height * mean * mean);
+   }
+
+   private static double variance(double[] s) {
+      double n = s[0];
+      return (n * s[2] - s[1] * s[1]) / n / (n - 1.0);
+   }
+
+   private static Rectangle clip(int width, int height, Rectangle roi) {
+      Rectangle image = new Rectangle(0, 0, width, height);
+      return roi == null ? image : roi.intersection(image);
+   }
+
+   /**
+    * Runs the kernels over the region and adds up their sums.
+    * All sums are NaN if the calling thread is interrupted.
+    */
+   private static double[] apply(final KernelFactory factory, final Object pixels,
+           final int width, int height, Rectangle roi) {
+      if (!(pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof int[])) {
+         throw new IllegalArgumentException("Unsupported pixel type: "
+                 + (pixels == null ? "null" : pixels.getClass().getSimpleName()));
+      }
+      final Rectangle r = clip(width, height, roi);
+      Kernel first = factory.create();
+      int radius = first.radius();
+      double[] sums = new double[first.nrSums()];
+      int y0 = r.y + radius;
+      int y1 = r.y + r.height - radius;
+      if (y1 <= y0 || r.width <= 2 * radius) {
+         return sums;
+      }
+
+      int nrBands = (long) r.width * (y1 - y0) < MIN_PARALLEL_PIXELS ? 1
+              : Math.min(y1 - y0, 4 * NR_THREADS);
+      if (nrBands == 1) {
+         scoreRows(first, pixels, width, r, y0, y1, sums);
+         return sums;
+      }
+
+      List<Future<double[]>> futures = new ArrayList<Future<double[]>>(nrBands);
+      for (int b = 0; b < nrBands; b++) {
+         final int ya = y0 + (int) ((long) (y1 - y0) * b / nrBands);
+         final int yb = y0 + (int) ((long) (y1 - y0) * (b + 1) / nrBands);
+         final Kernel kernel = b == 0 ? first : factory.create();
+         futures.add(getExecutor().submit(new Callable<double[]>() {
+            public double[] call() {
+               double[] bandSums = new double[kernel.nrSums()];
+               scoreRows(kernel, pixels, width, r, ya, yb, bandSums);
+               return bandSums;
+            }
+         }));
+      }
+      try {
+         for (Future<double[]> future : futures) {
+            double[] bandSums = future.get();
+            for (int i = 0; i < sums.length; i++) {
+               sums[i] += bandSums[i];
+            }
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         for (Future<double[]> future : futures) {
+            future.cancel(true);
+         }
+         Arrays.fill(sums, Double.NaN);
+      } catch (ExecutionException ex) {
+         Throwable cause = ex.getCause();
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         if (cause instanceof Error) {
+            throw (Error) cause;
+         }
+         throw new RuntimeException(cause);
+      }
+      return sums;
+   }
+
+   private static synchronized ExecutorService getExecutor() {
+      if (executor_ == null) {
+         executor_ = Executors.newFixedThreadPool(NR_THREADS, new ThreadFactory() {
+            private int count_ = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "Focus metrics " + count_++);
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return executor_;
+   }
+
+   /**
+    * Feeds rows ya up to yb of region r to the kernel, keeping the rows
+    * around the current one in a ring of row buffers
+    */
+   private static void scoreRows(Kernel kernel, Object pixels, int width,
+           Rectangle r, int ya, int yb, double[] sums) {
+      int radius = kernel.radius();
+      int n = 2 * radius + 1;
+      int[][] rows = new int[n][r.width];
+      for (int k = 0; k < n - 1; k++) {
+         readRow(pixels, width, r.x, ya - radius + k, r.width, rows[k + 1]);
+      }
+      for (int y = ya; y < yb; y++) {
+         int[] oldest = rows[0];
+         System.arraycopy(rows, 1, rows, 0, n - 1);
+         rows[n - 1] = oldest;
+         readRow(pixels, width, r.x, y + radius, r.width, oldest);
+         kernel.row(rows, r.width, sums);
+      }
+   }
+
+   private static void readRow(Object pixels, int width, int x0, int y, int n, int[] dest) {
+      int offset = y * width + x0;
+      if (pixels instanceof byte[]) {
+         byte[] p = (byte[]) pixels;
+         for (int i = 0; i < n; i++) {
+            dest[i] = p[offset + i] & 0xff;
+         }
+      } else if (pixels instanceof short[]) {
+         short[] p = (short[]) pixels;
+         for (int i = 0; i < n; i++) {
+            dest[i] = p[offset + i] & 0xffff;
+         }
+      } else {
+         int[] p = (int[]) pixels;
+         for (int i = 0; i < n; i++) {
+            int c = p[offset + i];
+            dest[i] = (((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff)) / 3;
+         }
+      }
+   }
+
+   /**
+    * Sobel edge magnitude at x of the 3x3 neighbourhood in rows a (above),
+    * b and c (below)
+    */
+   private static double sobel(float[] a, float[] b, float[] c, int x) {
+      float gx = (a[x + 1] + 2 * b[x + 1] + c[x + 1]) - (a[x - 1] + 2 * b[x - 1] + c[x - 1]);
+      float gy = (c[x - 1] + 2 * c[x] + c[x + 1]) - (a[x - 1] + 2 * a[x] + a[x + 1]);
+      return Math.sqrt((double) gx * gx + (double) gy * gy);
+   }
+
+   private static double sobel(int[] a, int[] b, int[] c, int x) {
+      int gx = (a[x + 1] + 2 * b[x + 1] + c[x + 1]) - (a[x - 1] + 2 * b[x - 1] + c[x - 1]);
+      int gy = (c[x - 1] + 2 * c[x] + c[x + 1]) - (a[x - 1] + 2 * a[x] + a[x + 1]);
+      return Math.sqrt((double) gx * gx + (double) gy * gy);
+   }
+
+   // sums: number of pixels, sum, sum of squares
+   private static final KernelFactory MOMENTS = new KernelFactory() {
+      public Kernel create() {
+         return new Kernel() {
+            int radius() {
+               return 0;
+            }
+
+            int nrSums() {
+               return 3;
+            }
+
+            void row(int[][] rows, int width, double[] sums) {
+               int[] p = rows[0];
+               long sum = 0;
+               double sumSq = 0.0;
+               for (int x = 0; x < width; x++) {
+                  int v = p[x];
+                  sum += v;
+                  sumSq += (double) v * v;
+               }
+               sums[0] += width;
+               sums[1] += sum;
+               sums[2] += sumSq;
+            }
+         };
+      }
+   };
+
+   // sums: number of pixels, edge magnitude, intensity
+   private static final KernelFactory EDGES = new KernelFactory() {
+      public Kernel create() {
+         return new Kernel() {
+            int radius() {
+               return 1;
+            }
+
+            int nrSums() {
+               return 3;
+            }
+
+            void row(int[][] rows, int width, double[] sums) {
+               double edges = 0.0;
+               long intensity = 0;
+               for (int x = 1; x < width - 1; x++) {
+                  edges += sobel(rows[0], rows[1], rows[2], x);
+                  intensity += rows[1][x];
+               }
+               sums[0] += width - 2;
+               sums[1] += edges;
+               sums[2] += intensity;
+            }
+         };
+      }
+   };
+
+   // sums: number of pixels, edge magnitude of the sharpened image, intensity
+   private static final KernelFactory SHARP_EDGES = new KernelFactory() {
+      public Kernel create() {
+         return new FilteredEdges() {
+            void filter(int[] a, int[] b, int[] c, int width, float[] dest) {
+               for (int x = 1; x < width - 1; x++) {
+                  int v = 12 * b[x] - (a[x - 1] + a[x] + a[x + 1])
+                          - (b[x - 1] + b[x + 1]) - (c[x - 1] + c[x] + c[x + 1]);
+                  dest[x] = v < 0 ? 0.0f : v / 4.0f;
+               }
+            }
+         };
+      }
+   };
+
+   // sums: edge magnitude of the median filtered image
+   private static final KernelFactory MEDIAN_EDGES = new KernelFactory() {
+      public Kernel create() {
+         return new FilteredEdges() {
+            void filter(int[] a, int[] b, int[] c, int width, float[] dest) {
+               for (int x = 1; x < width - 1; x++) {
+                  dest[x] = median9(a[x - 1], a[x], a[x + 1], b[x - 1], b[x],
+                          b[x + 1], c[x - 1], c[x], c[x + 1]);
+               }
+            }
+
+            @Override
+            int nrSums() {
+               return 1;
+            }
+
+            @Override
+            void add(double edges, long intensity, int n, double[] sums) {
+               sums[0] += edges;
+            }
+         };
+      }
+   };
+
+   /**
+    * Sobel edges of an image filtered with a 3x3 kernel. The three filtered
+    * rows around the current row are kept, so that each row is only filtered
+    * once.
+    */
+   private static abstract class FilteredEdges extends Kernel {
+      private float[][] filtered_;
+      private int valid_ = 0;
+
+      /**
+       * Filters row b, with a above and c below it, for x = 1 to width - 2
+       */
+      abstract void filter(int[] a, int[] b, int[] c, int width, float[] dest);
+
+      int radius() {
+         return 2;
+      }
+
+      int nrSums() {
+         return 3;
+      }
+
+      void add(double edges, long intensity, int n, double[] sums) {
+         sums[0] += n;
+         sums[1] += edges;
+         sums[2] += intensity;
+      }
+
+      void row(int[][] rows, int width, double[] sums) {
+         if (filtered_ == null) {
+            filtered_ = new float[3][width];
+         }
+         if (valid_ == 0) {
+            filter(rows[0], rows[1], rows[2], width, filtered_[0]);
+            filter(rows[1], rows[2], rows[3], width, filtered_[1]);
+            valid_ = 2;
+         } else {
+            float[] oldest = filtered_[0];
+            filtered_[0] = filtered_[1];
+            filtered_[1] = filtered_[2];
+            filtered_[2] = oldest;
+         }
+         filter(rows[2], rows[3], rows[4], width, filtered_[2]);
+         double edges = 0.0;
+         long intensity = 0;
+         for (int x = 2; x < width - 2; x++) {
+            edges += sobel(filtered_[0], filtered_[1], filtered_[2], x);
+            intensity += rows[2][x];
+         }
+         add(edges, intensity, width - 4, sums);
+      }
+   }
+
+   // sums: score
+   private static final KernelFactory REDONDO = new KernelFactory() {
+      public Kernel create() {
+         return new Kernel() {
+            int radius() {
+               return 1;
+            }
+
+            int nrSums() {
+               return 1;
+            }
+
+            void row(int[][] rows, int width, double[] sums) {
+               int[] a = rows[0];
+               int[] b = rows[1];
+               int[] c = rows[2];
+               double sum = 0.0;
+               for (int x = 1; x < width - 1; x++) {
+                  double p = b[x + 1] + a[x] + c[x] - 3 * b[x - 1];
+                  sum += p * p;
+               }
+               sums[0] += sum;
+            }
+         };
+      }
+   };
+
+   // sums: score
+   private static final KernelFactory VOLATH = new KernelFactory() {
+      public Kernel create() {
+         return new Kernel() {
+            int radius() {
+               return 0;
+            }
+
+            int nrSums() {
+               return 1;
+            }
+
+            void row(int[][] rows, int width, double[] sums) {
+               int[] p = rows[0];
+               long sum1 = 0;
+               for (int x = 1; x < width - 1; x++) {
+                  sum1 += (long) p[x] * p[x + 1];
+               }
+               long sum2 = 0;
+               for (int x = 0; x < width - 2; x++) {
+                  sum2 += (long) p[x] * p[x + 2];
+               }
+               sums[0] += sum1 - sum2;
+            }
+         };
+      }
+   };
+
+   // sums: number of pixels, sum, sum of products of horizontal neighbours
+   private static final KernelFactory VOLATH5 = new KernelFactory() {
+      public Kernel create() {
+         return new Kernel() {
+            int radius() {
+               return 0;
+            }
+
+            int nrSums() {
+               return 3;
+            }
+
+            void row(int[][] rows, int width, double[] sums) {
+               int[] p = rows[0];
+               long sum = 0;
+               long products = 0;
+               for (int x = 0; x < width - 1; x++) {
+                  sum += p[x];
+                  products += (long) p[x] * p[x + 1];
+               }
+               sum += p[width - 1];
+               sums[0] += width;
+               sums[1] += sum;
+               sums[2] += products;
+            }
+         };
+      }
+   };
+
+   /**
+    * Median of 9 values by a fixed network of min/max operations
+    * (no data dependent branches)
+    */
+   private static int median9(int p0, int p1, int p2, int p3, int p4,
+           int p5, int p6, int p7, int p8) {
+      int t;
+      t = Math.min(p1, p2); p2 = Math.max(p1, p2); p1 = t;
+      t = Math.min(p4, p5); p5 = Math.max(p4, p5); p4 = t;
+      t = Math.min(p7, p8); p8 = Math.max(p7, p8); p7 = t;
+      t = Math.min(p0, p1); p1 = Math.max(p0, p1); p0 = t;
+      t = Math.min(p3, p4); p4 = Math.max(p3, p4); p3 = t;
+      t = Math.min(p6, p7); p7 = Math.max(p6, p7); p6 = t;
+      t = Math.min(p1, p2); p2 = Math.max(p1, p2); p1 = t;
+      t = Math.min(p4, p5); p5 = Math.max(p4, p5); p4 = t;
+      t = Math.min(p7, p8); p8 = Math.max(p7, p8); p7 = t;
+      p3 = Math.max(p0, p3);
+      p5 = Math.min(p5, p8);
+      t = Math.min(p4, p7); p7 = Math.max(p4, p7); p4 = t;
+      p6 = Math.max(p3, p6);
+      p4 = Math.max(p1, p4);
+      p2 = Math.min(p2, p5);
+      p4 = Math.min(p4, p7);
+      t = Math.min(p4, p2); p2 = Math.max(p4, p2); p4 = t;
+      p4 = Math.max(p6, p4);
+      return Math.min(p4, p2);
+   }
+
+}
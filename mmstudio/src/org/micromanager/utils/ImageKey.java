@@ -0,0 +1,168 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageKey.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Channel, slice, frame and position indices of an image packed in a long,
+ * used instead of "c_s_f_p" label strings as a key for stored images.
+ * Bits 0-15 hold the channel, 16-31 the slice, 32-49 the frame and 50-63
+ * the position, so up to 65536 channels and slices, 262144 frames and 16384
+ * positions can be stored.
+ */
+public class ImageKey {
+
+   private static final int CHANNEL_BITS = 16;
+   private static final int SLICE_BITS = 16;
+   private static final int FRAME_BITS = 18;
+   private static final int POSITION_BITS = 14;
+   private static final int SLICE_SHIFT = CHANNEL_BITS;
+   private static final int FRAME_SHIFT = SLICE_SHIFT + SLICE_BITS;
+   private static final int POSITION_SHIFT = FRAME_SHIFT + FRAME_BITS;
+
+   public static long pack(int channel, int slice, int frame, int position) {
+      return checkRange(channel, CHANNEL_BITS, "Channel")
+              | (checkRange(slice, SLICE_BITS, "Slice") << SLICE_SHIFT)
+              | (checkRange(frame, FRAME_BITS, "Frame") << FRAME_SHIFT)
+              | (checkRange(position, POSITION_BITS, "Position") << POSITION_SHIFT);
+   }
+
+   /**
+    * Returns false if the indices are negative or too large to be packed
+    */
+   public static boolean isValid(int channel, int slice, int frame, int position) {
+      return channel >= 0 && channel < (1 << CHANNEL_BITS)
+              && slice >= 0 && slice < (1 << SLICE_BITS)
+              && frame >= 0 && frame < (1 << FRAME_BITS)
+              && position >= 0 && position < (1 << POSITION_BITS);
+   }
+
+   private static long checkRange(int index, int bits, String name) {
+      if (index < 0 || index >= (1 << bits)) {
+         throw new IllegalArgumentException(name + " index out of range: " + index
+                 + " (at most " + ((1 << bits) - 1) + " can be stored)");
+      }
+      return index;
+   }
+
+   public static long fromTags(JSONObject tags) throws JSONException {
+      return pack(MDUtils.getChannelIndex(tags), MDUtils.getSliceIndex(tags),
+              MDUtils.getFrameIndex(tags), MDUtils.getPositionIndex(tags));
+   }
+
+   /**
+    * Key of an image that is about to be stored. Unlike fromTags, an index
+    * that is too large to be packed is reported as an MMException, so that
+    * storages refuse the image instead of losing it quietly.
+    */
+   public static long forStorage(JSONObject tags) throws MMException {
+      try {
+         return fromTags(tags);
+      } catch (JSONException ex) {
+         throw new MMException("Image has no channel, slice, frame or position index");
+      } catch (IllegalArgumentException ex) {
+         throw new MMException("Image can't be stored: " + ex.getMessage());
+      }
+   }
+
+   /**
+    * Parses a "c_s_f_p" label as generated by MDUtils.generateLabel
+    */
+   public static long fromLabel(String label) {
+      int[] indices = new int[4];
+      int field = 0;
+      for (int i = 0; i < label.length(); i++) {
+         char c = label.charAt(i);
+         if (c == '_') {
+            field++;
+         } else if (c >= '0' && c <= '9' && field < 4) {
+            indices[field] = 10 * indices[field] + (c - '0');
+         } else {
+            throw new IllegalArgumentException("Invalid image label: " + label);
+         }
+      }
+      return pack(indices[0], indices[1], indices[2], indices[3]);
+   }
+
+   public static String toLabel(long key) {
+      return MDUtils.generateLabel(getChannel(key), getSlice(key),
+              getFrame(key), getPosition(key));
+   }
+
+   public static int getChannel(long key) {
+      return (int) (key & ((1L << CHANNEL_BITS) - 1));
+   }
+
+   public static int getSlice(long key) {
+      return (int) ((key >>> SLICE_SHIFT) & ((1L << SLICE_BITS) - 1));
+   }
+
+   public static int getFrame(long key) {
+      return (int) ((key >>> FRAME_SHIFT) & ((1L << FRAME_BITS) - 1));
+   }
+
+   public static int getPosition(long key) {
+      return (int) (key >>> POSITION_SHIFT);
+   }
+
+   /**
+    * Returns a value whose signed order is the order in which
+    * ImageLabelComparator sorts labels with the same settings
+    */
+   public static long orderingKey(long key, boolean slicesFirst, boolean timeFirst) {
+      long frame = getFrame(key), position = getPosition(key);
+      long slowest = timeFirst
+              ? (position << FRAME_BITS) | frame
+              : (frame << POSITION_BITS) | position;
+      long channel = getChannel(key), slice = getSlice(key);
+      long fastest = slicesFirst
+              ? (channel << SLICE_BITS) | slice
+              : (slice << CHANNEL_BITS) | channel;
+      //flip the sign bit so that signed comparison matches unsigned order
+      return ((slowest << (CHANNEL_BITS + SLICE_BITS)) | fastest) ^ Long.MIN_VALUE;
+   }
+
+   /**
+    * Inverse of orderingKey
+    */
+   public static long fromOrderingKey(long ordering, boolean slicesFirst, boolean timeFirst) {
+      long bits = ordering ^ Long.MIN_VALUE;
+      int fastest = (int) (bits & ((1L << (CHANNEL_BITS + SLICE_BITS)) - 1));
+      long slowest = bits >>> (CHANNEL_BITS + SLICE_BITS);
+      int channel, slice, frame, position;
+      if (slicesFirst) {
+         channel = fastest >>> SLICE_BITS;
+         slice = fastest & ((1 << SLICE_BITS) - 1);
+      } else {
+         slice = fastest >>> CHANNEL_BITS;
+         channel = fastest & ((1 << CHANNEL_BITS) - 1);
+      }
+      if (timeFirst) {
+         position = (int) (slowest >>> FRAME_BITS);
+         frame = (int) (slowest & ((1L << FRAME_BITS) - 1));
+      } else {
+         frame = (int) (slowest >>> POSITION_BITS);
+         position = (int) (slowest & ((1L << POSITION_BITS) - 1));
+      }
+      return pack(channel, slice, frame, position);
+   }
+}
@@ -0,0 +1,240 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageKeyMap.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Open addressing hash map from packed ImageKeys to stored objects, used by
+ * the TaggedImageStorage classes. Keys are only sorted (in the acquisition
+ * order given by setOrder) when they are listed, so puts and gets don't pay
+ * for keeping them ordered. Null values are not allowed.
+ */
+public class ImageKeyMap<V> {
+
+   private static final int INITIAL_CAPACITY = 64;
+
+   private long[] keys_;
+   private Object[] values_;
+   private int size_ = 0;
+   private boolean slicesFirst_ = false;
+   private boolean timeFirst_ = false;
+
+   public ImageKeyMap() {
+      keys_ = new long[INITIAL_CAPACITY];
+      values_ = new Object[INITIAL_CAPACITY];
+   }
+
+   /**
+    * Sets the order in which keys are listed, as in ImageLabelComparator
+    */
+   public synchronized void setOrder(boolean slicesFirst, boolean timeFirst) {
+      slicesFirst_ = slicesFirst;
+      timeFirst_ = timeFirst;
+   }
+
+   public synchronized boolean getSlicesFirst() {
+      return slicesFirst_;
+   }
+
+   public synchronized boolean getTimeFirst() {
+      return timeFirst_;
+   }
+
+   private static int hash(long key) {
+      key ^= key >>> 33;
+      key *= 0xff51afd7ed558ccdL;
+      key ^= key >>> 33;
+      return (int) key;
+   }
+
+   private int indexOf(long key) {
+      int mask = keys_.length - 1;
+      int i = hash(key) & mask;
+      while (values_[i] != null) {
+         if (keys_[i] == key) {
+            return i;
+         }
+         i = (i + 1) & mask;
+      }
+      return -1 - i;
+   }
+
+   public synchronized V put(long key, V value) {
+      if (value == null) {
+         throw new IllegalArgumentException("Null values can't be stored");
+      }
+      int i = indexOf(key);
+      if (i >= 0) {
+         @SuppressWarnings("unchecked")
+         V old = (V) values_[i];
+         values_[i] = value;
+         return old;
+      }
+      if (2 * (size_ + 1) > keys_.length) {
+         resize(2 * keys_.length);
+         i = indexOf(key);
+      }
+      i = -1 - i;
+      keys_[i] = key;
+      values_[i] = value;
+      size_++;
+      return null;
+   }
+
+   @SuppressWarnings("unchecked")
+   public synchronized V get(long key) {
+      int i = indexOf(key);
+      return i >= 0 ? (V) values_[i] : null;
+   }
+
+   /**
+    * Returns null, rather than throwing, for indices that can't be packed
+    */
+   public V get(int channel, int slice, int frame, int position) {
+      if (!ImageKey.isValid(channel, slice, frame, position)) {
+         return null;
+      }
+      return get(ImageKey.pack(channel, slice, frame, position));
+   }
+
+   public synchronized boolean containsKey(long key) {
+      return indexOf(key) >= 0;
+   }
+
+   public synchronized V remove(long key) {
+      int i = indexOf(key);
+      if (i < 0) {
+         return null;
+      }
+      @SuppressWarnings("unchecked")
+      V old = (V) values_[i];
+      //Shift later entries of the probe sequence back, so lookups never
+      //stop early at the freed slot
+      int mask = keys_.length - 1;
+      int hole = i;
+      int j = (i + 1) & mask;
+      while (values_[j] != null) {
+         int home = hash(keys_[j]) & mask;
+         if (((j - home) & mask) >= ((j - hole) & mask)) {
+            keys_[hole] = keys_[j];
+            values_[hole] = values_[j];
+            hole = j;
+         }
+         j = (j + 1) & mask;
+      }
+      values_[hole] = null;
+      size_--;
+      return old;
+   }
+
+   private void resize(int capacity) {
+      long[] oldKeys = keys_;
+      Object[] oldValues = values_;
+      keys_ = new long[capacity];
+      values_ = new Object[capacity];
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldValues[i] != null) {
+            int j = -1 - indexOf(oldKeys[i]);
+            keys_[j] = oldKeys[i];
+            values_[j] = oldValues[i];
+         }
+      }
+   }
+
+   public synchronized int size() {
+      return size_;
+   }
+
+   public synchronized void clear() {
+      keys_ = new long[INITIAL_CAPACITY];
+      values_ = new Object[INITIAL_CAPACITY];
+      size_ = 0;
+   }
+
+   public synchronized void putAll(ImageKeyMap<? extends V> other) {
+      long[] keys = other.keys();
+      for (long key : keys) {
+         put(key, other.get(key));
+      }
+   }
+
+   /**
+    * Returns the keys in no particular order
+    */
+   public synchronized long[] keys() {
+      long[] keys = new long[size_];
+      int n = 0;
+      for (int i = 0; i < keys_.length; i++) {
+         if (values_[i] != null) {
+            keys[n++] = keys_[i];
+         }
+      }
+      return keys;
+   }
+
+   /**
+    * Returns the keys in acquisition order
+    */
+   public synchronized long[] sortedKeys() {
+      long[] keys = keys();
+      long[] ordering = new long[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+         ordering[i] = ImageKey.orderingKey(keys[i], slicesFirst_, timeFirst_);
+      }
+      Arrays.sort(ordering);
+      long[] sorted = new long[keys.length];
+      for (int i = 0; i < ordering.length; i++) {
+         sorted[i] = ImageKey.fromOrderingKey(ordering[i], slicesFirst_, timeFirst_);
+      }
+      return sorted;
+   }
+
+   /**
+    * Returns "c_s_f_p" labels for all keys, in acquisition order, for
+    * TaggedImageStorage.imageKeys()
+    */
+   public Set<String> labels() {
+      long[] sorted = sortedKeys();
+      Set<String> labels = new LinkedHashSet<String>();
+      for (long key : sorted) {
+         labels.add(ImageKey.toLabel(key));
+      }
+      return labels;
+   }
+
+   /**
+    * Returns the stored values in no particular order
+    */
+   @SuppressWarnings("unchecked")
+   public synchronized List<V> values() {
+      List<V> values = new ArrayList<V>(size_);
+      for (int i = 0; i < values_.length; i++) {
+         if (values_[i] != null) {
+            values.add((V) values_[i]);
+         }
+      }
+      return values;
+   }
+}
@@ -0,0 +1,386 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LazyJSONObject.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * JSONObject that keeps its serialized form. It is created from serialized
+ * UTF-8 or text, and only parsed the first time a key is accessed.
+ * toString() and getUTF8() serialize at most once until the object is
+ * changed, and the core image indices are read once and then kept as ints.
+ * As long as the object has not been parsed, the indices, size and pixel
+ * type are read straight from the serialized form, so that code that only
+ * needs these never parses the rest.
+ *
+ * Only changes made through this object are detected: a JSONObject or
+ * JSONArray stored in it must not be changed after it has been serialized.
+ */
+public class LazyJSONObject extends JSONObject {
+
+   private ByteBuffer source_;
+   private boolean parsed_;
+   private String text_;
+   private byte[] utf8_;
+   //channel, slice, frame and position index, or null if not read yet
+   private int[] indices_;
+   private Integer width_;
+   private Integer height_;
+   private String pixelType_;
+
+   /**
+    * @param utf8 serialized JSON. The buffer is not copied, so it must not
+    * change until the object has been parsed.
+    */
+   public LazyJSONObject(ByteBuffer utf8) {
+      super();
+      source_ = utf8;
+      parsed_ = false;
+   }
+
+   public LazyJSONObject(String json) {
+      super();
+      text_ = json;
+      parsed_ = false;
+   }
+
+   /**
+    * Serialized UTF-8 form of json, cached if json is a LazyJSONObject
+    */
+   public static byte[] getUTF8(JSONObject json) {
+      if (json instanceof LazyJSONObject) {
+         return ((LazyJSONObject) json).getUTF8();
+      }
+      return encode(json.toString());
+   }
+
+   private static byte[] encode(String text) {
+      try {
+         return text.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException ex) {
+         ReportingUtils.logError(ex);
+         return new byte[0];
+      }
+   }
+
+   public synchronized boolean isParsed() {
+      return parsed_;
+   }
+
+   private synchronized void ensureParsed() {
+      if (parsed_) {
+         return;
+      }
+      String json = toString();
+      parsed_ = true;
+      source_ = null;
+      try {
+         JSONObject parsed = new JSONObject(json);
+         Iterator<String> keys = parsed.keys();
+         while (keys.hasNext()) {
+            String key = keys.next();
+            putWithoutInvalidating(key, parsed.opt(key));
+         }
+      } catch (JSONException ex) {
+         ReportingUtils.logError("Error reading image metadata");
+      }
+   }
+
+   private void putWithoutInvalidating(String key, Object value) throws JSONException {
+      super.put(key, value);
+   }
+
+   private synchronized void invalidate() {
+      text_ = null;
+      utf8_ = null;
+      indices_ = null;
+      width_ = null;
+      height_ = null;
+      pixelType_ = null;
+   }
+
+   /**
+    * Serialized UTF-8 form, without a copy. The array must not be modified.
+    */
+   public synchronized byte[] getUTF8() {
+      if (utf8_ == null) {
+         utf8_ = encode(toString());
+      }
+      return utf8_;
+   }
+
+   public synchronized int getChannelIndex() throws JSONException {
+      return getIndices()[0];
+   }
+
+   public synchronized int getSliceIndex() throws JSONException {
+      return getIndices()[1];
+   }
+
+   public synchronized int getFrameIndex() throws JSONException {
+      return getIndices()[2];
+   }
+
+   public synchronized int getPositionIndex() throws JSONException {
+      return getIndices()[3];
+   }
+
+   public synchronized int getWidth() throws JSONException {
+      if (width_ == null) {
+         width_ = scanInt("Width");
+      }
+      if (width_ == null) {
+         width_ = getInt("Width");
+      }
+      return width_;
+   }
+
+   public synchronized int getHeight() throws JSONException {
+      if (height_ == null) {
+         height_ = scanInt("Height");
+      }
+      if (height_ == null) {
+         height_ = getInt("Height");
+      }
+      return height_;
+   }
+
+   /**
+    * The "PixelType" tag, or null if there is none
+    */
+   public synchronized String getPixelType() {
+      if (pixelType_ == null) {
+         String[] values = parsed_ ? null : scanTopLevel(new String[] {"PixelType"});
+         if (values != null) {
+            if (values[0] != null && !values[0].equals("null")) {
+               pixelType_ = values[0];
+            }
+         } else if (has("PixelType")) {
+            pixelType_ = optString("PixelType");
+         }
+      }
+      return pixelType_;
+   }
+
+   /**
+    * Reads the indices the same way as the MDUtils getters
+    */
+   private int[] getIndices() throws JSONException {
+      if (indices_ == null && !parsed_) {
+         String[] values = scanTopLevel(new String[] {"ChannelIndex",
+                    "SliceIndex", "Slice", "Frame", "FrameIndex", "PositionIndex"});
+         if (values != null) {
+            Integer channel = toInt(values[0]);
+            Integer slice = toInt(values[1] != null ? values[1] : values[2]);
+            Integer frame = toInt(values[3] != null ? values[3] : values[4]);
+            Integer position = toInt(values[5]);
+            if (channel != null && slice != null && frame != null && position != null) {
+               indices_ = new int[] {channel, slice, frame, position};
+            }
+         }
+      }
+      if (indices_ == null) {
+         // not found in the text, read them the usual way
+         int channel = getInt("ChannelIndex");
+         int slice = has("SliceIndex") ? getInt("SliceIndex") : getInt("Slice");
+         int frame = has("Frame") ? getInt("Frame") : getInt("FrameIndex");
+         int position = getInt("PositionIndex");
+         indices_ = new int[] {channel, slice, frame, position};
+      }
+      return indices_;
+   }
+
+   private Integer scanInt(String key) {
+      if (parsed_) {
+         return null;
+      }
+      String[] values = scanTopLevel(new String[] {key});
+      return values == null ? null : toInt(values[0]);
+   }
+
+   /**
+    * Value of a number, or of a string holding a number, as read by
+    * JSONObject.getInt, or null if it is none
+    */
+   private static Integer toInt(String literal) {
+      if (literal == null) {
+         return null;
+      }
+      try {
+         return Integer.parseInt(literal);
+      } catch (NumberFormatException ex) {
+         try {
+            return (int) Double.parseDouble(literal);
+         } catch (NumberFormatException ex2) {
+            return null;
+         }
+      }
+   }
+
+   /**
+    * Finds the values of the given keys of the outermost object in the
+    * serialized form, without parsing it. Strings are returned without
+    * their quotes, other values as they are written; keys that are not
+    * found get null. Returns null if a value can't be read this way (a
+    * string with escapes, or broken text), so that the caller parses.
+    */
+   private String[] scanTopLevel(String[] keys) {
+      String text = toString();
+      String[] values = new String[keys.length];
+      int n = text.length();
+      int depth = 0;
+      for (int i = 0; i < n; ++i) {
+         char c = text.charAt(i);
+         if (c == '{' || c == '[') {
+            ++depth;
+         } else if (c == '}' || c == ']') {
+            --depth;
+         } else if (c == '"') {
+            int end = endOfString(text, i);
+            if (end < 0) {
+               return null;
+            }
+            int colon = skipSpace(text, end + 1);
+            if (depth == 1 && colon < n && text.charAt(colon) == ':') {
+               String key = text.substring(i + 1, end);
+               for (int k = 0; k < keys.length; ++k) {
+                  if (keys[k].equals(key)) {
+                     int start = skipSpace(text, colon + 1);
+                     if (start < n && text.charAt(start) == '"') {
+                        end = endOfString(text, start);
+                        int escape = text.indexOf('\\', start);
+                        if (end < 0 || (escape >= 0 && escape < end)) {
+                           return null;
+                        }
+                        values[k] = text.substring(start + 1, end);
+                     } else {
+                        end = start;
+                        while (end < n && ",}] \t\r\n".indexOf(text.charAt(end)) < 0) {
+                           ++end;
+                        }
+                        values[k] = text.substring(start, end);
+                        // continue after the value
+                        --end;
+                     }
+                     break;
+                  }
+               }
+            }
+            i = end;
+         }
+      }
+      return values;
+   }
+
+   /**
+    * Index of the quote closing the string that starts at start, or -1
+    */
+   private static int endOfString(String text, int start) {
+      for (int i = start + 1; i < text.length(); ++i) {
+         char c = text.charAt(i);
+         if (c == '\\') {
+            ++i;
+         } else if (c == '"') {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   private static int skipSpace(String text, int i) {
+      while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+         ++i;
+      }
+      return i;
+   }
+
+   @Override
+   public Object opt(String key) {
+      ensureParsed();
+      return super.opt(key);
+   }
+
+   @Override
+   public boolean has(String key) {
+      ensureParsed();
+      return super.has(key);
+   }
+
+   @Override
+   public Iterator<String> keys() {
+      ensureParsed();
+      return super.keys();
+   }
+
+   @Override
+   public int length() {
+      ensureParsed();
+      return super.length();
+   }
+
+   @Override
+   public JSONObject put(String key, Object value) throws JSONException {
+      ensureParsed();
+      invalidate();
+      return super.put(key, value);
+   }
+
+   @Override
+   public Object remove(String key) {
+      ensureParsed();
+      Object removed = super.remove(key);
+      if (removed != null) {
+         invalidate();
+      }
+      return removed;
+   }
+
+   @Override
+   public synchronized String toString() {
+      if (text_ == null) {
+         if (parsed_) {
+            text_ = super.toString();
+         } else {
+            ByteBuffer view = source_.duplicate();
+            view.rewind();
+            byte[] bytes = new byte[view.remaining()];
+            view.get(bytes);
+            try {
+               text_ = new String(bytes, "UTF-8").trim();
+            } catch (UnsupportedEncodingException ex) {
+               ReportingUtils.logError(ex);
+               text_ = "{}";
+            }
+            source_ = null;
+         }
+      }
+      return text_;
+   }
+
+   @Override
+   public String toString(int indentFactor) throws JSONException {
+      ensureParsed();
+      return super.toString(indentFactor);
+   }
+}
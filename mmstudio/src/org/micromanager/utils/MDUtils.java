@@ -36,6 +36,9 @@ public class MDUtils {
    }
    
    public static int getPositionIndex(JSONObject map) throws JSONException {
+      if (map instanceof LazyJSONObject) {
+         return ((LazyJSONObject) map).getPositionIndex();
+      }
       return map.getInt("PositionIndex");
    }
 
@@ -50,6 +53,9 @@ public class MDUtils {
    }
 
    public static int getWidth(JSONObject map) throws JSONException {
+      if (map instanceof LazyJSONObject) {
+         return ((LazyJSONObject) map).getWidth();
+      }
       return map.getInt("Width");
    }
 
@@ -58,6 +64,9 @@ public class MDUtils {
    }
 
    public static int getHeight(JSONObject map) throws JSONException {
+      if (map instanceof LazyJSONObject) {
+         return ((LazyJSONObject) map).getHeight();
+      }
       return map.getInt("Height");
    }
 
@@ -74,6 +83,9 @@ public class MDUtils {
    }
 
    public static int getSliceIndex(JSONObject map) throws JSONException {
+      if (map instanceof LazyJSONObject) {
+         return ((LazyJSONObject) map).getSliceIndex();
+      }
       if (map.has("SliceIndex")) {
          return map.getInt("SliceIndex");
       } else {
@@ -88,6 +100,9 @@ public class MDUtils {
    
 
    public static int getChannelIndex(JSONObject map) throws JSONException {
+      if (map instanceof LazyJSONObject) {
+         return ((LazyJSONObject) map).getChannelIndex();
+      }
       return map.getInt("ChannelIndex");
    }
 
@@ -96,6 +111,9 @@ public class MDUtils {
    }
 
    public static int getFrameIndex(JSONObject map) throws JSONException {
+      if (map instanceof LazyJSONObject) {
+         return ((LazyJSONObject) map).getFrameIndex();
+      }
       if (map.has("Frame")) {
          return map.getInt("Frame");
       } else {
@@ -180,6 +198,9 @@ public class MDUtils {
    }
 
    public static String getPixelType(JSONObject map)  throws JSONException, MMScriptException {
+      if (map instanceof LazyJSONObject && ((LazyJSONObject) map).getPixelType() != null) {
+         return ((LazyJSONObject) map).getPixelType();
+      }
       try {
          if (map != null)
             return map.getString("PixelType");
@@ -0,0 +1,166 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelBufferPool.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of pixel arrays (byte[], short[] and int[]) kept by type and length,
+ * so that code handling a stream of images of the same size, such as live
+ * mode, can reuse arrays instead of allocating one per image. Arrays taken
+ * from the pool have undefined contents.
+ *
+ * Only recycle an array when nothing else can still read or write it. Only
+ * arrays handed out by take are taken back, so code that sees both pooled
+ * and other images (an image processor, for instance) can recycle any array
+ * it is done with. While the pool is disabled, recycle does nothing and take
+ * always allocates.
+ */
+public class PixelBufferPool {
+
+   private static final int DEFAULT_MAX_PER_SIZE = 4;
+
+   private static final HashMap<Long, ArrayDeque<Object>> free_ = new HashMap<Long, ArrayDeque<Object>>();
+   //arrays handed out by take and not recycled since. Arrays hash by
+   //identity, and the keys are weak so arrays that are never recycled
+   //aren't kept alive.
+   private static final WeakHashMap<Object, Boolean> lent_ = new WeakHashMap<Object, Boolean>();
+   private static boolean enabled_ = false;
+   private static int maxPerSize_ = DEFAULT_MAX_PER_SIZE;
+   private static long reused_ = 0;
+   private static long allocated_ = 0;
+
+   public static synchronized void setEnabled(boolean enabled) {
+      enabled_ = enabled;
+      if (!enabled) {
+         free_.clear();
+         lent_.clear();
+      }
+   }
+
+   public static synchronized boolean isEnabled() {
+      return enabled_;
+   }
+
+   /**
+    * Sets the number of free arrays kept for each type and length. Arrays
+    * recycled beyond that are left to the garbage collector.
+    */
+   public static synchronized void setMaxPerSize(int maxPerSize) {
+      maxPerSize_ = Math.max(0, maxPerSize);
+   }
+
+   private static long key(Class<?> componentType, int length) {
+      int type;
+      if (componentType == byte.class) {
+         type = 0;
+      } else if (componentType == short.class) {
+         type = 1;
+      } else if (componentType == int.class) {
+         type = 2;
+      } else {
+         throw new IllegalArgumentException("Unsupported pixel type: " + componentType);
+      }
+      return ((long) length << 2) | type;
+   }
+
+   /**
+    * Returns a free array of the given component type (byte, short or int)
+    * and length, or a new one if there is none
+    */
+   public static Object take(Class<?> componentType, int length) {
+      long key = key(componentType, length);
+      synchronized (PixelBufferPool.class) {
+         ArrayDeque<Object> free = free_.get(key);
+         if (free != null && !free.isEmpty()) {
+            reused_++;
+            Object pixels = free.pop();
+            lent_.put(pixels, Boolean.TRUE);
+            return pixels;
+         }
+         allocated_++;
+      }
+      Object pixels;
+      if (componentType == byte.class) {
+         pixels = new byte[length];
+      } else if (componentType == short.class) {
+         pixels = new short[length];
+      } else {
+         pixels = new int[length];
+      }
+      synchronized (PixelBufferPool.class) {
+         if (enabled_) {
+            lent_.put(pixels, Boolean.TRUE);
+         }
+      }
+      return pixels;
+   }
+
+   /**
+    * Returns an array with the same type and length as pixels
+    */
+   public static Object takeLike(Object pixels) {
+      return take(pixels.getClass().getComponentType(), Array.getLength(pixels));
+   }
+
+   /**
+    * Hands an array back to the pool. The caller must not use it afterwards.
+    * Arrays that didn't come from take (images of an acquisition, for
+    * instance) and arrays already recycled are left alone.
+    */
+   public static synchronized void recycle(Object pixels) {
+      if (!enabled_ || pixels == null || lent_.remove(pixels) == null) {
+         return;
+      }
+      long key = key(pixels.getClass().getComponentType(), Array.getLength(pixels));
+      ArrayDeque<Object> free = free_.get(key);
+      if (free == null) {
+         free = new ArrayDeque<Object>();
+         free_.put(key, free);
+      }
+      if (free.size() < maxPerSize_) {
+         free.push(pixels);
+      }
+   }
+
+   /**
+    * Lets the garbage collector have all free arrays
+    */
+   public static synchronized void clear() {
+      free_.clear();
+   }
+
+   /**
+    * Number of take calls that were served from the pool
+    */
+   public static synchronized long getReusedCount() {
+      return reused_;
+   }
+
+   /**
+    * Number of take calls that had to allocate a new array
+    */
+   public static synchronized long getAllocatedCount() {
+      return allocated_;
+   }
+}
@@ -0,0 +1,439 @@
+/**
+ * Binary columnar file format for spot data, read through memory mapping
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+
+package edu.valelab.GaussianFit;
+
+import edu.valelab.GaussianFit.DataCollectionForm.Coordinates;
+import edu.valelab.GaussianFit.utils.RowData;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spot data stored as one column per property, with the spots sorted by frame
+ * (or by slice for z-stacks, as in RowData.index()) and an index giving the
+ * first spot of each frame.  Layout (big endian):
+ *
+ * header: magic, version, offset of the columns (long), nr of spots,
+ * nr of index entries, then the data set properties of RowData
+ * columns: channel, slice, frame, position, nr, x, y (int), intensity,
+ * background, xCenter, yCenter, zCenter, width, a, theta, sigma (float),
+ * each nrSpots * 4 bytes
+ * index: for each frame f, the first spot of f; the last entry is nrSpots
+ *
+ * Opening a file only reads the header; the columns are memory mapped and
+ * read by the operating system when they are used.  Floats are used, as in
+ * the TSF format, to halve the file size.
+ *
+ * @author nico
+ */
+public class ColumnarSpotFile implements SpotColumns {
+   public final static String EXTENSION = ".csf";
+
+   private static final int MAGIC = 0x43534631; // "CSF1"
+   private static final int VERSION = 1;
+   private static final int NR_INT_COLUMNS = 7;
+   private static final int NR_COLUMNS = 16;
+   private static final int COLUMN_BYTES = 4;
+
+   private RowData rowData_;
+   private final int nrSpots_;
+   private final boolean indexByFrame_;
+   private final IntBuffer[] ints_ = new IntBuffer[NR_INT_COLUMNS];
+   private final FloatBuffer[] floats_ = new FloatBuffer[NR_COLUMNS - NR_INT_COLUMNS];
+   private final int[] index_;
+
+   private ColumnarSpotFile(int nrSpots, boolean indexByFrame, int[] index) {
+      nrSpots_ = nrSpots;
+      indexByFrame_ = indexByFrame;
+      index_ = index;
+   }
+
+   /**
+    * Sort key used by RowData.index()
+    */
+   private static boolean indexByFrame(RowData rowData) {
+      return rowData.nrFrames_ > rowData.nrSlices_;
+   }
+
+   private static int key(GaussianSpotData spot, boolean byFrame) {
+      return Math.max(0, byFrame ? spot.getFrame() : spot.getSlice());
+   }
+
+   private static void writeString(DataOutputStream dos, String s)
+           throws IOException {
+      dos.writeBoolean(s != null);
+      if (s != null) {
+         dos.writeUTF(s);
+      }
+   }
+
+   private static String readString(DataInputStream dis) throws IOException {
+      return dis.readBoolean() ? dis.readUTF() : null;
+   }
+
+   /**
+    * Writes the spots of rowData to file.  An existing file is only replaced
+    * once the new one is complete, since rowData may be read from a mapping
+    * of that very file.
+    */
+   public static void write(RowData rowData, File file) throws IOException {
+      if (!file.exists()) {
+         writeFile(rowData, file);
+         return;
+      }
+      File parent = file.getAbsoluteFile().getParentFile();
+      File temp = File.createTempFile(file.getName(), ".tmp", parent);
+      try {
+         writeFile(rowData, temp);
+      } catch (IOException ex) {
+         temp.delete();
+         throw ex;
+      }
+      // a mapping of the old file stays valid after it is deleted
+      if (!file.delete() || !temp.renameTo(file)) {
+         throw new IOException("Could not replace " + file.getPath()
+                 + ", the data were saved in " + temp.getPath());
+      }
+   }
+
+   private static void writeFile(RowData rowData, File file) throws IOException {
+      List<GaussianSpotData> spots = rowData.spotList_;
+      boolean byFrame = indexByFrame(rowData);
+
+      // first pass: count the spots of each frame
+      int maxKey = 0;
+      int nrSpots = 0;
+      for (GaussianSpotData spot : spots) {
+         if (spot != null) {
+            maxKey = Math.max(maxKey, key(spot, byFrame));
+            nrSpots++;
+         }
+      }
+      int[] index = new int[maxKey + 2];
+      for (GaussianSpotData spot : spots) {
+         if (spot != null) {
+            index[key(spot, byFrame) + 1]++;
+         }
+      }
+      for (int k = 1; k < index.length; k++) {
+         index[k] += index[k - 1];
+      }
+
+      ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(headerBytes);
+      writeString(dos, rowData.name_);
+      writeString(dos, rowData.title_);
+      writeString(dos, rowData.colCorrRef_);
+      dos.writeInt(rowData.width_);
+      dos.writeInt(rowData.height_);
+      dos.writeFloat(rowData.pixelSizeNm_);
+      dos.writeFloat(rowData.zStackStepSizeNm_);
+      dos.writeInt(rowData.shape_);
+      dos.writeInt(rowData.halfSize_);
+      dos.writeInt(rowData.nrChannels_);
+      dos.writeInt(rowData.nrFrames_);
+      dos.writeInt(rowData.nrSlices_);
+      dos.writeInt(rowData.nrPositions_);
+      dos.writeInt(rowData.maxNrSpots_);
+      dos.writeBoolean(rowData.isTrack_);
+      dos.writeInt(rowData.coordinate_ == null ? -1 : rowData.coordinate_.ordinal());
+      dos.writeBoolean(rowData.hasZ_);
+      dos.writeDouble(rowData.minZ_);
+      dos.writeDouble(rowData.maxZ_);
+      dos.writeInt(rowData.timePoints_ == null ? -1 : rowData.timePoints_.size());
+      if (rowData.timePoints_ != null) {
+         for (Double t : rowData.timePoints_) {
+            dos.writeDouble(t);
+         }
+      }
+      dos.close();
+      // magic, version, offset, nrSpots and nr of index entries come first
+      long dataOffset = 24 + headerBytes.size();
+      // align the columns
+      dataOffset = (dataOffset + 7) & ~7L;
+      long columnSize = (long) nrSpots * COLUMN_BYTES;
+      long indexOffset = dataOffset + NR_COLUMNS * columnSize;
+
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.setLength(0);
+         raf.writeInt(MAGIC);
+         raf.writeInt(VERSION);
+         raf.writeLong(dataOffset);
+         raf.writeInt(nrSpots);
+         raf.writeInt(index.length);
+         raf.write(headerBytes.toByteArray());
+         raf.setLength(indexOffset + (long) index.length * COLUMN_BYTES);
+
+         FileChannel fc = raf.getChannel();
+         IntBuffer[] ints = new IntBuffer[NR_INT_COLUMNS];
+         FloatBuffer[] floats = new FloatBuffer[NR_COLUMNS - NR_INT_COLUMNS];
+         for (int c = 0; c < NR_COLUMNS; c++) {
+            MappedByteBuffer column = fc.map(FileChannel.MapMode.READ_WRITE,
+                    dataOffset + c * columnSize, columnSize);
+            if (c < NR_INT_COLUMNS) {
+               ints[c] = column.asIntBuffer();
+            } else {
+               floats[c - NR_INT_COLUMNS] = column.asFloatBuffer();
+            }
+         }
+
+         // second pass: put each spot at the next free place of its frame
+         int[] next = index.clone();
+         int counter = 0;
+         for (GaussianSpotData spot : spots) {
+            if (spot == null) {
+               continue;
+            }
+            if ((counter % 10000) == 0) {
+               ij.IJ.showProgress(counter, nrSpots);
+            }
+            counter++;
+            int i = next[key(spot, byFrame)]++;
+            ints[0].put(i, spot.getChannel());
+            ints[1].put(i, spot.getSlice());
+            ints[2].put(i, spot.getFrame());
+            ints[3].put(i, spot.getPosition());
+            ints[4].put(i, spot.getNr());
+            ints[5].put(i, spot.getX());
+            ints[6].put(i, spot.getY());
+            floats[0].put(i, (float) spot.getIntensity());
+            floats[1].put(i, (float) spot.getBackground());
+            floats[2].put(i, (float) spot.getXCenter());
+            floats[3].put(i, (float) spot.getYCenter());
+            floats[4].put(i, (float) spot.getZCenter());
+            floats[5].put(i, (float) spot.getWidth());
+            floats[6].put(i, (float) spot.getA());
+            floats[7].put(i, (float) spot.getTheta());
+            floats[8].put(i, (float) spot.getSigma());
+         }
+
+         MappedByteBuffer indexBuffer = fc.map(FileChannel.MapMode.READ_WRITE,
+                 indexOffset, (long) index.length * COLUMN_BYTES);
+         indexBuffer.asIntBuffer().put(index);
+         indexBuffer.force();
+      } finally {
+         raf.close();
+         ij.IJ.showProgress(1.0);
+      }
+   }
+
+   /**
+    * Opens a file written by write.  Only the header and the frame index are
+    * read, the columns are memory mapped.
+    */
+   public static ColumnarSpotFile open(File file) throws IOException {
+      DataInputStream dis = new DataInputStream(new BufferedInputStream(
+              new FileInputStream(file)));
+      RandomAccessFile raf = null;
+      try {
+         if (dis.readInt() != MAGIC) {
+            throw new IOException("Not a columnar spot file");
+         }
+         int version = dis.readInt();
+         if (version != VERSION) {
+            throw new IOException("Unsupported columnar spot file version: " + version);
+         }
+         long dataOffset = dis.readLong();
+         int nrSpots = dis.readInt();
+         int nrIndexEntries = dis.readInt();
+         String name = readString(dis);
+         String title = readString(dis);
+         String colCorrRef = readString(dis);
+         int width = dis.readInt();
+         int height = dis.readInt();
+         float pixelSize = dis.readFloat();
+         float zStep = dis.readFloat();
+         int shape = dis.readInt();
+         int halfSize = dis.readInt();
+         int nrChannels = dis.readInt();
+         int nrFrames = dis.readInt();
+         int nrSlices = dis.readInt();
+         int nrPositions = dis.readInt();
+         int maxNrSpots = dis.readInt();
+         boolean isTrack = dis.readBoolean();
+         int coordinate = dis.readInt();
+         boolean hasZ = dis.readBoolean();
+         double minZ = dis.readDouble();
+         double maxZ = dis.readDouble();
+         int nrTimePoints = dis.readInt();
+         ArrayList<Double> timePoints = null;
+         if (nrTimePoints >= 0) {
+            timePoints = new ArrayList<Double>(nrTimePoints);
+            for (int i = 0; i < nrTimePoints; i++) {
+               timePoints.add(dis.readDouble());
+            }
+         }
+
+         long columnSize = (long) nrSpots * COLUMN_BYTES;
+         long indexOffset = dataOffset + NR_COLUMNS * columnSize;
+         raf = new RandomAccessFile(file, "r");
+         if (raf.length() < indexOffset + (long) nrIndexEntries * COLUMN_BYTES) {
+            throw new IOException("Columnar spot file is truncated");
+         }
+         FileChannel fc = raf.getChannel();
+         int[] index = new int[nrIndexEntries];
+         fc.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                 (long) nrIndexEntries * COLUMN_BYTES).asIntBuffer().get(index);
+         ColumnarSpotFile spotFile = new ColumnarSpotFile(nrSpots,
+                 nrFrames > nrSlices, index);
+         // mappings stay valid after the file is closed
+         for (int c = 0; c < NR_COLUMNS; c++) {
+            MappedByteBuffer column = fc.map(FileChannel.MapMode.READ_ONLY,
+                    dataOffset + c * columnSize, columnSize);
+            if (c < NR_INT_COLUMNS) {
+               spotFile.ints_[c] = column.asIntBuffer();
+            } else {
+               spotFile.floats_[c - NR_INT_COLUMNS] = column.asFloatBuffer();
+            }
+         }
+         spotFile.rowData_ = new RowData(name, title, colCorrRef, width, height,
+                 pixelSize, zStep, shape, halfSize, nrChannels, nrFrames,
+                 nrSlices, nrPositions, maxNrSpots, new SpotListView(spotFile),
+                 timePoints, isTrack,
+                 coordinate < 0 ? null : Coordinates.values()[coordinate],
+                 hasZ, minZ, maxZ);
+         spotFile.rowData_.index();
+         return spotFile;
+      } finally {
+         dis.close();
+         if (raf != null) {
+            raf.close();
+         }
+      }
+   }
+
+   /**
+    * Data set backed by this file.  Its spot list is a SpotListView, and its
+    * frame index consists of views of that list.
+    */
+   public RowData getRowData() {
+      return rowData_;
+   }
+
+   /**
+    * Spots of frame (or slice) key, as views of spotList, or null if the
+    * spots are sorted by the other key
+    */
+   public Map<Integer, List<GaussianSpotData>> frameIndex(
+           List<GaussianSpotData> spotList, boolean byFrame) {
+      if (byFrame != indexByFrame_) {
+         return null;
+      }
+      Map<Integer, List<GaussianSpotData>> frameIndex =
+              new HashMap<Integer, List<GaussianSpotData>>(index_.length);
+      for (int k = 0; k < index_.length - 1; k++) {
+         if (index_[k + 1] > index_[k]) {
+            frameIndex.put(k, spotList.subList(index_[k], index_[k + 1]));
+         }
+      }
+      return frameIndex;
+   }
+
+   /**
+    * First spot of frame (or slice, for z-stacks) key.  Spots of key are
+    * getFrameStart(key) up to getFrameEnd(key)
+    */
+   public int getFrameStart(int key) {
+      if (key < 0) {
+         return 0;
+      }
+      return index_[Math.min(key, index_.length - 1)];
+   }
+
+   public int getFrameEnd(int key) {
+      if (key < 0) {
+         return 0;
+      }
+      return index_[Math.min(key + 1, index_.length - 1)];
+   }
+
+   public boolean isIndexedByFrame() {
+      return indexByFrame_;
+   }
+
+   public int size() {
+      return nrSpots_;
+   }
+
+   public int getChannel(int i) {
+      return ints_[0].get(i);
+   }
+   public int getSlice(int i) {
+      return ints_[1].get(i);
+   }
+   public int getFrame(int i) {
+      return ints_[2].get(i);
+   }
+   public int getPosition(int i) {
+      return ints_[3].get(i);
+   }
+   public int getNr(int i) {
+      return ints_[4].get(i);
+   }
+   public int getX(int i) {
+      return ints_[5].get(i);
+   }
+   public int getY(int i) {
+      return ints_[6].get(i);
+   }
+   public double getIntensity(int i) {
+      return floats_[0].get(i);
+   }
+   public double getBackground(int i) {
+      return floats_[1].get(i);
+   }
+   public double getXCenter(int i) {
+      return floats_[2].get(i);
+   }
+   public double getYCenter(int i) {
+      return floats_[3].get(i);
+   }
+   public double getZCenter(int i) {
+      return floats_[4].get(i);
+   }
+   public double getWidth(int i) {
+      return floats_[5].get(i);
+   }
+   public double getA(int i) {
+      return floats_[6].get(i);
+   }
+   public double getTheta(int i) {
+      return floats_[7].get(i);
+   }
+   public double getSigma(int i) {
+      return floats_[8].get(i);
+   }
+
+   public GaussianSpotData getSpot(int i) {
+      GaussianSpotData spot = new GaussianSpotData(null, getChannel(i),
+              getSlice(i), getFrame(i), getPosition(i), getNr(i), getX(i), getY(i));
+      spot.setData(getIntensity(i), getBackground(i), getXCenter(i),
+              getYCenter(i), getZCenter(i), getWidth(i), getA(i), getTheta(i),
+              getSigma(i));
+      spot.setZCenter(getZCenter(i));
+      return spot;
+   }
+}
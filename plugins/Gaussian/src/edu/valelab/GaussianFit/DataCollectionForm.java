@@ -112,7 +112,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
    private static FileType TSF_FILE = new FileType("TSF File",
            "Tagged Spot Format file",
            "./data.tsf",
-           false, new String[]{"txt", "tsf"});
+           false, new String[]{"txt", "tsf", "csf"});
  
    /*
     * Switch between clojure and Java code here
@@ -712,7 +712,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
       });
 
       saveFormatBox_.setFont(new java.awt.Font("Lucida Grande", 0, 11)); // NOI18N
-      saveFormatBox_.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Binary", "Text" }));
+      saveFormatBox_.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Binary", "Text", "Columnar" }));
 
       saveButton.setFont(new java.awt.Font("Lucida Grande", 0, 10)); // NOI18N
       saveButton.setText("Save");
@@ -1084,6 +1084,8 @@ public class DataCollectionForm extends javax.swing.JFrame {
             loadTSF(selectedFile);
          } else if (selectedFile.getName().endsWith(".bin")) {
             loadBin(selectedFile);
+         } else if (selectedFile.getName().endsWith(ColumnarSpotFile.EXTENSION)) {
+            loadColumnar(selectedFile);
          } else {
             JOptionPane.showMessageDialog(getInstance(), "Unrecognized file extension");
          }
@@ -1303,6 +1305,27 @@ public class DataCollectionForm extends javax.swing.JFrame {
       
     }
     
+    /**
+     * Load a columnar spot file.  Only the header is read; the spots stay in
+     * the (memory mapped) file
+     * @param selectedFile - File to be loaded
+     */
+   private void loadColumnar(File selectedFile) {
+      try {
+         ij.IJ.showStatus("Loading data..");
+         setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+         addSpotData(ColumnarSpotFile.open(selectedFile).getRowData());
+      } catch (FileNotFoundException ex) {
+         JOptionPane.showMessageDialog(getInstance(), "File not found");
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Error while reading file");
+         JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
+      } finally {
+         setCursor(Cursor.getDefaultCursor());
+         ij.IJ.showStatus("");
+      }
+   }
+
     /**
      * Load a .tsf file
      * @param selectedFile - File to be loaded
@@ -1417,6 +1440,8 @@ public class DataCollectionForm extends javax.swing.JFrame {
                    saveData(rowData_.get(rows[i]), false);
                 else
                    saveData(rowData_.get(rows[i]), true);
+             } else if (saveFormatBox_.getSelectedIndex() == 2) {
+                saveDataAsColumnar(rowData_.get(rows[i]));
              } else {
                 saveDataAsText(rowData_.get(rows[i]));
              }
@@ -1582,6 +1607,15 @@ public class DataCollectionForm extends javax.swing.JFrame {
 
                ij.IJ.showStatus("Creating Pairs...");
 
+               final double maxDistance;
+               try {
+                  maxDistance = NumberUtils.displayStringToDouble(pairsMaxDistanceField_.getText());
+               } catch (ParseException ex) {
+                  JOptionPane.showMessageDialog(getInstance(), "Error in Pairs input");
+                  return;
+               }
+               ArrayList<ArrayList<GsSpotPair>> spotPairsByFrame = new ParticleLinker().findPairs(
+                       rowData_.get(row).spotList_, rowData_.get(row).nrFrames_, maxDistance);
 
                for (int frame = 1; frame <= rowData_.get(row).nrFrames_; frame++) {
                   ij.IJ.showProgress(frame, rowData_.get(row).nrFrames_);
@@ -1589,106 +1623,78 @@ public class DataCollectionForm extends javax.swing.JFrame {
                   short pixels[] = new short[width * height];
                   ip.setPixels(pixels);
 
-                  // Get points from both channels in each frame as ArrayLists        
-                  ArrayList<GaussianSpotData> gsCh1 = new ArrayList<GaussianSpotData>();
-                  ArrayList<Point2D.Double> xyPointsCh2 = new ArrayList<Point2D.Double>();
-                  for (GaussianSpotData gs : rowData_.get(row).spotList_) {
-                     if (gs.getFrame() == frame) {
-                        if (gs.getChannel() == 1) {
-                           gsCh1.add(gs);
-                        } else if (gs.getChannel() == 2) {
-                           Point2D.Double point = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                           xyPointsCh2.add(point);
-                        }
-                     }
-                  }
-
-                  if (xyPointsCh2.isEmpty()) {
+                  ArrayList<GsSpotPair> framePairs = spotPairsByFrame.get(frame - 1);
+                  if (framePairs == null) {
                      ReportingUtils.logError("Pairs function in Localization plugin: no points found in second channel in frame " + frame);
                      continue;
                   }
 
-                  // Find matching points in the two ArrayLists
-                  Iterator it2 = gsCh1.iterator();
-                  try {
-                     NearestPoint2D np = new NearestPoint2D(xyPointsCh2,
-                             NumberUtils.displayStringToDouble(pairsMaxDistanceField_.getText()));
-
-                     ArrayList<Double> distances = new ArrayList<Double>();
-                     ArrayList<Double> errorX = new ArrayList<Double>();
-                     ArrayList<Double> errorY = new ArrayList<Double>();
-
-                     while (it2.hasNext()) {
-                        GaussianSpotData gs = (GaussianSpotData) it2.next();
-                        Point2D.Double pCh1 = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                        Point2D.Double pCh2 = np.findKDWSE(pCh1);
-                        if (pCh2 != null) {
-                           rt.incrementCounter();
-                           rt.addValue(Terms.POSITION, gs.getPosition());
-                           rt.addValue(Terms.FRAME, gs.getFrame());
-                           rt.addValue(Terms.SLICE, gs.getSlice());
-                           rt.addValue(Terms.CHANNEL, gs.getSlice());
-                           rt.addValue(Terms.XPIX, gs.getX());
-                           rt.addValue(Terms.YPIX, gs.getY());
-                           rt.addValue("X1", pCh1.getX());
-                           rt.addValue("Y1", pCh1.getY());
-                           rt.addValue("X2", pCh2.getX());
-                           rt.addValue("Y2", pCh2.getY());
-                           double d2 = NearestPoint2D.distance2(pCh1, pCh2);
-                           double d = Math.sqrt(d2);
-                           rt.addValue("Distance", d);
-                           rt.addValue("Orientation (sine)",
-                                   NearestPoint2D.orientation(pCh1, pCh2));
-                           distances.add(d);
-
-                           ip.putPixel((int) (pCh1.x / factor), (int) (pCh1.y / factor), (int) d);
-
-                           double ex = pCh2.getX() - pCh1.getX();
-                           //double ex = (pCh1.getX() - pCh2.getX()) * (pCh1.getX() - pCh2.getX());
-                           //ex = Math.sqrt(ex);
-                           errorX.add(ex);
-                           //double ey = (pCh1.getY() - pCh2.getY()) * (pCh1.getY() - pCh2.getY());
-                           //ey = Math.sqrt(ey);
-                           double ey = pCh2.getY() - pCh1.getY();
-                           errorY.add(ey);
-
-                        }
-                     }
-
-                     Double avg = listAvg(distances);
-                     Double stdDev = listStdDev(distances, avg);
+                  ArrayList<Double> distances = new ArrayList<Double>();
+                  ArrayList<Double> errorX = new ArrayList<Double>();
+                  ArrayList<Double> errorY = new ArrayList<Double>();
 
-                     Double avgX = listAvg(errorX);
-                     Double stdDevX = listStdDev(errorX, avgX);
-                     Double avgY = listAvg(errorY);
-                     Double stdDevY = listStdDev(errorY, avgY);
+                  for (GsSpotPair pair : framePairs) {
+                     GaussianSpotData gs = pair.getGSD();
+                     Point2D.Double pCh1 = pair.getfp();
+                     Point2D.Double pCh2 = pair.getsp();
+                     rt.incrementCounter();
+                     rt.addValue(Terms.POSITION, gs.getPosition());
+                     rt.addValue(Terms.FRAME, gs.getFrame());
+                     rt.addValue(Terms.SLICE, gs.getSlice());
+                     rt.addValue(Terms.CHANNEL, gs.getSlice());
+                     rt.addValue(Terms.XPIX, gs.getX());
+                     rt.addValue(Terms.YPIX, gs.getY());
+                     rt.addValue("X1", pCh1.getX());
+                     rt.addValue("Y1", pCh1.getY());
+                     rt.addValue("X2", pCh2.getX());
+                     rt.addValue("Y2", pCh2.getY());
+                     double d2 = NearestPoint2D.distance2(pCh1, pCh2);
+                     double d = Math.sqrt(d2);
+                     rt.addValue("Distance", d);
+                     rt.addValue("Orientation (sine)",
+                             NearestPoint2D.orientation(pCh1, pCh2));
+                     distances.add(d);
+
+                     ip.putPixel((int) (pCh1.x / factor), (int) (pCh1.y / factor), (int) d);
+
+                     double ex = pCh2.getX() - pCh1.getX();
+                     //double ex = (pCh1.getX() - pCh2.getX()) * (pCh1.getX() - pCh2.getX());
+                     //ex = Math.sqrt(ex);
+                     errorX.add(ex);
+                     //double ey = (pCh1.getY() - pCh2.getY()) * (pCh1.getY() - pCh2.getY());
+                     //ey = Math.sqrt(ey);
+                     double ey = pCh2.getY() - pCh1.getY();
+                     errorY.add(ey);
+                  }
 
-                     rt2.incrementCounter();
-                     rt2.addValue("Frame Nr.", frame);
-                     rt2.addValue("Avg. distance", avg);
-                     rt2.addValue("StdDev distance", stdDev);
-                     rt2.addValue("X", avgX);
-                     rt2.addValue("StdDev X", stdDevX);
-                     rt2.addValue("Y", avgY);
-                     rt2.addValue("StdDevY", stdDevY);
+                  Double avg = listAvg(distances);
+                  Double stdDev = listStdDev(distances, avg);
 
-                     stack.addSlice("frame: " + frame, ip);
+                  Double avgX = listAvg(errorX);
+                  Double stdDevX = listStdDev(errorX, avgX);
+                  Double avgY = listAvg(errorY);
+                  Double stdDevY = listStdDev(errorY, avgY);
 
-                     double timePoint = frame;
-                     if (rowData_.get(row).timePoints_ != null) {
-                        timePoint = rowData_.get(row).timePoints_.get(frame);
-                        if (useS) {
-                           timePoint /= 1000;
-                        }
+                  rt2.incrementCounter();
+                  rt2.addValue("Frame Nr.", frame);
+                  rt2.addValue("Avg. distance", avg);
+                  rt2.addValue("StdDev distance", stdDev);
+                  rt2.addValue("X", avgX);
+                  rt2.addValue("StdDev X", stdDevX);
+                  rt2.addValue("Y", avgY);
+                  rt2.addValue("StdDevY", stdDevY);
+
+                  stack.addSlice("frame: " + frame, ip);
+
+                  double timePoint = frame;
+                  if (rowData_.get(row).timePoints_ != null) {
+                     timePoint = rowData_.get(row).timePoints_.get(frame);
+                     if (useS) {
+                        timePoint /= 1000;
                      }
-                     xData.add(timePoint, avgX);
-                     yData.add(timePoint, avgY);
-
-                  } catch (ParseException ex) {
-                     JOptionPane.showMessageDialog(getInstance(), "Error in Pairs input");
-                     return;
                   }
-
+                  xData.add(timePoint, avgX);
+                  yData.add(timePoint, avgY);
                }
 
                if (rt.getCounter() == 0) {
@@ -1856,94 +1862,23 @@ public class DataCollectionForm extends javax.swing.JFrame {
             }
 
             for (int row : rows) {
-               ArrayList<ArrayList<GsSpotPair>> spotPairsByFrame =
-                       new ArrayList<ArrayList<GsSpotPair>>();
-
                ij.IJ.showStatus("Creating Pairs...");
 
                // First go through all frames to find all pairs
-               int nrSpotPairsInFrame1 = 0;
-               for (int frame = 1; frame <= rowData_.get(row).nrFrames_; frame++) {
-                  ij.IJ.showProgress(frame, rowData_.get(row).nrFrames_);
-                  spotPairsByFrame.add(new ArrayList<GsSpotPair>());
-
-                  // Get points from both channels in each frame as ArrayLists        
-                  ArrayList<GaussianSpotData> gsCh1 = new ArrayList<GaussianSpotData>();
-                  ArrayList<Point2D.Double> xyPointsCh2 = new ArrayList<Point2D.Double>();
-                  for (GaussianSpotData gs : rowData_.get(row).spotList_) {
-                     if (gs.getFrame() == frame) {
-                        if (gs.getChannel() == 1) {
-                           gsCh1.add(gs);
-                        } else if (gs.getChannel() == 2) {
-                           Point2D.Double point = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                           xyPointsCh2.add(point);
-                        }
-                     }
-                  }
-
-                  if (xyPointsCh2.isEmpty()) {
+               ParticleLinker linker = new ParticleLinker();
+               ArrayList<ArrayList<GsSpotPair>> spotPairsByFrame = linker.findPairs(
+                       rowData_.get(row).spotList_, rowData_.get(row).nrFrames_, maxDistance);
+               for (int frame = 1; frame <= spotPairsByFrame.size(); frame++) {
+                  if (spotPairsByFrame.get(frame - 1) == null) {
                      ReportingUtils.logError("Pairs function in Localization plugin: no points found in second channel in frame " + frame);
-                     continue;
-                  }
-
-                  // Find matching points in the two ArrayLists
-                  Iterator it2 = gsCh1.iterator();
-                  try {
-                     NearestPoint2D np = new NearestPoint2D(xyPointsCh2,
-                             NumberUtils.displayStringToDouble(pairsMaxDistanceField_.getText()));
-
-                     while (it2.hasNext()) {
-                        GaussianSpotData gs = (GaussianSpotData) it2.next();
-                        Point2D.Double pCh1 = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                        Point2D.Double pCh2 = np.findKDWSE(pCh1);
-                        if (pCh2 != null) {
-                           GsSpotPair pair = new GsSpotPair(gs, pCh1, pCh2);
-                           //spotPairs.add(pair);
-                           spotPairsByFrame.get(frame - 1).add(pair);
-                        }
-                     }
-
-                  } catch (ParseException ex) {
-                     JOptionPane.showMessageDialog(getInstance(), "Error in Pairs input");
-                     return;
                   }
                }
 
-
                // We have all pairs, assemble in tracks
                ij.IJ.showStatus("Assembling tracks...");
 
-               // prepare NearestPoint objects to speed up finding closest pair 
-               ArrayList<NearestPointGsSpotPair> npsp = new ArrayList<NearestPointGsSpotPair>();
-               for (int frame = 1; frame <= rowData_.get(row).nrFrames_; frame++) {
-                  npsp.add(new NearestPointGsSpotPair(spotPairsByFrame.get(frame - 1), maxDistance));
-               }
-
-               ArrayList<ArrayList<GsSpotPair>> tracks = new ArrayList<ArrayList<GsSpotPair>>();
-
-               Iterator<GsSpotPair> iSpotPairs = spotPairsByFrame.get(0).iterator();
-               int i = 0;
-               while (iSpotPairs.hasNext()) {
-                  ij.IJ.showProgress(i++, nrSpotPairsInFrame1);
-                  GsSpotPair spotPair = iSpotPairs.next();
-                  // for now, we only start tracks at frame number 1
-                  if (spotPair.getGSD().getFrame() == 1) {
-                     ArrayList<GsSpotPair> track = new ArrayList<GsSpotPair>();
-                     track.add(spotPair);
-                     int frame = 2;
-                     while (frame <= rowData_.get(row).nrFrames_) {
-
-                        GsSpotPair newSpotPair = npsp.get(frame - 1).findKDWSE(
-                                new Point2D.Double(spotPair.getfp().getX(), spotPair.getfp().getY()));
-                        if (newSpotPair != null) {
-                           spotPair = newSpotPair;
-                           track.add(spotPair);
-                        }
-                        frame++;
-                     }
-                     tracks.add(track);
-                  }
-               }
+               ArrayList<ArrayList<GsSpotPair>> tracks = 
+                       linker.linkTracks(spotPairsByFrame, maxDistance);
 
                if (tracks.isEmpty()) {
                   MessageDialog md = new MessageDialog(DataCollectionForm.getInstance(),
@@ -1951,6 +1886,21 @@ public class DataCollectionForm extends javax.swing.JFrame {
                   continue;
                } 
 
+               // Add the channel 1 spots of all tracks as a new data set
+               RowData rowData = rowData_.get(row);
+               List<GaussianSpotData> trackSpots = new ArrayList<GaussianSpotData>();
+               for (ArrayList<GsSpotPair> track : tracks) {
+                  for (GsSpotPair pair : track) {
+                     trackSpots.add(pair.getGSD());
+                  }
+               }
+               addSpotData(rowData.name_ + " Particles", rowData.title_, "", rowData.width_,
+                       rowData.height_, rowData.pixelSizeNm_, rowData.zStackStepSizeNm_,
+                       rowData.shape_, rowData.halfSize_, rowData.nrChannels_,
+                       rowData.nrFrames_, rowData.nrSlices_, 1, rowData.maxNrSpots_,
+                       trackSpots, rowData.timePoints_, false, rowData.coordinate_,
+                       rowData.hasZ_, rowData.minZ_, rowData.maxZ_);
+
                Iterator<ArrayList<GsSpotPair>> itTracks = tracks.iterator();
                int spotId = 0;
                while (itTracks.hasNext()) {
@@ -3128,6 +3078,46 @@ public class DataCollectionForm extends javax.swing.JFrame {
 
    }
 
+   /**
+    * Save data set in the columnar spot format (see ColumnarSpotFile)
+    *
+    * @rowData - row with spot data to be saved
+    */
+   private void saveDataAsColumnar(final RowData rowData) {
+      FileDialog fd = new FileDialog(this, "Save Spot Data", FileDialog.SAVE);
+      fd.setFile(rowData.name_ + ColumnarSpotFile.EXTENSION);
+      fd.setVisible(true);
+      String selectedItem = fd.getFile();
+      if (selectedItem == null) {
+         return;
+      }
+      String fn = fd.getFile();
+      if (!fn.contains(".")) {
+         fn = fn + ColumnarSpotFile.EXTENSION;
+      }
+      dir_ = fd.getDirectory();
+      final File selectedFile = new File(dir_ + File.separator + fn);
+
+      Runnable doWorkRunnable = new Runnable() {
+
+         @Override
+         public void run() {
+            try {
+               setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+               ij.IJ.showStatus("Saving spotData...");
+               ColumnarSpotFile.write(rowData, selectedFile);
+               ij.IJ.showStatus("Finished saving spotData...");
+            } catch (IOException ex) {
+               ReportingUtils.showError(ex, "Error while saving data");
+            } finally {
+               setCursor(Cursor.getDefaultCursor());
+            }
+         }
+      };
+
+      (new Thread(doWorkRunnable)).start();
+   }
+
    /**
     * Save data set in as a text file
     *
@@ -5,14 +5,19 @@
 package edu.valelab.GaussianFit;
 
 import edu.valelab.GaussianFit.DataCollectionForm.Coordinates;
+import edu.valelab.GaussianFit.utils.ReportingUtils;
 import edu.valelab.GaussianFit.utils.RowData;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JOptionPane;
 
 /**
@@ -33,10 +38,84 @@ public class DriftCorrector {
       }
    }
 
+   private interface Task {
+      void run(int i);
+   }
+
+   /**
+    * Runs task.run(i) for i from 0 to n - 1 on all processors and waits for
+    * all of them
+    */
+   private void runParallel(final int n, final Task task) {
+      final AtomicInteger done = new AtomicInteger(0);
+      List<Callable<Object>> callables = new ArrayList<Callable<Object>>(n);
+      for (int i = 0; i < n; i++) {
+         final int index = i;
+         callables.add(new Callable<Object>() {
+            public Object call() {
+               task.run(index);
+               ij.IJ.showProgress(done.incrementAndGet(), n);
+               return null;
+            }
+         });
+      }
+      try {
+         for (Future<Object> future : SharedExecutor.get().invokeAll(callables)) {
+            future.get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof OutOfMemoryError) {
+            throw (OutOfMemoryError) ex.getCause();
+         }
+         ReportingUtils.logError(ex.getCause(), "Error during drift correction");
+      }
+   }
+
+   /**
+    * Renders the spots of frames window.x to window.y into ip as a 2D
+    * scatter plot
+    */
+   private void renderWindow(RowData rowData, Point window, double factor,
+           ImageProcessor ip) {
+      byte[] pixels = (byte[]) ip.getPixels();
+      int width = ip.getWidth();
+      int size = pixels.length;
+      Arrays.fill(pixels, (byte) 0);
+      for (int frameNr = window.x; frameNr <= window.y; frameNr++) {
+         List<GaussianSpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
+         if (frameSpots != null) {
+            for (GaussianSpotData spot : frameSpots) {
+               int x = (int) (factor * spot.getXCenter());
+               int y = (int) (factor * spot.getYCenter());
+               int index = (y * width) + x;
+               if (index < size && index > 0) {
+                  if (pixels[index] != -1) {
+                     pixels[index] += 1;
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Estimates drift by cross-correlating images of consecutive windows of
+    * frames with the image of the first window, and corrects the spots for
+    * drift interpolated between the centers of the windows.
+    *
+    * The windows are rendered and correlated in parallel, each thread reusing
+    * its own image and Fourier transform buffers.  Correction is done in one
+    * parallel pass over the spots.
+    *
+    * @param rowData - data set to be corrected
+    * @param maxFrames - maximum number of frames per window
+    * @param maxSpots - a window is closed at the first frame that brings its
+    * number of spots to maxSpots or more
+    */
    public void unJitter(final RowData rowData, int maxFrames, int maxSpots) {
 
-      // TODO: instead of a fixed number of frames, go for a certain number of spots
-      // Number of frames could be limited as well
       final int maxNrFrames = maxFrames;
       final int maxNrSpots = maxSpots;
 
@@ -53,10 +132,8 @@ public class DriftCorrector {
          mag += 1;
       }
 
-      int width = mag * rowData.width_;
-      int height = mag * rowData.height_;
-
-      int size = width * height;
+      final int width = mag * rowData.width_;
+      final int height = mag * rowData.height_;
 
 
       // TODO: add 0 padding to deal with aberrant image sizes
@@ -67,121 +144,76 @@ public class DriftCorrector {
          return;
       }
 
-      // TODO: what if we should go through nrSlices instead of nrFrames?
       boolean useSlices = false;
-      //int nrOfTests = rowData.nrFrames_ / framesToCombine;
       if (rowData.nrFrames_ <= 1) {
          useSlices = true;
       }
       final int nrImages = useSlices ? rowData.nrSlices_ : rowData.nrFrames_;
 
-      /*
-      nrOfTests = rowData.nrSlices_ / framesToCombine;
-      if (rowData.nrSlices_ % framesToCombine > 0) {
-      nrOfTests++;
-      }
-      } else {
-      if (rowData.nrFrames_ % framesToCombine > 0) {
-      nrOfTests++;
-      }
-      }
-      
-       */
-
-
-      ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
-
-      double factor = (double) mag / rowData.pixelSizeNm_;
-           
-      // Assemble the reference image (the first one)
-      ImageProcessor ipRef = new ByteProcessor(width, height);
-      byte[] pixelsRef = new byte[width * height];
-      ipRef.setPixels(pixelsRef);
+      final double factor = (double) mag / rowData.pixelSizeNm_;
 
       if (rowData.frameIndexSpotList_ == null) {
          rowData.index();
       }
-      int spotNr = 0;
-      int frameNr = 0;
-      while (spotNr < maxNrSpots && frameNr < maxNrFrames && frameNr < nrImages) {
-         List<GaussianSpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
-         if (frameSpots != null) {
-            for (GaussianSpotData spot : frameSpots) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int index = (y * width) + x;
-               if (index < size && index > 0) {
-                  if (pixelsRef[index] != -1) {
-                     pixelsRef[index] += 1;
-                  }
-               }
-               spotNr++;
-            }
-         }
-         frameNr++;
-      }
-
-      JitterDetector jd = new JitterDetector(ipRef);
 
-      Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-      jd.getJitter(ipRef, fp);
-
-      
-      // Assemble images for all subsequent frames and calculate cross-correlation with the first image
-      Point2D.Double com = new Point2D.Double(0.0, 0.0);
-      ImageProcessor ipTest = new ByteProcessor(width, height);
-      byte[] pixelsTest = new byte[width * height];
-      ipTest.setPixels(pixelsTest);
-
-      int estimatedNrTests = 1;
-      int testNr = 1;
-
-      while (frameNr < nrImages) {
-         estimatedNrTests = nrImages / (frameNr / testNr) + 1;
-         ij.IJ.showStatus("Executing jitter correction..." + testNr
-                 + "/" + estimatedNrTests);
-         ij.IJ.showProgress(testNr, estimatedNrTests);
-         for (int p = 0; p < size; p++) {
-            ipTest.set(p, 0);
-         }
-
-         int tmpFrameNr = 0;
-         spotNr = 0;
-
-         while (spotNr < maxNrSpots && tmpFrameNr < maxNrFrames && frameNr < nrImages) {
+      // Divide the frames into windows.  The first one is the reference
+      final List<Point> windows = new ArrayList<Point>();
+      int frameNr = 0;
+      while (frameNr <= nrImages) {
+         int spotNr = 0;
+         int firstFrame = frameNr;
+         while (spotNr < maxNrSpots && frameNr - firstFrame < maxNrFrames
+                 && frameNr <= nrImages) {
             List<GaussianSpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
             if (frameSpots != null) {
-               for (GaussianSpotData spot : frameSpots) {
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixelsTest[index] != -1) {
-                        pixelsTest[index] += 1;
-                     }
-                  }
-                  spotNr++;
-               }
+               spotNr += frameSpots.size();
             }
-            tmpFrameNr++;
             frameNr++;
          }
-
-         jd.getJitter(ipTest, com);
-         double x = (fp.x - com.x) / factor;
-         double y = (fp.y - com.y) / factor;
-         if (rowData.timePoints_ != null) {
-            rowData.timePoints_.get(frameNr);
-         }
-         stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                 new Point(frameNr - tmpFrameNr, frameNr - 1)));
-         System.out.println("X: " + x + " Y: " + y);
-         testNr++;
+         windows.add(new Point(firstFrame, frameNr - 1));
       }
 
-
-      // Assemble stage movement data into a track
       try {
+         // Assemble the reference image (the first one)
+         ImageProcessor ipRef = new ByteProcessor(width, height);
+         renderWindow(rowData, windows.get(0), factor, ipRef);
+         final JitterDetector jd = new JitterDetector(ipRef);
+         Point2D.Double fp = new Point2D.Double(0.0, 0.0);
+         jd.getJitter(ipRef, fp);
+
+         // Assemble images for all subsequent windows and calculate
+         // cross-correlation with the first image
+         ij.IJ.showStatus("Executing jitter correction...");
+         final ThreadLocal<ImageProcessor> images = new ThreadLocal<ImageProcessor>() {
+            @Override
+            protected ImageProcessor initialValue() {
+               return new ByteProcessor(width, height);
+            }
+         };
+         final Point2D.Double[] coms = new Point2D.Double[windows.size()];
+         runParallel(windows.size() - 1, new Task() {
+            public void run(int i) {
+               ImageProcessor ipTest = images.get();
+               renderWindow(rowData, windows.get(i + 1), factor, ipTest);
+               Point2D.Double com = new Point2D.Double(0.0, 0.0);
+               jd.getJitter(ipTest, com);
+               coms[i + 1] = com;
+            }
+         });
+
+         final ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
+         for (int i = 1; i < windows.size(); i++) {
+            if (coms[i] == null) {
+               // interrupted or failed
+               return;
+            }
+            double x = (fp.x - coms[i].x) / factor;
+            double y = (fp.y - coms[i].y) / factor;
+            stagePos.add(new StageMovementData(new Point2D.Double(x, y),
+                    windows.get(i)));
+         }
+
+         // Assemble stage movement data into a track
          List<GaussianSpotData> stageMovementData = new ArrayList<GaussianSpotData>();
          GaussianSpotData sm = new GaussianSpotData(null, 1, 1, 1, 1, 1, 1, 1);
          sm.setData(0, 0, 0, 0, 0.0, 0, 0, 0, 0);
@@ -214,52 +246,60 @@ public class DriftCorrector {
          DataCollectionForm.getInstance().myTableModel_.fireTableRowsInserted(DataCollectionForm.getInstance().rowData_.size() - 1, DataCollectionForm.getInstance().rowData_.size());
 
          ij.IJ.showStatus("Assembling jitter corrected dataset...");
-         ij.IJ.showProgress(1);
 
-         List<GaussianSpotData> correctedData = new ArrayList<GaussianSpotData>();
-         Iterator it = rowData.spotList_.iterator();
-
-         testNr = 0;
-         StageMovementData smd = stagePos.get(0);
-         int counter = 0;
-         while (it.hasNext()) {
-            counter++;
-            GaussianSpotData gs = (GaussianSpotData) it.next();
-            int test = 0;
-            if (useSlices) {
-               test = gs.getSlice();
-            } else {
-               test = gs.getFrame();
-            }
-            if (test != testNr) {
-               testNr = test - 1;
+         // Drift for every frame, interpolated linearly between the centers
+         // of the windows.  The reference window has no drift
+         final double[] driftX = new double[nrImages + 1];
+         final double[] driftY = new double[nrImages + 1];
+         double[] centers = new double[windows.size()];
+         double[] xs = new double[windows.size()];
+         double[] ys = new double[windows.size()];
+         for (int i = 0; i < windows.size(); i++) {
+            centers[i] = (windows.get(i).x + windows.get(i).y) / 2.0;
+            if (i > 0) {
+               xs[i] = stagePos.get(i - 1).pos_.x;
+               ys[i] = stagePos.get(i - 1).pos_.y;
             }
-            boolean found = false;
-            if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-               found = true;
-            }
-            if (!found) {
-               for (int i = 0; i < stagePos.size() && !found; i++) {
-                  smd = stagePos.get(i);
-                  if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                     found = true;
-                  }
-               }
+         }
+         int w = 0;
+         for (int f = 0; f <= nrImages; f++) {
+            while (w < centers.length - 1 && centers[w + 1] <= f) {
+               w++;
             }
-            if (found) {
-               Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
-                       gs.getYCenter() - smd.pos_.y);
-               GaussianSpotData gsn = new GaussianSpotData(gs);
-               gsn.setXCenter(point.x);
-               gsn.setYCenter(point.y);
-               correctedData.add(gsn);
+            if (f <= centers[0] || w == centers.length - 1) {
+               driftX[f] = xs[w];
+               driftY[f] = ys[w];
             } else {
-               correctedData.add(gs);
+               double t = (f - centers[w]) / (centers[w + 1] - centers[w]);
+               driftX[f] = xs[w] + t * (xs[w + 1] - xs[w]);
+               driftY[f] = ys[w] + t * (ys[w + 1] - ys[w]);
             }
-
-
          }
 
+         // Correct the spots in chunks, in parallel
+         final List<GaussianSpotData> spots = rowData.spotList_;
+         final GaussianSpotData[] corrected = new GaussianSpotData[spots.size()];
+         final boolean bySlice = useSlices;
+         final int nrChunks = Math.min(spots.size(),
+                 4 * Runtime.getRuntime().availableProcessors());
+         runParallel(nrChunks, new Task() {
+            public void run(int chunk) {
+               int first = (int) ((long) spots.size() * chunk / nrChunks);
+               int last = (int) ((long) spots.size() * (chunk + 1) / nrChunks);
+               for (int i = first; i < last; i++) {
+                  GaussianSpotData gs = spots.get(i);
+                  int f = bySlice ? gs.getSlice() : gs.getFrame();
+                  f = Math.max(0, Math.min(nrImages, f));
+                  GaussianSpotData gsn = new GaussianSpotData(gs);
+                  gsn.setXCenter(gs.getXCenter() - driftX[f]);
+                  gsn.setYCenter(gs.getYCenter() - driftY[f]);
+                  corrected[i] = gsn;
+               }
+            }
+         });
+         List<GaussianSpotData> correctedData =
+                 new ArrayList<GaussianSpotData>(Arrays.asList(corrected));
+
          // Add transformed data to data overview window
          DataCollectionForm.getInstance().addSpotData(
                  rowData.name_ + "-Jitter-Correct", rowData.title_, "", rowData.width_,
@@ -268,6 +308,7 @@ public class DriftCorrector {
                  rowData.nrFrames_, rowData.nrSlices_, 1, rowData.maxNrSpots_, 
                  correctedData, null, false, Coordinates.NM, rowData.hasZ_, 
                  rowData.minZ_, rowData.maxZ_);
+         ij.IJ.showProgress(1);
          ij.IJ.showStatus("Finished jitter correction");
       } catch (OutOfMemoryError oom) {
          System.gc();
@@ -0,0 +1,305 @@
+/**
+ * Gaussian Fitting package
+ * Maximum likelihood fit of a Gaussian to a small image, assuming Poisson
+ * noise, using Levenberg-Marquardt with the analytic Jacobian
+ *
+ * Uses the same parameters and shapes as the functions in GaussianUtils, so
+ * results can be compared directly with those of the other fit modes
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ */
+
+package edu.valelab.GaussianFit;
+
+/**
+ * Minimizes the Poisson negative log likelihood sum(mu - d * ln(mu)) over all
+ * pixels, where d is the data and mu the model.  Each iteration solves
+ * (H + lambda * diag(H)) delta = -g, where g is the gradient and H the Fisher
+ * information sum(d / mu^2 * J * J') (Laurence and Chromy, Nat. Methods 2010).
+ *
+ * All work is done in arrays that are allocated once and reused for every
+ * spot of the same size, so fitting creates no garbage.  Not thread safe: use
+ * one instance per thread.
+ *
+ * @author nico
+ */
+public class FastGaussianMLE {
+
+   private static final int INT = GaussianFit.INT;
+   private static final int BGR = GaussianFit.BGR;
+   private static final int XC = GaussianFit.XC;
+   private static final int YC = GaussianFit.YC;
+   private static final int S = GaussianFit.S;
+   private static final int S1 = GaussianFit.S1;
+   private static final int S2 = GaussianFit.S2;
+   private static final int S3 = GaussianFit.S3;
+
+   private static final double LAMBDA_START = 1e-3;
+   private static final double LAMBDA_MAX = 1e10;
+   // stop when the likelihood improves by less than this fraction
+   private static final double RELATIVE_TOLERANCE = 1e-9;
+
+   private final int mode_;
+   private final int nParams_;
+
+   // workspace
+   private double[] data_ = new double[0];
+   // Gaussian part of the model at params_ and at trial_, per pixel, kept
+   // from the likelihood calculation so the gradient need not recompute it
+   private double[] peaks_ = new double[0];
+   private double[] trialPeaks_ = new double[0];
+   private int nx_;
+   private int ny_;
+   private final double[] params_;
+   private final double[] trial_;
+   private final double[] result_;
+   private final double[] gradient_;
+   private final double[] jacobian_;
+   private final double[][] hessian_;
+   private final double[][] system_;
+   private final double[] step_;
+
+   /**
+    * @param mode - fit circle (1), ellipse (2), or ellipse with varying angle (3)
+    */
+   public FastGaussianMLE(int mode) {
+      mode_ = mode;
+      nParams_ = mode + 4;
+      params_ = new double[nParams_];
+      trial_ = new double[nParams_];
+      result_ = new double[nParams_];
+      gradient_ = new double[nParams_];
+      jacobian_ = new double[nParams_];
+      hessian_ = new double[nParams_][nParams_];
+      system_ = new double[nParams_][nParams_];
+      step_ = new double[nParams_];
+   }
+
+   /**
+    * Fits the image starting from params0
+    *
+    * @param pixels - 16-bit image, row by row
+    * @param width - image width
+    * @param height - image height
+    * @param params0 - start values, as estimated by GaussianFit
+    * @param maxIterations - maximum number of Levenberg-Marquardt iterations
+    * @return fitted parameters.  The array is reused by the next call.
+    */
+   public double[] fit(short[] pixels, int width, int height, double[] params0,
+           int maxIterations) {
+      int n = width * height;
+      if (data_.length != n) {
+         data_ = new double[n];
+         peaks_ = new double[n];
+         trialPeaks_ = new double[n];
+      }
+      for (int i = 0; i < n; i++) {
+         data_[i] = pixels[i] & 0xffff;
+      }
+      nx_ = width;
+      ny_ = height;
+      System.arraycopy(params0, 0, params_, 0, nParams_);
+
+      double cost = negLogLikelihood(params_, peaks_);
+      if (Double.isNaN(cost)) {
+         System.arraycopy(params0, 0, result_, 0, nParams_);
+         return result_;
+      }
+      double lambda = LAMBDA_START;
+      for (int iteration = 0; iteration < maxIterations; iteration++) {
+         computeGradientAndHessian();
+         boolean improved = false;
+         double newCost = cost;
+         while (lambda < LAMBDA_MAX) {
+            for (int k = 0; k < nParams_; k++) {
+               System.arraycopy(hessian_[k], 0, system_[k], 0, nParams_);
+               system_[k][k] *= 1 + lambda;
+            }
+            if (solve()) {
+               for (int k = 0; k < nParams_; k++) {
+                  trial_[k] = params_[k] + step_[k];
+               }
+               newCost = negLogLikelihood(trial_, trialPeaks_);
+               if (newCost < cost) {
+                  improved = true;
+                  break;
+               }
+            }
+            lambda *= 10;
+         }
+         if (!improved) {
+            break;
+         }
+         System.arraycopy(trial_, 0, params_, 0, nParams_);
+         double[] tmp = peaks_;
+         peaks_ = trialPeaks_;
+         trialPeaks_ = tmp;
+         lambda = Math.max(lambda / 10, 1e-12);
+         boolean converged = cost - newCost <= RELATIVE_TOLERANCE * Math.abs(cost);
+         cost = newCost;
+         if (converged) {
+            break;
+         }
+      }
+      System.arraycopy(params_, 0, result_, 0, nParams_);
+      return result_;
+   }
+
+   private boolean isValid(double[] p) {
+      if (p[INT] <= 0) {
+         return false;
+      }
+      if (mode_ == 1) {
+         return p[S] > 0;
+      }
+      if (mode_ == 2) {
+         return p[S1] > 0 && p[S2] > 0;
+      }
+      // the quadratic form must be positive definite
+      return p[S1] > 0 && p[S3] > 0 && p[S1] * p[S3] > p[S2] * p[S2];
+   }
+
+   /**
+    * Gaussian part of the model (without background) at pixel (x, y),
+    * same as in GaussianUtils
+    */
+   private double peak(double[] p, int x, int y) {
+      double dx = x - p[XC];
+      double dy = y - p[YC];
+      double exponent;
+      if (mode_ == 1) {
+         exponent = (dx * dx + dy * dy) / (2 * p[S] * p[S]);
+      } else if (mode_ == 2) {
+         exponent = dx * dx / (2 * p[S1] * p[S1]) + dy * dy / (2 * p[S2] * p[S2]);
+      } else {
+         exponent = (p[S1] * dx * dx + p[S3] * dy * dy + 2.0 * p[S2] * dx * dy) / 2;
+      }
+      return p[INT] * Math.exp(-exponent);
+   }
+
+   /**
+    * Poisson negative log likelihood (without the constant ln(d!) terms),
+    * or NaN if the parameters are out of range.  Stores the Gaussian part
+    * of the model for each pixel in peaks
+    */
+   private double negLogLikelihood(double[] p, double[] peaks) {
+      if (!isValid(p)) {
+         return Double.NaN;
+      }
+      double sum = 0.0;
+      for (int y = 0; y < ny_; y++) {
+         for (int x = 0; x < nx_; x++) {
+            double q = peak(p, x, y);
+            double mu = q + p[BGR];
+            if (mu <= 0) {
+               return Double.NaN;
+            }
+            peaks[y * nx_ + x] = q;
+            double d = data_[y * nx_ + x];
+            sum += mu - (d > 0 ? d * Math.log(mu) : 0.0);
+         }
+      }
+      return sum;
+   }
+
+   /**
+    * Fills gradient_ and hessian_ at params_
+    */
+   private void computeGradientAndHessian() {
+      double[] p = params_;
+      double[] J = jacobian_;
+      for (int k = 0; k < nParams_; k++) {
+         gradient_[k] = 0.0;
+         for (int l = 0; l <= k; l++) {
+            hessian_[k][l] = 0.0;
+         }
+      }
+      for (int y = 0; y < ny_; y++) {
+         double dy = y - p[YC];
+         for (int x = 0; x < nx_; x++) {
+            double dx = x - p[XC];
+            double q = peaks_[y * nx_ + x];
+            double mu = q + p[BGR];
+            J[INT] = q / p[INT];
+            J[BGR] = 1.0;
+            if (mode_ == 1) {
+               double s2 = p[S] * p[S];
+               J[XC] = q * dx / s2;
+               J[YC] = q * dy / s2;
+               J[S] = q * (dx * dx + dy * dy) / (s2 * p[S]);
+            } else if (mode_ == 2) {
+               double sx2 = p[S1] * p[S1];
+               double sy2 = p[S2] * p[S2];
+               J[XC] = q * dx / sx2;
+               J[YC] = q * dy / sy2;
+               J[S1] = q * dx * dx / (sx2 * p[S1]);
+               J[S2] = q * dy * dy / (sy2 * p[S2]);
+            } else {
+               J[XC] = q * (p[S1] * dx + p[S2] * dy);
+               J[YC] = q * (p[S3] * dy + p[S2] * dx);
+               J[S1] = -q * dx * dx / 2;
+               J[S2] = -q * dx * dy;
+               J[S3] = -q * dy * dy / 2;
+            }
+            double d = data_[y * nx_ + x];
+            double gFactor = 1.0 - d / mu;
+            double hFactor = d / (mu * mu);
+            for (int k = 0; k < nParams_; k++) {
+               gradient_[k] += gFactor * J[k];
+               double hk = hFactor * J[k];
+               for (int l = 0; l <= k; l++) {
+                  hessian_[k][l] += hk * J[l];
+               }
+            }
+         }
+      }
+      for (int k = 0; k < nParams_; k++) {
+         for (int l = 0; l < k; l++) {
+            hessian_[l][k] = hessian_[k][l];
+         }
+      }
+   }
+
+   /**
+    * Solves system_ * step_ = -gradient_ by Cholesky decomposition, which
+    * overwrites system_.  Returns false if system_ is not positive definite
+    */
+   private boolean solve() {
+      double[][] a = system_;
+      for (int k = 0; k < nParams_; k++) {
+         for (int l = 0; l <= k; l++) {
+            double sum = a[k][l];
+            for (int m = 0; m < l; m++) {
+               sum -= a[k][m] * a[l][m];
+            }
+            if (k == l) {
+               if (sum <= 0) {
+                  return false;
+               }
+               a[k][k] = Math.sqrt(sum);
+            } else {
+               a[k][l] = sum / a[l][l];
+            }
+         }
+      }
+      // forward substitution: L z = -g
+      for (int k = 0; k < nParams_; k++) {
+         double sum = -gradient_[k];
+         for (int m = 0; m < k; m++) {
+            sum -= a[k][m] * step_[m];
+         }
+         step_[k] = sum / a[k][k];
+      }
+      // back substitution: L' step = z
+      for (int k = nParams_ - 1; k >= 0; k--) {
+         double sum = step_[k];
+         for (int m = k + 1; m < nParams_; m++) {
+            sum -= a[m][k] * step_[m];
+         }
+         step_[k] = sum / a[k][k];
+      }
+      return true;
+   }
+}
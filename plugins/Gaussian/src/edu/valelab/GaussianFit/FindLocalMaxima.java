@@ -13,7 +13,7 @@
 package edu.valelab.GaussianFit;
 
 import ij.ImagePlus;
-import ij.plugin.ImageCalculator;
+import ij.process.Blitter;
 import ij.process.ImageProcessor;
 import ij.plugin.filter.GaussianBlur;
 import java.awt.Polygon;
@@ -25,9 +25,6 @@ import java.awt.Rectangle;
  * @author nico
  */
 public class FindLocalMaxima {
-   private static GaussianBlur filter_ = new GaussianBlur();
-   private static ImageCalculator ic_ = new ImageCalculator();
-   
    public enum FilterType {
       NONE,
       GAUSSIAN1_5
@@ -43,23 +40,30 @@ public class FindLocalMaxima {
     * @return Polygon with maxima 
     */
    public static Polygon FindMax(ImagePlus iPlus, int n, int threshold, FilterType filterType) {
+      return FindMax(iPlus.getProcessor(), n, threshold, filterType);
+   }
+
+   /**
+    * Same as FindMax(ImagePlus...), but works on an ImageProcessor (within its
+    * ROI).  Does not touch any shared state, so different threads can look
+    * for maxima in different images at the same time.
+    */
+   public static Polygon FindMax(ImageProcessor iProc, int n, int threshold, FilterType filterType) {
       Polygon maxima = new Polygon();
 
-      ImageProcessor iProc = iPlus.getProcessor();
       Rectangle roi = iProc.getRoi();
       
       // Prefilter if needed
       switch (filterType) {
          case GAUSSIAN1_5 : 
-            // TODO: if there is an ROI, we only need to filter_ in the ROI
+            // TODO: if there is an ROI, we only need to filter in the ROI
             ImageProcessor iProcG1 = iProc.duplicate();
             ImageProcessor iProcG5 = iProc.duplicate();
-            filter_.blur(iProcG1, 1);
-            filter_.blur(iProcG5, 5);
-            ImagePlus p1 = new ImagePlus("G1", iProcG1);
-            ImagePlus p5 = new ImagePlus("G5", iProcG5);
-            ic_.run("subtract", p1, p5);
-            iProc = p1.getProcessor();
+            GaussianBlur filter = new GaussianBlur();
+            filter.blur(iProcG1, 1);
+            filter.blur(iProcG5, 5);
+            iProcG1.copyBits(iProcG5, 0, 0, Blitter.SUBTRACT);
+            iProc = iProcG1;
                       
             break;
       }
@@ -12,19 +12,20 @@ package edu.valelab.GaussianFit;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.Roi;
-import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
 import java.awt.Polygon;
+import java.awt.Rectangle;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import edu.valelab.GaussianFit.utils.ReportingUtils;
+import edu.valelab.GaussianFit.utils.WorkStealingQueue;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -34,9 +35,17 @@ import java.lang.reflect.Method;
  * @author nico
  */
 public class FitAllThread extends GaussianInfo implements Runnable  {
+   // spots are handed to the fitters in chunks of at most this many
+   private static final int CHUNK_SIZE = 64;
+   // number of chunks that can wait for each fitter
+   private static final int QUEUE_CAPACITY = 16;
+   private static final long PROGRESS_INTERVAL_MS = 250;
+
    double[] params0_;
    double[] steps_ = new double[5];
    GaussianFitStackThread[] gfsThreads_;
+   private volatile Thread[] finderThreads_;
+   private SpotTable results_;
    private volatile Thread t_ = null;
    private static boolean running_ = false;
    private FindLocalMaxima.FilterType preFilterType_;
@@ -56,6 +65,14 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
    }
 
    public synchronized void stop() {
+      Thread[] finderThreads = finderThreads_;
+      if (finderThreads != null) {
+         for (Thread finderThread : finderThreads) {
+            if (finderThread != null) {
+               finderThread.interrupt();
+            }
+         }
+      }
       if (gfsThreads_ != null) {
          for (int i=0; i<gfsThreads_.length; i++) {
             if (gfsThreads_[i] != null) {
@@ -73,9 +90,7 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
 
    public void run() {
 
-      // List with spot positions found through the Find Maxima command
-      sourceList_ = new LinkedBlockingQueue<GaussianSpotData>();
-      resultList_ = Collections.synchronizedList(new ArrayList<GaussianSpotData>());
+      results_ = new SpotTable();
 
       // take the active ImageJ image
       ImagePlus siPlus;
@@ -174,22 +189,22 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       long endTime = System.nanoTime();
 
       // Add data to data overview window
-      if (resultList_.size() < 1) {
+      if (results_.size() < 1) {
          ReportingUtils.showError("No spots found");
          running_ = false;
          return;
       }
       DataCollectionForm dcForm = DataCollectionForm.getInstance();
 
-      double zMax = resultList_.get(0).getZCenter();
+      double zMax = results_.getZCenter(0);
       if (zMax < 0.0) {
          zMax = 0.0;
       }
       double zMin = zMax;
       ZCalibrator zc = DataCollectionForm.zc_;
       if (zc != null) {
-         for (GaussianSpotData spot : resultList_) {
-            double zTmp = spot.getZCenter();
+         for (int i = 0; i < results_.size(); i++) {
+            double zTmp = results_.getZCenter(i);
             if (zMax < zTmp) {
                zMax = zTmp;
             }
@@ -210,8 +225,8 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       dcForm.addSpotData(siPlus.getWindow().getTitle(), siPlus.getTitle(), "",
               siPlus.getWidth(), siPlus.getHeight(), (float) pixelSize_,
               (float) zStackStepSize_, shape_, halfSize_,
-              nrChannels, nrFrames, nrSlices, nrPositions, resultList_.size(),
-              resultList_, timePoints, false, DataCollectionForm.Coordinates.NM,
+              nrChannels, nrFrames, nrSlices, nrPositions, results_.size(),
+              results_.toSpotList(), timePoints, false, DataCollectionForm.Coordinates.NM,
               DataCollectionForm.zc_.hasFitFunctions(),
               zMin, zMax);
 
@@ -219,22 +234,24 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
 
       // report duration of analysis
       double took = (endTime - startTime) / 1E9;
-      double rate = resultList_.size() / took;
+      double rate = results_.size() / took;
       DecimalFormat df2 = new DecimalFormat("#.##");
       DecimalFormat df0 = new DecimalFormat("#");
-      print("Analyzed " + resultList_.size() + " spots in " + df2.format(took)
+      print("Analyzed " + results_.size() + " spots in " + df2.format(took)
               + " seconds (" + df0.format(rate) + " spots/sec.)");
 
       running_ = false;
    }
 
-   private int analyzeImagePlus(ImagePlus siPlus, int position, int nrThreads, Roi originalRoi) {
+   private int analyzeImagePlus(final ImagePlus siPlus, final int position,
+           int nrThreads, Roi originalRoi) {
 
-      int nrSpots = 0;
       // Start up IJ.Prefs.getThreads() threads for gaussian fitting
+      final WorkStealingQueue<SpotChunk> queue =
+              new WorkStealingQueue<SpotChunk>(nrThreads, QUEUE_CAPACITY);
       gfsThreads_ = new GaussianFitStackThread[nrThreads];
       for (int i = 0; i < nrThreads; i++) {
-         gfsThreads_[i] = new GaussianFitStackThread(sourceList_, resultList_, siPlus, halfSize_,
+         gfsThreads_[i] = new GaussianFitStackThread(queue, i, halfSize_,
                  shape_, fitMode_);
 
          // TODO: more efficient way of passing through settings!
@@ -260,130 +277,138 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
          siPlus.setPosition(i, siPlus.getCurrentSlice(), siPlus.getFrame());
       }
 
-      int nrImages = siPlus.getNChannels() * siPlus.getNSlices() * siPlus.getNFrames();
-      int imageCount = 0;
-      try {
-         for (int c = 1; c <= siPlus.getNChannels(); c++) {
-            if (!running_) {
-               break;
-            }
-            for (int z = 1; z <= siPlus.getNSlices(); z++) {
-               if (!running_) {
-                  break;
-               }
-               for (int f = 1; f <= siPlus.getNFrames(); f++) {
-                  if (!running_) {
-                     break;
-                  }
-                  // to avoid making a gigantic sourceList and running out of memory
-                  // sleep a bit when the sourcesize gets too big
-                  // once we have very fast multi-core computers, this constant can be increased
-                  if (sourceList_.size() > 100000) {
-                     try {
-                        Thread.sleep(1000);
-                     } catch (InterruptedException ex) {
-                        // not sure what to do
-                     }
-                  }
-
-                  imageCount++;
-                  ij.IJ.showStatus("Processing image " + imageCount);
-
-                  ImageProcessor siProc = null;
-                  Polygon p = new Polygon();
-                  synchronized (GaussianSpotData.lockIP) {
-                     siPlus.setPositionWithoutUpdate(c, z, f);
-                     // If ROI manager is used, use RoiManager Rois
-                     //  may be dangerous if the user is not aware
-                     RoiManager roiM = RoiManager.getInstance();
-                     Roi[] rois = null;
-                     //if (roiM != null && roiM.getSelectedIndex() > -1 ) {
-                     //   rois = roiM.getSelectedRoisAsArray();
-                     //}
-                     if (rois != null && rois.length > 0) {
-                        for (Roi roi : rois) {
-                           siPlus.setRoi(roi, false);
-                           siProc = siPlus.getProcessor();
-                           Polygon q = FindLocalMaxima.FindMax(siPlus, halfSize_, noiseTolerance_,
-                                   preFilterType_);
-                           for (int i = 0; i < q.npoints; i++) {
-                              p.addPoint(q.xpoints[i], q.ypoints[i]);
-                           }
-                        }
-                     } else {  // no Rois in RoiManager
-                        siPlus.setRoi(originalRoi, false);
-                        siProc = siPlus.getProcessor();
-                        p = FindLocalMaxima.FindMax(siPlus, halfSize_, noiseTolerance_,
-                                preFilterType_);
+      // Spot finding runs in parallel, one image per thread at a time.
+      // Images are taken straight from the stack, so the finders don't need
+      // to change the position of the ImagePlus.
+      final ImageStack stack = siPlus.getStack();
+      final Rectangle roiBounds = originalRoi != null && originalRoi.isArea()
+              ? originalRoi.getBounds() : null;
+      final int nrImages = siPlus.getNChannels() * siPlus.getNSlices() * siPlus.getNFrames();
+      final AtomicInteger nextImage = new AtomicInteger(0);
+      final AtomicInteger imagesDone = new AtomicInteger(0);
+      final AtomicInteger spotsFound = new AtomicInteger(0);
+      final AtomicInteger maxNrSpots = new AtomicInteger(0);
+      finderThreads_ = new Thread[nrThreads];
+      for (int i = 0; i < nrThreads; i++) {
+         finderThreads_[i] = new Thread("Spot finder " + i) {
+            @Override
+            public void run() {
+               try {
+                  int image;
+                  while (running_ && (image = nextImage.getAndIncrement()) < nrImages) {
+                     // channel varies slowest, frame fastest
+                     int f = image % siPlus.getNFrames() + 1;
+                     int z = (image / siPlus.getNFrames()) % siPlus.getNSlices() + 1;
+                     int c = image / (siPlus.getNFrames() * siPlus.getNSlices()) + 1;
+                     int nrSpots = findSpots(stack, siPlus.getStackIndex(c, z, f),
+                             roiBounds, c, z, f, position, queue);
+                     spotsFound.addAndGet(nrSpots);
+                     int max = maxNrSpots.get();
+                     while (nrSpots > max && !maxNrSpots.compareAndSet(max, nrSpots)) {
+                        max = maxNrSpots.get();
                      }
+                     imagesDone.incrementAndGet();
                   }
+               } catch (InterruptedException iex) {
+                  // fitting was stopped
+               } catch (IllegalStateException ise) {
+                  // all fitters have stopped, so the spots can not be fitted
+                  ReportingUtils.logError("Spot finder stopped, no fitters left");
+               } catch (OutOfMemoryError ome) {
+                  ij.IJ.error("Out Of Memory");
+               } catch (Exception ex) {
+                  ReportingUtils.logError(ex, "Spot finder failed");
+               }
+            }
+         };
+         finderThreads_[i].start();
+      }
 
-                  ij.IJ.showProgress(imageCount, nrImages);
-
-
-                  if (p.npoints > nrSpots) {
-                     nrSpots = p.npoints;
-                  }
-                  int[][] sC = new int[p.npoints][2];
-                  for (int j = 0; j < p.npoints; j++) {
-                     sC[j][0] = p.xpoints[j];
-                     sC[j][1] = p.ypoints[j];
-                  }
-
-                  Arrays.sort(sC, new SpotSortComparator());
-
-                  for (int j = 0; j < sC.length; j++) {
-                     // filter out spots too close to the edge
-                     if (sC[j][0] > halfSize_ && sC[j][0] < siPlus.getWidth() - halfSize_
-                             && sC[j][1] > halfSize_ && sC[j][1] < siPlus.getHeight() - halfSize_) {
-                        ImageProcessor sp = GaussianSpotData.getSpotProcessor(siProc,
-                                halfSize_, sC[j][0], sC[j][1]);
-                        if (sp == null) {
-                           continue;
-                        }
-                        GaussianSpotData thisSpot = new GaussianSpotData(sp, c, z, f,
-                                position, j, sC[j][0], sC[j][1]);
-                        try {
-                           sourceList_.put(thisSpot);
-                        } catch (InterruptedException iex) {
-                           Thread.currentThread().interrupt();
-                           throw new RuntimeException("Unexpected interruption");
-                        }
-                     }
-                  }
+      // wait for the spot finders, then tell the fitters that no more spots
+      // will come and wait for them to finish
+      try {
+         for (int i = 0; i < nrThreads; i++) {
+            while (finderThreads_[i].isAlive()) {
+               finderThreads_[i].join(PROGRESS_INTERVAL_MS);
+               ij.IJ.showStatus("Processing image " + imagesDone.get());
+               ij.IJ.showProgress(imagesDone.get(), nrImages);
+            }
+         }
+         queue.close();
+         for (int i = 0; i < nrThreads; i++) {
+            Thread fitter = gfsThreads_[i].t_;
+            while (fitter != null && fitter.isAlive()) {
+               fitter.join(PROGRESS_INTERVAL_MS);
+               int fitted = 0;
+               for (GaussianFitStackThread gfsThread : gfsThreads_) {
+                  fitted += gfsThread.getNrFitted();
                }
+               ij.IJ.showStatus("Fitting remaining Gaussians...");
+               ij.IJ.showProgress(fitted, spotsFound.get());
             }
          }
+      } catch (InterruptedException ie) {
+         stop();
+      }
+      ij.IJ.showStatus("");
 
-      // start ProgresBar thread
-      ProgressThread pt = new ProgressThread(sourceList_);
-      pt.init();
-      
-      
-      } catch (OutOfMemoryError ome) {
-         ij.IJ.error("Out Of Memory");
+      for (int i = 0; i < nrThreads; i++) {
+         results_.addAll(gfsThreads_[i].getResults());
+         gfsThreads_[i] = null;
       }
+      finderThreads_ = null;
+      return maxNrSpots.get();
+   }
 
-      // Send working threads signal that we are done:
-      GaussianSpotData lastSpot = new GaussianSpotData(null, -1, 1, -1, -1, -1, -1, -1);
-      try {
-         sourceList_.put(lastSpot);
-      } catch (InterruptedException iex) {
-         Thread.currentThread().interrupt();
-         throw new RuntimeException("Unexpected interruption");
+   /**
+    * Finds the spots in one image and queues them for fitting
+    * @return number of spots found
+    */
+   private int findSpots(ImageStack stack, int stackIndex, Rectangle roiBounds,
+           int c, int z, int f, int position, WorkStealingQueue<SpotChunk> queue)
+           throws InterruptedException {
+      ImageProcessor siProc = stack.getProcessor(stackIndex);
+      if (roiBounds != null) {
+         siProc.setRoi(roiBounds);
       }
+      Polygon p = FindLocalMaxima.FindMax(siProc, halfSize_, noiseTolerance_,
+              preFilterType_);
 
-      // wait for worker threads to finish
-      for (int i=0; i<nrThreads; i++) {
-         try {
-            gfsThreads_[i].join();
-            gfsThreads_[i] = null;
-         } catch (InterruptedException ie) {
+      int[][] sC = new int[p.npoints][2];
+      for (int j = 0; j < p.npoints; j++) {
+         sC[j][0] = p.xpoints[j];
+         sC[j][1] = p.ypoints[j];
+      }
+
+      Arrays.sort(sC, new SpotSortComparator());
+
+      // filter out spots too close to the edge
+      int width = siProc.getWidth();
+      int height = siProc.getHeight();
+      int[] xs = new int[sC.length];
+      int[] ys = new int[sC.length];
+      int n = 0;
+      for (int j = 0; j < sC.length; j++) {
+         if (sC[j][0] > halfSize_ && sC[j][0] < width - halfSize_
+                 && sC[j][1] > halfSize_ && sC[j][1] < height - halfSize_) {
+            xs[n] = sC[j][0];
+            ys[n] = sC[j][1];
+            n++;
          }
       }
+      if (n == 0) {
+         return 0;
+      }
 
-      sourceList_.clear();
-      return nrSpots;
+      // the fitters only work on 16-bit data
+      Object pixels = siProc.getPixels();
+      short[] shortPixels = pixels instanceof short[] ? (short[]) pixels
+              : (short[]) siProc.convertToShort(false).getPixels();
+      for (int first = 0; first < n; first += CHUNK_SIZE) {
+         queue.put(new SpotChunk(shortPixels, width, c, z, f, position, xs, ys,
+                 first, Math.min(CHUNK_SIZE, n - first)));
+      }
+      return n;
    }
 
    private class SpotSortComparator implements Comparator {
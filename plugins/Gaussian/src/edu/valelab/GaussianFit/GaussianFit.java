@@ -55,6 +55,7 @@ public class GaussianFit {
    MultiVariateGaussianMLE mGFMLE_;
    NonLinearConjugateGradientOptimizer nlcgo_;
    LevenbergMarquardtOptimizer lMO_;
+   FastGaussianMLE fastMLE_;
 
    /**
     * Gaussian fit can be run by estimating parameter c (width of Gaussian)
@@ -62,7 +63,8 @@ public class GaussianFit {
     * 
     * @param mode - fit circle (1) ellipse(2), or ellipse with varying angle (3)
     * @param fitmode - algorithm use: NelderMead (1), Levenberg Marquard (2), 
-    *                   NelderMean MLE (3), LevenberMarquard MLE(4)
+    *                   NelderMean MLE (3), LevenberMarquard MLE(4),
+    *                   LevenbergMarquardt MLE with analytic Jacobian (5)
     */
    public GaussianFit(int mode, int fitMode) {
       super();
@@ -98,6 +100,10 @@ public class GaussianFit {
          convergedChecker_ = new SimpleScalarValueChecker(1e-6,-1);
          mGFMLE_ = new MultiVariateGaussianMLE(mode_);
       }
+      // Levenberg-Marquardt MLE without Commons Math, fastest
+      if (fitMode_ == 5) {
+         fastMLE_ = new FastGaussianMLE(mode_);
+      }
       /*
        * Gradient MLE, not working very well
        *
@@ -193,6 +199,12 @@ public class GaussianFit {
          }
       }
       
+      // Levenberg-Marquardt MLE with analytic Jacobian
+      if (fitMode_ == 5) {
+         paramsOut = fastMLE_.fit((short[]) siProc.getPixels(), siProc.getWidth(),
+                 siProc.getHeight(), params0_, maxIterations);
+      }
+      
       /*
        * not working very well....
       // gradient-MLE
@@ -1,40 +1,43 @@
 package edu.valelab.GaussianFit;
 
 
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import edu.valelab.GaussianFit.utils.WorkStealingQueue;
+import ij.process.ShortProcessor;
 
 
 /**
+ * Fits the spots handed out by a WorkStealingQueue and stores the results
+ * in a SpotTable of its own.  Each spot is copied into one image that is
+ * reused for all spots, so fitting does not create an image per spot.
  *
  * @author nico
  */
 public class GaussianFitStackThread extends GaussianInfo implements Runnable {
 
    Thread t_;
-   boolean stopNow_ = false;
-
-
-   public GaussianFitStackThread(BlockingQueue<GaussianSpotData> sourceList,
-           List<GaussianSpotData> resultList, ImagePlus siPlus, int halfSize,
-           int shape, int fitMode) {
-      siPlus_ = siPlus;
+   volatile boolean stopNow_ = false;
+   private final WorkStealingQueue<SpotChunk> queue_;
+   private final int consumer_;
+   private final SpotTable results_ = new SpotTable();
+   private volatile int nrFitted_ = 0;
+
+
+   /**
+    * @param queue - queue with the spots to be fitted
+    * @param consumer - index of this thread among the consumers of queue
+    */
+   public GaussianFitStackThread(WorkStealingQueue<SpotChunk> queue,
+           int consumer, int halfSize, int shape, int fitMode) {
+      queue_ = queue;
+      consumer_ = consumer;
       halfSize_ = halfSize;
-      sourceList_ = sourceList;
-      resultList_ = resultList;
       shape_ = shape;
       fitMode_ = fitMode;
    }
 
-   public void listDone() {
-      stop_ = true;
-   }
-
    public void init() {
       stopNow_ = false;
-      t_ = new Thread(this);
+      t_ = new Thread(this, "Gaussian fitter " + consumer_);
       t_.start();
    }
 
@@ -47,83 +50,109 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
          t_.join();
    }
 
+   /**
+    * Fitted spots that passed the filters.  Only valid after join()
+    */
+   public SpotTable getResults() {
+      return results_;
+   }
+
+   /**
+    * Number of spots fitted so far, whether or not they passed the filters
+    */
+   public int getNrFitted() {
+      return nrFitted_;
+   }
+
    public void run() {
+      try {
+         fit();
+      } finally {
+         // once no fitter is left, spot finders must not wait for room
+         queue_.consumerDone();
+      }
+   }
+
+   private void fit() {
       GaussianFit gs_ = new GaussianFit(shape_, fitMode_);
       double cPCF = photonConversionFactor_ / gain_;
       ZCalibrator zc = DataCollectionForm.zc_;
+      int size = 2 * halfSize_;
+      short[] spotPixels = new short[size * size];
+      ShortProcessor ip = new ShortProcessor(size, size, spotPixels, null);
 
       while (!stopNow_) {
-         GaussianSpotData spot;
-         synchronized (gfsLock_) {
-            try {
-               spot = sourceList_.take();
-               // Look for signal that we are done, add back to queue if found
-               if (spot.getFrame() == -1) {
-                  sourceList_.add(spot);
-                  return;
-               }
-            } catch (InterruptedException iExp) {
-               ij.IJ.log("Thread interruped  " + Thread.currentThread().getName());
-               return;
-            }
+         SpotChunk chunk;
+         try {
+            chunk = queue_.take(consumer_);
+         } catch (InterruptedException iExp) {
+            ij.IJ.log("Thread interruped  " + Thread.currentThread().getName());
+            return;
+         }
+         if (chunk == null) {
+            return;
          }
 
          try {
-            // Note: the implementation will try to return a cached version of the ImageProcessor
-            ImageProcessor ip = spot.getSpotProcessor(siPlus_, halfSize_);
-            double[] paramsOut = gs_.doGaussianFit(ip, maxIterations_);
-            // Note that the copy constructor will not copy pixel data, so we loose those when spot goes out of scope
-            GaussianSpotData spotData = new GaussianSpotData(spot);
-            double sx = 0;
-            double sy = 0;
-            double a = 1;
-            double theta = 0;
-            if (paramsOut.length >= 5) {
-               double N = cPCF * paramsOut[GaussianFit.INT]
-                       * (2 * Math.PI * paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]);
-               double xMax = (paramsOut[GaussianFit.XC] - halfSize_ + spot.getX()) * pixelSize_;
-               double yMax = (paramsOut[GaussianFit.YC] - halfSize_ + spot.getY()) * pixelSize_;
-               double s = paramsOut[GaussianFit.S] * pixelSize_;
-               // express background in photons after base level correction
-               double bgr = cPCF * (paramsOut[GaussianFit.BGR] - baseLevel_);
-               // calculate error using formular from Thompson et al (2002)
-               // (dx)2 = (s*s + (a*a/12)) / N + (8*pi*s*s*s*s * b*b) / (a*a*N*N)
-               double sigma = (s * s + (pixelSize_ * pixelSize_) / 12) / N
-                       + (8 * Math.PI * s * s * s * s * bgr * bgr) / (pixelSize_ * pixelSize_ * N * N);
-               sigma = Math.sqrt(sigma);
-
-               if (paramsOut.length >= 6) {
-                  sx = paramsOut[GaussianFit.S1] * pixelSize_;
-                  sy = paramsOut[GaussianFit.S2] * pixelSize_;
-                  a = sx / sy;
-                  
-                  double z = 0.0;              
-               
-                  if (zc.hasFitFunctions()) {
-                     z = zc.getZ(2 * sx, 2 * sy);
-                     spotData.setZCenter(z);
+            for (int j = chunk.first_; j < chunk.first_ + chunk.count_ && !stopNow_; j++) {
+               try {
+                  int spotX = chunk.xs_[j];
+                  int spotY = chunk.ys_[j];
+                  for (int row = 0; row < size; row++) {
+                     System.arraycopy(chunk.pixels_,
+                             (spotY - halfSize_ + row) * chunk.width_ + spotX - halfSize_,
+                             spotPixels, row * size, size);
                   }
-                  
-               }
-
-               if (paramsOut.length >= 7) {
-                  theta = paramsOut[GaussianFit.S3];
-               }
-
-               double width = 2 * s;
-               
-               
-               
-               spotData.setData(N, bgr, xMax, yMax, 0.0, width, a, theta, sigma);
-
-               if ((!useWidthFilter_ || (width > widthMin_ && width < widthMax_))
-                       && (!useNrPhotonsFilter_ || (N > nrPhotonsMin_ && N < nrPhotonsMax_))) {
-                  resultList_.add(spotData);
+                  double[] paramsOut = gs_.doGaussianFit(ip, maxIterations_);
+                  nrFitted_++;
+                  double sx = 0;
+                  double sy = 0;
+                  double a = 1;
+                  double theta = 0;
+                  double z = 0.0;
+                  if (paramsOut.length >= 5) {
+                     double N = cPCF * paramsOut[GaussianFit.INT]
+                             * (2 * Math.PI * paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]);
+                     double xMax = (paramsOut[GaussianFit.XC] - halfSize_ + spotX) * pixelSize_;
+                     double yMax = (paramsOut[GaussianFit.YC] - halfSize_ + spotY) * pixelSize_;
+                     double s = paramsOut[GaussianFit.S] * pixelSize_;
+                     // express background in photons after base level correction
+                     double bgr = cPCF * (paramsOut[GaussianFit.BGR] - baseLevel_);
+                     // calculate error using formular from Thompson et al (2002)
+                     // (dx)2 = (s*s + (a*a/12)) / N + (8*pi*s*s*s*s * b*b) / (a*a*N*N)
+                     double sigma = (s * s + (pixelSize_ * pixelSize_) / 12) / N
+                             + (8 * Math.PI * s * s * s * s * bgr * bgr) / (pixelSize_ * pixelSize_ * N * N);
+                     sigma = Math.sqrt(sigma);
+
+                     if (paramsOut.length >= 6) {
+                        sx = paramsOut[GaussianFit.S1] * pixelSize_;
+                        sy = paramsOut[GaussianFit.S2] * pixelSize_;
+                        a = sx / sy;
+
+                        if (zc.hasFitFunctions()) {
+                           z = zc.getZ(2 * sx, 2 * sy);
+                        }
+                     }
+
+                     if (paramsOut.length >= 7) {
+                        theta = paramsOut[GaussianFit.S3];
+                     }
+
+                     double width = 2 * s;
+
+                     if ((!useWidthFilter_ || (width > widthMin_ && width < widthMax_))
+                             && (!useNrPhotonsFilter_ || (N > nrPhotonsMin_ && N < nrPhotonsMax_))) {
+                        results_.add(chunk.channel_, chunk.slice_, chunk.frame_,
+                                chunk.position_, j, spotX, spotY, N, bgr, xMax, yMax,
+                                z, width, a, theta, sigma);
+                     }
+                  }
+               } catch (Exception ex) {
+                  // a spot that can not be fitted must not stop the others
+                  ij.IJ.log("Fitting failed in " + Thread.currentThread().getName() + ": " + ex);
                }
-
             }
-         } catch (Exception ex) {
-            ex.printStackTrace();
+         } catch (OutOfMemoryError ex) {
             ij.IJ.log("Thread run out of memory  " + Thread.currentThread().getName());
             ij.IJ.error("Fitter out of memory", "Out of memory error");
             return;
@@ -3,6 +3,7 @@
  */
 package edu.valelab.GaussianFit;
 
+import edu.valelab.GaussianFit.utils.ReportingUtils;
 import edu.valelab.GaussianFit.utils.RowData;
 import ij.ImageStack;
 import ij.process.ColorProcessor;
@@ -14,6 +15,12 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -27,8 +34,185 @@ public class ImageRenderer {
     static int[][] zLut_ = new int[256][];
    
       
+   // edge length (in rendered pixels) of the tiles that are rendered in parallel
+   private static final int TILE_SIZE = 256;
+   // Gaussians reaching further than this (in rendered pixels) from their
+   // center are not looked up in the bins around a tile
+   private static final int MAX_MARGIN = TILE_SIZE;
+
+   private interface TileRenderer {
+      /**
+       * Renders the part of the image in tile (in rendered pixels).  Tiles do
+       * not overlap, so each call can write its part of the image without
+       * synchronization
+       */
+      void render(Rectangle tile);
+   }
+
+   /**
+    * Draws Gaussians of spots (see renderData), clipped to a tile
+    */
+   private static class GaussianPainter {
+      private final SpotBins bins_;
+      private final float[] pixels_;
+      private final Rectangle rect_;
+      private final double renderedPixelInNm_;
+      private final int fullWidth_;
+      private final int fullHeight_;
+      private final boolean normalize_;
+
+      /**
+       * @param pixels - pixels of the rendered region rect
+       */
+      GaussianPainter(SpotBins bins, float[] pixels, Rectangle rect,
+              double renderedPixelInNm, int fullWidth, int fullHeight,
+              boolean normalize) {
+         bins_ = bins;
+         pixels_ = pixels;
+         rect_ = rect;
+         renderedPixelInNm_ = renderedPixelInNm;
+         fullWidth_ = fullWidth;
+         fullHeight_ = fullHeight;
+         normalize_ = normalize;
+      }
+
+      /**
+       * Number of rendered pixels the Gaussian reaches from its center
+       * (2 * precision)
+       */
+      int getHalfWidth(double sigma) {
+         int halfWidth = (int) (2 * sigma / renderedPixelInNm_);
+         return halfWidth == 0 ? 2 : halfWidth;
+      }
+
+      /**
+       * Adds the part of the Gaussian of spot i that lies in tile
+       *
+       * @param profiles - x and y profile arrays, enlarged as needed, so that
+       * they can be reused for the next spot
+       * @return true if the center of the spot lies in tile
+       */
+      boolean paint(int i, Rectangle tile, double[][] profiles) {
+         double sigma = bins_.getSigma(i);
+         int halfWidth = getHalfWidth(sigma);
+         double factor = 1.0 / renderedPixelInNm_;
+         int xc = (int) (factor * bins_.getXCenter(i));
+         int yc = (int) (factor * bins_.getYCenter(i));
+         if (!(xc > halfWidth && xc < (fullWidth_ - halfWidth)
+                 && yc > halfWidth && yc < (fullHeight_ - halfWidth))) {
+            return false;
+         }
+         int xStart = xc - halfWidth;
+         int yStart = yc - halfWidth;
+         // part of the box that lies in this tile
+         int x0 = Math.max(xStart, tile.x);
+         int x1 = Math.min(xc + halfWidth, tile.x + tile.width);
+         int y0 = Math.max(yStart, tile.y);
+         int y1 = Math.min(yc + halfWidth, tile.y + tile.height);
+         if (x0 >= x1 || y0 >= y1) {
+            return false;
+         }
+
+         // the Gaussian is separable: exp(-(dx^2 + dy^2) / (2 s^2))
+         // = gx[dx] * gy[dy]
+         if (profiles[0].length < 2 * halfWidth) {
+            profiles[0] = new double[2 * halfWidth];
+            profiles[1] = new double[2 * halfWidth];
+         }
+         double[] gx = profiles[0];
+         double[] gy = profiles[1];
+         double s = sigma / renderedPixelInNm_;
+         double xs = bins_.getXCenter(i) / renderedPixelInNm_;
+         double ys = bins_.getYCenter(i) / renderedPixelInNm_;
+         double sumX = 0.0;
+         double sumY = 0.0;
+         for (int k = 0; k < 2 * halfWidth; k++) {
+            double dx = xStart + k - xs;
+            double dy = yStart + k - ys;
+            gx[k] = Math.exp(-dx * dx / (2 * s * s));
+            gy[k] = Math.exp(-dy * dy / (2 * s * s));
+            sumX += gx[k];
+            sumY += gy[k];
+         }
+         double scale = 1.0;
+         // normalize if requested
+         if (normalize_) {
+            double totalInt = sumX * sumY;
+            if (!(totalInt > 0)) {
+               return false;
+            }
+            scale = 1.0 / totalInt;
+         }
+         for (int y = y0; y < y1; y++) {
+            int row = (y - rect_.y) * rect_.width - rect_.x;
+            double yVal = scale * gy[y - yStart];
+            for (int x = x0; x < x1; x++) {
+               pixels_[row + x] += (float) (yVal * gx[x - xStart]);
+            }
+         }
+         return tile.contains(xc, yc);
+      }
+   }
+
+   /**
+    * Splits rect into tiles and renders them on all processors
+    */
+   private static void renderTiles(Rectangle rect, final TileRenderer renderer) {
+      List<Rectangle> tiles = new ArrayList<Rectangle>();
+      for (int y = rect.y; y < rect.y + rect.height; y += TILE_SIZE) {
+         for (int x = rect.x; x < rect.x + rect.width; x += TILE_SIZE) {
+            tiles.add(new Rectangle(x, y,
+                    Math.min(TILE_SIZE, rect.x + rect.width - x),
+                    Math.min(TILE_SIZE, rect.y + rect.height - y)));
+         }
+      }
+      final int nrTiles = tiles.size();
+      final AtomicInteger done = new AtomicInteger(0);
+      List<Callable<Object>> callables = new ArrayList<Callable<Object>>(nrTiles);
+      for (final Rectangle tile : tiles) {
+         callables.add(new Callable<Object>() {
+            public Object call() {
+               renderer.render(tile);
+               ij.IJ.showProgress(done.incrementAndGet(), nrTiles);
+               return null;
+            }
+         });
+      }
+      try {
+         for (Future<Object> future : SharedExecutor.get().invokeAll(callables)) {
+            future.get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof OutOfMemoryError) {
+            throw (OutOfMemoryError) ex.getCause();
+         }
+         ReportingUtils.logError(ex.getCause(), "Error while rendering");
+      }
+   }
+
+   /**
+    * Range of bins holding the spots that can be rendered in tile
+    *
+    * @param margin - number of rendered pixels a spot can reach beyond its center
+    * @param factor - rendered pixels per nm
+    * @return first and last bin in x, first and last bin in y
+    */
+   private static int[] binRange(SpotBins bins, Rectangle tile, int margin,
+           double factor) {
+      return new int[] {
+         bins.binX((tile.x - margin) / factor),
+         bins.binX((tile.x + tile.width + margin) / factor),
+         bins.binY((tile.y - margin) / factor),
+         bins.binY((tile.y + tile.height + margin) / factor)};
+   }
+
    /*
     * Renders spotdata using various renderModes
+    * The image is split into tiles that are rendered in parallel.  Each tile
+    * only looks at the spots in the bins (see SpotBins) that cover it, so
+    * rendering a small region at high zoom is fast.
     * 
     * @param rowData - MyRowData structure to be rendered
     * @param method - 0 = 2D scatter, 1 = Gaussians, 2 = Normalized Gaussian
@@ -46,83 +230,89 @@ public class ImageRenderer {
          readLut("icelut.txt");
       }
 
-      //int mag = 1 << renderSize;
-
       if (rect == null) {
          rect = new Rectangle(0, 0, (int) (rowData.width_ * magnification),
                  (int) (rowData.height_ * magnification));
       }
+      final Rectangle r = rect;
       final double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
       final int width = rect.width;
       final int height = rect.height;
       final int fullWidth = (int) (rowData.width_ * magnification);
       final int fullHeight = (int) (rowData.height_ * magnification);
-      int endx = rect.x + rect.width;
-      int endy = rect.y + rect.height;
       final int size = width * height;
-      double factor = (double) magnification / rowData.pixelSizeNm_;
-
+      final double factor = (double) magnification / rowData.pixelSizeNm_;
 
       try {
+         final SpotBins bins = SpotBins.get(rowData);
          if (method == 0) {
             if (!rowData.hasZ_) {
                ip = new ShortProcessor(width, height);
-               short pixels[] = new short[size];
+               final short pixels[] = new short[size];
                ip.setPixels(pixels);
-               for (GaussianSpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixels[index] != -1) {
-                              pixels[index] += 1;
+               renderTiles(rect, new TileRenderer() {
+                  public void render(Rectangle tile) {
+                     int[] range = binRange(bins, tile, 0, factor);
+                     for (int by = range[2]; by <= range[3]; by++) {
+                        int end = bins.getEnd(range[1], by);
+                        for (int i = bins.getStart(range[0], by); i < end; i++) {
+                           if (!sf.filter(bins.getSigma(i), bins.getIntensity(i))) {
+                              continue;
+                           }
+                           int x = (int) (factor * bins.getXCenter(i));
+                           int y = (int) (factor * bins.getYCenter(i));
+                           if (tile.contains(x, y)) {
+                              int index = ((y - r.y) * width) + x - r.x;
+                              if (pixels[index] != -1) {
+                                 pixels[index] += 1;
+                              }
                            }
                         }
                      }
                   }
-               }
+               });
             } else if (rowData.hasZ_) {
                ShortProcessor[] sp = new ShortProcessor[3];
-               short[][] pixels = new short[3][size];
+               final short[][] pixels = new short[3][size];
                for (int i = 0; i < 3; i++) {
                   sp[i] = new ShortProcessor(width, height);
                   sp[i].setPixels(pixels[i]);
                }
-               double spread = rowData.maxZ_ - rowData.minZ_;
-               for (GaussianSpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
-                           if (zIndex < 0) {
-                              zIndex = 0;
-                           }
-                           if (zIndex > 255) {
-                              zIndex = 255;
+               final double spread = rowData.maxZ_ - rowData.minZ_;
+               renderTiles(rect, new TileRenderer() {
+                  public void render(Rectangle tile) {
+                     int[] range = binRange(bins, tile, 0, factor);
+                     for (int by = range[2]; by <= range[3]; by++) {
+                        int end = bins.getEnd(range[1], by);
+                        for (int i = bins.getStart(range[0], by); i < end; i++) {
+                           if (!sf.filter(bins.getSigma(i), bins.getIntensity(i))) {
+                              continue;
                            }
-                           for (int i = 0; i < 3; i++) {
-                              pixels[i][index] += zLut_[zIndex][i];
+                           int x = (int) (factor * bins.getXCenter(i));
+                           int y = (int) (factor * bins.getYCenter(i));
+                           if (tile.contains(x, y)) {
+                              int index = ((y - r.y) * width) + x - r.x;
+                              int zIndex = (int) (256 * (bins.getZCenter(i) - rowData.minZ_) / spread);
+                              if (zIndex < 0) {
+                                 zIndex = 0;
+                              }
+                              if (zIndex > 255) {
+                                 zIndex = 255;
+                              }
+                              for (int c = 0; c < 3; c++) {
+                                 pixels[c][index] += zLut_[zIndex][c];
+                              }
                            }
                         }
                      }
                   }
-               }
+               });
                // we have 3 ShortProcessors.  Combine into a color image:
                ColorProcessor cp = new ColorProcessor(width, height);
                byte[][] colorPixels = new byte[3][];
                for (int i = 0; i < 3; i++) {
                   colorPixels[i] = new byte[size];
                }
-               //ip.setPixels(colorPixels);
                double max = sp[0].getMax();
                for (int i = 1; i < 3; i++) {
                   if (sp[i].getMax() > max) {
@@ -141,110 +331,71 @@ public class ImageRenderer {
 
          } else if (method == 1 || method == 2) {  // Gaussian and normalized Gaussian
 
-
             // determines whether gaussians should be normalized by their total intensity
-            boolean normalize = false;
-            if (method == 2) {
-               normalize = true;
-            }
+            final boolean normalize = method == 2;
 
             ip = new FloatProcessor(width, height);
-            float pixels[] = new float[size];
+            final float pixels[] = new float[size];
             ip.setPixels(pixels);
 
             ij.IJ.showStatus("Rendering Image...");
-            int updateQuantum = rowData.spotList_.size() / 100;
-            int counter = 0;
-            int spotsUsed = 0;
-            for (GaussianSpotData spot : rowData.spotList_) {
-               if (counter % updateQuantum == 0) {
-                  ij.IJ.showProgress(counter, rowData.spotList_.size());
+            final GaussianPainter painter = new GaussianPainter(bins, pixels, r,
+                    renderedPixelInNm, fullWidth, fullHeight, normalize);
+            // Tiles look for spots in the bins up to margin beyond their
+            // edges.  The margin is set by the widest spot that passes the
+            // filter, but spots wider than MAX_MARGIN are kept in a list that
+            // every tile goes through instead, so that a few outliers do not
+            // make each tile read the bins of a large part of the image.
+            int maxHalfWidth = 0;
+            final List<Integer> wideSpots = new ArrayList<Integer>();
+            for (int i = 0; i < bins.size(); i++) {
+               double sigma = bins.getSigma(i);
+               if (!(sigma > 0) || !sf.filter(sigma, bins.getIntensity(i))) {
+                  continue;
                }
-
-
-               if (sf.filter(spot)) {
-
-
-                  // cover 3 * precision
-                  int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
-                  if (halfWidth == 0) {
-                     halfWidth = 2;
+               int halfWidth = painter.getHalfWidth(sigma);
+               if (halfWidth > MAX_MARGIN) {
+                  int xc = (int) (factor * bins.getXCenter(i));
+                  int yc = (int) (factor * bins.getYCenter(i));
+                  if (r.intersects(xc - halfWidth, yc - halfWidth,
+                          2 * halfWidth, 2 * halfWidth)) {
+                     wideSpots.add(i);
                   }
-
-                  /*
-                   * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sigy^2))+b
-                   * A = params[INT]  (amplitude)
-                   * b = params[BGR]  (background)
-                   * xc = params[XC]
-                   * yc = params[YC]
-                   * sig = params[S]
-                   * 
-                   */
-                  int xc = (int) (factor * spot.getXCenter());
-                  int yc = (int) (factor * spot.getYCenter());
-                  //int xc = (int) Math.round(spot.getXCenter() / renderedPixelInNm);
-                  //int yc = (int) Math.round(spot.getYCenter() / renderedPixelInNm);
-
-
-                  if (xc > rect.x + halfWidth && xc < endx - halfWidth
-                          && yc > rect.y + halfWidth && yc < endy - halfWidth) {
-
-                     if (xc > halfWidth && xc < (fullWidth - halfWidth)
-                             && yc > halfWidth && yc < (fullHeight - halfWidth)) {
-                        counter++;
-                        spotsUsed++;
-                        double totalInt = 0.0;
-                        int xStart = (int) xc - halfWidth;
-                        int xEnd = (int) xc + halfWidth;
-                        int yStart = (int) yc - halfWidth;
-                        int yEnd = (int) yc + halfWidth;
-                        float[][] boxPixels = new float[xEnd - xStart][yEnd - yStart];
-                        for (int x = xStart; x < xEnd; x++) {
-                           for (int y = yStart; y < yEnd; y++) {
-                              double[] parms = {1.0, 0.0,
-                                 spot.getXCenter() / renderedPixelInNm,
-                                 spot.getYCenter() / renderedPixelInNm,
-                                 spot.getSigma() / renderedPixelInNm};
-                              double val = GaussianUtils.gaussian(parms, x, y);
-                              totalInt += val;
-                              if (normalize) {
-                                 boxPixels[x - xStart][y - yStart] = (float) val;
-                              } else {
-                                 ip.setf(x, y, ip.getf(x, y) + (float) val);
-                              }
-                           }
+               } else if (halfWidth > maxHalfWidth) {
+                  maxHalfWidth = halfWidth;
+               }
+            }
+            final int margin = maxHalfWidth + 2;
+            final AtomicInteger spotsUsed = new AtomicInteger(0);
+            renderTiles(rect, new TileRenderer() {
+               public void render(Rectangle tile) {
+                  double[][] profiles = new double[2][0];
+                  int used = 0;
+                  int[] range = binRange(bins, tile, margin, factor);
+                  for (int by = range[2]; by <= range[3]; by++) {
+                     int end = bins.getEnd(range[1], by);
+                     for (int i = bins.getStart(range[0], by); i < end; i++) {
+                        double sigma = bins.getSigma(i);
+                        if (!(sigma > 0) || !sf.filter(sigma, bins.getIntensity(i))
+                                || painter.getHalfWidth(sigma) > MAX_MARGIN) {
+                           continue;
                         }
-                        // normalize if requested
-                        if (normalize && totalInt > 0) {
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 boxPixels[x - xStart][y - yStart] /= totalInt;
-                                 if (boxPixels[x - xStart][y - yStart] != boxPixels[x - xStart][y - yStart]) {
-                                    System.out.println("<0");
-                                 }
-                              }
-                           }
-                           // now add to the image
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 try {
-                                    ip.setf(x - rect.x, y - rect.y,
-                                            ip.getf(x - rect.x, y - rect.y) + boxPixels[x - xStart][y - yStart]);
-                                 } catch (Exception ex) {
-                                    System.out.println("Exception");
-                                 }
-                              }
-                           }
+                        if (painter.paint(i, tile, profiles)) {
+                           used++;
                         }
-
                      }
                   }
+                  for (int i : wideSpots) {
+                     if (painter.paint(i, tile, profiles)) {
+                        used++;
+                     }
+                  }
+                  spotsUsed.addAndGet(used);
                }
-            }
-
+            });
 
             ij.IJ.showProgress(1);
-            ij.IJ.showStatus("Rendered image using " + spotsUsed + " spots.");
+            ij.IJ.showStatus("Rendered image using " + spotsUsed.get() + " spots.");
 
          }
       } catch (java.lang.OutOfMemoryError ome) {
@@ -252,25 +403,17 @@ public class ImageRenderer {
          ij.IJ.showMessage("Out of Memory", "Not enought memory to draw image at this resolution");
       }
 
-
-
       if (ip != null) {
          ip.resetMinAndMax();
       }
-      /*
-         sp = new ImagePlus(title, ip);
-         DisplayUtils.AutoStretch(sp);
-         DisplayUtils.SetCalibration(sp, (float) (rowData.pixelSizeNm_ / magnification));
-      }
-      
-       */
 
       return ip;    
    }
    
    
-      /*
+   /*
     * Renders spotdata using various renderModes
+    * Tiles are rendered in parallel, as in renderData
     * 
     * @param rowData - MyRowData structure to be rendered
     * @param method - 0 = 2D scatter, 1 = Gaussians, 2 = Normalized Gaussian
@@ -279,55 +422,55 @@ public class ImageRenderer {
     */
    public static ImageStack renderData3D(final RowData rowData,
            final int method, final double magnification, Rectangle rect, final SpotDataFilter sf) {
-   
-      
-      //int mag = 1 << renderSize;
 
       if (rect == null) {
          rect = new Rectangle(0, 0, (int) (rowData.width_ * magnification),
                  (int) (rowData.height_ * magnification));
       }
+      final Rectangle r = rect;
       final double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
       final int width = rect.width;
       final int height = rect.height;
-      final int fullWidth = (int) (rowData.width_ * magnification);
-      final int fullHeight = (int) (rowData.height_ * magnification);
       double tmp =  1000.0 * (rowData.maxZ_ - rowData.minZ_ ) / (2* renderedPixelInNm);
       final int nrZs = (int) tmp;
-      int endx = rect.x + rect.width;
-      int endy = rect.y + rect.height;
       final int size = width * height;
-      double factor = (double) magnification / rowData.pixelSizeNm_;
+      final double factor = (double) magnification / rowData.pixelSizeNm_;
 
       ImageStack is = new ImageStack(width, height);
       ImageProcessor[] ip = new ImageProcessor[nrZs];
       
       if (method == 0) {
          
-         short pixels[][] = new short[nrZs][size];
+         final short pixels[][] = new short[nrZs][size];
          for (int i = 0; i < nrZs; i++) {
             ip[i] = new ShortProcessor(width, height);
             ip[i].setPixels(pixels[i]);
             is.addSlice(ip[i]);
          }
 
-         for (GaussianSpotData spot : rowData.spotList_) {
-            if (sf.filter(spot)) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int z = (int) (factor * (spot.getZCenter() - rowData.minZ_) * 500.0);
-               if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                  x -= rect.x;
-                  y -= rect.y;
-                  int index = (y * width) + x;
-                  if (index < size && index > 0 && z < nrZs && z > 0) {
-                     if (pixels[z][index] != -1) {
-                        pixels[z][index] += 1;
+         final SpotBins bins = SpotBins.get(rowData);
+         renderTiles(rect, new TileRenderer() {
+            public void render(Rectangle tile) {
+               int[] range = binRange(bins, tile, 0, factor);
+               for (int by = range[2]; by <= range[3]; by++) {
+                  int end = bins.getEnd(range[1], by);
+                  for (int i = bins.getStart(range[0], by); i < end; i++) {
+                     if (!sf.filter(bins.getSigma(i), bins.getIntensity(i))) {
+                        continue;
+                     }
+                     int x = (int) (factor * bins.getXCenter(i));
+                     int y = (int) (factor * bins.getYCenter(i));
+                     int z = (int) (factor * (bins.getZCenter(i) - rowData.minZ_) * 500.0);
+                     if (tile.contains(x, y) && z < nrZs && z > 0) {
+                        int index = ((y - r.y) * width) + x - r.x;
+                        if (pixels[z][index] != -1) {
+                           pixels[z][index] += 1;
+                        }
                      }
                   }
                }
             }
-         }
+         });
       }
  
       
@@ -5,58 +5,154 @@
 package edu.valelab.GaussianFit;
 
 import ij.process.FHT;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 
 /**
+ * The transform of the reference image is calculated once and only read
+ * afterwards.  All other buffers (Hartley transforms, cross-correlation, the
+ * image used for the Gaussian fit of the peak) are allocated once per thread
+ * and reused, so getJitter can be called by several threads at once.
  *
  * @author Nico Stuurman
  */
 public class JitterDetector {
+   // halfsize of the square around brightest pixel used for Gaussian fit
+   private static final int HALF_SIZE = 5;
+   // edge size of the square in the center of the correlation image in which
+   // the brightest pixel is searched for
+   private static final int SEARCH_SIZE = 32;
+
    private final FHT ref_;
-   
+   private final int size_;
+   // buffers of the threads of the shared pool, kept between detectors of
+   // the same size rather than one set per detector and thread
+   private static final ThreadLocal<Workspace> workspace_ = new ThreadLocal<Workspace>();
+
+   /**
+    * Buffers used by one thread
+    */
+   private static class Workspace {
+      final int size_;
+      final FHT test_;
+      final FHT product_;
+      final ShortProcessor peak_;
+      // Gaussian fit using Nelder Mead and 3D fitting
+      final GaussianFit fitter_ = new GaussianFit(3, 2);
+
+      Workspace(int size) {
+         size_ = size;
+         test_ = new FHT(new FloatProcessor(size, size));
+         test_.setShowProgress(false);
+         product_ = new FHT(new FloatProcessor(size, size));
+         product_.setShowProgress(false);
+         peak_ = new ShortProcessor(2 * HALF_SIZE, 2 * HALF_SIZE);
+      }
+   }
+
    public JitterDetector(ImageProcessor reference) {
      ref_ = new FHT(reference);
      ref_.transform();
      ref_.resetMinAndMax();
+     size_ = ref_.getWidth();
    }
-   
+
    public void getJitter(ImageProcessor test, Point2D.Double com) {
-      FHT t = new FHT(test);
-      t.transform();
-      t.resetMinAndMax();
-      
-      FHT m = ref_.conjugateMultiply(t);
-            
-      m.inverseTransform();
-      m.swapQuadrants();
-      
+      Workspace ws = workspace_.get();
+      if (ws == null || ws.size_ != size_) {
+         ws = new Workspace(size_);
+         workspace_.set(ws);
+      }
+      float[] t = (float[]) ws.test_.getPixels();
+      for (int i = 0; i < t.length; i++) {
+         t[i] = test.getf(i);
+      }
+      ws.test_.transform();
+
+      conjugateMultiply((float[]) ref_.getPixels(), t,
+              (float[]) ws.product_.getPixels());
+      ws.product_.inverseTransform();
+      ws.product_.swapQuadrants();
+
       // return the position of the brightest pixel
       Point brightPix = new Point(0, 0);
-      BrightestPixel(m, brightPix, 32);     
-      
+      BrightestPixel(ws.product_, brightPix, SEARCH_SIZE);
+
       try {
-         // Gaussian fit using Nelder Mead and 3D fitting
-         GaussianFit gs = new GaussianFit(3, 2);
-         // halfsize of the square around brightest pixel used for Gaussian fit
-         int hs = 5;
-         ImageProcessor ip = m.convertToShort(true);
-         ip.setRoi(brightPix.x - hs, brightPix.y - hs, 2 * hs, 2 * hs);
-         ImageProcessor ipc = ip.crop();
-
-         double[] paramsOut = gs.doGaussianFit(ipc, 100);
+         int hs = HALF_SIZE;
+         cropScaled(ws.product_, brightPix.x - hs, brightPix.y - hs, ws.peak_);
+
+         double[] paramsOut = ws.fitter_.doGaussianFit(ws.peak_, 100);
          com.x = paramsOut[GaussianFit.XC] - hs + brightPix.x;
          com.y = paramsOut[GaussianFit.YC] - hs + brightPix.y;
 
-      } catch (Exception ex) { 
+      } catch (Exception ex) {
          // Gaussian fit failed, try second best estimate
          com.x = brightPix.x;
          com.y = brightPix.y;
       }
-         
+
    }
-   
+
+   /**
+    * Same as FHT.conjugateMultiply, but writes into an existing array
+    *
+    * @param h1 - Hartley transform of the reference
+    * @param h2 - Hartley transform of the test image
+    * @param result - product
+    */
+   private void conjugateMultiply(float[] h1, float[] h2, float[] result) {
+      int maxN = size_;
+      for (int r = 0; r < maxN; r++) {
+         int rowMod = (maxN - r) % maxN;
+         for (int c = 0; c < maxN; c++) {
+            int colMod = (maxN - c) % maxN;
+            double h2e = (h2[r * maxN + c] + h2[rowMod * maxN + colMod]) / 2;
+            double h2o = (h2[r * maxN + c] - h2[rowMod * maxN + colMod]) / 2;
+            result[r * maxN + c] = (float) (h1[r * maxN + c] * h2e
+                    - h1[rowMod * maxN + colMod] * h2o);
+         }
+      }
+   }
+
+   /**
+    * Copies the square starting at (x0, y0) of m into crop, scaled as by
+    * m.convertToShort(true), i.e. the range of the whole image maps to
+    * 0 - 65535
+    */
+   private void cropScaled(FHT m, int x0, int y0, ShortProcessor crop) {
+      float[] pixels = (float[]) m.getPixels();
+      double min = pixels[0];
+      double max = pixels[0];
+      for (float p : pixels) {
+         if (p < min) {
+            min = p;
+         }
+         if (p > max) {
+            max = p;
+         }
+      }
+      double scale = (max - min) == 0.0 ? 1.0 : 65535.0 / (max - min);
+      short[] cropPixels = (short[]) crop.getPixels();
+      int width = m.getWidth();
+      int cropSize = crop.getWidth();
+      for (int y = 0; y < cropSize; y++) {
+         for (int x = 0; x < cropSize; x++) {
+            double value = (pixels[(y0 + y) * width + x0 + x] - min) * scale + 0.5;
+            if (value < 0) {
+               value = 0;
+            }
+            if (value > 65535) {
+               value = 65535;
+            }
+            cropPixels[y * cropSize + x] = (short) value;
+         }
+      }
+   }
+
    /**
     * Finds the brightest pixel in the center of the image m
     * only searches in the center of the image in a square with edge size searchsize
@@ -0,0 +1,223 @@
+/**
+ * Finds pairs of spots between channels and links them into tracks across
+ * frames
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+
+package edu.valelab.GaussianFit;
+
+import edu.valelab.GaussianFit.utils.ReportingUtils;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The spots are sorted into frames in one pass over the data, after which
+ * every frame gets a SpotKdTree, so that finding the nearest spot never scans
+ * a whole frame, let alone the whole data set.  Frames are processed in
+ * parallel, and so are tracks once all trees are built.
+ *
+ * @author nico
+ */
+public class ParticleLinker {
+   // number of tasks per thread when tracks are linked, to even out the load
+   private static final int TASKS_PER_THREAD = 4;
+
+   private final int nrThreads_;
+
+   public ParticleLinker() {
+      this(Runtime.getRuntime().availableProcessors());
+   }
+
+   public ParticleLinker(int nrThreads) {
+      nrThreads_ = Math.max(1, nrThreads);
+   }
+
+   private interface Task {
+      void run(int i);
+   }
+
+   /**
+    * Runs task.run(i) for i from 0 to n - 1 on nrThreads_ threads and waits
+    * for all of them
+    */
+   private void runParallel(final int n, final Task task) {
+      ExecutorService executor = Executors.newFixedThreadPool(nrThreads_,
+              new ThreadFactory() {
+                 public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Particle linker");
+                    thread.setDaemon(true);
+                    return thread;
+                 }
+              });
+      final AtomicInteger done = new AtomicInteger(0);
+      List<Callable<Object>> callables = new ArrayList<Callable<Object>>(n);
+      for (int i = 0; i < n; i++) {
+         final int index = i;
+         callables.add(new Callable<Object>() {
+            public Object call() {
+               task.run(index);
+               ij.IJ.showProgress(done.incrementAndGet(), n);
+               return null;
+            }
+         });
+      }
+      try {
+         for (Future<Object> future : executor.invokeAll(callables)) {
+            future.get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex.getCause(), "Error while linking particles");
+      } finally {
+         executor.shutdown();
+      }
+   }
+
+   /**
+    * Pairs every spot in channel 1 with the nearest spot in channel 2 in the
+    * same frame, if that is closer than maxDistance
+    *
+    * @param spots - spots of the data set
+    * @param nrFrames - number of frames in the data set
+    * @param maxDistance - maximum distance between the spots of a pair
+    * @return list of pairs for each frame (index frame - 1), in the order of
+    * the channel 1 spots in spots.  Null for frames without spots in channel 2
+    */
+   @SuppressWarnings("unchecked")
+   public ArrayList<ArrayList<GsSpotPair>> findPairs(List<GaussianSpotData> spots,
+           int nrFrames, final double maxDistance) {
+      final ArrayList<GaussianSpotData>[] ch1 = new ArrayList[nrFrames];
+      final ArrayList<GaussianSpotData>[] ch2 = new ArrayList[nrFrames];
+      for (int i = 0; i < nrFrames; i++) {
+         ch1[i] = new ArrayList<GaussianSpotData>();
+         ch2[i] = new ArrayList<GaussianSpotData>();
+      }
+      for (GaussianSpotData gs : spots) {
+         int frame = gs.getFrame();
+         if (frame < 1 || frame > nrFrames) {
+            continue;
+         }
+         if (gs.getChannel() == 1) {
+            ch1[frame - 1].add(gs);
+         } else if (gs.getChannel() == 2) {
+            ch2[frame - 1].add(gs);
+         }
+      }
+
+      final ArrayList<GsSpotPair>[] pairs = new ArrayList[nrFrames];
+      runParallel(nrFrames, new Task() {
+         public void run(int f) {
+            if (ch2[f].isEmpty()) {
+               return;
+            }
+            double[] xs = new double[ch2[f].size()];
+            double[] ys = new double[ch2[f].size()];
+            for (int i = 0; i < xs.length; i++) {
+               xs[i] = ch2[f].get(i).getXCenter();
+               ys[i] = ch2[f].get(i).getYCenter();
+            }
+            SpotKdTree tree = new SpotKdTree(xs, ys);
+            ArrayList<GsSpotPair> framePairs = new ArrayList<GsSpotPair>();
+            for (GaussianSpotData gs : ch1[f]) {
+               int nearest = tree.findNearest(gs.getXCenter(), gs.getYCenter(), maxDistance);
+               if (nearest >= 0) {
+                  framePairs.add(new GsSpotPair(gs,
+                          new Point2D.Double(gs.getXCenter(), gs.getYCenter()),
+                          new Point2D.Double(xs[nearest], ys[nearest])));
+               }
+            }
+            pairs[f] = framePairs;
+         }
+      });
+
+      ArrayList<ArrayList<GsSpotPair>> result = new ArrayList<ArrayList<GsSpotPair>>(nrFrames);
+      for (int f = 0; f < nrFrames; f++) {
+         result.add(pairs[f]);
+      }
+      return result;
+   }
+
+   /**
+    * Starts a track at every pair in frame 1, and follows it through the
+    * following frames: a pair closer than maxDistance to the last pair of the
+    * track (by its channel 1 position) is added to the track.  Frames without
+    * such a pair are skipped.
+    *
+    * @param pairsByFrame - pairs for each frame, as returned by findPairs
+    * @param maxDistance - maximum distance between pairs in consecutive frames
+    * @return the tracks, in the order of their first pair
+    */
+   @SuppressWarnings("unchecked")
+   public ArrayList<ArrayList<GsSpotPair>> linkTracks(
+           final ArrayList<ArrayList<GsSpotPair>> pairsByFrame, final double maxDistance) {
+      final int nrFrames = pairsByFrame.size();
+      final SpotKdTree[] trees = new SpotKdTree[nrFrames];
+      runParallel(nrFrames, new Task() {
+         public void run(int f) {
+            List<GsSpotPair> framePairs = pairsByFrame.get(f);
+            int n = framePairs == null ? 0 : framePairs.size();
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            for (int i = 0; i < n; i++) {
+               xs[i] = framePairs.get(i).getfp().getX();
+               ys[i] = framePairs.get(i).getfp().getY();
+            }
+            trees[f] = new SpotKdTree(xs, ys);
+         }
+      });
+
+      // for now, we only start tracks at frame number 1
+      final ArrayList<GsSpotPair> starts = new ArrayList<GsSpotPair>();
+      if (nrFrames > 0 && pairsByFrame.get(0) != null) {
+         for (GsSpotPair pair : pairsByFrame.get(0)) {
+            if (pair.getGSD().getFrame() == 1) {
+               starts.add(pair);
+            }
+         }
+      }
+
+      final ArrayList<GsSpotPair>[] tracks = new ArrayList[starts.size()];
+      final int nrTasks = Math.min(starts.size(), nrThreads_ * TASKS_PER_THREAD);
+      runParallel(nrTasks, new Task() {
+         public void run(int task) {
+            for (int t = task; t < tracks.length; t += nrTasks) {
+               GsSpotPair spotPair = starts.get(t);
+               ArrayList<GsSpotPair> track = new ArrayList<GsSpotPair>();
+               track.add(spotPair);
+               for (int f = 1; f < nrFrames; f++) {
+                  int nearest = trees[f].findNearest(spotPair.getfp().getX(),
+                          spotPair.getfp().getY(), maxDistance);
+                  if (nearest >= 0) {
+                     spotPair = pairsByFrame.get(f).get(nearest);
+                     track.add(spotPair);
+                  }
+               }
+               tracks[t] = track;
+            }
+         }
+      });
+
+      ArrayList<ArrayList<GsSpotPair>> result = new ArrayList<ArrayList<GsSpotPair>>(tracks.length);
+      for (ArrayList<GsSpotPair> track : tracks) {
+         if (track != null) {
+            result.add(track);
+         }
+      }
+      return result;
+   }
+}
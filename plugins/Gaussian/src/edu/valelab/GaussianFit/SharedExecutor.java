@@ -0,0 +1,47 @@
+/**
+ * Thread pool shared by the parallel parts of the plugin
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+
+package edu.valelab.GaussianFit;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One daemon thread per processor, created when first needed and kept for
+ * the lifetime of the plugin, so that rendering and drift correction do not
+ * each start and stop threads on every call.
+ *
+ * Tasks run on this pool must not themselves wait for other tasks on it.
+ *
+ * @author nico
+ */
+class SharedExecutor {
+
+   private static ExecutorService executor_;
+
+   private SharedExecutor() {
+   }
+
+   static synchronized ExecutorService get() {
+      if (executor_ == null) {
+         executor_ = Executors.newFixedThreadPool(
+                 Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                       Thread thread = new Thread(r, "Localization worker");
+                       thread.setDaemon(true);
+                       return thread;
+                    }
+                 });
+      }
+      return executor_;
+   }
+}
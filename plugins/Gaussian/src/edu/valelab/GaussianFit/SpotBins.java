@@ -0,0 +1,160 @@
+/**
+ * Spatial binning of the spots of a data set, used for rendering
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+
+package edu.valelab.GaussianFit;
+
+import edu.valelab.GaussianFit.utils.RowData;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The spots of a data set sorted into a grid of bins of one camera pixel,
+ * with the properties needed for rendering copied into columns.  Rendering a
+ * region only needs to look at the bins covering that region.
+ *
+ * Bins are built once per data set and cached for as long as the data set
+ * exists, so that rendering again (at another zoom, or with another filter)
+ * does not walk the spot list again.  Immutable, hence safe to use from
+ * multiple threads.
+ *
+ * @author nico
+ */
+public class SpotBins {
+   private static final Map<RowData, SpotBins> cache_ =
+           new WeakHashMap<RowData, SpotBins>();
+
+   private final int nrSpots_;
+   private final double binSizeNm_;
+   private final int nx_;
+   private final int ny_;
+   // spots of bin (bx, by) are binStart_[by * nx_ + bx] up to the next entry
+   private final int[] binStart_;
+   private final double[] x_;
+   private final double[] y_;
+   private final float[] z_;
+   private final double[] sigma_;
+   private final double[] intensity_;
+
+   /**
+    * Returns the bins of rowData, building them if they do not yet exist
+    */
+   public static SpotBins get(RowData rowData) {
+      synchronized (cache_) {
+         SpotBins bins = cache_.get(rowData);
+         if (bins == null || bins.nrSpots_ != rowData.spotList_.size()) {
+            bins = new SpotBins(rowData);
+            cache_.put(rowData, bins);
+         }
+         return bins;
+      }
+   }
+
+   private SpotBins(RowData rowData) {
+      nrSpots_ = rowData.spotList_.size();
+      binSizeNm_ = rowData.pixelSizeNm_ > 0 ? rowData.pixelSizeNm_ : 1.0;
+      nx_ = Math.max(1, rowData.width_);
+      ny_ = Math.max(1, rowData.height_);
+
+      // count the spots of each bin, then place them by counting sort
+      int[] bins = new int[nrSpots_];
+      binStart_ = new int[nx_ * ny_ + 1];
+      int i = 0;
+      for (GaussianSpotData spot : rowData.spotList_) {
+         int bin = spot == null ? -1
+                 : binY(spot.getYCenter()) * nx_ + binX(spot.getXCenter());
+         bins[i++] = bin;
+         if (bin >= 0) {
+            binStart_[bin + 1]++;
+         }
+      }
+      for (int b = 1; b < binStart_.length; b++) {
+         binStart_[b] += binStart_[b - 1];
+      }
+      int n = binStart_[binStart_.length - 1];
+      x_ = new double[n];
+      y_ = new double[n];
+      z_ = new float[n];
+      sigma_ = new double[n];
+      intensity_ = new double[n];
+      int[] next = new int[nx_ * ny_];
+      System.arraycopy(binStart_, 0, next, 0, next.length);
+      i = 0;
+      for (GaussianSpotData spot : rowData.spotList_) {
+         int bin = bins[i++];
+         if (bin < 0) {
+            continue;
+         }
+         int j = next[bin]++;
+         x_[j] = spot.getXCenter();
+         y_[j] = spot.getYCenter();
+         z_[j] = (float) spot.getZCenter();
+         sigma_[j] = spot.getSigma();
+         intensity_[j] = spot.getIntensity();
+      }
+   }
+
+   /**
+    * Bin column containing x (in nm).  Spots outside the image go into the
+    * bins at its edge
+    */
+   public int binX(double x) {
+      return Math.max(0, Math.min(nx_ - 1, (int) Math.floor(x / binSizeNm_)));
+   }
+
+   public int binY(double y) {
+      return Math.max(0, Math.min(ny_ - 1, (int) Math.floor(y / binSizeNm_)));
+   }
+
+   public int getNrBinsX() {
+      return nx_;
+   }
+
+   public int getNrBinsY() {
+      return ny_;
+   }
+
+   /**
+    * First spot in bin (bx, by).  Spots in the bin are getStart(bx, by) up to
+    * getEnd(bx, by); spots in bx, bx + 1, ... of the same row follow each other
+    */
+   public int getStart(int bx, int by) {
+      return binStart_[by * nx_ + bx];
+   }
+
+   public int getEnd(int bx, int by) {
+      return binStart_[by * nx_ + bx + 1];
+   }
+
+   public int size() {
+      return x_.length;
+   }
+
+
+   public double getXCenter(int i) {
+      return x_[i];
+   }
+
+   public double getYCenter(int i) {
+      return y_[i];
+   }
+
+   public double getZCenter(int i) {
+      return z_[i];
+   }
+
+   public double getSigma(int i) {
+      return sigma_[i];
+   }
+
+   public double getIntensity(int i) {
+      return intensity_[i];
+   }
+}
@@ -0,0 +1,49 @@
+/**
+ * Unit of work for the fitting threads
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+
+package edu.valelab.GaussianFit;
+
+/**
+ * A group of spots found in one image, together with the pixels of that
+ * image.  The spots of one image can be split over several chunks, which all
+ * share the same pixel array, so spots are not copied into images of their
+ * own until a fitting thread gets to them.
+ *
+ * @author nico
+ */
+public class SpotChunk {
+   public final short[] pixels_;
+   public final int width_;
+   public final int channel_;
+   public final int slice_;
+   public final int frame_;
+   public final int position_;
+   // spots are xs_[i], ys_[i] for i from first_ to first_ + count_ - 1;
+   // i is also the spot index within the image
+   public final int[] xs_;
+   public final int[] ys_;
+   public final int first_;
+   public final int count_;
+
+   public SpotChunk(short[] pixels, int width, int channel, int slice,
+           int frame, int position, int[] xs, int[] ys, int first, int count) {
+      pixels_ = pixels;
+      width_ = width;
+      channel_ = channel;
+      slice_ = slice;
+      frame_ = frame;
+      position_ = position;
+      xs_ = xs;
+      ys_ = ys;
+      first_ = first;
+      count_ = count;
+   }
+}
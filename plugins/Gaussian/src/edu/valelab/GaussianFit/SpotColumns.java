@@ -0,0 +1,46 @@
+/**
+ * Read access to spots stored column by column
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+
+package edu.valelab.GaussianFit;
+
+/**
+ * Spots stored as one column per property, in memory (SpotTable) or in a
+ * memory-mapped file (ColumnarSpotFile).  Getters have the same meaning and
+ * units as the corresponding getters of GaussianSpotData.
+ *
+ * @author nico
+ */
+public interface SpotColumns {
+
+   public int size();
+
+   public int getChannel(int i);
+   public int getSlice(int i);
+   public int getFrame(int i);
+   public int getPosition(int i);
+   public int getNr(int i);
+   public int getX(int i);
+   public int getY(int i);
+   public double getIntensity(int i);
+   public double getBackground(int i);
+   public double getXCenter(int i);
+   public double getYCenter(int i);
+   public double getZCenter(int i);
+   public double getWidth(int i);
+   public double getA(int i);
+   public double getTheta(int i);
+   public double getSigma(int i);
+
+   /**
+    * Creates a GaussianSpotData object (without image data) for spot i
+    */
+   public GaussianSpotData getSpot(int i);
+}
@@ -35,12 +35,23 @@ public class SpotDataFilter {
     * @return true if spot is acceptable
     */
    public boolean filter (GaussianSpotData spot) {
+      return filter(spot.getSigma(), spot.getIntensity());
+   }
+   
+   /**
+    * Indicates whether or not a spot with these properties is acceptable
+    * 
+    * @param sigma - sigma of the spot
+    * @param intensity - intensity of the spot
+    * @return true if spot is acceptable
+    */
+   public boolean filter (double sigma, double intensity) {
       if (useSigma_) {
-         if (spot.getSigma() < sigmaMin_ || spot.getSigma() > sigmaMax_)
+         if (sigma < sigmaMin_ || sigma > sigmaMax_)
             return false;
       }
       if (useIntensity_) {
-         if (spot.getIntensity() < intensityMin_ || spot.getIntensity() > intensityMax_)
+         if (intensity < intensityMin_ || intensity > intensityMax_)
             return false;
       }
       
@@ -0,0 +1,140 @@
+/**
+ * Static 2D kd-tree over the spots of one frame
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+
+package edu.valelab.GaussianFit;
+
+/**
+ * Kd-tree for nearest neighbor searches within a maximum distance, built once
+ * from arrays of coordinates.  The tree is stored implicitly in one index
+ * array (the median of each range is its root), and is never changed after
+ * construction, so any number of threads can search it at the same time.
+ * The kd-tree in ags.utils keeps search state in its nodes and can only be
+ * searched by one thread at a time.
+ *
+ * @author nico
+ */
+public class SpotKdTree {
+   private final double[] xs_;
+   private final double[] ys_;
+   // points in tree order
+   private final int[] index_;
+
+   /**
+    * @param xs - x coordinates of the points
+    * @param ys - y coordinates of the points, same length as xs
+    */
+   public SpotKdTree(double[] xs, double[] ys) {
+      xs_ = xs;
+      ys_ = ys;
+      index_ = new int[xs.length];
+      for (int i = 0; i < index_.length; i++) {
+         index_[i] = i;
+      }
+      build(0, index_.length, 0);
+   }
+
+   public int size() {
+      return index_.length;
+   }
+
+   private double coordinate(int point, int axis) {
+      return axis == 0 ? xs_[point] : ys_[point];
+   }
+
+   private void build(int from, int to, int axis) {
+      if (to - from < 2) {
+         return;
+      }
+      int median = (from + to) >>> 1;
+      select(from, to - 1, median, axis);
+      build(from, median, 1 - axis);
+      build(median + 1, to, 1 - axis);
+   }
+
+   /**
+    * Reorders index_[left..right] so that the element at k is the one that
+    * would be there if the range were sorted along axis (quickselect)
+    */
+   private void select(int left, int right, int k, int axis) {
+      while (right > left) {
+         double pivot = coordinate(index_[(left + right) >>> 1], axis);
+         int i = left;
+         int j = right;
+         while (i <= j) {
+            while (coordinate(index_[i], axis) < pivot) {
+               i++;
+            }
+            while (coordinate(index_[j], axis) > pivot) {
+               j--;
+            }
+            if (i <= j) {
+               int tmp = index_[i];
+               index_[i] = index_[j];
+               index_[j] = tmp;
+               i++;
+               j--;
+            }
+         }
+         if (k <= j) {
+            right = j;
+         } else if (k >= i) {
+            left = i;
+         } else {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Finds the point nearest to (x, y)
+    *
+    * @param maxDistance - only points closer than this are considered
+    * @return index of the point in the arrays given to the constructor, or -1
+    * if no point is closer than maxDistance
+    */
+   public int findNearest(double x, double y, double maxDistance) {
+      // best[0]: squared distance of the best point so far, best[1]: its index
+      double[] best = {maxDistance * maxDistance, -1};
+      search(0, index_.length, 0, x, y, best);
+      return (int) best[1];
+   }
+
+   private void search(int from, int to, int axis, double x, double y, double[] best) {
+      while (to > from) {
+         int median = (from + to) >>> 1;
+         int point = index_[median];
+         double dx = xs_[point] - x;
+         double dy = ys_[point] - y;
+         double d2 = dx * dx + dy * dy;
+         if (d2 < best[0]) {
+            best[0] = d2;
+            best[1] = point;
+         }
+         double diff = axis == 0 ? x - xs_[point] : y - ys_[point];
+         // search the side containing (x, y) first, the other side only if
+         // it can hold a closer point
+         if (diff < 0) {
+            search(from, median, 1 - axis, x, y, best);
+            if (diff * diff >= best[0]) {
+               return;
+            }
+            from = median + 1;
+         } else {
+            search(median + 1, to, 1 - axis, x, y, best);
+            if (diff * diff >= best[0]) {
+               return;
+            }
+            to = median;
+         }
+         axis = 1 - axis;
+      }
+   }
+}
@@ -0,0 +1,52 @@
+/**
+ * List view of spots stored column by column
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+
+package edu.valelab.GaussianFit;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only List of GaussianSpotData backed by SpotColumns, so that code
+ * written for spot lists can work on columnar data.  Spot objects are created
+ * when they are requested and not kept, hence a data set of millions of spots
+ * occupies no heap beyond its columns.  Since every call to get creates a new
+ * object, changes made to a spot taken from the list are not kept either.
+ * Code that can work on the columns directly should use getColumns().
+ *
+ * @author nico
+ */
+public class SpotListView extends AbstractList<GaussianSpotData>
+        implements RandomAccess {
+   private final SpotColumns columns_;
+
+   public SpotListView(SpotColumns columns) {
+      columns_ = columns;
+   }
+
+   public SpotColumns getColumns() {
+      return columns_;
+   }
+
+   @Override
+   public GaussianSpotData get(int index) {
+      if (index < 0 || index >= columns_.size()) {
+         throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                 + columns_.size());
+      }
+      return columns_.getSpot(index);
+   }
+
+   @Override
+   public int size() {
+      return columns_.size();
+   }
+}
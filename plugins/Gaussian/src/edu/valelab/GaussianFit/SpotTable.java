@@ -0,0 +1,229 @@
+/**
+ * Column-wise storage for the results of Gaussian fitting
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+
+package edu.valelab.GaussianFit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds fitted spots as columns of primitive arrays (one array per property)
+ * rather than as one object per spot, so that millions of localizations take
+ * a few tens of bytes each and no garbage.  Columns grow by doubling.
+ *
+ * Not thread safe: give each thread its own table and merge them with addAll.
+ *
+ * @author nico
+ */
+public class SpotTable implements SpotColumns {
+   private static final int INITIAL_CAPACITY = 1024;
+
+   private int size_ = 0;
+   private int[] channel_;
+   private int[] slice_;
+   private int[] frame_;
+   private int[] position_;
+   private int[] nr_;
+   private int[] x_;
+   private int[] y_;
+   private double[] intensity_;
+   private double[] background_;
+   private double[] xCenter_;
+   private double[] yCenter_;
+   private double[] zCenter_;
+   private double[] width_;
+   private double[] a_;
+   private double[] theta_;
+   private double[] sigma_;
+
+   public SpotTable() {
+      this(INITIAL_CAPACITY);
+   }
+
+   public SpotTable(int capacity) {
+      capacity = Math.max(capacity, 1);
+      channel_ = new int[capacity];
+      slice_ = new int[capacity];
+      frame_ = new int[capacity];
+      position_ = new int[capacity];
+      nr_ = new int[capacity];
+      x_ = new int[capacity];
+      y_ = new int[capacity];
+      intensity_ = new double[capacity];
+      background_ = new double[capacity];
+      xCenter_ = new double[capacity];
+      yCenter_ = new double[capacity];
+      zCenter_ = new double[capacity];
+      width_ = new double[capacity];
+      a_ = new double[capacity];
+      theta_ = new double[capacity];
+      sigma_ = new double[capacity];
+   }
+
+   private void ensureCapacity(int capacity) {
+      if (capacity <= channel_.length) {
+         return;
+      }
+      int newCapacity = Math.max(capacity, 2 * channel_.length);
+      channel_ = Arrays.copyOf(channel_, newCapacity);
+      slice_ = Arrays.copyOf(slice_, newCapacity);
+      frame_ = Arrays.copyOf(frame_, newCapacity);
+      position_ = Arrays.copyOf(position_, newCapacity);
+      nr_ = Arrays.copyOf(nr_, newCapacity);
+      x_ = Arrays.copyOf(x_, newCapacity);
+      y_ = Arrays.copyOf(y_, newCapacity);
+      intensity_ = Arrays.copyOf(intensity_, newCapacity);
+      background_ = Arrays.copyOf(background_, newCapacity);
+      xCenter_ = Arrays.copyOf(xCenter_, newCapacity);
+      yCenter_ = Arrays.copyOf(yCenter_, newCapacity);
+      zCenter_ = Arrays.copyOf(zCenter_, newCapacity);
+      width_ = Arrays.copyOf(width_, newCapacity);
+      a_ = Arrays.copyOf(a_, newCapacity);
+      theta_ = Arrays.copyOf(theta_, newCapacity);
+      sigma_ = Arrays.copyOf(sigma_, newCapacity);
+   }
+
+   /**
+    * Appends a spot.  Arguments have the same meaning and units as the
+    * corresponding fields of GaussianSpotData
+    * @return index of the new spot
+    */
+   public int add(int channel, int slice, int frame, int position, int nr,
+           int x, int y, double intensity, double background, double xCenter,
+           double yCenter, double zCenter, double width, double a,
+           double theta, double sigma) {
+      ensureCapacity(size_ + 1);
+      int i = size_++;
+      channel_[i] = channel;
+      slice_[i] = slice;
+      frame_[i] = frame;
+      position_[i] = position;
+      nr_[i] = nr;
+      x_[i] = x;
+      y_[i] = y;
+      intensity_[i] = intensity;
+      background_[i] = background;
+      xCenter_[i] = xCenter;
+      yCenter_[i] = yCenter;
+      zCenter_[i] = zCenter;
+      width_[i] = width;
+      a_[i] = a;
+      theta_[i] = theta;
+      sigma_[i] = sigma;
+      return i;
+   }
+
+   /**
+    * Appends all spots of another table
+    */
+   public void addAll(SpotTable other) {
+      int n = other.size_;
+      ensureCapacity(size_ + n);
+      System.arraycopy(other.channel_, 0, channel_, size_, n);
+      System.arraycopy(other.slice_, 0, slice_, size_, n);
+      System.arraycopy(other.frame_, 0, frame_, size_, n);
+      System.arraycopy(other.position_, 0, position_, size_, n);
+      System.arraycopy(other.nr_, 0, nr_, size_, n);
+      System.arraycopy(other.x_, 0, x_, size_, n);
+      System.arraycopy(other.y_, 0, y_, size_, n);
+      System.arraycopy(other.intensity_, 0, intensity_, size_, n);
+      System.arraycopy(other.background_, 0, background_, size_, n);
+      System.arraycopy(other.xCenter_, 0, xCenter_, size_, n);
+      System.arraycopy(other.yCenter_, 0, yCenter_, size_, n);
+      System.arraycopy(other.zCenter_, 0, zCenter_, size_, n);
+      System.arraycopy(other.width_, 0, width_, size_, n);
+      System.arraycopy(other.a_, 0, a_, size_, n);
+      System.arraycopy(other.theta_, 0, theta_, size_, n);
+      System.arraycopy(other.sigma_, 0, sigma_, size_, n);
+      size_ += n;
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   public void clear() {
+      size_ = 0;
+   }
+
+   public int getChannel(int i) {
+      return channel_[i];
+   }
+   public int getSlice(int i) {
+      return slice_[i];
+   }
+   public int getFrame(int i) {
+      return frame_[i];
+   }
+   public int getPosition(int i) {
+      return position_[i];
+   }
+   public int getNr(int i) {
+      return nr_[i];
+   }
+   public int getX(int i) {
+      return x_[i];
+   }
+   public int getY(int i) {
+      return y_[i];
+   }
+   public double getIntensity(int i) {
+      return intensity_[i];
+   }
+   public double getBackground(int i) {
+      return background_[i];
+   }
+   public double getXCenter(int i) {
+      return xCenter_[i];
+   }
+   public double getYCenter(int i) {
+      return yCenter_[i];
+   }
+   public double getZCenter(int i) {
+      return zCenter_[i];
+   }
+   public double getWidth(int i) {
+      return width_[i];
+   }
+   public double getA(int i) {
+      return a_[i];
+   }
+   public double getTheta(int i) {
+      return theta_[i];
+   }
+   public double getSigma(int i) {
+      return sigma_[i];
+   }
+
+   /**
+    * Creates a GaussianSpotData object (without image data) for spot i
+    */
+   public GaussianSpotData getSpot(int i) {
+      GaussianSpotData spot = new GaussianSpotData(null, channel_[i], slice_[i],
+              frame_[i], position_[i], nr_[i], x_[i], y_[i]);
+      spot.setData(intensity_[i], background_[i], xCenter_[i], yCenter_[i],
+              zCenter_[i], width_[i], a_[i], theta_[i], sigma_[i]);
+      spot.setZCenter(zCenter_[i]);
+      return spot;
+   }
+
+   /**
+    * Converts the table to the object-per-spot form used by the data window
+    */
+   public List<GaussianSpotData> toSpotList() {
+      List<GaussianSpotData> spotList = new ArrayList<GaussianSpotData>(size_);
+      for (int i = 0; i < size_; i++) {
+         spotList.add(getSpot(i));
+      }
+      return spotList;
+   }
+}
@@ -10,8 +10,10 @@
  */
 package edu.valelab.GaussianFit.utils;
 
+import edu.valelab.GaussianFit.ColumnarSpotFile;
 import edu.valelab.GaussianFit.DataCollectionForm.Coordinates;
 import edu.valelab.GaussianFit.GaussianSpotData;
+import edu.valelab.GaussianFit.SpotListView;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -176,6 +178,16 @@ import java.util.Map;
          int nr = nrSlices_;
          if (useFrames)
             nr = nrFrames_;
+         // spots in a columnar file are sorted by frame already
+         if (spotList_ instanceof SpotListView) {
+            SpotListView view = (SpotListView) spotList_;
+            if (view.getColumns() instanceof ColumnarSpotFile) {
+               frameIndexSpotList_ = ((ColumnarSpotFile) view.getColumns()).
+                       frameIndex(spotList_, useFrames);
+               if (frameIndexSpotList_ != null)
+                  return;
+            }
+         }
          frameIndexSpotList_ = new HashMap<Integer, List<GaussianSpotData>>(nr);
          for (GaussianSpotData spot : spotList_) {
             int index = spot.getSlice();
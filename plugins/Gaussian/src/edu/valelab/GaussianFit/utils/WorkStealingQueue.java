@@ -0,0 +1,134 @@
+/**
+ * WorkStealingQueue
+ *
+ * Bounded queue handing out work to a fixed set of consumer threads
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ *
+ */
+package edu.valelab.GaussianFit.utils;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every consumer owns a bounded deque.  Producers spread items over the deques
+ * and block when all of them are full, so producers can never run far ahead
+ * of the consumers.  A consumer takes from the head of its own deque, and
+ * when that is empty steals from the tail of the others, so no consumer sits
+ * idle while work is waiting elsewhere.
+ *
+ * After close(), take returns null once all deques are empty, and put
+ * throws.  The queue closes itself when every consumer has called
+ * consumerDone(), so producers never wait for consumers that are gone.
+ *
+ * @author nico
+ */
+public class WorkStealingQueue<T> {
+   private static final long POLL_MS = 10;
+
+   private final LinkedBlockingDeque<T>[] deques_;
+   private final AtomicInteger next_ = new AtomicInteger();
+   private final AtomicInteger liveConsumers_;
+   private volatile boolean closed_ = false;
+
+   @SuppressWarnings("unchecked")
+   public WorkStealingQueue(int nrConsumers, int capacityPerConsumer) {
+      deques_ = new LinkedBlockingDeque[nrConsumers];
+      liveConsumers_ = new AtomicInteger(nrConsumers);
+      for (int i = 0; i < nrConsumers; i++) {
+         deques_[i] = new LinkedBlockingDeque<T>(capacityPerConsumer);
+      }
+   }
+
+   public int getNrConsumers() {
+      return deques_.length;
+   }
+
+   /**
+    * Adds an item to the first deque (in round robin order) that has room,
+    * waiting for room if there is none
+    * @throws IllegalStateException if the queue is closed
+    */
+   public void put(T item) throws InterruptedException {
+      int first = (next_.getAndIncrement() & Integer.MAX_VALUE) % deques_.length;
+      while (true) {
+         if (closed_) {
+            throw new IllegalStateException("Queue is closed");
+         }
+         for (int i = 0; i < deques_.length; i++) {
+            if (deques_[(first + i) % deques_.length].offerLast(item)) {
+               return;
+            }
+         }
+         if (deques_[first].offerLast(item, POLL_MS, TimeUnit.MILLISECONDS)) {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Returns the next item for the given consumer, waiting if there is none.
+    * Returns null when the queue is closed and empty.
+    */
+   public T take(int consumer) throws InterruptedException {
+      LinkedBlockingDeque<T> own = deques_[consumer];
+      while (true) {
+         T item = own.pollFirst();
+         if (item != null) {
+            return item;
+         }
+         for (int i = 1; i < deques_.length; i++) {
+            item = deques_[(consumer + i) % deques_.length].pollLast();
+            if (item != null) {
+               return item;
+            }
+         }
+         if (closed_ && size() == 0) {
+            return null;
+         }
+         item = own.pollFirst(POLL_MS, TimeUnit.MILLISECONDS);
+         if (item != null) {
+            return item;
+         }
+      }
+   }
+
+   /**
+    * Signals that no more items will be put
+    */
+   public void close() {
+      closed_ = true;
+   }
+
+   /**
+    * Called by each consumer when it stops taking items, for whatever
+    * reason.  Closes the queue when the last consumer is done.
+    */
+   public void consumerDone() {
+      if (liveConsumers_.decrementAndGet() <= 0) {
+         close();
+      }
+   }
+
+   /**
+    * Drops all items that were not taken yet
+    */
+   public void clear() {
+      for (LinkedBlockingDeque<T> deque : deques_) {
+         deque.clear();
+      }
+   }
+
+   public int size() {
+      int size = 0;
+      for (LinkedBlockingDeque<T> deque : deques_) {
+         size += deque.size();
+      }
+      return size;
+   }
+}
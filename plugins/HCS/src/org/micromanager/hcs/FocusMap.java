@@ -0,0 +1,299 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           FocusMap.java
+//PROJECT:        Micro-Manager
+//SUBSYSTEM:      high content screening
+//-----------------------------------------------------------------------------
+
+//COPYRIGHT:      UCSF, 2013
+
+//LICENSE:        This file is distributed under the LGPL license.
+//                License text is included with the source distribution.
+
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.hcs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.micromanager.navigation.MultiStagePosition;
+
+/**
+ * Focus positions measured across a plate, used to predict the focus
+ * position of new sites.
+ *
+ * Points are kept in a grid of square cells, so that the points near a site
+ * are found without looking at the others. The prediction is a local
+ * weighted regression: a plane is fitted through the nearest points, with
+ * weights falling off with distance (tricube), and evaluated at the site.
+ * Adding a point only stores it; there is no global fit to update.
+ *
+ * Each prediction comes with an uncertainty (one standard deviation, in um)
+ * combining the scatter of the points around the local plane (at least the
+ * expected measurement error) and the uncertainty of the plane itself at the
+ * site, which grows when extrapolating away from the points. The scatter
+ * can only be estimated from more points than the plane has parameters, so
+ * where the weighted number of points is below MIN_POINTS (or the points
+ * are on a line) the uncertainty is infinite.
+ */
+public class FocusMap {
+   // number of nearest points used for a prediction
+   private static final int NEIGHBORS = 12;
+   // the weight of the farthest neighbor is that of the distance divided by
+   // this factor
+   private static final double BANDWIDTH_FACTOR = 1.5;
+   // smallest effective number of points for a finite uncertainty, leaving
+   // at least 2 degrees of freedom for the scatter around the plane
+   private static final double MIN_POINTS = 5.0;
+
+   private final double cellSize_;
+   private double measurementError_;
+   private final HashMap<Long, ArrayList<double[]>> cells_ =
+         new HashMap<Long, ArrayList<double[]>>();
+   private int size_ = 0;
+
+   /**
+    * Predicted focus position
+    */
+   public static class Prediction {
+      public final double z;
+      public final double uncertainty;
+      public final int nrPoints;
+
+      Prediction(double z, double uncertainty, int nrPoints) {
+         this.z = z;
+         this.uncertainty = uncertainty;
+         this.nrPoints = nrPoints;
+      }
+   }
+
+   /**
+    * @param cellSize - edge of the grid cells in um, for instance the well
+    *                   spacing
+    * @param measurementError - expected standard deviation (in um) of a
+    *                   single focus measurement
+    */
+   public FocusMap(double cellSize, double measurementError) {
+      cellSize_ = cellSize > 0 ? cellSize : 1000.0;
+      measurementError_ = Math.max(0.0, measurementError);
+   }
+
+   public synchronized void add(double x, double y, double z) {
+      long key = key(cell(x), cell(y));
+      ArrayList<double[]> points = cells_.get(key);
+      if (points == null) {
+         points = new ArrayList<double[]>();
+         cells_.put(key, points);
+      }
+      points.add(new double[] {x, y, z});
+      size_++;
+   }
+
+   /**
+    * Adds the x, y and z positions of the default stages of the given
+    * positions
+    */
+   public void add(MultiStagePosition posList[]) {
+      for (MultiStagePosition mps : posList) {
+         add(mps.getX(), mps.getY(), mps.getZ());
+      }
+   }
+
+   /**
+    * @param measurementError - expected standard deviation (in um) of a
+    *                   single focus measurement
+    */
+   public synchronized void setMeasurementError(double measurementError) {
+      measurementError_ = Math.max(0.0, measurementError);
+   }
+
+   public synchronized void clear() {
+      cells_.clear();
+      size_ = 0;
+   }
+
+   public synchronized int size() {
+      return size_;
+   }
+
+   public synchronized Prediction predict(double x, double y) {
+      ArrayList<double[]> near = nearest(x, y, NEIGHBORS);
+      if (near.isEmpty()) {
+         return new Prediction(Double.NaN, Double.POSITIVE_INFINITY, 0);
+      }
+      double maxDist = 0.0;
+      for (double[] p : near) {
+         maxDist = Math.max(maxDist, distance(p, x, y));
+      }
+      double bandwidth = Math.max(BANDWIDTH_FACTOR * maxDist, 1.0e-6);
+
+      // weighted least squares fit of z = a + b * dx + c * dy, with dx, dy
+      // relative to the site, so that a is the prediction
+      double[][] m = new double[3][3];
+      double[] v = new double[3];
+      double sumW = 0.0;
+      double sumW2 = 0.0;
+      double sumWZ = 0.0;
+      double[] w = new double[near.size()];
+      for (int i = 0; i < w.length; i++) {
+         double[] p = near.get(i);
+         double u = distance(p, x, y) / bandwidth;
+         double t = 1.0 - u * u * u;
+         w[i] = t * t * t;
+         double[] f = {1.0, p[0] - x, p[1] - y};
+         for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+               m[r][c] += w[i] * f[r] * f[c];
+            }
+            v[r] += w[i] * f[r] * p[2];
+         }
+         sumW += w[i];
+         sumW2 += w[i] * w[i];
+         sumWZ += w[i] * p[2];
+      }
+      double[][] inv = invert(m);
+      if (inv == null) {
+         // too few points, or all on a line: the tilt is unknown
+         return new Prediction(sumWZ / sumW, Double.POSITIVE_INFINITY,
+               near.size());
+      }
+      // effective number of points given their weights
+      double nEff = sumW * sumW / sumW2;
+      double a = 0.0;
+      double b = 0.0;
+      double c = 0.0;
+      for (int k = 0; k < 3; k++) {
+         a += inv[0][k] * v[k];
+         b += inv[1][k] * v[k];
+         c += inv[2][k] * v[k];
+      }
+
+      // scatter around the plane, at least the measurement error, and the
+      // variance of a per unit variance of the points. The weights are not
+      // the inverse variances of the points, so this is the sandwich form
+      // (X'WX)^-1 X'W^2X (X'WX)^-1, whose [0][0] entry is the sum of
+      // (w_i * l_i)^2 with l_i row 0 of (X'WX)^-1 applied to point i.
+      double sumWR2 = 0.0;
+      double varianceFactor = 0.0;
+      for (int i = 0; i < w.length; i++) {
+         double[] p = near.get(i);
+         double dx = p[0] - x;
+         double dy = p[1] - y;
+         double r = p[2] - (a + b * dx + c * dy);
+         sumWR2 += w[i] * r * r;
+         double l = inv[0][0] + inv[0][1] * dx + inv[0][2] * dy;
+         varianceFactor += w[i] * w[i] * l * l;
+      }
+      if (nEff < MIN_POINTS) {
+         // the scatter around the plane can't be estimated
+         return new Prediction(a, Double.POSITIVE_INFINITY, near.size());
+      }
+      double variance = Math.max(measurementError_ * measurementError_,
+            sumWR2 / sumW * nEff / (nEff - 3.0));
+      // variance of a point measured at the site plus that of the plane
+      double uncertainty = Math.sqrt(variance * (1.0 + varianceFactor));
+      return new Prediction(a, uncertainty, near.size());
+   }
+
+   /**
+    * The (at most) k points nearest to (x, y), found by searching rings of
+    * cells around the cell of (x, y)
+    */
+   private ArrayList<double[]> nearest(double x, double y, int k) {
+      ArrayList<double[]> found = new ArrayList<double[]>();
+      if (size_ == 0) {
+         return found;
+      }
+      int cx = cell(x);
+      int cy = cell(y);
+      int visited = 0;
+      for (int ring = 0; visited < size_; ring++) {
+         for (int i = -ring; i <= ring; i++) {
+            for (int j = -ring; j <= ring; j++) {
+               if (Math.max(Math.abs(i), Math.abs(j)) != ring) {
+                  continue;
+               }
+               ArrayList<double[]> points = cells_.get(key(cx + i, cy + j));
+               if (points != null) {
+                  found.addAll(points);
+                  visited += points.size();
+               }
+            }
+         }
+         // points outside the rings searched so far are at least
+         // ring * cellSize_ away
+         if (found.size() >= k
+               && kthDistance(found, x, y, k) <= ring * cellSize_) {
+            break;
+         }
+      }
+      sortByDistance(found, x, y);
+      while (found.size() > k) {
+         found.remove(found.size() - 1);
+      }
+      return found;
+   }
+
+   private static double kthDistance(ArrayList<double[]> points, double x,
+         double y, int k) {
+      sortByDistance(points, x, y);
+      return distance(points.get(k - 1), x, y);
+   }
+
+   private static void sortByDistance(ArrayList<double[]> points,
+         final double x, final double y) {
+      Collections.sort(points, new Comparator<double[]>() {
+         public int compare(double[] p1, double[] p2) {
+            return Double.compare(distance(p1, x, y), distance(p2, x, y));
+         }
+      });
+   }
+
+   private static double distance(double[] p, double x, double y) {
+      double dx = p[0] - x;
+      double dy = p[1] - y;
+      return Math.sqrt(dx * dx + dy * dy);
+   }
+
+   /**
+    * Inverse of a symmetric 3x3 matrix, or null if it is (nearly) singular
+    */
+   private static double[][] invert(double[][] m) {
+      double c00 = m[1][1] * m[2][2] - m[1][2] * m[2][1];
+      double c01 = m[1][2] * m[2][0] - m[1][0] * m[2][2];
+      double c02 = m[1][0] * m[2][1] - m[1][1] * m[2][0];
+      double det = m[0][0] * c00 + m[0][1] * c01 + m[0][2] * c02;
+      // compare with the scale of the matrix, the entries are in um^2
+      double scale = Math.abs(m[0][0] * m[1][1] * m[2][2]);
+      if (scale == 0.0 || Math.abs(det) <= 1.0e-9 * scale) {
+         return null;
+      }
+      double[][] inv = new double[3][3];
+      inv[0][0] = c00 / det;
+      inv[0][1] = (m[0][2] * m[2][1] - m[0][1] * m[2][2]) / det;
+      inv[0][2] = (m[0][1] * m[1][2] - m[0][2] * m[1][1]) / det;
+      inv[1][0] = c01 / det;
+      inv[1][1] = (m[0][0] * m[2][2] - m[0][2] * m[2][0]) / det;
+      inv[1][2] = (m[0][2] * m[1][0] - m[0][0] * m[1][2]) / det;
+      inv[2][0] = c02 / det;
+      inv[2][1] = (m[0][1] * m[2][0] - m[0][0] * m[2][1]) / det;
+      inv[2][2] = (m[0][0] * m[1][1] - m[0][1] * m[1][0]) / det;
+      return inv;
+   }
+
+   private int cell(double coordinate) {
+      return (int) Math.floor(coordinate / cellSize_);
+   }
+
+   private static long key(int cx, int cy) {
+      return ((long) cx << 32) | (cy & 0xffffffffL);
+   }
+}
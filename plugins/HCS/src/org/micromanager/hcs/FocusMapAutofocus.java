@@ -0,0 +1,252 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           FocusMapAutofocus.java
+//PROJECT:        Micro-Manager
+//SUBSYSTEM:      high content screening
+//-----------------------------------------------------------------------------
+
+//COPYRIGHT:      UCSF, 2013
+
+//LICENSE:        This file is distributed under the LGPL license.
+//                License text is included with the source distribution.
+
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.hcs;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+
+import mmcorej.CMMCore;
+
+import org.json.JSONObject;
+import org.micromanager.api.Autofocus;
+import org.micromanager.api.IAcquisitionEngine2010;
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.navigation.MultiStagePosition;
+import org.micromanager.utils.AutofocusBase;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PropertyItem;
+import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.TextUtils;
+
+/**
+ * Autofocus "device" for plate acquisitions. It predicts the focus position
+ * of each site from the focus positions already measured on the plate (see
+ * FocusMap), and only runs the autofocus device it wraps where the
+ * prediction is not good enough. Each measured position is added to the map,
+ * so that fewer sites need a full autofocus as the acquisition progresses.
+ *
+ * The map is shared with the site generator, which sets the 3-point focus
+ * positions it starts from. It is reset to these points when a new
+ * acquisition starts and when a new position list is built, so that points
+ * measured on another plate or in an earlier run are never used. Outside of
+ * acquisitions the autofocus device is run without using the map.
+ */
+public class FocusMapAutofocus extends AutofocusBase {
+   private static final String AF_DEVICE_NAME = "FocusMap";
+   private static final String AUTOFOCUS_DEVICE = "AutofocusDevice";
+   private static final String MAX_UNCERTAINTY = "MaxUncertainty_um";
+   private static final String MEASUREMENT_ERROR = "MeasurementError_um";
+   // grid cell size of the map, the well spacing of a 96 well plate
+   private static final double CELL_SIZE_UM = 9000.0;
+
+   private static final FocusMap focusMap_ = new FocusMap(CELL_SIZE_UM, 0.25);
+   // points the map starts from, and the acquisition (summary metadata) the
+   // map was started for
+   private static MultiStagePosition[] seedPoints_ = new MultiStagePosition[0];
+   private static JSONObject mapAcquisition_ = null;
+
+   private ScriptInterface app_;
+   private String autofocusDevice_ = "";
+   private double maxUncertainty_ = 1.0;
+   private double measurementError_ = 0.25;
+   private boolean settingsLoaded_ = false;
+   private int imageCount_ = 0;
+   private String status_ = "";
+
+   public FocusMapAutofocus() {
+      super();
+      createProperty(AUTOFOCUS_DEVICE, autofocusDevice_);
+      createProperty(MAX_UNCERTAINTY, NumberUtils.doubleToDisplayString(maxUncertainty_));
+      createProperty(MEASUREMENT_ERROR, NumberUtils.doubleToDisplayString(measurementError_));
+   }
+
+   /**
+    * The focus map of the current plate
+    */
+   public static FocusMap getFocusMap() {
+      return focusMap_;
+   }
+
+   /**
+    * Clears the map and starts it again from the given points (for instance
+    * the 3-point focus positions of the plate), also at the start of each
+    * following acquisition
+    */
+   public static synchronized void resetFocusMap(MultiStagePosition[] seedPoints) {
+      seedPoints_ = seedPoints;
+      mapAcquisition_ = null;
+      focusMap_.clear();
+      focusMap_.add(seedPoints_);
+   }
+
+   /**
+    * Resets the map when the given acquisition is not the one it was
+    * started for
+    */
+   private static synchronized void startAcquisition(JSONObject acquisition) {
+      if (acquisition != mapAcquisition_) {
+         focusMap_.clear();
+         focusMap_.add(seedPoints_);
+         mapAcquisition_ = acquisition;
+         ReportingUtils.logMessage("FocusMap: new acquisition, starting from "
+               + seedPoints_.length + " points");
+      }
+   }
+
+   public void applySettings() {
+      try {
+         autofocusDevice_ = getPropertyValue(AUTOFOCUS_DEVICE);
+         maxUncertainty_ = NumberUtils.displayStringToDouble(getPropertyValue(MAX_UNCERTAINTY));
+         measurementError_ = NumberUtils.displayStringToDouble(getPropertyValue(MEASUREMENT_ERROR));
+         focusMap_.setMeasurementError(measurementError_);
+      } catch (MMException ex) {
+         ReportingUtils.logError(ex);
+      } catch (ParseException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   public void setApp(ScriptInterface app) {
+      app_ = app;
+      if (!settingsLoaded_) {
+         super.loadSettings();
+         settingsLoaded_ = true;
+      }
+      // the devices found so far by the autofocus manager
+      ArrayList<String> devices = new ArrayList<String>();
+      for (String name : app_.getAutofocusManager().getAfDevices()) {
+         if (!name.equals(AF_DEVICE_NAME)) {
+            devices.add(name);
+         }
+      }
+      try {
+         PropertyItem p = getProperty(AUTOFOCUS_DEVICE);
+         if (!devices.contains(p.value) && p.value.length() != 0) {
+            devices.add(p.value);
+         }
+         p.allowed = devices.toArray(new String[devices.size()]);
+      } catch (MMException ex) {
+         ReportingUtils.logError(ex);
+      }
+      applySettings();
+   }
+
+   public double fullFocus() throws MMException {
+      applySettings();
+      IAcquisitionEngine2010 engine = app_.getAcquisitionEngine2010();
+      JSONObject acquisition = (engine != null && engine.isRunning())
+            ? engine.getSummaryMetadata() : null;
+      if (acquisition == null) {
+         // not part of an acquisition, measure without using the map
+         Autofocus af = getAutofocusDevice();
+         double z = af.fullFocus();
+         imageCount_ = af.getNumberOfImages();
+         status_ = af.getDeviceName() + " z=" + TextUtils.FMT2.format(z);
+         return z;
+      }
+      startAcquisition(acquisition);
+
+      CMMCore core = app_.getMMCore();
+      double x[] = new double[1];
+      double y[] = new double[1];
+      try {
+         core.getXYPosition(core.getXYStageDevice(), x, y);
+      } catch (Exception e) {
+         throw new MMException(e.getMessage());
+      }
+
+      FocusMap.Prediction p = focusMap_.predict(x[0], y[0]);
+      if (p.uncertainty <= maxUncertainty_) {
+         String focusDevice = core.getFocusDevice();
+         try {
+            core.setPosition(focusDevice, p.z);
+            core.waitForDevice(focusDevice);
+         } catch (Exception e) {
+            throw new MMException(e.getMessage());
+         }
+         imageCount_ = 0;
+         status_ = "Predicted z=" + TextUtils.FMT2.format(p.z)
+               + " +/- " + TextUtils.FMT2.format(p.uncertainty) + "um from "
+               + p.nrPoints + " points";
+         ReportingUtils.logMessage("FocusMap: " + status_);
+         return p.z;
+      }
+
+      Autofocus af = getAutofocusDevice();
+      double z = af.fullFocus();
+      imageCount_ = af.getNumberOfImages();
+      focusMap_.add(x[0], y[0], z);
+      status_ = af.getDeviceName() + " z=" + TextUtils.FMT2.format(z)
+            + ", prediction uncertainty was "
+            + TextUtils.FMT2.format(p.uncertainty) + "um";
+      ReportingUtils.logMessage("FocusMap: " + status_);
+      return z;
+   }
+
+   /**
+    * The autofocus device used where the prediction is not good enough
+    */
+   private Autofocus getAutofocusDevice() throws MMException {
+      String name = autofocusDevice_;
+      if (name.length() == 0) {
+         // none selected, use the first other one
+         for (String device : app_.getAutofocusManager().getAfDevices()) {
+            if (!device.equals(AF_DEVICE_NAME)) {
+               name = device;
+               break;
+            }
+         }
+      }
+      if (name.length() == 0 || name.equals(AF_DEVICE_NAME)) {
+         throw new MMException("FocusMap: no autofocus device available.");
+      }
+      return app_.getAutofocusManager().getDevice(name);
+   }
+
+   public double incrementalFocus() throws MMException {
+      return getAutofocusDevice().incrementalFocus();
+   }
+
+   public int getNumberOfImages() {
+      return imageCount_;
+   }
+
+   public String getVerboseStatus() {
+      return status_;
+   }
+
+   public double getCurrentFocusScore() {
+      try {
+         return getAutofocusDevice().getCurrentFocusScore();
+      } catch (MMException e) {
+         ReportingUtils.logError(e);
+         return 0.0;
+      }
+   }
+
+   public String getDeviceName() {
+      return AF_DEVICE_NAME;
+   }
+
+   public void focus(double coarseStep, int numCoarse, double fineStep, int numFine) throws MMException {
+      getAutofocusDevice().focus(coarseStep, numCoarse, fineStep, numFine);
+   }
+}
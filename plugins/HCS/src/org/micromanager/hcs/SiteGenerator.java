@@ -23,6 +23,7 @@ import org.micromanager.api.MMPlugin;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.navigation.MultiStagePosition;
 import org.micromanager.navigation.PositionList;
+import org.micromanager.navigation.PositionListOptimizer;
 import org.micromanager.navigation.StagePosition;
 import org.micromanager.utils.MMFrame;
 import org.micromanager.utils.MMScriptException;
@@ -73,6 +74,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 	private final String ROOT_DIR = "root";
 	private final String PLATE_DIR = "plate";
 	private final String INCREMENTAL_AF = "incremental_af";
+	private final String OPTIMIZE_PATH = "optimize_path";
 	public static final String menuName = "HCS Site Generator";
 	//private JCheckBox lockAspectCheckBox_;
 	private JLabel statusLabel_;
@@ -82,6 +84,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 	static private final String DESCRIPTION = "Generate imaging site positions for micro-well plates and slides";
 	static private final String INFO = "Not available";
    private JCheckBox chckbxThreePt_;
+   private JCheckBox chckbxOptimizePath_;
    private final ButtonGroup toolButtonGroup = new ButtonGroup();
    private JRadioButton rdbtnSelectWells_;
    private JRadioButton rdbtnMoveStage_;
@@ -345,6 +348,13 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 //		springLayout.putConstraint(SpringLayout.EAST, button, -136, SpringLayout.EAST, getContentPane());
 //		springLayout.putConstraint(SpringLayout.WEST, button, -184, SpringLayout.EAST, getContentPane());
 		
+		chckbxOptimizePath_ = new JCheckBox("Optimize Stage Path");
+		chckbxOptimizePath_.setToolTipText("Order the wells and sites of the list to reduce the stage travel time");
+		springLayout.putConstraint(SpringLayout.NORTH, chckbxOptimizePath_, 6, SpringLayout.SOUTH, calibrateXyButton);
+		springLayout.putConstraint(SpringLayout.WEST, chckbxOptimizePath_, 6, SpringLayout.EAST, platePanel_);
+		springLayout.putConstraint(SpringLayout.EAST, chckbxOptimizePath_, -4, SpringLayout.EAST, getContentPane());
+		getContentPane().add(chckbxOptimizePath_);
+
 		chckbxThreePt_ = new JCheckBox("Use 3-Point AF");
 		springLayout.putConstraint(SpringLayout.NORTH, chckbxThreePt_, 419, SpringLayout.NORTH, getContentPane());
 		springLayout.putConstraint(SpringLayout.WEST, chckbxThreePt_, 6, SpringLayout.EAST, platePanel_);
@@ -447,6 +457,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 		prefs.put(SITE_SPACING, spacingField_.getText());
 		prefs.put(SITE_ROWS, rowsField_.getText());
 		prefs.put(SITE_COLS, columnsField_.getText());
+		prefs.putBoolean(OPTIMIZE_PATH, chckbxOptimizePath_.isSelected());
 		//prefs.putBoolean(LOCK_ASPECT, lockAspectCheckBox_.isSelected());
 		//prefs.put(PLATE_DIR, plateNameField_.getText());
 		//prefs.put(ROOT_DIR, rootDirField_.getText());
@@ -458,6 +469,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 		spacingField_.setText(prefs.get(SITE_SPACING, "200"));
 		rowsField_.setText(prefs.get(SITE_ROWS, "1"));
 		columnsField_.setText(prefs.get(SITE_COLS, "1"));
+		chckbxOptimizePath_.setSelected(prefs.getBoolean(OPTIMIZE_PATH, false));
 		//lockAspectCheckBox_.setSelected(prefs.getBoolean(LOCK_ASPECT, true));
 		//platePanel_.setLockAspect(lockAspectCheckBox_.isSelected());
 		//plateNameField_.setText(prefs.get(PLATE_DIR, "plate"));
@@ -475,6 +487,8 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 
 				// make label unique
 				mpl.setLabel(wpl[i].getLabel() + "-" + mpl.getLabel());
+				// keep the sites of a well together when reordering
+				mpl.setProperty(PositionList.GROUP_KEY, wpl[i].getLabel());
 				if (app_ != null) {
 					mpl.setDefaultXYStage(app_.getXYStageName());
 					mpl.setDefaultZStage(app_.getMMCore().getFocusDevice());
@@ -494,10 +508,10 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 				      displayError("3-point AF is seleced but 3 points are not defined.");
 				      return;
 				   }
-				   // add z position from the 3-point plane estimate
+				   // add z position from the focus map or 3-point plane estimate
 				   StagePosition sp = new StagePosition();
 				   sp.numAxes = 1;
-				   sp.x = focusPlane_.getZPos(mpl.getX(), mpl.getY());
+				   sp.x = predictZ(mpl.getX(), mpl.getY());
 				   sp.stageName = new String(mpl.getDefaultZStage());
 				   mpl.add(sp);
 				}
@@ -506,6 +520,19 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 			}
 		}
 
+		// the Z of the sites came from the focus map measured so far; the
+		// new list starts a new map from the 3 points, if used
+		FocusMapAutofocus.resetFocusMap((useThreePtAF() && threePtList_ != null)
+				? threePtList_.getPositions() : new MultiStagePosition[0]);
+
+		if (chckbxOptimizePath_.isSelected()) {
+			PositionListOptimizer.Route route = new PositionListOptimizer().optimize(platePl);
+			platePl.setPositions(route.getPositions());
+			statusLabel_.setText(route.toString());
+			if (app_ != null)
+				app_.logMessage("HCS: " + route.toString());
+		}
+
 		try {
 			if (app_ != null)
 				app_.setPositionList(platePl);
@@ -533,6 +560,8 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
          
          threePtList_ = PositionList.newInstance(plist);
          focusPlane_ = new AFPlane(threePtList_.getPositions());
+         // start a new focus map from the 3 points
+         FocusMapAutofocus.resetFocusMap(threePtList_.getPositions());
          chckbxThreePt_.setSelected(true);
          platePanel_.repaint();
          
@@ -541,6 +570,20 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       }
 	}
 
+	/**
+	 * Focus position predicted by the focus map once autofocus has measured
+	 * more than the 3 points, otherwise by the 3-point plane
+	 */
+	private double predictZ(double x, double y) {
+		FocusMap focusMap = FocusMapAutofocus.getFocusMap();
+		if (focusMap.size() > 3) {
+			FocusMap.Prediction p = focusMap.predict(x, y);
+			if (!Double.isInfinite(p.uncertainty))
+				return p.z;
+		}
+		return focusPlane_.getZPos(x, y);
+	}
+
 	private PositionList generateSites(int rows, int cols, double spacing) {
 		PositionList sites = new PositionList();
 		System.out.println("# Rows : "+rows+", # Cols : "+cols+" ,spacing = "+spacing);
@@ -586,7 +629,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 			return;
 
 		String statusTxt = "Cursor: X=" + TextUtils.FMT2.format(cursorPos_.x) + "um, Y=" + TextUtils.FMT2.format(cursorPos_.y) + "um, " + cursorWell_ +
-		((useThreePtAF() && focusPlane_ != null) ? ", Z->" + TextUtils.FMT2.format(focusPlane_.getZPos(cursorPos_.x, cursorPos_.y)) + "um" : "") +
+		((useThreePtAF() && focusPlane_ != null) ? ", Z->" + TextUtils.FMT2.format(predictZ(cursorPos_.x, cursorPos_.y)) + "um" : "") +
 		" -- Stage: X=" + TextUtils.FMT2.format(xyStagePos_.x) + "um, Y=" + TextUtils.FMT2.format(xyStagePos_.y) + "um, Z=" + TextUtils.FMT2.format(zStagePos_) + "um, "
 		+ stageWell_;
 		statusLabel_.setText(statusTxt);
@@ -660,6 +703,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 
 	public void setApp(ScriptInterface app) {
 		app_ = app;
+		app_.installAutofocusPlugin(FocusMapAutofocus.class.getName());
 		try {
 			platePanel_.setApp(app);
 		} catch (HCSException e) {
@@ -7,6 +7,7 @@ import org.json.JSONObject;
 import org.micromanager.api.DataProcessor;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ReportingUtils;
 
 public class ImageFlippingProcessor extends DataProcessor<TaggedImage> {
@@ -59,6 +60,11 @@ public class ImageFlippingProcessor extends DataProcessor<TaggedImage> {
             MDUtils.setWidth(newTags, proc.getWidth());
             MDUtils.setHeight(newTags, proc.getHeight());
 
+            if (proc.getPixels() != nextImage.pix) {
+               // rotation made a new array; the pool only takes the old one
+               // back if it lent it (live mode), never acquisition images
+               PixelBufferPool.recycle(nextImage.pix);
+            }
             produce(new TaggedImage(proc.getPixels(), newTags));
          } catch (Exception ex) {
             produce(nextImage);
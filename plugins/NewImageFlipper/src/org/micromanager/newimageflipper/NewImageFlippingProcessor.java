@@ -30,6 +30,7 @@ import org.micromanager.api.DataProcessor;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PixelBufferPool;
 import org.micromanager.utils.ReportingUtils;
 
 public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
@@ -67,8 +68,14 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
 
                }
 
-               produce(proccessTaggedImage(nextImage, controls_.getMirror(),
-                       controls_.getRotate()));
+               TaggedImage result = proccessTaggedImage(nextImage,
+                       controls_.getMirror(), controls_.getRotate());
+               if (result.pix != nextImage.pix) {
+                  // rotation made a new array; the pool only takes the old one
+                  // back if it lent it (live mode), never acquisition images
+                  PixelBufferPool.recycle(nextImage.pix);
+               }
+               produce(result);
 
             } catch (Exception ex) {
                produce(nextImage);
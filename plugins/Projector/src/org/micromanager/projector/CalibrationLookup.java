@@ -0,0 +1,194 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.micromanager.projector;
+
+import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Spatial index over a projector calibration, i.e. a map from camera
+ * polygons to the affine transform that maps points inside each polygon to
+ * device coordinates. The bounding box of all polygons is divided into a
+ * grid of cells, and each cell lists the polygons that may cover it, so
+ * mapping a point only tests the few polygons of one cell. Serializable so
+ * it can be stored in Preferences next to the calibration; use matches() to
+ * check that a stored index still belongs to the stored calibration.
+ */
+public class CalibrationLookup implements Serializable {
+
+   private static final long serialVersionUID = 1L;
+   private static final int MAX_CELLS_PER_SIDE = 128;
+
+   private final Polygon[] polygons_;
+   // flat matrices as returned by AffineTransform.getMatrix
+   private final double[][] matrices_;
+   private final int originX_;
+   private final int originY_;
+   private final int cellSize_;
+   private final int cols_;
+   private final int rows_;
+   // polygons of cell c are cellPolygons_[cellStart_[c]] to cellPolygons_[cellStart_[c+1]-1]
+   private final int[] cellStart_;
+   private final int[] cellPolygons_;
+   // fingerprint of the calibration the index was built from
+   private final long fingerprint_;
+
+   public CalibrationLookup(Map<Polygon, AffineTransform> mapping) {
+      fingerprint_ = fingerprint(mapping);
+      int n = mapping.size();
+      polygons_ = new Polygon[n];
+      matrices_ = new double[n][6];
+      Rectangle bounds = null;
+      int p = 0;
+      for (Map.Entry<Polygon, AffineTransform> entry : mapping.entrySet()) {
+         polygons_[p] = entry.getKey();
+         entry.getValue().getMatrix(matrices_[p]);
+         if (bounds == null) {
+            bounds = new Rectangle(polygons_[p].getBounds());
+         } else {
+            bounds.add(polygons_[p].getBounds());
+         }
+         ++p;
+      }
+      if (bounds == null) {
+         bounds = new Rectangle();
+      }
+      originX_ = bounds.x;
+      originY_ = bounds.y;
+      cellSize_ = Math.max(1, (Math.max(bounds.width, bounds.height) + MAX_CELLS_PER_SIDE) / MAX_CELLS_PER_SIDE);
+      cols_ = bounds.width / cellSize_ + 1;
+      rows_ = bounds.height / cellSize_ + 1;
+
+      // Count the polygons per cell, then fill in their indices
+      int numCells = cols_ * rows_;
+      cellStart_ = new int[numCells + 1];
+      for (p = 0; p < n; ++p) {
+         int[] cells = coveredCells(polygons_[p].getBounds());
+         for (int row = cells[2]; row <= cells[3]; ++row) {
+            for (int col = cells[0]; col <= cells[1]; ++col) {
+               cellStart_[row * cols_ + col + 1]++;
+            }
+         }
+      }
+      for (int cell = 0; cell < numCells; ++cell) {
+         cellStart_[cell + 1] += cellStart_[cell];
+      }
+      cellPolygons_ = new int[cellStart_[numCells]];
+      int[] filled = new int[numCells];
+      for (p = 0; p < n; ++p) {
+         int[] cells = coveredCells(polygons_[p].getBounds());
+         for (int row = cells[2]; row <= cells[3]; ++row) {
+            for (int col = cells[0]; col <= cells[1]; ++col) {
+               int cell = row * cols_ + col;
+               cellPolygons_[cellStart_[cell] + filled[cell]++] = p;
+            }
+         }
+      }
+   }
+
+   /*
+    * First and last column, first and last row of the cells that overlap r
+    */
+   private int[] coveredCells(Rectangle r) {
+      return new int[] {(r.x - originX_) / cellSize_, (r.x + r.width - originX_) / cellSize_,
+         (r.y - originY_) / cellSize_, (r.y + r.height - originY_) / cellSize_};
+   }
+
+   /*
+    * Hash of the polygons and transforms of a calibration. Polygons don't
+    * define equals, and a map read back from Preferences has new keys in
+    * another order, so the hash only depends on the contents and not on the
+    * order of the entries.
+    */
+   private static long fingerprint(Map<Polygon, AffineTransform> mapping) {
+      long sum = mapping.size();
+      double[] matrix = new double[6];
+      for (Map.Entry<Polygon, AffineTransform> entry : mapping.entrySet()) {
+         Polygon poly = entry.getKey();
+         long h = poly.npoints;
+         for (int i = 0; i < poly.npoints; ++i) {
+            h = 31 * h + poly.xpoints[i];
+            h = 31 * h + poly.ypoints[i];
+         }
+         entry.getValue().getMatrix(matrix);
+         for (double m : matrix) {
+            h = 31 * h + Double.doubleToLongBits(m);
+         }
+         // mix the bits so that a sum of entries rarely collides
+         h *= 0x9E3779B97F4A7C15L;
+         sum += h ^ (h >>> 29);
+      }
+      return sum;
+   }
+
+   /*
+    * True if this index was built from a calibration with the same
+    * polygons and transforms as mapping
+    */
+   public boolean matches(Map<Polygon, AffineTransform> mapping) {
+      return mapping.size() == polygons_.length && fingerprint(mapping) == fingerprint_;
+   }
+
+   public boolean isEmpty() {
+      return polygons_.length == 0;
+   }
+
+   /*
+    * Index of the polygon containing (x, y), or -1
+    */
+   private int find(int x, int y) {
+      int col = (x - originX_) / cellSize_;
+      int row = (y - originY_) / cellSize_;
+      if (x < originX_ || y < originY_ || col >= cols_ || row >= rows_) {
+         return -1;
+      }
+      int cell = row * cols_ + col;
+      for (int i = cellStart_[cell]; i < cellStart_[cell + 1]; ++i) {
+         if (polygons_[cellPolygons_[i]].contains(x, y)) {
+            return cellPolygons_[i];
+         }
+      }
+      return -1;
+   }
+
+   /*
+    * Maps a camera point to device coordinates, or returns null if no
+    * calibration polygon contains it
+    */
+   public Point transform(Point pt) {
+      int p = find(pt.x, pt.y);
+      if (p < 0) {
+         return null;
+      }
+      double[] m = matrices_[p];
+      return new Point((int) (m[0] * pt.x + m[2] * pt.y + m[4]),
+              (int) (m[1] * pt.x + m[3] * pt.y + m[5]));
+   }
+
+   /*
+    * Maps every vertex of a camera polygon to device coordinates, or returns
+    * null if any vertex is outside the calibrated area
+    */
+   public Polygon transform(Polygon poly) {
+      int[] xpoints = new int[poly.npoints];
+      int[] ypoints = new int[poly.npoints];
+      for (int i = 0; i < poly.npoints; ++i) {
+         int x = poly.xpoints[i];
+         int y = poly.ypoints[i];
+         int p = find(x, y);
+         if (p < 0) {
+            return null;
+         }
+         double[] m = matrices_[p];
+         xpoints[i] = (int) (m[0] * x + m[2] * y + m[4]);
+         ypoints[i] = (int) (m[1] * x + m[3] * y + m[5]);
+      }
+      return new Polygon(xpoints, ypoints, poly.npoints);
+   }
+}
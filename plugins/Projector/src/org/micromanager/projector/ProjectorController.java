@@ -74,6 +74,11 @@ public class ProjectorController {
    private long interval_us_ = 500000;
    private Map mapping_ = null;
    private String mappingNode_ = null;
+   private CalibrationLookup lookup_ = null;
+   // index of the last other calibration passed to transform
+   private Map otherMapping_ = null;
+   private CalibrationLookup otherLookup_ = null;
+   private static final String LOOKUP_SUFFIX = "-lookup";
    private String targetingChannel_;
    AtomicBoolean stopRequested_ = new AtomicBoolean(false);
    AtomicBoolean isRunning_ = new AtomicBoolean(false);
@@ -112,13 +117,20 @@ public class ProjectorController {
    
    
    public Point transform(Map<Polygon, AffineTransform> mapping, Point pt) {
-       Set<Polygon> set = mapping.keySet();
-       for (Polygon poly:set) {
-           if (poly.contains(pt)) {
-               return toIntPoint((Point2D.Double) mapping.get(poly).transform(toDoublePoint(pt), null));
-           } 
+       return getLookup(mapping).transform(pt);
+   }
+   
+   // Uses the stored index for the current calibration, otherwise builds one
+   // and keeps it for the following calls with the same mapping.
+   private synchronized CalibrationLookup getLookup(Map<Polygon, AffineTransform> mapping) {
+       if (mapping == mapping_ && lookup_ != null) {
+           return lookup_;
        }
-       return null;
+       if (mapping != otherMapping_ || otherLookup_ == null) {
+           otherLookup_ = new CalibrationLookup(mapping);
+           otherMapping_ = mapping;
+       }
+       return otherLookup_;
    }
    
    public Point transformAndFlip(Map<Polygon, AffineTransform> mapping, ImagePlus imgp, Point pt) {
@@ -172,12 +184,26 @@ public class ProjectorController {
        if (mappingNode_ == null || !nodeStr.contentEquals(mappingNode_)) {
            mappingNode_ = nodeStr;
            mapping_ = (HashMap<Polygon, AffineTransform>) JavaUtils.getObjectFromPrefs(getCalibrationNode(), dev.getName(), new HashMap<Polygon, AffineTransform>());
+           Object lookup = JavaUtils.getObjectFromPrefs(getCalibrationNode(), dev.getName() + LOOKUP_SUFFIX, null);
+           if (lookup instanceof CalibrationLookup
+                   && ((CalibrationLookup) lookup).matches((HashMap<Polygon, AffineTransform>) mapping_)) {
+               lookup_ = (CalibrationLookup) lookup;
+           } else {
+               // Calibrated before the index was saved with it, or the
+               // stored index belongs to another calibration
+               lookup_ = new CalibrationLookup((HashMap<Polygon, AffineTransform>) mapping_);
+               if (!lookup_.isEmpty()) {
+                   JavaUtils.putObjectInPrefs(getCalibrationNode(), dev.getName() + LOOKUP_SUFFIX, lookup_);
+               }
+           }
        }
        return (HashMap<Polygon, AffineTransform>) mapping_;
    }
    
    private void saveMapping(HashMap<Polygon, AffineTransform> mapping) {
        JavaUtils.putObjectInPrefs(getCalibrationNode(), dev.getName(), mapping);
+       lookup_ = new CalibrationLookup(mapping);
+       JavaUtils.putObjectInPrefs(getCalibrationNode(), dev.getName() + LOOKUP_SUFFIX, lookup_);
        mapping_ = mapping;
        mappingNode_ = getCalibrationNode().toString();
    }
@@ -430,6 +456,8 @@ public class ProjectorController {
    
    private Polygon[] transformROIs(ImagePlus imgp, Roi[] rois, Map<Polygon, AffineTransform> mapping) {
       ArrayList<Polygon> transformedROIs = new ArrayList<Polygon>();
+      CalibrationLookup lookup = getLookup(mapping);
+      boolean mirrored = isMirrored(imgp);
       for (Roi roi : rois) {
          if ((roi.getType() == Roi.POINT)
                  || (roi.getType() == Roi.POLYGON)
@@ -437,15 +465,16 @@ public class ProjectorController {
                  || (roi.getType() == Roi.OVAL)) {
 
             Polygon poly = roi.getPolygon();
-            Polygon newPoly = new Polygon();
-            try {
-               Point2D galvoPoint;
+            if (mirrored) {
+               int[] xpoints = new int[poly.npoints];
                for (int i = 0; i < poly.npoints; ++i) {
-                  Point imagePoint = new Point(poly.xpoints[i], poly.ypoints[i]);
-                  galvoPoint = transformAndFlip(mapping, imgp, imagePoint);
-                  if (galvoPoint == null) throw new Exception();
-                  newPoly.addPoint((int) galvoPoint.getX(), (int) galvoPoint.getY());
+                  xpoints[i] = imgp.getWidth() - poly.xpoints[i];
                }
+               poly = new Polygon(xpoints, poly.ypoints, poly.npoints);
+            }
+            try {
+               Polygon newPoly = lookup.transform(poly);
+               if (newPoly == null) throw new Exception();
                transformedROIs.add(newPoly);
             } catch (Exception ex) {
                ReportingUtils.showError(ex);
@@ -6,6 +6,7 @@ import java.awt.Dimension;
 import java.awt.Point;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
+import java.io.File;
 import java.util.ArrayList;
 
 import java.util.Hashtable;
@@ -43,6 +44,8 @@ public class Hub {
    private ConfigurationDialog configDialog_;
    private static String angleKey = "angle";
    private static String pixelSizeKey = "pixelSize";
+   private static String tileMemoryKey = "tileCacheMemoryMB";
+   private static String spillDirectoryKey = "tileSpillDirectory";
    private double angle_;
    private double pixelSize_;
    private final Preferences prefs_;
@@ -86,7 +89,10 @@ public class Hub {
       int type = controller_.getImageType();
       tileDimensions_ = controller_.getTileDimensions();
 
-      cache_ = new MultiTileCache(numZoomLevels_, tileDimensions_);
+      String spillDirectory = prefs_.get(spillDirectoryKey, "");
+      cache_ = new MultiTileCache(numZoomLevels_, tileDimensions_,
+              ((long) prefs_.getInt(tileMemoryKey, (int) (MultiTileCache.DEFAULT_MEMORY_BUDGET >> 20))) << 20,
+              spillDirectory.length() > 0 ? new File(spillDirectory) : null);
 
       blackImg_ = ImageUtils.makeProcessor(type, tileDimensions_.width, tileDimensions_.height);
 
@@ -195,6 +201,9 @@ public class Hub {
          configDialog_.dispose();
       }
       stop();
+      if (cache_ != null) {
+         cache_.close();
+      }
    }
 
    // Methods called when the view changes:
@@ -261,7 +270,7 @@ public class Hub {
    }
 
    public void updateView() {
-      SwingUtilities.invokeLater(new GUIUpdater(null));
+      SwingUtilities.invokeLater(new GUIUpdater());
    }
 
    protected void finalize() throws Throwable {
@@ -542,12 +551,17 @@ public class Hub {
    class GUIUpdater implements Runnable {
 
       private Point tileIndex_ = null;
+      private Point3D multiTileIndex_ = null;
       private boolean regenerate_ = true;
 
       GUIUpdater(Point tileIndex) {
          tileIndex_ = tileIndex;
       }
 
+      GUIUpdater(Point3D multiTileIndex) {
+         multiTileIndex_ = multiTileIndex;
+      }
+
       GUIUpdater() {
          tileIndex_ = null;
       }
@@ -557,7 +571,12 @@ public class Hub {
       }
 
       public void run() {
-         if (tileIndex_ == null) {
+         if (multiTileIndex_ != null) {
+            // A tile finished loading; draw it if it is still in view.
+            if (multiTileIndex_.k == zoomLevel_) {
+               drawMultiTile(multiTileIndex_, true);
+            }
+         } else if (tileIndex_ == null) {
             if (regenerate_) {
                regenerateView();
             }
@@ -579,19 +598,34 @@ public class Hub {
        */
       public void drawTile(Point tileIndex) {
          Point3D multiTileIndex = coords_.tileToMultiTile(tileIndex);
-         drawMultiTile(multiTileIndex);
+         drawMultiTile(multiTileIndex, true);
       }
 
       /*
-       * Draw a particular multitile to the view.
+       * Draw a particular multitile to the view. Only tiles already in
+       * memory are drawn; others are drawn black and loaded in the
+       * background, then drawn by another GUIUpdater. Off-screen tiles are
+       * only prefetched if they fit in the cache without evicting others.
        */
-      public void drawMultiTile(Point3D multiTileIndex) {
+      public void drawMultiTile(final Point3D multiTileIndex, boolean onScreen) {
          Point offScreenPosition = coords_.multiTileToOffScreen(multiTileIndex);
-         if (cache_.hasImage(multiTileIndex)) {
-            ImageProcessor img = cache_.getImage(multiTileIndex);
+         ImageProcessor img = cache_.getResidentImage(multiTileIndex);
+         if (img != null) {
             display_.placeImage(offScreenPosition, img);
-         } else {
-            display_.placeImage(offScreenPosition, blackImg_);
+            return;
+         }
+         display_.placeImage(offScreenPosition, blackImg_);
+         if (cache_.hasImage(multiTileIndex)) {
+            Runnable whenLoaded = new Runnable() {
+               public void run() {
+                  SwingUtilities.invokeLater(new GUIUpdater(multiTileIndex));
+               }
+            };
+            if (onScreen) {
+               cache_.loadInBackground(multiTileIndex, whenLoaded);
+            } else {
+               cache_.prefetch(multiTileIndex, whenLoaded);
+            }
          }
       }
 
@@ -599,14 +633,15 @@ public class Hub {
        * Draw all multitiles needed in the current view.
        */
       public void regenerateView() {
+         cache_.cancelPendingLoads();
          ArrayList<Point3D> onScreenMultiTiles = coords_.getMultiTilesOnScreen();
          for (Point3D multiTile : onScreenMultiTiles) {
-            drawMultiTile(multiTile);
+            drawMultiTile(multiTile, true);
          }
          ArrayList<Point3D> offScreenMultiTiles = coords_.getMultiTilesOffScreen();
          for (Point3D multiTile : offScreenMultiTiles) {
             if (!onScreenMultiTiles.contains(multiTile)) {
-               drawMultiTile(multiTile);
+               drawMultiTile(multiTile, false);
             }
          }
       }
@@ -617,7 +652,10 @@ public class Hub {
     */
    class TileGrabberThread extends Thread {
 
+      // Zoomed-out levels are brought up to date at most this often while surveying.
+      private static final long PROPAGATION_INTERVAL_MS = 250;
       double tol_;
+      private long lastPropagation_ = 0;
 
       public TileGrabberThread() {
          setName("SlideExplorer hardware thread");
@@ -632,11 +670,15 @@ public class Hub {
                   try {
                      Point tile = findBestTile(missingTiles);
                      acquireNewTile(tile);
-                     SwingUtilities.invokeLater(new GUIUpdater(tile));
+                     if (missingTiles.size() == 1
+                             || System.currentTimeMillis() - lastPropagation_ > PROPAGATION_INTERVAL_MS) {
+                        drawNewTiles();
+                     }
                   } catch (Throwable e) {
                      ReportingUtils.logError(e);
                   }
                } else {
+                  drawNewTiles();
                   try {
                      sleep(20);
                   } catch (InterruptedException e) {
@@ -645,6 +687,8 @@ public class Hub {
                }
             } else {
                //SwingUtilities.invokeLater(new GUIUpdater(false));
+               // tiles acquired before the mode changed are still pending
+               drawNewTiles();
                try {
                   sleep(20);
                } catch (InterruptedException e) {
@@ -654,6 +698,19 @@ public class Hub {
          }
       }
 
+      /*
+       * Propagates the tiles acquired since the last call to all zoom
+       * levels and draws those at the current level.
+       */
+      private void drawNewTiles() {
+         lastPropagation_ = System.currentTimeMillis();
+         for (Point3D multiTile : cache_.propagatePendingTiles()) {
+            if (multiTile.k == zoomLevel_) {
+               SwingUtilities.invokeLater(new GUIUpdater(multiTile));
+            }
+         }
+      }
+
       public ArrayList<Point> findMissingTiles() {
          ArrayList<Point> tiles = coords_.getTilesOnScreen();
          for (int i = tiles.size() - 1; i >= 0; i--) {
@@ -2,13 +2,16 @@ package org.micromanager.slideexplorer;
 
 import java.awt.Point;
 import java.io.File;
-import java.util.Random;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
-import ij.IJ;
 import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
 public class MultiTile {
 
@@ -17,13 +20,20 @@ public class MultiTile {
     int width_;
     int height_;
     String fileName_ = null;
-    boolean cached_ = false;
-    String tmpDirectory_ = "/tmp";
-
-    MultiTile(int type, int width, int height) {
+    // true if the image in memory differs from the copy in fileName_
+    boolean dirty_ = false;
+    File spillDirectory_;
+    // the cache holding this tile, told whenever the image is loaded
+    MultiTileCache cache_;
+    Point3D index_;
+
+    MultiTile(MultiTileCache cache, Point3D index, int type, int width, int height, File spillDirectory) {
+        cache_ = cache;
+        index_ = index;
         type_ = type;
         width_ = width;
         height_ = height;
+        spillDirectory_ = spillDirectory;
     }
 
     public synchronized ImageProcessor getImage() {
@@ -31,13 +41,25 @@ public class MultiTile {
         return proc_;
     }
 
+    /*
+     * Returns the image if it is in memory, without loading it.
+     */
+    public synchronized ImageProcessor getResidentImage() {
+        return proc_;
+    }
+
+    public synchronized boolean isResident() {
+        return proc_ != null;
+    }
+
     public synchronized void getImageReady() {
         if (proc_ == null) {
-            if (cached_ == false) {
+            if (fileName_ == null) {
                 createCleanImage();
             } else {
                 loadFromCache();
             }
+            cache_.tileLoaded(index_, this);
         }
         proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
     }
@@ -45,70 +67,185 @@ public class MultiTile {
     public synchronized void setImage(ImageProcessor proc) {
         getImageReady();
         proc_.insert(proc, 0, 0);
+        dirty_ = true;
     }
 
     private void createCleanImage() {
         proc_ = ImageUtils.makeProcessor(type_, width_, height_);
+        dirty_ = true;
     }
 
+    /*
+     * Number of bytes of pixels this tile holds while it is in memory.
+     */
+    public long getSizeInBytes() {
+        return (long) width_ * height_ * (type_ == ImagePlus.GRAY16 ? 2
+                : type_ == ImagePlus.COLOR_RGB ? 4 : 1);
+    }
+
+    /*
+     * Shrinks a child tile's image to half size and writes it into one
+     * quadrant of this tile. Each pixel is the mean of a 2x2 block of the
+     * child, written straight into this tile's pixels.
+     */
     public synchronized void insertQuadrantImage(Point quad, ImageProcessor inProc) {
-        // TODO: rewrite this as a fast algorithm. Should require only a single copy.
         getImageReady();
-        inProc.setInterpolationMethod(ImageProcessor.BILINEAR);
-        ImageProcessor inProcSmall = inProc.resize(width_ / 2, height_ / 2);
-        proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
-        cached_ = false;
+        reduceInto(inProc.getPixels(), inProc.getWidth(), inProc.getHeight(),
+                proc_.getPixels(), width_, quad.x * width_ / 2, quad.y * height_ / 2);
+        dirty_ = true;
     }
 
-    public synchronized void dropFromMemory() {
-        if (!cached_) {
-            cacheOnDisk();
+    /*
+     * Writes src, shrunk by averaging 2x2 blocks, into dst at (dstX, dstY).
+     * Handles 8-bit, 16-bit and RGB pixels; a last odd row or column of
+     * src is left out.
+     */
+    static void reduceInto(Object src, int srcWidth, int srcHeight,
+            Object dst, int dstWidth, int dstX, int dstY) {
+        int w = srcWidth / 2;
+        int h = srcHeight / 2;
+        if (src instanceof byte[]) {
+            byte[] in = (byte[]) src;
+            byte[] out = (byte[]) dst;
+            for (int y = 0; y < h; ++y) {
+                int i = 2 * y * srcWidth;
+                int o = (dstY + y) * dstWidth + dstX;
+                for (int x = 0; x < w; ++x, i += 2) {
+                    int sum = (in[i] & 0xff) + (in[i + 1] & 0xff)
+                            + (in[i + srcWidth] & 0xff) + (in[i + srcWidth + 1] & 0xff);
+                    out[o + x] = (byte) ((sum + 2) >> 2);
+                }
+            }
+        } else if (src instanceof short[]) {
+            short[] in = (short[]) src;
+            short[] out = (short[]) dst;
+            for (int y = 0; y < h; ++y) {
+                int i = 2 * y * srcWidth;
+                int o = (dstY + y) * dstWidth + dstX;
+                for (int x = 0; x < w; ++x, i += 2) {
+                    int sum = (in[i] & 0xffff) + (in[i + 1] & 0xffff)
+                            + (in[i + srcWidth] & 0xffff) + (in[i + srcWidth + 1] & 0xffff);
+                    out[o + x] = (short) ((sum + 2) >> 2);
+                }
+            }
+        } else if (src instanceof int[]) {
+            int[] in = (int[]) src;
+            int[] out = (int[]) dst;
+            for (int y = 0; y < h; ++y) {
+                int i = 2 * y * srcWidth;
+                int o = (dstY + y) * dstWidth + dstX;
+                for (int x = 0; x < w; ++x, i += 2) {
+                    int a = in[i];
+                    int b = in[i + 1];
+                    int c = in[i + srcWidth];
+                    int d = in[i + srcWidth + 1];
+                    // Sum the red and blue bytes together and green on its
+                    // own; each field has room for the sum of four bytes.
+                    int rb = (a & 0xff00ff) + (b & 0xff00ff) + (c & 0xff00ff) + (d & 0xff00ff)
+                            + 0x020002;
+                    int g = (a & 0xff00) + (b & 0xff00) + (c & 0xff00) + (d & 0xff00) + 0x0200;
+                    out[o + x] = 0xff000000 | ((rb >> 2) & 0xff00ff) | ((g >> 2) & 0xff00);
+                }
+            }
         }
+    }
 
+    /*
+     * Writes the image to disk if needed and frees it. Returns false if
+     * the image couldn't be saved and is still in memory.
+     */
+    public synchronized boolean dropFromMemory() {
+        if (proc_ == null) {
+            return true;
+        }
+        if (dirty_ || fileName_ == null) {
+            try {
+                cacheOnDisk();
+            } catch (IOException e) {
+                // Keep the image rather than lose it.
+                ReportingUtils.logError(e, "Couldn't save SlideExplorer tile to " + spillDirectory_);
+                return false;
+            }
+        }
         proc_ = null;
+        return true;
     }
 
-    private void cacheOnDisk() {
-        if (proc_ != null) {
-            ImagePlus imgp = new ImagePlus("", proc_);
-            FileSaver fs = new FileSaver(imgp);
-            if (fileName_ == null) {
-                fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
+    /*
+     * Writes the pixels as they are in memory, without a header.
+     */
+    private void cacheOnDisk() throws IOException {
+        if (fileName_ == null) {
+            File file = File.createTempFile("tile", ".raw", spillDirectory_);
+            // in case the cache is never closed
+            file.deleteOnExit();
+            fileName_ = file.getPath();
+        }
+        Object pixels = proc_.getPixels();
+        ByteBuffer buffer = ByteBuffer.allocate((int) getSizeInBytes()).order(ByteOrder.nativeOrder());
+        if (pixels instanceof byte[]) {
+            buffer.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            buffer.asShortBuffer().put((short[]) pixels);
+        } else if (pixels instanceof int[]) {
+            buffer.asIntBuffer().put((int[]) pixels);
+        }
+        buffer.rewind();
+        RandomAccessFile file = new RandomAccessFile(fileName_, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
-            fs.saveAsTiff(fileName_);
-            cached_ = true;
+        } finally {
+            file.close();
         }
+        dirty_ = false;
     }
 
     private void loadFromCache() {
-        ImagePlus imgp = IJ.openImage(fileName_);
-        if (imgp != null) {
-            proc_ = imgp.getProcessor();
-        } else { // Somehow the image got lost.
-            proc_ = null;
-            cached_ = false;
-            getImageReady();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) getSizeInBytes()).order(ByteOrder.nativeOrder());
+            RandomAccessFile file = new RandomAccessFile(fileName_, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Tile file " + fileName_ + " is too short");
+                    }
+                }
+            } finally {
+                file.close();
+            }
+            buffer.rewind();
+            proc_ = ImageUtils.makeProcessor(type_, width_, height_);
+            Object pixels = proc_.getPixels();
+            if (pixels instanceof byte[]) {
+                buffer.get((byte[]) pixels);
+            } else if (pixels instanceof short[]) {
+                buffer.asShortBuffer().get((short[]) pixels);
+            } else if (pixels instanceof int[]) {
+                buffer.asIntBuffer().get((int[]) pixels);
+            }
+            dirty_ = false;
+        } catch (IOException e) { // Somehow the image got lost.
+            ReportingUtils.logError(e);
+            fileName_ = null;
+            createCleanImage();
         }
     }
 
     public String toString() {
         return "Tile";
     }
-    private static Random rand = null;
-
-    public static long randLong() {
-        if (rand == null) {
-            rand = new Random();
-        }
-        return rand.nextLong();
-    }
 
-    public void wipeFromDisk() {
+    public synchronized void wipeFromDisk() {
         if (fileName_ != null) {
             File file = new File(fileName_);
             if (file.exists()) {
                 file.delete();
             }
+            fileName_ = null;
         }
     }
 }
@@ -5,116 +5,369 @@ import ij.process.ImageProcessor;
 import java.awt.Dimension;
 import java.awt.Point;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
+/*
+ * Holds the multitiles of all zoom levels. Tiles are kept in memory up to a
+ * byte budget; beyond that, the least recently used tiles are written to raw
+ * files in the spill directory and read back when needed. Tiles can be loaded
+ * on a background thread so the GUI never waits for the disk.
+ *
+ * Tiles tell the cache whenever they load their image, so every tile in
+ * memory is counted, however it was loaded. Call close() when done with the
+ * cache, to stop the loader threads and delete the spilled tiles.
+ */
 public class MultiTileCache {
-	
+
+	public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+	private static final int LOADER_THREADS = 2;
+
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
 	private int type_ = -1;
-	
+
 	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
-	
+	// Tiles in memory, least recently used first.
+	protected LinkedHashMap<Point3D,MultiTile> residentTiles_ = new LinkedHashMap<Point3D,MultiTile>(16, 0.75f, true);
+	private long residentBytes_ = 0;
+	// Bytes of tiles being written to disk; still counted in residentBytes_.
+	private long evictingBytes_ = 0;
+	private long memoryBudget_ = DEFAULT_MEMORY_BUDGET;
+	private File spillDirectory_;
+	private final HashSet<Point3D> pendingLoads_ = new HashSet<Point3D>();
+	// Tiles added since propagatePendingTiles last ran.
+	private final HashSet<Point3D> unpropagatedTiles_ = new HashSet<Point3D>();
+	private final ThreadPoolExecutor loader_;
+
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
+		this(zoomLevels, tileDimensions, DEFAULT_MEMORY_BUDGET, null);
+	}
+
+	/*
+	 * memoryBudget: bytes of tile pixels kept in memory.
+	 * spillDirectory: where tiles are written when they are dropped from memory.
+	 * If null, a directory in the system's temporary directory is used.
+	 */
+	public MultiTileCache(int zoomLevels, Dimension tileDimensions, long memoryBudget, File spillDirectory) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
+		memoryBudget_ = memoryBudget;
+		setSpillDirectory(spillDirectory);
+
+		loader_ = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SlideExplorer tile loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public final synchronized void setSpillDirectory(File spillDirectory) {
+		if (spillDirectory == null) {
+			spillDirectory = new File(System.getProperty("java.io.tmpdir"), "SlideExplorer");
+		}
+		if (!spillDirectory.exists())
+			spillDirectory.mkdirs();
+		spillDirectory_ = spillDirectory;
+	}
+
+	public synchronized File getSpillDirectory() {
+		return spillDirectory_;
+	}
+
+	public synchronized void setMemoryBudget(long bytes) {
+		memoryBudget_ = bytes;
+	}
+
+	public synchronized long getMemoryBudget() {
+		return memoryBudget_;
+	}
 
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
+	public synchronized long getResidentBytes() {
+		return residentBytes_;
 	}
-	
+
 	public void addImage(Point idx, ImageProcessor proc) {
 		if (type_ == -1) {
 			type_ = ImageUtils.getImageProcessorType(proc);
 		}
-		
+
 		MultiTile tile = getTile(idx);
 		tile.setImage(proc);
-		propagateTile(idx, tile);
+		trimToBudget(tile);
+		synchronized (unpropagatedTiles_) {
+			unpropagatedTiles_.add(new Point3D(idx, 0));
+		}
 	}
-	
+
 	public ImageProcessor getImage(Point3D multiTileIndex) {
-		return getMultiTile(multiTileIndex).getImage();
+		MultiTile tile = getMultiTile(multiTileIndex);
+		ImageProcessor img = tile.getImage();
+		trimToBudget(tile);
+		return img;
 	}
-	
+
+	/*
+	 * Returns the image of a multitile if it is in memory, or null if it
+	 * would have to be read from disk first. Never blocks on the disk, so it
+	 * can be called from the GUI thread.
+	 */
+	public ImageProcessor getResidentImage(Point3D multiTileIndex) {
+		MultiTile tile;
+		synchronized (this) {
+			// get() also marks the tile as recently used
+			tile = residentTiles_.get(multiTileIndex);
+		}
+		return tile == null ? null : tile.getResidentImage();
+	}
+
 	public boolean hasImage(Point p) {
 		return allTiles_.containsKey(new Point3D(p,0));
 	}
-	
+
 	public boolean hasImage(Point3D p) {
 		return allTiles_.containsKey(p);
 	}
-		
-	protected void propagateTile(Point idx, MultiTile multiTile) {
-		propagateTile(new Point3D(idx, 0), multiTile);
+
+	/*
+	 * Reads a multitile into memory on a background thread, evicting other
+	 * tiles if needed, and runs whenLoaded (if not null) afterwards.
+	 */
+	public void loadInBackground(Point3D multiTileIndex, Runnable whenLoaded) {
+		submitLoad(multiTileIndex, whenLoaded, true);
+	}
+
+	/*
+	 * Like loadInBackground, but only if the tile fits in the memory budget
+	 * without evicting anything, so prefetching never pushes out tiles that
+	 * are on screen.
+	 */
+	public void prefetch(Point3D multiTileIndex, Runnable whenLoaded) {
+		submitLoad(multiTileIndex, whenLoaded, false);
+	}
+
+	/*
+	 * Forgets loads and prefetches that haven't started, e.g. because the
+	 * view has moved on.
+	 */
+	public void cancelPendingLoads() {
+		synchronized (pendingLoads_) {
+			loader_.getQueue().clear();
+			pendingLoads_.clear();
+		}
+	}
+
+	private void submitLoad(final Point3D idx, final Runnable whenLoaded, final boolean mayEvict) {
+		if (!hasImage(idx)) {
+			return;
+		}
+		synchronized (pendingLoads_) {
+			if (!pendingLoads_.add(idx)) {
+				return;
+			}
+		}
+		Runnable load = new Runnable() {
+			public void run() {
+				try {
+					if (mayEvict || fitsInBudget(idx)) {
+						MultiTile tile = getMultiTile(idx);
+						tile.getImageReady();
+						trimToBudget(tile);
+						if (whenLoaded != null) {
+							whenLoaded.run();
+						}
+					}
+				} catch (Exception e) {
+					ReportingUtils.logError(e);
+				} finally {
+					synchronized (pendingLoads_) {
+						pendingLoads_.remove(idx);
+					}
+				}
+			}
+		};
+		try {
+			loader_.execute(load);
+		} catch (RejectedExecutionException e) {
+			// The cache has been closed.
+			synchronized (pendingLoads_) {
+				pendingLoads_.remove(idx);
+			}
+		}
+	}
+
+	private synchronized boolean fitsInBudget(Point3D idx) {
+		return residentTiles_.containsKey(idx)
+				|| residentBytes_ + allTiles_.get(idx).getSizeInBytes() <= memoryBudget_;
 	}
-	
-	protected void propagateTile(Point3D idx, MultiTile multiTile) {
-		if (idx.k>minZoomLevel_) {
-			Point3D pidx = getParentIndex(idx);
-			Point pquad = getParentQuadrant(idx);
-			MultiTile parentTile = getMultiTile(pidx);
-			
-			ImageProcessor proc = multiTile.getImage();
-			parentTile.insertQuadrantImage(pquad, proc);
-			propagateTile(pidx, parentTile);
+
+	/*
+	 * Updates the lower zoom levels with the images added since the last
+	 * call. This goes one level at a time, so a parent tile is visited once
+	 * however many of its children changed. Returns all multitiles that
+	 * changed, including the added ones.
+	 */
+	public ArrayList<Point3D> propagatePendingTiles() {
+		ArrayList<Point3D> changed = new ArrayList<Point3D>();
+		HashSet<Point3D> level;
+		synchronized (unpropagatedTiles_) {
+			level = new HashSet<Point3D>(unpropagatedTiles_);
+			unpropagatedTiles_.clear();
+		}
+		while (!level.isEmpty()) {
+			changed.addAll(level);
+			HashSet<Point3D> parents = new HashSet<Point3D>();
+			for (Point3D idx : level) {
+				if (idx.k > minZoomLevel_) {
+					Point3D pidx = getParentIndex(idx);
+					MultiTile parentTile = getMultiTile(pidx);
+					parentTile.insertQuadrantImage(getParentQuadrant(idx), getMultiTile(idx).getImage());
+					trimToBudget(parentTile);
+					parents.add(pidx);
+				}
+			}
+			level = parents;
 		}
+		return changed;
 	}
-		
+
 	protected MultiTile getMultiTile(int i, int j, int z) {
 		return getMultiTile(new Point3D(i,j,z));
 	}
-	
+
 	protected MultiTile getTile(Point idx) {
 		return getMultiTile(new Point3D(idx.x, idx.y, 0));
 	}
-	
+
+	/*
+	 * Returns the multitile, creating it if needed, and marks it as recently
+	 * used. Its image is counted once it is in memory (see tileLoaded).
+	 */
 	protected synchronized MultiTile getMultiTile(Point3D idx) {
+		MultiTile tile = allTiles_.get(idx);
+		if (tile == null) {
+			tile = new MultiTile(this, idx, type_, width_, height_, spillDirectory_);
+			allTiles_.put(idx, tile);
+		} else {
+			// get() marks the tile as recently used
+			residentTiles_.get(idx);
+		}
+		return tile;
+	}
 
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
-			}
+	/*
+	 * Called by a tile when its image has been loaded or created.
+	 */
+	synchronized void tileLoaded(Point3D idx, MultiTile tile) {
+		// Tiles left over from before clear() aren't counted.
+		if (allTiles_.get(idx) == tile && residentTiles_.put(idx, tile) == null) {
+			residentBytes_ += tile.getSizeInBytes();
 		}
+	}
 
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
-			allTiles_.put(idx, tile);
-			return tile;
-		} else {
-			return allTiles_.get(idx);
+	/*
+	 * Writes least recently used tiles other than keep to disk until the
+	 * tiles in memory fit in the budget. Their bytes are only uncounted once
+	 * they have actually been dropped; a tile that couldn't be saved stays
+	 * in memory and is counted again.
+	 */
+	private void trimToBudget(MultiTile keep) {
+		LinkedHashMap<Point3D,MultiTile> evicted = new LinkedHashMap<Point3D,MultiTile>();
+		synchronized (this) {
+			Iterator<Map.Entry<Point3D,MultiTile>> lru = residentTiles_.entrySet().iterator();
+			while (residentBytes_ - evictingBytes_ > memoryBudget_ && lru.hasNext()) {
+				Map.Entry<Point3D,MultiTile> oldest = lru.next();
+				if (oldest.getValue() != keep) {
+					lru.remove();
+					evictingBytes_ += oldest.getValue().getSizeInBytes();
+					evicted.put(oldest.getKey(), oldest.getValue());
+				}
+			}
+		}
+		// Write evicted tiles outside the lock, so other threads can
+		// keep using the cache meanwhile.
+		for (Map.Entry<Point3D,MultiTile> entry : evicted.entrySet()) {
+			MultiTile tile = entry.getValue();
+			boolean dropped = tile.dropFromMemory();
+			synchronized (this) {
+				if (allTiles_.get(entry.getKey()) != tile) {
+					// cleared meanwhile
+					continue;
+				}
+				evictingBytes_ -= tile.getSizeInBytes();
+				if (dropped) {
+					residentBytes_ -= tile.getSizeInBytes();
+				} else if (!residentTiles_.containsKey(entry.getKey())) {
+					residentTiles_.put(entry.getKey(), tile);
+				}
+			}
 		}
 	}
-		
+
 	protected Point3D getParentIndex(Point3D idx) {
 		return new Point3D(idx.i>>1, idx.j>>1, idx.k-1);
 	}
-	
+
 	protected Point getParentQuadrant(Point3D idx) {
 		return new Point(idx.i & 1, idx.j & 1);
 	}
-	
+
 	protected Point3D newPoint3D(int i, int j, int k) {
 		return new Point3D(i,j,k);
 	}
 
 	public void clear() {
-		for (MultiTile multiTile:allTiles_.values()) {
+		cancelPendingLoads();
+		ArrayList<MultiTile> tiles;
+		synchronized (this) {
+			tiles = new ArrayList<MultiTile>(allTiles_.values());
+			residentTiles_.clear();
+			residentBytes_ = 0;
+			evictingBytes_ = 0;
+			allTiles_.clear();
+		}
+		// Tiles still waiting for propagation belong to the old session.
+		synchronized (unpropagatedTiles_) {
+			unpropagatedTiles_.clear();
+		}
+		// Tiles call back into the cache while holding their own lock, so
+		// they are wiped outside the cache's lock.
+		for (MultiTile multiTile : tiles) {
 			multiTile.wipeFromDisk();
 		}
-        currentTiles_.clear();
-        allTiles_.clear();
 	}
-	
-	
 
-}
\ No newline at end of file
+	/*
+	 * Stops the loader threads, deletes all tile files and removes the
+	 * spill directory if nothing else is in it. The cache can't load tiles
+	 * afterwards.
+	 */
+	public void close() {
+		loader_.shutdownNow();
+		try {
+			loader_.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		clear();
+		getSpillDirectory().delete();
+	}
+
+}
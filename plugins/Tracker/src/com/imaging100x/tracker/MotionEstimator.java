@@ -0,0 +1,510 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           MotionEstimator.java
+//PROJECT:        Micro-Manager-100X
+//SUBSYSTEM:      100X Imaging Inc micro-manager extentsions
+//-----------------------------------------------------------------------------
+//
+//COPYRIGHT:      100X Imaging Inc, www.100ximaging.com, 2008
+//
+//LICENSE:        This file is distributed under the GPL license.
+//                License text is included with the source distribution.
+//
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package com.imaging100x.tracker;
+
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Finds where a reference region of the previous frame moved to in the
+ * current frame.
+ *
+ * The reference region (the template) is matched against the current frame
+ * within +/- maxOffset pixels of its expected position, using normalized
+ * cross-correlation. The correlation is computed for all offsets at once with
+ * Hartley transforms; the local means and energies of the current frame come
+ * from summed area tables. The position of the best match is refined to
+ * sub-pixel precision by fitting a parabola through the correlation peak.
+ *
+ * With a pyramid factor larger than one, the search is first done on images
+ * binned by that factor, and then only refined at full resolution around the
+ * coarse result, which is much cheaper for large search ranges.
+ *
+ * All buffers are kept between frames. Not thread safe: use one instance per
+ * tracking thread.
+ */
+public class MotionEstimator {
+   // smallest template edge (in pixels) for which the binned search is used
+   private static final int MIN_COARSE_SIZE = 4;
+
+   private final int maxOffset_;
+   private final int pyramidFactor_;
+   private final Level full_ = new Level();
+   private final Level coarse_ = new Level();
+   private Rectangle reference_;
+   private double peakScore_;
+   private double lastMs_;
+
+   /**
+    * Images and buffers for one level of the pyramid
+    */
+   private static class Level {
+      // template, zero mean
+      float[] template = new float[0];
+      int tw;
+      int th;
+      double templateNorm;
+      // search region of the current frame
+      float[] search = new float[0];
+      int sw;
+      int sh;
+      // summed area tables of the search region and its square
+      double[] sum = new double[0];
+      double[] sumSq = new double[0];
+      // normalized correlation for each template position in the search region
+      float[] score = new float[0];
+      int fftSize;
+      FHT fhtSearch;
+      FHT fhtTemplate;
+      FHT fhtProduct;
+   }
+
+   /**
+    * @param maxOffset - largest displacement (in pixels) searched for
+    * @param pyramidFactor - binning of the coarse search, 1 or less to search
+    *                        at full resolution only
+    */
+   public MotionEstimator(int maxOffset, int pyramidFactor) {
+      maxOffset_ = Math.max(1, maxOffset);
+      pyramidFactor_ = Math.max(1, pyramidFactor);
+   }
+
+   /**
+    * Stores the given region of ip as the template searched for in the
+    * next frame. The region is clipped to the image.
+    *
+    * @return the clipped region actually stored, or null if nothing of the
+    *         region lies within the image
+    */
+   public Rectangle setReference(ImageProcessor ip, Rectangle roi) {
+      Rectangle r = roi.intersection(
+            new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+      if (r.width < 1 || r.height < 1) {
+         reference_ = null;
+         return null;
+      }
+      reference_ = r;
+      full_.tw = r.width;
+      full_.th = r.height;
+      full_.template = ensure(full_.template, r.width * r.height);
+      copyRegion(ip, r.x, r.y, r.width, r.height, full_.template);
+      full_.templateNorm = subtractMean(full_.template, r.width * r.height);
+      if (usePyramid()) {
+         coarse_.tw = r.width / pyramidFactor_;
+         coarse_.th = r.height / pyramidFactor_;
+         coarse_.template = ensure(coarse_.template, coarse_.tw * coarse_.th);
+         bin(full_.template, full_.tw, coarse_.template, coarse_.tw,
+               coarse_.th, pyramidFactor_);
+         coarse_.templateNorm = subtractMean(coarse_.template,
+               coarse_.tw * coarse_.th);
+      }
+      return new Rectangle(r);
+   }
+
+   public boolean hasReference() {
+      return reference_ != null;
+   }
+
+   public void clear() {
+      reference_ = null;
+   }
+
+   /**
+    * Normalized correlation (-1 to 1) of the best match found by the last
+    * call to estimate
+    */
+   public double getPeakScore() {
+      return peakScore_;
+   }
+
+   /**
+    * Time (in ms) used by the last call to estimate
+    */
+   public double getLastLatencyMs() {
+      return lastMs_;
+   }
+
+   /**
+    * Finds the displacement of the reference template in ip.
+    *
+    * @param ip - current frame
+    * @param expected - position at which the template is expected in ip,
+    *                   for instance the reference region itself, or the
+    *                   region the stage was moved to
+    * @param offset - returns the displacement in x and y (in pixels) of the
+    *                 template relative to the expected position
+    * @return false if there is no reference, or no match could be found
+    */
+   public boolean estimate(ImageProcessor ip, Point expected, double[] offset) {
+      long start = System.nanoTime();
+      try {
+         offset[0] = 0.0;
+         offset[1] = 0.0;
+         if (reference_ == null || full_.templateNorm == 0.0) {
+            return false;
+         }
+         return estimate(ip, new Rectangle(expected.x, expected.y,
+               full_.tw, full_.th), offset);
+      } finally {
+         lastMs_ = (System.nanoTime() - start) / 1.0e6;
+      }
+   }
+
+   private boolean estimate(ImageProcessor ip, Rectangle r, double[] offset) {
+      int x0 = Math.max(0, r.x - maxOffset_);
+      int y0 = Math.max(0, r.y - maxOffset_);
+      int x1 = Math.min(ip.getWidth(), r.x + r.width + maxOffset_);
+      int y1 = Math.min(ip.getHeight(), r.y + r.height + maxOffset_);
+      if (x1 - x0 < full_.tw || y1 - y0 < full_.th) {
+         return false;
+      }
+      full_.sw = x1 - x0;
+      full_.sh = y1 - y0;
+      full_.search = ensure(full_.search, full_.sw * full_.sh);
+      copyRegion(ip, x0, y0, full_.sw, full_.sh, full_.search);
+      sumTables(full_);
+
+      // range of template positions in the search region
+      int u0 = 0;
+      int v0 = 0;
+      int u1 = full_.sw - full_.tw;
+      int v1 = full_.sh - full_.th;
+      if (usePyramid() && coarse_.templateNorm != 0.0) {
+         int f = pyramidFactor_;
+         coarse_.sw = full_.sw / f;
+         coarse_.sh = full_.sh / f;
+         if (coarse_.sw >= coarse_.tw && coarse_.sh >= coarse_.th) {
+            coarse_.search = ensure(coarse_.search, coarse_.sw * coarse_.sh);
+            bin(full_.search, full_.sw, coarse_.search, coarse_.sw,
+                  coarse_.sh, f);
+            sumTables(coarse_);
+            correlate(coarse_);
+            int[] peak = new int[2];
+            findPeak(coarse_, 0, 0, coarse_.sw - coarse_.tw,
+                  coarse_.sh - coarse_.th, peak);
+            // refine at full resolution within one coarse pixel
+            u0 = Math.max(u0, peak[0] * f - f);
+            v0 = Math.max(v0, peak[1] * f - f);
+            u1 = Math.min(u1, peak[0] * f + f);
+            v1 = Math.min(v1, peak[1] * f + f);
+            // compute one extra position on each side for the sub-pixel fit
+            full_.score = ensure(full_.score, (full_.sw - full_.tw + 1)
+                  * (full_.sh - full_.th + 1));
+            correlateDirect(full_, Math.max(0, u0 - 1), Math.max(0, v0 - 1),
+                  Math.min(full_.sw - full_.tw, u1 + 1),
+                  Math.min(full_.sh - full_.th, v1 + 1));
+         } else {
+            correlate(full_);
+         }
+      } else {
+         correlate(full_);
+      }
+
+      int[] peak = new int[2];
+      peakScore_ = findPeak(full_, u0, v0, u1, v1, peak);
+      int nu = full_.sw - full_.tw + 1;
+      int nv = full_.sh - full_.th + 1;
+      double dx = peak[0];
+      double dy = peak[1];
+      float[] s = full_.score;
+      int p = peak[1] * nu + peak[0];
+      if (peak[0] > 0 && peak[0] < nu - 1) {
+         dx += parabolaVertex(s[p - 1], s[p], s[p + 1]);
+      }
+      if (peak[1] > 0 && peak[1] < nv - 1) {
+         dy += parabolaVertex(s[p - nu], s[p], s[p + nu]);
+      }
+      offset[0] = dx + x0 - r.x;
+      offset[1] = dy + y0 - r.y;
+      return true;
+   }
+
+   private boolean usePyramid() {
+      return pyramidFactor_ > 1 && reference_ != null
+            && reference_.width / pyramidFactor_ >= MIN_COARSE_SIZE
+            && reference_.height / pyramidFactor_ >= MIN_COARSE_SIZE;
+   }
+
+   /**
+    * Normalized correlation of the template with the search region for all
+    * positions at which the template lies entirely within the search region,
+    * computed with Hartley transforms
+    */
+   private void correlate(Level l) {
+      int n = 2;
+      while (n < l.sw || n < l.sh) {
+         n *= 2;
+      }
+      if (n != l.fftSize) {
+         l.fftSize = n;
+         l.fhtSearch = newFHT(n);
+         l.fhtTemplate = newFHT(n);
+         l.fhtProduct = newFHT(n);
+      }
+      float[] a = (float[]) l.fhtSearch.getPixels();
+      float[] b = (float[]) l.fhtTemplate.getPixels();
+      Arrays.fill(a, 0.0f);
+      Arrays.fill(b, 0.0f);
+      // subtract the mean of the search region to keep the products small.
+      // Since the template has zero mean, this does not change the result
+      double mean = l.sum[l.sh * (l.sw + 1) + l.sw] / (l.sw * l.sh);
+      for (int y = 0; y < l.sh; y++) {
+         for (int x = 0; x < l.sw; x++) {
+            a[y * n + x] = (float) (l.search[y * l.sw + x] - mean);
+         }
+      }
+      for (int y = 0; y < l.th; y++) {
+         System.arraycopy(l.template, y * l.tw, b, y * n, l.tw);
+      }
+      l.fhtSearch.transform();
+      l.fhtTemplate.transform();
+      float[] c = (float[]) l.fhtProduct.getPixels();
+      conjugateMultiply(a, b, c, n);
+      l.fhtProduct.inverseTransform();
+
+      // c[v * n + u] now is the sum over the template of search(x + u, y + v)
+      // * template(x, y)
+      int nu = l.sw - l.tw + 1;
+      int nv = l.sh - l.th + 1;
+      l.score = ensure(l.score, nu * nv);
+      for (int v = 0; v < nv; v++) {
+         for (int u = 0; u < nu; u++) {
+            l.score[v * nu + u] = (float) normalize(l, u, v, c[v * n + u]);
+         }
+      }
+   }
+
+   /**
+    * Normalized correlation for the positions u0 - u1, v0 - v1 (inclusive),
+    * computed directly
+    */
+   private void correlateDirect(Level l, int u0, int v0, int u1, int v1) {
+      int nu = l.sw - l.tw + 1;
+      for (int v = v0; v <= v1; v++) {
+         for (int u = u0; u <= u1; u++) {
+            double dot = 0.0;
+            for (int y = 0; y < l.th; y++) {
+               int s = (y + v) * l.sw + u;
+               int t = y * l.tw;
+               for (int x = 0; x < l.tw; x++) {
+                  dot += l.search[s + x] * l.template[t + x];
+               }
+            }
+            l.score[v * nu + u] = (float) normalize(l, u, v, dot);
+         }
+      }
+   }
+
+   /**
+    * Divides the correlation of the template at (u, v) by the norms of the
+    * template and of the covered part of the search region
+    */
+   private static double normalize(Level l, int u, int v, double dot) {
+      int w = l.sw + 1;
+      int a = v * w + u;
+      int b = a + l.tw;
+      int c = (v + l.th) * w + u;
+      int d = c + l.tw;
+      double n = l.tw * l.th;
+      double sum = l.sum[d] - l.sum[b] - l.sum[c] + l.sum[a];
+      double sumSq = l.sumSq[d] - l.sumSq[b] - l.sumSq[c] + l.sumSq[a];
+      double var = sumSq - sum * sum / n;
+      if (var <= 0.0) {
+         return 0.0;
+      }
+      return dot / (l.templateNorm * Math.sqrt(var));
+   }
+
+   /**
+    * Finds the highest score within the given range of positions
+    *
+    * @return the highest score
+    */
+   private static double findPeak(Level l, int u0, int v0, int u1, int v1,
+         int[] peak) {
+      int nu = l.sw - l.tw + 1;
+      double max = Double.NEGATIVE_INFINITY;
+      peak[0] = u0;
+      peak[1] = v0;
+      for (int v = v0; v <= v1; v++) {
+         for (int u = u0; u <= u1; u++) {
+            float s = l.score[v * nu + u];
+            if (s > max) {
+               max = s;
+               peak[0] = u;
+               peak[1] = v;
+            }
+         }
+      }
+      return max;
+   }
+
+   /**
+    * Position (relative to the center sample, between -0.5 and 0.5) of the
+    * vertex of the parabola through three equally spaced samples
+    */
+   private static double parabolaVertex(double left, double center,
+         double right) {
+      double denom = left - 2.0 * center + right;
+      if (denom >= 0.0) {
+         return 0.0;
+      }
+      double d = 0.5 * (left - right) / denom;
+      return Math.max(-0.5, Math.min(0.5, d));
+   }
+
+   /**
+    * Summed area tables of the search region and of its square, of size
+    * (sw + 1) * (sh + 1) with a row and column of zeros in front
+    */
+   private static void sumTables(Level l) {
+      int w = l.sw + 1;
+      int size = w * (l.sh + 1);
+      if (l.sum.length < size) {
+         l.sum = new double[size];
+         l.sumSq = new double[size];
+      }
+      Arrays.fill(l.sum, 0, w, 0.0);
+      Arrays.fill(l.sumSq, 0, w, 0.0);
+      for (int y = 0; y < l.sh; y++) {
+         double rowSum = 0.0;
+         double rowSumSq = 0.0;
+         int t = (y + 1) * w;
+         l.sum[t] = 0.0;
+         l.sumSq[t] = 0.0;
+         for (int x = 0; x < l.sw; x++) {
+            double p = l.search[y * l.sw + x];
+            rowSum += p;
+            rowSumSq += p * p;
+            l.sum[t + x + 1] = l.sum[t - w + x + 1] + rowSum;
+            l.sumSq[t + x + 1] = l.sumSq[t - w + x + 1] + rowSumSq;
+         }
+      }
+   }
+
+   /**
+    * Same as FHT.conjugateMultiply, but writes into an existing array
+    */
+   private static void conjugateMultiply(float[] h1, float[] h2,
+         float[] result, int maxN) {
+      for (int r = 0; r < maxN; r++) {
+         int rowMod = (maxN - r) % maxN;
+         for (int c = 0; c < maxN; c++) {
+            int colMod = (maxN - c) % maxN;
+            double h2e = (h2[r * maxN + c] + h2[rowMod * maxN + colMod]) / 2;
+            double h2o = (h2[r * maxN + c] - h2[rowMod * maxN + colMod]) / 2;
+            result[r * maxN + c] = (float) (h1[r * maxN + c] * h2e
+                  - h1[rowMod * maxN + colMod] * h2o);
+         }
+      }
+   }
+
+   private static FHT newFHT(int size) {
+      FHT fht = new FHT(new FloatProcessor(size, size));
+      fht.setShowProgress(false);
+      return fht;
+   }
+
+   /**
+    * Copies a region of ip into dest, reading the pixel array directly for
+    * 8 bit, 16 bit and float images
+    */
+   private static void copyRegion(ImageProcessor ip, int x0, int y0, int w,
+         int h, float[] dest) {
+      Object pixels = ip.getPixels();
+      int width = ip.getWidth();
+      if (pixels instanceof byte[]) {
+         byte[] p = (byte[]) pixels;
+         for (int y = 0; y < h; y++) {
+            int s = (y0 + y) * width + x0;
+            for (int x = 0; x < w; x++) {
+               dest[y * w + x] = p[s + x] & 0xff;
+            }
+         }
+      } else if (pixels instanceof short[]) {
+         short[] p = (short[]) pixels;
+         for (int y = 0; y < h; y++) {
+            int s = (y0 + y) * width + x0;
+            for (int x = 0; x < w; x++) {
+               dest[y * w + x] = p[s + x] & 0xffff;
+            }
+         }
+      } else if (pixels instanceof float[]) {
+         float[] p = (float[]) pixels;
+         for (int y = 0; y < h; y++) {
+            System.arraycopy(p, (y0 + y) * width + x0, dest, y * w, w);
+         }
+      } else {
+         for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+               dest[y * w + x] = ip.getPixelValue(x0 + x, y0 + y);
+            }
+         }
+      }
+   }
+
+   /**
+    * Averages blocks of factor * factor pixels of src (row length srcWidth)
+    * into dest of size w * h
+    */
+   private static void bin(float[] src, int srcWidth, float[] dest, int w,
+         int h, int factor) {
+      float scale = 1.0f / (factor * factor);
+      for (int y = 0; y < h; y++) {
+         for (int x = 0; x < w; x++) {
+            float sum = 0.0f;
+            for (int i = 0; i < factor; i++) {
+               int s = (y * factor + i) * srcWidth + x * factor;
+               for (int j = 0; j < factor; j++) {
+                  sum += src[s + j];
+               }
+            }
+            dest[y * w + x] = sum * scale;
+         }
+      }
+   }
+
+   /**
+    * Subtracts the mean of the first n values
+    *
+    * @return the norm (square root of the sum of squares) of the result
+    */
+   private static double subtractMean(float[] data, int n) {
+      double sum = 0.0;
+      for (int i = 0; i < n; i++) {
+         sum += data[i];
+      }
+      float mean = (float) (sum / n);
+      double sumSq = 0.0;
+      for (int i = 0; i < n; i++) {
+         data[i] -= mean;
+         sumSq += (double) data[i] * data[i];
+      }
+      return Math.sqrt(sumSq);
+   }
+
+   private static float[] ensure(float[] array, int size) {
+      return array.length >= size ? array : new float[size];
+   }
+}
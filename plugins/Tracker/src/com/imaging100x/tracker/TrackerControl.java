@@ -31,6 +31,7 @@ import ij.gui.ImageWindow;
 import ij.gui.Roi;
 import ij.process.ImageProcessor;
 
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -39,14 +40,20 @@ import java.awt.event.WindowEvent;
 import java.awt.Insets;
 import java.io.File;
 import java.util.GregorianCalendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JRadioButton;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.border.BevelBorder;
 
@@ -76,7 +83,10 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private int resolutionPix_ = 5;
    private int offsetPix_ = 100;
    private Timer timer_;
-   private ImageProcessor ipPrevious_ = null;
+   // frames are snapped and processed on this thread, one at a time
+   private final ExecutorService worker_;
+   private final AtomicBoolean busy_ = new AtomicBoolean(false);
+   private MotionEstimator estimator_;
    private ImageProcessor ipCurrent_ = null;
    private String stage_ = "XYStage";
    private Roi roi_;
@@ -88,11 +98,16 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private MMRect limits_;
    private AcquisitionData acq_;
    private int imageCounter_;
+   private double latencySumMs_;
+   // position of the stored reference relative to the region it was cut
+   // from; non-zero only where that region extends past the image border
+   private final Point refShift_ = new Point();
 
    private static final String RESOLUTION_PIX = "resolution_pix";
    private static final String OFFSET_PIX = "offset_pix";
    private static final String INTERVAL_MS = "interval_pix";
    private static final String DISK_RECORDING = "disk_recording";
+   private static final String PYRAMID = "pyramid";
    private static final String ROOT = "root";
    private static final String NAME = "name";
    private static final String TRACK_Y = "TRACK_X_UM";
@@ -102,6 +117,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private static final String D = "STEP_UM";
    private static final String V = "VELOCITY_UMPS";
    private static final String L = "TOTAL_TRAVEL_UM";
+   private static final String LATENCY = "LATENCY_MS";
    private static final String RECT_X = "RECT_X";
    private static final String RECT_Y = "RECT_Y";
    private static final String RECT_W = "RECT_W";
@@ -110,6 +126,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private JLabel labelBottomRight_;
    private JRadioButton stackRadioButton_;
    private JRadioButton image5dRadioButton_;
+   private JCheckBox pyramidCheckBox_;
    private JLabel speedLabel_;
    private double distUm_;
    private JButton topLeftButton_;
@@ -171,6 +188,13 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       imageCounter_ = 0;
       limits_ = new MMRect();
       prefs_ = Preferences.userNodeForPackage(this.getClass());
+      worker_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Tracker worker");
+            t.setDaemon(true);
+            return t;
+         }
+      });
 
       addWindowListener(new WindowAdapter() {
          public void windowOpened(WindowEvent e) {
@@ -178,6 +202,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             offsetPix_ = prefs_.getInt(OFFSET_PIX, offsetPix_);
             intervalMs_ = prefs_.getInt(INTERVAL_MS, intervalMs_);
             image5dRadioButton_.setSelected(prefs_.getBoolean(DISK_RECORDING, image5dRadioButton_.isSelected()));
+            pyramidCheckBox_.setSelected(prefs_.getBoolean(PYRAMID, pyramidCheckBox_.isSelected()));
             rootField_.setText(prefs_.get(ROOT, ""));
             nameField_.setText(prefs_.get(NAME, ""));
 
@@ -192,6 +217,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             prefs_.putInt(OFFSET_PIX, offsetPix_);
             prefs_.putInt(INTERVAL_MS, intervalMs_);
             prefs_.putBoolean(DISK_RECORDING, image5dRadioButton_.isSelected());
+            prefs_.putBoolean(PYRAMID, pyramidCheckBox_.isSelected());
             prefs_.put(ROOT, rootField_.getText());
             prefs_.put(NAME, nameField_.getText());
          }
@@ -218,9 +244,6 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             pixelSizeUm_ = Double.parseDouble(pixelSizeField_.getText());
             offsetPix_ = Integer.parseInt(offsetField_.getText());
             resolutionPix_ = Integer.parseInt(resField_.getText());
-            ipPrevious_ = null;
-            ipCurrent_ = null;
-            stack_ = null;
             timer_.setDelay(intervalMs_);
             track(); 
          }
@@ -256,6 +279,12 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       resField_.setBounds(140, 75, 93, 19);
       getContentPane().add(resField_);
 
+      pyramidCheckBox_ = new JCheckBox();
+      pyramidCheckBox_.setText("Coarse-to-fine search");
+      pyramidCheckBox_.setToolTipText("Search binned images first, then refine at full resolution");
+      pyramidCheckBox_.setBounds(240, 73, 160, 24);
+      getContentPane().add(pyramidCheckBox_);
+
       final JButton stopButton = new JButton();
       stopButton.addActionListener(new ActionListener() {
          public void actionPerformed(final ActionEvent e) {
@@ -357,10 +386,25 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       //
 
       // Setup timer
+      // The timer only hands frames to the worker thread, so that snapping,
+      // correlating and moving the stage do not block the user interface.
+      // Ticks arriving while the previous frame is still being processed are
+      // dropped rather than queued.
       ActionListener timerHandler = new ActionListener() {
          public void actionPerformed(ActionEvent evt) {
-            snapSingleImage();
-            processOneFrame(true);
+            if (!busy_.compareAndSet(false, true))
+               return;
+            worker_.execute(new Runnable() {
+               public void run() {
+                  try {
+                     long start = System.nanoTime();
+                     if (snapSingleImage())
+                        processOneFrame(true, start);
+                  } finally {
+                     busy_.set(false);
+                  }
+               }
+            });
          }
       };
       timer_ = new Timer(intervalMs_, timerHandler);
@@ -381,15 +425,41 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       }
    }
 
+   /**
+    * Starts tracking. The tracking state is only touched on the worker
+    * thread, so it is reset there, ahead of the first frame.
+    */
    public void track() {
+      // with the coarse-to-fine search, the resolution is the binning
+      // of the coarse step
+      final int pyramidFactor = pyramidCheckBox_.isSelected() ? resolutionPix_ : 1;
+      final boolean record = image5dRadioButton_.isSelected();
+      final String name = nameField_.getText();
+      final String root = rootField_.getText();
+      worker_.execute(new Runnable() {
+         public void run() {
+            startTracking(pyramidFactor, record, name, root);
+         }
+      });
+      timer_.start();
+   }
+
+   /**
+    * Runs on the worker thread.
+    */
+   private void startTracking(int pyramidFactor, boolean record, String name, String root) {
+      estimator_ = new MotionEstimator(offsetPix_, pyramidFactor);
+      ipCurrent_ = null;
+      stack_ = null;
       imageCounter_ = 0;
       distUm_ = 0.0;
+      latencySumMs_ = 0.0;
       //roiStart_ = roi_.getBoundingRect();
       IJ.write("Tracking started at " + GregorianCalendar.getInstance().getTime());
-      if (image5dRadioButton_.isSelected()) {
+      if (record) {
          acq_ = new AcquisitionData();
          try {
-            acq_.createNew(nameField_.getText(), rootField_.getText(), true);
+            acq_.createNew(name, root, true);
             acq_.setDimensions(0, 1, 1);
             acq_.setImagePhysicalDimensions((int)app_.getMMCore().getImageWidth(), (int)app_.getMMCore().getImageHeight(), (int)app_.getMMCore().getBytesPerPixel());
             acq_.setImageIntervalMs(intervalMs_);
@@ -400,15 +470,21 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       } else {
          acq_ = null;
       }
-      timer_.start();
    }
-   public void stopTracking() {
 
-      //roiStart_ = roi_.getBoundingRect();
-      IJ.write("Tracking stopped at " + GregorianCalendar.getInstance().getTime());
+   public void stopTracking() {
       timer_.stop();
-      if (acq_ == null)
-         createStack();
+      // after the frame that may still be in progress
+      worker_.execute(new Runnable() {
+         public void run() {
+            //roiStart_ = roi_.getBoundingRect();
+            IJ.write("Tracking stopped at " + GregorianCalendar.getInstance().getTime());
+            if (imageCounter_ > 0)
+               IJ.write("Mean latency per frame: " + TextUtils.FMT2.format(latencySumMs_ / imageCounter_) + " ms");
+            if (acq_ == null)
+               createStack();
+         }
+      });
    }
 
    private boolean snapSingleImage() {
@@ -461,54 +537,39 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       impStack.draw();
    }
 
-   private void processOneFrame(boolean moveStage) {
-      if (ipPrevious_ == null) {
-         ipPrevious_ = ipCurrent_;
-         return;
-      }
-
-      // iterate on all offsets
-      int kMax = 0;
-      int lMax = 0;
-
+   /**
+    * Measures how far the tracked region moved since the previous frame and
+    * compensates by moving the stage (or the roi).
+    * Runs on the worker thread.
+    * @param moveStage - move the stage rather than the roi
+    * @param startNanos - time at which the frame was requested, to report
+    *                     the latency of the whole loop
+    */
+   private void processOneFrame(boolean moveStage, long startNanos) {
       Rectangle r = roi_.getBoundingRect();
       //IJ.write("ROI pos: " + r.x + "," + r.y);
-
-      double corScale = r.width * r.height;
-
-      double maxCor = 0; // <<<
-      for (int k=-offsetPix_; k<offsetPix_; k += resolutionPix_) {
-         for (int l=-offsetPix_; l<offsetPix_; l += resolutionPix_) {
-
-            // calculate correlation
-            double sum = 0.0;
-            double meanPrev = 0.0;
-            double meanCur = 0.0;
-            for (int i=0; i<r.height; i++) {
-               for (int j=0; j<r.width; j++) {
-                  int pixPrev = ipPrevious_.getPixel(r.x + j + l, r.y + i + k);
-                  int pixCur = ipCurrent_.getPixel(r.x + j + l, r.y + i + k);
-                  sum += (double)pixPrev*pixCur;
-                  meanPrev += pixPrev;
-                  meanCur += pixCur;
-               }
-            }
-            sum /= corScale;
-            meanPrev /= corScale;
-            meanCur /= corScale;
-            sum /= meanPrev*meanCur;
-
-            // check for max value
-            if (sum > maxCor) {
-               maxCor = sum;
-               kMax = k;
-               lMax = l;
-            }
-         }
+      if (!estimator_.hasReference()) {
+         storeReference(r);
+         return;
       }
 
-      //IJ.write("maxc=" + maxCor + ", offset=(" + lMax + "," + kMax + ")");
-      ipPrevious_ = ipCurrent_;
+      // sub-pixel displacement of the region, relative to where it
+      // is expected (the roi, or the part of it that was inside the image)
+      double[] offset = new double[2];
+      Point expected = new Point(r.x + refShift_.x, r.y + refShift_.y);
+      if (!estimator_.estimate(ipCurrent_, expected, offset)) {
+         IJ.write("Tracking region lost.");
+         timer_.stop();
+         return;
+      }
+      double lMax = offset[0];
+      double kMax = offset[1];
+      //IJ.write("maxc=" + estimator_.getPeakScore() + ", offset=(" + lMax + "," + kMax + ")");
+
+      // the region as it looks in this frame is searched for in the next one
+      int lPix = (int) Math.round(lMax);
+      int kPix = (int) Math.round(kMax);
+      storeReference(new Rectangle(r.x + lPix, r.y + kPix, r.width, r.height));
       // offset in um
 
       double x = lMax * pixelSizeUm_;
@@ -566,18 +627,28 @@ public class TrackerControl extends MMFrame implements MMPlugin {
          } // relative motion
       } else {
          // move the roi
-         roi_.setLocation(r.x+lMax, r.y+kMax);
+         roi_.setLocation(r.x+lPix, r.y+kPix);
       }
+      // time from requesting the frame until the stage has been moved
+      double latencyMs = (System.nanoTime() - startNanos) / 1.0e6;
+      latencySumMs_ += latencyMs;
       double d = Math.sqrt(x*x + y*y);
       distUm_ += d;
       double v = d / intervalMs_ * 1000.0;
-      speedLabel_.setText("n=" + imageCounter_ + ", t=" + TextUtils.FMT2.format(((double)imageCounter_ * intervalMs_)/1000.0) +
-            " s, d=" + TextUtils.FMT2.format(d) + " um, l=" + TextUtils.FMT2.format(distUm_) + " um, v=" + TextUtils.FMT2.format(v) + " um/s");
+      final String speed = "n=" + imageCounter_ + ", t=" + TextUtils.FMT2.format(((double)imageCounter_ * intervalMs_)/1000.0) +
+            " s, d=" + TextUtils.FMT2.format(d) + " um, l=" + TextUtils.FMT2.format(distUm_) + " um, v=" + TextUtils.FMT2.format(v) + " um/s" +
+            ", lat=" + TextUtils.FMT2.format(estimator_.getLastLatencyMs()) + "/" + TextUtils.FMT2.format(latencyMs) + " ms";
+      SwingUtilities.invokeLater(new Runnable() {
+         public void run() {
+            speedLabel_.setText(speed);
+         }
+      });
       if (acq_ != null) {
          try {
             acq_.setImageValue(imageCounter_, 0, 0, D, d);
             acq_.setImageValue(imageCounter_, 0, 0, V, v);
             acq_.setImageValue(imageCounter_, 0, 0, L, distUm_);
+            acq_.setImageValue(imageCounter_, 0, 0, LATENCY, latencyMs);
          } catch (MMAcqDataException e) {
             IJ.write(e.getMessage());
             timer_.stop();
@@ -586,6 +657,17 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       imageCounter_++;
    }
 
+   /**
+    * Uses the region of the current frame as the reference, and remembers
+    * where the part actually stored lies within it.
+    * Runs on the worker thread.
+    */
+   private void storeReference(Rectangle region) {
+      Rectangle ref = estimator_.setReference(ipCurrent_, region);
+      if (ref != null)
+         refShift_.setLocation(ref.x - region.x, ref.y - region.y);
+   }
+
    public void setApp(ScriptInterface app) {
       app_ = app;
       // initialize();